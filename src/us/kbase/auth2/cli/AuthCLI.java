@@ -91,9 +91,11 @@ public class AuthCLI {
 		}
 		final Authentication auth;
 		final AuthStartupConfig cfg;
+		final AuthBuilder ab;
 		try {
 			cfg = new KBaseAuthConfig(Paths.get(a.deploy), true);
-			auth = new AuthBuilder(cfg, AuthExternalConfig.SET_DEFAULT).getAuth();
+			ab = new AuthBuilder(cfg, AuthExternalConfig.SET_DEFAULT);
+			auth = ab.getAuth();
 		} catch (AuthConfigurationException | StorageInitException e) {
 			error(e, a);
 			throw new RuntimeException(); // error() stops execution
@@ -112,6 +114,16 @@ public class AuthCLI {
 			System.exit(0);
 		}
 		
+		if (a.binaryKeys) {
+			try {
+				System.out.println(String.format("Converted %s documents and identities",
+						ab.getStorage().migrateToBinaryKeys()));
+			} catch (AuthStorageException e) {
+				error(e, a);
+			}
+			System.exit(0);
+		}
+		
 		if (a.globus_users != null && !a.globus_users.trim().isEmpty()) {
 			URL globusAPIURL = null;
 			for (final IdentityProviderConfig idc: cfg.getIdentityProviderConfigs()) {
@@ -429,6 +441,14 @@ public class AuthCLI {
 				"it will be enabled with the enabling user set to the root user name.")
 		private boolean setroot;
 		
+		@Parameter(names = {"--migrate-binary-keys"}, description =
+				"Convert token hashes, token IDs, and remote identity IDs in the database to " +
+				"binary form and store new keys in binary form. The service may be running " +
+				"during the conversion. Running service instances start storing keys in binary " +
+				"form within about a minute. If this option is selected no other specified " +
+				"operations will be executed.")
+		private boolean binaryKeys;
+		
 		@Parameter(names = {"-n", "--nexus-token"}, description =
 				"A Globus Nexus user token for use when importing users. Providing " +
 				"a token without a users file does nothing.")
@@ -19,6 +19,7 @@ import com.google.common.base.Optional;
 
 import us.kbase.auth2.lib.identity.IdentityProviderConfig;
 import us.kbase.auth2.lib.identity.IdentityProviderConfig.IdentityProviderConfigurationException;
+import us.kbase.auth2.lib.token.TokenType;
 import us.kbase.auth2.service.AuthStartupConfig;
 import us.kbase.auth2.service.SLF4JAutoLogger;
 import us.kbase.auth2.service.exceptions.AuthConfigurationException;
@@ -40,7 +41,25 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 	private static final String KEY_MONGO_DB = "mongo-db";
 	private static final String KEY_MONGO_USER = "mongo-user";
 	private static final String KEY_MONGO_PWD = "mongo-pwd";
+	private static final String KEY_MONGO_CONNECTION_STRING = "mongo-connection-string";
+	private static final String KEY_MONGO_MAX_POOL_SIZE = "mongo-max-pool-size";
+	private static final String KEY_MONGO_MIN_POOL_SIZE = "mongo-min-pool-size";
+	private static final String KEY_MONGO_MAX_WAIT = "mongo-max-wait-ms";
+	private static final String KEY_MONGO_CONNECT_TIMEOUT = "mongo-connect-timeout-ms";
+	private static final String KEY_MONGO_SOCKET_TIMEOUT = "mongo-socket-timeout-ms";
+	private static final String KEY_MONGO_SERVER_SELECTION_TIMEOUT =
+			"mongo-server-selection-timeout-ms";
+	private static final String KEY_MONGO_WRITE_CONCERN = "mongo-write-concern";
+	private static final String KEY_MONGO_NON_CRITICAL_READ_PREF =
+			"mongo-noncritical-read-preference";
 	private static final String KEY_COOKIE_NAME = "token-cookie-name";
+	private static final String KEY_LAST_LOGIN_WRITE_BEHIND = "last-login-write-behind-ms";
+	private static final String KEY_USER_SEARCH_INDEX = "user-search-index-reload-ms";
+	private static final String KEY_DISPLAY_NAME_CACHE_SIZE = "display-name-cache-size";
+	private static final String KEY_DISPLAY_NAME_CACHE_EXPIRE = "display-name-cache-expire-ms";
+	private static final String KEY_SIGNED_TOKEN_TYPES = "signed-token-types";
+	private static final String KEY_SIGNING_KEY_SECRET = "token-signing-key-secret";
+	private static final String KEY_EXPIRED_TOKEN_SWEEP = "expired-token-sweep-ms";
 	private static final String KEY_ID_PROV = "identity-providers";
 	private static final String KEY_PREFIX_ID_PROVS = "identity-provider-";
 	private static final String KEY_SUFFIX_ID_PROVS_FACTORY = "-factory";
@@ -56,11 +75,27 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 	private static final String KEY_SUFFIX_ID_PROVS_CUSTOM = "-custom-";
 	
 	private final SLF4JAutoLogger logger;
-	private final String mongoHost;
+	private final Optional<String> mongoHost;
+	private final Optional<String> mongoConnectionString;
 	private final String mongoDB;
 	private final Optional<String> mongoUser;
 	private final Optional<char[]> mongoPwd;
+	private final int mongoMaxPoolSize;
+	private final int mongoMinPoolSize;
+	private final int mongoMaxWaitMS;
+	private final int mongoConnectTimeoutMS;
+	private final int mongoSocketTimeoutMS;
+	private final int mongoServerSelectionTimeoutMS;
+	private final Optional<String> mongoWriteConcern;
+	private final Optional<String> mongoNonCriticalReadPreference;
 	private final String cookieName;
+	private final long lastLoginWriteBehindMS;
+	private final long userSearchIndexReloadMS;
+	private final long displayNameCacheSize;
+	private final long displayNameCacheExpireMS;
+	private final Set<TokenType> signedTokenTypes;
+	private final Optional<String> signingKeySecret;
+	private final long expiredTokenSweepMS;
 	private final Set<IdentityProviderConfig> providers;
 
 	public KBaseAuthConfig() throws AuthConfigurationException {
@@ -81,7 +116,15 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 					JsonServerSyslog.LOG_LEVEL_INFO, true));
 		}
 		try {
-			mongoHost = getString(KEY_MONGO_HOST, cfg, true);
+			mongoHost = Optional.fromNullable(getString(KEY_MONGO_HOST, cfg));
+			mongoConnectionString = Optional.fromNullable(
+					getString(KEY_MONGO_CONNECTION_STRING, cfg));
+			if (!mongoHost.isPresent() && !mongoConnectionString.isPresent()) {
+				throw new AuthConfigurationException(String.format(
+						"Must provide one of the %s or %s params in config file %s section %s",
+						KEY_MONGO_HOST, KEY_MONGO_CONNECTION_STRING,
+						cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC));
+			}
 			mongoDB = getString(KEY_MONGO_DB, cfg, true);
 			mongoUser = Optional.fromNullable(getString(KEY_MONGO_USER, cfg));
 			Optional<String> mongop = Optional.fromNullable(getString(KEY_MONGO_PWD, cfg));
@@ -95,7 +138,44 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 			mongoPwd = mongop.isPresent() ?
 					Optional.of(mongop.get().toCharArray()) : Optional.absent();
 			mongop = null; //GC
+			if (mongoUser.isPresent() && mongoConnectionString.isPresent()) {
+				// the driver can't merge the two sets of credentials
+				throw new AuthConfigurationException(String.format(
+						"The %s and %s params may not be used with the %s param in config " +
+						"file %s section %s. Provide the credentials in the connection string",
+						KEY_MONGO_USER, KEY_MONGO_PWD, KEY_MONGO_CONNECTION_STRING,
+						cfg.get(TEMP_KEY_CFG_FILE), CFG_LOC));
+			}
+			mongoMaxPoolSize = getNonNegativeInt(KEY_MONGO_MAX_POOL_SIZE, cfg);
+			mongoMinPoolSize = getNonNegativeInt(KEY_MONGO_MIN_POOL_SIZE, cfg);
+			mongoMaxWaitMS = getNonNegativeInt(KEY_MONGO_MAX_WAIT, cfg);
+			mongoConnectTimeoutMS = getNonNegativeInt(KEY_MONGO_CONNECT_TIMEOUT, cfg);
+			mongoSocketTimeoutMS = getNonNegativeInt(KEY_MONGO_SOCKET_TIMEOUT, cfg);
+			mongoServerSelectionTimeoutMS = getNonNegativeInt(
+					KEY_MONGO_SERVER_SELECTION_TIMEOUT, cfg);
+			mongoWriteConcern = Optional.fromNullable(getString(KEY_MONGO_WRITE_CONCERN, cfg));
+			mongoNonCriticalReadPreference = Optional.fromNullable(
+					getString(KEY_MONGO_NON_CRITICAL_READ_PREF, cfg));
 			cookieName = getString(KEY_COOKIE_NAME, cfg, true);
+			lastLoginWriteBehindMS = getNonNegativeLong(KEY_LAST_LOGIN_WRITE_BEHIND, cfg, 0);
+			userSearchIndexReloadMS = getNonNegativeLong(KEY_USER_SEARCH_INDEX, cfg, 0);
+			displayNameCacheSize = getNonNegativeLong(KEY_DISPLAY_NAME_CACHE_SIZE, cfg, 0);
+			displayNameCacheExpireMS = getNonNegativeLong(
+					KEY_DISPLAY_NAME_CACHE_EXPIRE, cfg, 300000);
+			if (displayNameCacheExpireMS < 1) {
+				throw new AuthConfigurationException(String.format(
+						"Parameter %s in section %s of config file %s must be greater than 0",
+						KEY_DISPLAY_NAME_CACHE_EXPIRE, CFG_LOC, cfg.get(TEMP_KEY_CFG_FILE)));
+			}
+			signedTokenTypes = getSignedTokenTypes(cfg);
+			signingKeySecret = Optional.fromNullable(getString(KEY_SIGNING_KEY_SECRET, cfg));
+			if (!signedTokenTypes.isEmpty() && !signingKeySecret.isPresent()) {
+				throw new AuthConfigurationException(String.format(
+						"Parameter %s in section %s of config file %s is required if %s is set",
+						KEY_SIGNING_KEY_SECRET, CFG_LOC, cfg.get(TEMP_KEY_CFG_FILE),
+						KEY_SIGNED_TOKEN_TYPES));
+			}
+			expiredTokenSweepMS = getNonNegativeLong(KEY_EXPIRED_TOKEN_SWEEP, cfg, 0);
 			providers = getProviders(cfg);
 		} catch (AuthConfigurationException e) {
 			if (!nullLogger) {
@@ -106,6 +186,29 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 		}
 	}
 	
+	private Set<TokenType> getSignedTokenTypes(final Map<String, String> cfg)
+			throws AuthConfigurationException {
+		final String comsepTypes = getString(KEY_SIGNED_TOKEN_TYPES, cfg);
+		final Set<TokenType> types = new HashSet<>();
+		if (comsepTypes == null) {
+			return types;
+		}
+		for (String t: comsepTypes.split(",")) {
+			t = t.trim();
+			if (t.isEmpty()) {
+				continue;
+			}
+			try {
+				types.add(TokenType.getType(t));
+			} catch (IllegalArgumentException e) {
+				throw new AuthConfigurationException(String.format(
+						"Illegal token type %s in parameter %s in section %s of config file %s",
+						t, KEY_SIGNED_TOKEN_TYPES, CFG_LOC, cfg.get(TEMP_KEY_CFG_FILE)));
+			}
+		}
+		return Collections.unmodifiableSet(types);
+	}
+	
 	private Set<IdentityProviderConfig> getProviders(
 			final Map<String, String> cfg)
 			throws AuthConfigurationException {
@@ -165,6 +268,42 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 		}
 	}
 	
+	private long getNonNegativeLong(
+			final String key,
+			final Map<String, String> cfg,
+			final long defaultValue)
+			throws AuthConfigurationException {
+		final String value = getString(key, cfg);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			final long l = Long.parseLong(value);
+			if (l >= 0) {
+				return l;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new AuthConfigurationException(String.format(
+				"Value %s of parameter %s in section %s of config " +
+				"file %s is not a non-negative integer",
+				value, key, CFG_LOC, cfg.get(TEMP_KEY_CFG_FILE)));
+	}
+	
+	// 0 if the parameter is missing
+	private int getNonNegativeInt(final String key, final Map<String, String> cfg)
+			throws AuthConfigurationException {
+		final long l = getNonNegativeLong(key, cfg, 0);
+		if (l > Integer.MAX_VALUE) {
+			throw new AuthConfigurationException(String.format(
+					"Value %s of parameter %s in section %s of config " +
+					"file %s must be no greater than %s",
+					l, key, CFG_LOC, cfg.get(TEMP_KEY_CFG_FILE), Integer.MAX_VALUE));
+		}
+		return (int) l;
+	}
+	
 	private static class NullLogger implements SLF4JAutoLogger {
 
 		@Override
@@ -273,9 +412,14 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 	}
 
 	@Override
-	public String getMongoHost() {
+	public Optional<String> getMongoHost() {
 		return mongoHost;
 	}
+	
+	@Override
+	public Optional<String> getMongoConnectionString() {
+		return mongoConnectionString;
+	}
 
 	@Override
 	public String getMongoDatabase() {
@@ -292,8 +436,83 @@ public class KBaseAuthConfig implements AuthStartupConfig {
 		return mongoPwd;
 	}
 	
+	@Override
+	public int getMongoMaxPoolSize() {
+		return mongoMaxPoolSize;
+	}
+	
+	@Override
+	public int getMongoMinPoolSize() {
+		return mongoMinPoolSize;
+	}
+	
+	@Override
+	public int getMongoMaxWaitMS() {
+		return mongoMaxWaitMS;
+	}
+	
+	@Override
+	public int getMongoConnectTimeoutMS() {
+		return mongoConnectTimeoutMS;
+	}
+	
+	@Override
+	public int getMongoSocketTimeoutMS() {
+		return mongoSocketTimeoutMS;
+	}
+	
+	@Override
+	public int getMongoServerSelectionTimeoutMS() {
+		return mongoServerSelectionTimeoutMS;
+	}
+	
+	@Override
+	public Optional<String> getMongoWriteConcern() {
+		return mongoWriteConcern;
+	}
+	
+	@Override
+	public Optional<String> getMongoNonCriticalReadPreference() {
+		return mongoNonCriticalReadPreference;
+	}
+	
 	@Override
 	public String getTokenCookieName() {
 		return cookieName;
 	}
+	
+	@Override
+	public long getLastLoginWriteBehindMS() {
+		return lastLoginWriteBehindMS;
+	}
+	
+	@Override
+	public long getUserSearchIndexReloadMS() {
+		return userSearchIndexReloadMS;
+	}
+	
+	@Override
+	public long getDisplayNameCacheSize() {
+		return displayNameCacheSize;
+	}
+	
+	@Override
+	public long getDisplayNameCacheExpireMS() {
+		return displayNameCacheExpireMS;
+	}
+	
+	@Override
+	public Set<TokenType> getSignedTokenTypes() {
+		return signedTokenTypes;
+	}
+	
+	@Override
+	public Optional<String> getTokenSigningKeySecret() {
+		return signingKeySecret;
+	}
+	
+	@Override
+	public long getExpiredTokenSweepMS() {
+		return expiredTokenSweepMS;
+	}
 }
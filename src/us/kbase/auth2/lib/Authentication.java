@@ -7,13 +7,15 @@ import static us.kbase.auth2.lib.Utils.noNulls;
 
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
 import java.time.Clock;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -21,15 +23,19 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 
 import us.kbase.auth2.cryptutils.PasswordCrypt;
 import us.kbase.auth2.cryptutils.RandomDataGenerator;
 import us.kbase.auth2.cryptutils.SHA1RandomDataGenerator;
+import us.kbase.auth2.lib.exceptions.AuthException;
 import us.kbase.auth2.lib.exceptions.ErrorType;
 import us.kbase.auth2.lib.exceptions.ExternalConfigMappingException;
 import us.kbase.auth2.lib.exceptions.IdentityLinkedException;
@@ -67,15 +73,18 @@ import us.kbase.auth2.lib.storage.AuthStorage;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
 import us.kbase.auth2.lib.storage.exceptions.StorageInitException;
 import us.kbase.auth2.lib.token.NewToken;
+import us.kbase.auth2.lib.token.SignedTokens;
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.token.TemporaryToken;
 import us.kbase.auth2.lib.token.TokenName;
 import us.kbase.auth2.lib.token.TokenSet;
+import us.kbase.auth2.lib.token.TokenSigningKey;
 import us.kbase.auth2.lib.token.TokenType;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.auth2.lib.user.LocalUser;
 import us.kbase.auth2.lib.user.NewUser;
 import us.kbase.auth2.lib.token.IncomingToken;
+import us.kbase.auth2.lib.token.IncomingHashedToken;
 
 /** The main class for the Authentication application.
  * 
@@ -126,6 +135,16 @@ public class Authentication {
 	private static final int LINK_TOKEN_LIFETIME_MS = 10 * 60 * 1000;
 	private static final int MAX_RETURNED_USERS = 10000;
 	private static final int TEMP_PWD_LENGTH = 10;
+	private static final int USER_NAME_SUGGESTION_CACHE_SIZE = 10000;
+	private static final int USER_NAME_SUGGESTION_CACHE_MS = 30 * 1000;
+	private static final int USER_NAME_SUGGESTION_MAX_PROBES = 20;
+	private static final int INVALID_TOKEN_CACHE_SIZE = 10000;
+	private static final int INVALID_TOKEN_CACHE_MS = 60 * 1000;
+	private static final long SIGNING_KEY_ROTATION_MS = 30L * 24 * 60 * 60 * 1000;
+	private static final long SIGNING_KEY_MIN_RELOAD_MS = 10 * 1000;
+	private static final long REVOKED_TOKENS_UPDATE_MS = 5 * 1000;
+	// allows for clock differences between servers recording revocations
+	private static final long REVOKED_TOKENS_OVERLAP_MS = 60 * 1000;
 	
 	private static final UserName DEFAULT_SUGGESTED_USER_NAME;
 	private static final DisplayName UNKNOWN_DISPLAY_NAME;
@@ -153,12 +172,28 @@ public class Authentication {
 	private final ConfigManager cfg;
 	private final Clock clock;
 	private final ExternalConfig defaultExternalConfig;
+	private final Set<TokenType> signedTokenTypes;
+	private final boolean tokenAssertions;
+	private final SignedTokenManager signer;
+	// maps sanitized user name suggestions to available user names
+	private final Cache<String, Optional<UserName>> userNameSuggestions = CacheBuilder.newBuilder()
+			.maximumSize(USER_NAME_SUGGESTION_CACHE_SIZE)
+			.expireAfterWrite(USER_NAME_SUGGESTION_CACHE_MS, TimeUnit.MILLISECONDS)
+			.build();
+	/* hashes of tokens recently found not to exist, so clients retrying with revoked or
+	 * expired tokens don't hit the storage system on every request. New tokens are random, so
+	 * a new token can't be in this cache unless a client has sent it before it was created.
+	 */
+	private final Cache<String, Boolean> invalidTokens = CacheBuilder.newBuilder()
+			.maximumSize(INVALID_TOKEN_CACHE_SIZE)
+			.expireAfterWrite(INVALID_TOKEN_CACHE_MS, TimeUnit.MILLISECONDS)
+			.build();
 	
 	// note that this value is supposed to be a constant, but is mutable for testing purposes.
 	// do not make it mutable for any other reason.
 	private int cfgUpdateIntervalMillis = 30000;
 	
-	/** Create a new Authentication instance.
+	/** Create a new Authentication instance. Signed tokens and token assertions are disabled.
 	 * @param storage the storage system to use for information persistance.
 	 * @param identityProviderSet the set of identity providers that are supported for standard
 	 * accounts. E.g. Google, Globus, etc.
@@ -172,11 +207,70 @@ public class Authentication {
 			final Set<IdentityProvider> identityProviderSet,
 			final ExternalConfig defaultExternalConfig)
 			throws StorageInitException {
+		this(storage, identityProviderSet, defaultExternalConfig, Collections.emptySet());
+	}
+	
+	/** Create a new Authentication instance that issues self contained signed tokens for some
+	 * token types.
+	 * 
+	 * Signed tokens can be verified without a storage system lookup. They are still recorded
+	 * in the storage system, which remains the source of truth for listing and revoking tokens,
+	 * and revocations are checked against a list of revoked tokens that is periodically pulled
+	 * from the storage system. The keys used to sign the tokens are generated as needed,
+	 * rotated periodically, and shared with other instances via the storage system.
+	 * @param storage the storage system to use for information persistance.
+	 * @param identityProviderSet the set of identity providers that are supported for standard
+	 * accounts. E.g. Google, Globus, etc.
+	 * @param defaultExternalConfig the external configuration default settings. Any settings
+	 * that do not already exist in the storage system will be persisted. Pre-existing settings
+	 * are not overwritten.
+	 * 
+	 * Token assertions are enabled if any signed token types are provided.
+	 * @param signedTokenTypes the types of token that will be issued as signed tokens. If empty,
+	 * no signed tokens are issued or verified without a storage system lookup.
+	 * @throws StorageInitException if the storage system cannot be accessed.
+	 */
+	public Authentication(
+			final AuthStorage storage,
+			final Set<IdentityProvider> identityProviderSet,
+			final ExternalConfig defaultExternalConfig,
+			final Set<TokenType> signedTokenTypes)
+			throws StorageInitException {
+		this(storage, identityProviderSet, defaultExternalConfig, signedTokenTypes,
+				signedTokenTypes != null && !signedTokenTypes.isEmpty());
+	}
+	
+	/** Create a new Authentication instance that issues self contained signed tokens for some
+	 * token types and optionally provides token assertions.
+	 * 
+	 * Both signed tokens and token assertions require the storage system to be able to store
+	 * token signing keys.
+	 * @param storage the storage system to use for information persistance.
+	 * @param identityProviderSet the set of identity providers that are supported for standard
+	 * accounts. E.g. Google, Globus, etc.
+	 * @param defaultExternalConfig the external configuration default settings. Any settings
+	 * that do not already exist in the storage system will be persisted. Pre-existing settings
+	 * are not overwritten.
+	 * @param signedTokenTypes the types of token that will be issued as signed tokens. If empty,
+	 * no signed tokens are issued or verified without a storage system lookup.
+	 * @param tokenAssertions true to provide token assertions via
+	 * {@link #getTokenAssertion(IncomingToken)}.
+	 * @throws StorageInitException if the storage system cannot be accessed.
+	 */
+	public Authentication(
+			final AuthStorage storage,
+			final Set<IdentityProvider> identityProviderSet,
+			final ExternalConfig defaultExternalConfig,
+			final Set<TokenType> signedTokenTypes,
+			final boolean tokenAssertions)
+			throws StorageInitException {
 		this(storage,
 				identityProviderSet,
 				defaultExternalConfig,
 				getDefaultRandomGenerator(),
-				Clock.systemDefaultZone()); // don't care about time zone, not using it
+				Clock.systemDefaultZone(), // don't care about time zone, not using it
+				signedTokenTypes,
+				tokenAssertions);
 	}
 
 	private static RandomDataGenerator getDefaultRandomGenerator() {
@@ -193,9 +287,12 @@ public class Authentication {
 			final Set<IdentityProvider> identityProviderSet,
 			final ExternalConfig defaultExternalConfig,
 			final RandomDataGenerator randGen,
-			final Clock clock)
+			final Clock clock,
+			final Set<TokenType> signedTokenTypes,
+			final boolean tokenAssertions)
 			throws StorageInitException {
 		this.clock = clock;
+		this.tokenAssertions = tokenAssertions;
 		this.randGen = randGen;
 		try {
 			pwdcrypt = new PasswordCrypt();
@@ -206,8 +303,11 @@ public class Authentication {
 		nonNull(identityProviderSet, "identityProviderSet");
 		noNulls(identityProviderSet, "Null identity provider in set");
 		nonNull(defaultExternalConfig, "defaultExternalConfig");
+		nonNull(signedTokenTypes, "signedTokenTypes");
+		noNulls(signedTokenTypes, "Null token type in set");
 		this.defaultExternalConfig = defaultExternalConfig;
 		this.storage = storage;
+		this.signedTokenTypes = Collections.unmodifiableSet(new HashSet<>(signedTokenTypes));
 		for (final IdentityProvider idp: identityProviderSet) {
 			nonNull(idp.getProviderName(), "provider name");
 			if (idProviderSet.containsKey(idp.getProviderName())) { // case insensitive
@@ -229,6 +329,16 @@ public class Authentication {
 			throw new StorageInitException("Failed to initialize config manager: " +
 					e.getMessage(), e);
 		}
+		// if only token assertions are enabled, keys are loaded lazily
+		signer = new SignedTokenManager();
+		if (!this.signedTokenTypes.isEmpty()) {
+			try {
+				signer.init();
+			} catch (AuthStorageException e) {
+				throw new StorageInitException("Failed to initialize token signing keys: " +
+						e.getMessage(), e);
+			}
+		}
 	}
 	
 	// for test purposes. Resets the next update time to be the previous update + millis.
@@ -286,6 +396,135 @@ public class Authentication {
 			nextConfigUpdate = Instant.now().plusMillis(cfgUpdateIntervalMillis);
 		}
 	}
+	
+	/* Manages the keys used to sign self contained tokens and token assertions and the list of
+	 * revoked tokens against which signed tokens are checked. Both are pulled from the storage
+	 * system, so that keys created and tokens revoked by other servers are seen by this server.
+	 */
+	private class SignedTokenManager {
+		
+		// guarded by this
+		private Map<String, TokenSigningKey> keys = Collections.emptyMap();
+		private TokenSigningKey currentKey;
+		private Instant lastKeyLoad = Instant.EPOCH;
+		
+		// maps revoked token IDs to their expiration dates
+		private final Map<UUID, Instant> revoked = new ConcurrentHashMap<>();
+		private final Object revokedLock = new Object();
+		private volatile Instant nextRevokedUpdate = Instant.EPOCH;
+		// guarded by revokedLock
+		private Instant lastRevokedUpdate = Instant.EPOCH;
+		
+		private void init() throws AuthStorageException {
+			getSigningKey();
+			updateRevokedTokens();
+		}
+		
+		private synchronized void loadKeys() throws AuthStorageException {
+			final Map<String, TokenSigningKey> newKeys = new HashMap<>();
+			TokenSigningKey newest = null;
+			for (final TokenSigningKey k: storage.getTokenSigningKeys()) {
+				newKeys.put(k.getKeyID(), k);
+				if (newest == null || k.getCreationDate().isAfter(newest.getCreationDate())) {
+					newest = k;
+				}
+			}
+			keys = newKeys;
+			currentKey = newest;
+			lastKeyLoad = clock.instant();
+		}
+		
+		private boolean needsRotation(final TokenSigningKey key) {
+			return key == null || clock.instant().isAfter(
+					key.getCreationDate().plusMillis(SIGNING_KEY_ROTATION_MS));
+		}
+		
+		private synchronized TokenSigningKey getSigningKey() throws AuthStorageException {
+			if (needsRotation(currentKey)) {
+				// another server may have already rotated the key
+				loadKeys();
+				if (needsRotation(currentKey)) {
+					final TokenSigningKey key = TokenSigningKey.generate(
+							UUID.randomUUID().toString(), clock.instant());
+					storage.storeTokenSigningKey(key);
+					final Map<String, TokenSigningKey> newKeys = new HashMap<>(keys);
+					newKeys.put(key.getKeyID(), key);
+					keys = newKeys;
+					currentKey = key;
+				}
+			}
+			return currentKey;
+		}
+		
+		private synchronized TokenSigningKey getVerificationKey(final String keyID)
+				throws AuthStorageException, InvalidTokenException {
+			// the token may have been signed by a key created by another server
+			if (!keys.containsKey(keyID) && clock.instant().isAfter(
+					lastKeyLoad.plusMillis(SIGNING_KEY_MIN_RELOAD_MS))) {
+				loadKeys();
+			}
+			final TokenSigningKey key = keys.get(keyID);
+			if (key == null) {
+				throw new InvalidTokenException();
+			}
+			return key;
+		}
+		
+		public String sign(final StoredToken token) throws AuthStorageException {
+			return SignedTokens.sign(token, getSigningKey());
+		}
+		
+		public String signAssertion(final StoredToken token) throws AuthStorageException {
+			return SignedTokens.signAssertion(token, getSigningKey(), clock.instant());
+		}
+		
+		public synchronized Map<String, RSAPublicKey> getPublicKeys()
+				throws AuthStorageException {
+			getSigningKey();
+			// pick up keys created by other servers
+			if (clock.instant().isAfter(lastKeyLoad.plusMillis(SIGNING_KEY_MIN_RELOAD_MS))) {
+				loadKeys();
+			}
+			final Map<String, RSAPublicKey> ret = new HashMap<>();
+			for (final TokenSigningKey k: keys.values()) {
+				ret.put(k.getKeyID(), k.getPublicKey());
+			}
+			return ret;
+		}
+		
+		public StoredToken verify(final String token)
+				throws AuthStorageException, InvalidTokenException {
+			final TokenSigningKey key = getVerificationKey(SignedTokens.getKeyID(token));
+			final StoredToken st = SignedTokens.verify(
+					token, key.getPublicKey(), clock.instant());
+			if (clock.instant().isAfter(nextRevokedUpdate)) {
+				updateRevokedTokens();
+			}
+			if (revoked.containsKey(st.getId())) {
+				throw new InvalidTokenException();
+			}
+			return st;
+		}
+		
+		// forces an update of the revoked tokens list before the next verification.
+		public void tokensRevoked() {
+			nextRevokedUpdate = Instant.EPOCH;
+		}
+		
+		private void updateRevokedTokens() throws AuthStorageException {
+			synchronized (revokedLock) {
+				final Instant now = clock.instant();
+				if (now.isBefore(nextRevokedUpdate)) {
+					return; // another thread already updated the list
+				}
+				revoked.putAll(storage.getRevokedTokens(
+						lastRevokedUpdate.minusMillis(REVOKED_TOKENS_OVERLAP_MS)));
+				revoked.values().removeIf(expires -> now.isAfter(expires));
+				lastRevokedUpdate = now;
+				nextRevokedUpdate = now.plusMillis(REVOKED_TOKENS_UPDATE_MS);
+			}
+		}
+	}
 
 	/** Create a root account, or update the root account password if one does not already exist.
 	 * If the root account exists and is disabled, it will be enabled.
@@ -385,6 +624,7 @@ public class Authentication {
 					userName, displayName, clock.instant())
 					.withEmailAddress(email).withForceReset(true).build();
 			storage.createLocalUser(lu, new PasswordHashAndSalt(passwordHash, salt));
+			userNameSuggestions.invalidateAll();
 		} catch (NoSuchRoleException e) {
 			throw new RuntimeException("didn't supply any roles", e);
 		} catch (Throwable t) {
@@ -628,19 +868,16 @@ public class Authentication {
 	
 	private NewToken login(final UserName userName, final TokenCreationContext tokenCtx)
 			throws AuthStorageException {
-		final NewToken nt = new NewToken(StoredToken.getBuilder(
-					TokenType.LOGIN, randGen.randomUUID(), userName)
-				.withLifeTime(clock.instant(),
-						cfg.getAppConfig().getTokenLifetimeMS(TokenLifetimeType.LOGIN))
-				.withContext(tokenCtx)
-				.build(),
-				randGen.getToken());
+		final NewToken nt = newToken(TokenType.LOGIN, userName, clock.instant(),
+				cfg.getAppConfig().getTokenLifetimeMS(TokenLifetimeType.LOGIN), null, tokenCtx);
 		storage.storeToken(nt.getStoredToken(), nt.getTokenHash());
 		setLastLogin(userName);
 		return nt;
 	}
 
-	// used when it's known that the user exists
+	/* used when it's known that the user exists. The storage system may buffer the date
+	 * without checking the user exists, so this is the only place the check is guaranteed.
+	 */
 	private void setLastLogin(final UserName userName)
 			throws AuthStorageException {
 		try {
@@ -708,18 +945,79 @@ public class Authentication {
 	private StoredToken getToken(final IncomingToken token, final Set<TokenType> allowedTypes)
 			throws AuthStorageException, InvalidTokenException, UnauthorizedException {
 		nonNull(token, "token");
+		final StoredToken ht;
+		if (!signedTokenTypes.isEmpty() && SignedTokens.isSigned(token.getToken())) {
+			ht = signer.verify(token.getToken());
+		} else {
+			ht = getStoredToken(token);
+		}
+		if (!allowedTypes.isEmpty() && !allowedTypes.contains(ht.getTokenType())) {
+			throw new UnauthorizedException(ErrorType.UNAUTHORIZED,
+					ht.getTokenType().getDescription() +
+					" tokens are not allowed for this operation");
+		}
+		return ht;
+	}
+	
+	private StoredToken getStoredToken(final IncomingToken token)
+			throws AuthStorageException, InvalidTokenException {
+		final IncomingHashedToken hashed = token.getHashedToken();
+		if (invalidTokens.getIfPresent(hashed.getTokenHash()) != null) {
+			throw new InvalidTokenException();
+		}
 		try {
-			final StoredToken ht = storage.getToken(token.getHashedToken());
-			if (!allowedTypes.isEmpty() && !allowedTypes.contains(ht.getTokenType())) {
-				throw new UnauthorizedException(ErrorType.UNAUTHORIZED,
-						ht.getTokenType().getDescription() +
-						" tokens are not allowed for this operation");
-			}
-			return ht;
+			return storage.getToken(hashed);
 		} catch (NoSuchTokenException e) {
+			invalidTokens.put(hashed.getTokenHash(), true);
 			throw new InvalidTokenException();
 		}
 	}
+	
+	// call after revoking tokens so that revoked signed tokens are rejected immediately.
+	private void tokensRevoked() {
+		signer.tokensRevoked();
+	}
+	
+	/** Get a signed assertion of a token's details - the token ID, type, name, user name, and
+	 * lifetime - that may be passed to other services so that they can verify the user's
+	 * identity locally with the keys from {@link #getTokenVerificationKeys()}. The assertion
+	 * remains valid until the token expires, and so services that need to know if the token has
+	 * been revoked must still check the token with this service.
+	 * 
+	 * The assertion cannot be used as a token.
+	 * @param token the token in question.
+	 * @return the signed assertion.
+	 * @throws InvalidTokenException if the token is invalid.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 * @throws AuthException if token assertions are not enabled.
+	 */
+	public String getTokenAssertion(final IncomingToken token)
+			throws AuthStorageException, InvalidTokenException, AuthException {
+		if (!tokenAssertions) {
+			throw new AuthException(ErrorType.UNSUPPORTED_OP, "Token assertions are not enabled");
+		}
+		return signer.signAssertion(getToken(token));
+	}
+	
+	/** Check whether token assertions are enabled.
+	 * @return true if {@link #getTokenAssertion(IncomingToken)} provides assertions.
+	 */
+	public boolean isTokenAssertionsEnabled() {
+		return tokenAssertions;
+	}
+	
+	/** Get the public keys with which signed tokens and token assertions may be verified.
+	 * @return the keys mapped by key ID. The key ID of the key with which a token was signed is
+	 * included in the token header. Empty if neither signed tokens nor token assertions are
+	 * enabled.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 */
+	public Map<String, RSAPublicKey> getTokenVerificationKeys() throws AuthStorageException {
+		if (signedTokenTypes.isEmpty() && !tokenAssertions) {
+			return Collections.emptyMap();
+		}
+		return signer.getPublicKeys();
+	}
 
 	/** Create a new agent, developer or service token.
 	 * @param token a token for the user that wishes to create a new token.
@@ -759,16 +1057,35 @@ public class Authentication {
 		final AuthConfig c = cfg.getAppConfig();
 		final long life = c.getTokenLifetimeMS(TOKEN_LIFE_TYPE.get(tokenType));
 		final Instant now = clock.instant();
-		final NewToken nt = new NewToken(StoredToken.getBuilder(
-					tokenType, randGen.randomUUID(), au.getUserName())
-				.withLifeTime(now, life)
-				.withContext(tokenCtx)
-				.withTokenName(tokenName).build(),
-				randGen.getToken());
+		final NewToken nt = newToken(
+				tokenType, au.getUserName(), now, life, tokenName, tokenCtx);
 		storage.storeToken(nt.getStoredToken(), nt.getTokenHash());
 		return nt;
 	}
 	
+	// the token is not stored. tokenName may be null.
+	private NewToken newToken(
+			final TokenType tokenType,
+			final UserName userName,
+			final Instant now,
+			final long lifeTimeMS,
+			final TokenName tokenName,
+			final TokenCreationContext tokenCtx)
+			throws AuthStorageException {
+		final boolean sign = signedTokenTypes.contains(tokenType);
+		// signed tokens store dates with a precision of one second
+		final Instant created = sign ? now.truncatedTo(ChronoUnit.SECONDS) : now;
+		final Instant expires = sign ?
+				created.plusMillis(lifeTimeMS).truncatedTo(ChronoUnit.SECONDS) :
+				created.plusMillis(lifeTimeMS);
+		final StoredToken st = StoredToken.getBuilder(tokenType, randGen.randomUUID(), userName)
+				.withLifeTime(created, expires)
+				.withNullableTokenName(tokenName)
+				.withContext(tokenCtx)
+				.build();
+		return new NewToken(st, sign ? signer.sign(st) : randGen.getToken());
+	}
+	
 	/** Get a user from an incoming token.
 	 * @param token the token.
 	 * @return the user.
@@ -789,6 +1106,26 @@ public class Authentication {
 		}
 	}
 
+	/** Get a user from a token that has already been validated by
+	 * {@link #getToken(IncomingToken)}. Allows callers that need both the token and the user to
+	 * look up the token once.
+	 * @param token the validated token.
+	 * @return the user.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 * @throws DisabledUserException if the user is disabled.
+	 */
+	public AuthUser getUser(final StoredToken token)
+			throws AuthStorageException, DisabledUserException {
+		nonNull(token, "token");
+		try {
+			return getUser(token, new Role[0]);
+		} catch (DisabledUserException e) {
+			throw e;
+		} catch (UnauthorizedException e) { // this is impossible to test
+			throw new RuntimeException("Good job dude, you just broke reality", e);
+		}
+	}
+
 	// requires the user to have at least one of the required roles
 	private AuthUser getUser(
 			final IncomingToken token,
@@ -830,6 +1167,7 @@ public class Authentication {
 		if (u.isDisabled()) {
 			// apparently this disabled user still has some tokens, so kill 'em all
 			storage.deleteTokens(ht.getUserName());
+			tokensRevoked();
 			throw new DisabledUserException();
 		}
 		if (required.length > 0) {
@@ -864,6 +1202,7 @@ public class Authentication {
 		if (u.isDisabled()) {
 			if (sameUser) {
 				storage.deleteTokens(u.getUserName());
+				tokensRevoked();
 			}
 			throw new NoSuchUserException(u.getUserName().getName());
 		}
@@ -907,7 +1246,26 @@ public class Authentication {
 			throws InvalidTokenException, AuthStorageException, IllegalParameterException {
 		nonNull(userNames, "userNames");
 		noNulls(userNames, "Null name in userNames");
-		getToken(token); // just check the token is valid
+		return getUserDisplayNames(getToken(token), userNames);
+	}
+	
+	/** Look up display names for a set of user names with a token that has already been
+	 * validated by {@link #getToken(IncomingToken)}. A maximum of 10000 users may be looked up at
+	 * once. Never returns the root user name or disabled users.
+	 * @param token the validated token of the user requesting the lookup.
+	 * @param userNames the user names to look up.
+	 * @return the display names for each user name. Any non-existent user names will be missing.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 * @throws IllegalParameterException if the number of requested user names is greater than the
+	 * limit.
+	 */
+	public Map<UserName, DisplayName> getUserDisplayNames(
+			final StoredToken token,
+			final Set<UserName> userNames)
+			throws AuthStorageException, IllegalParameterException {
+		nonNull(token, "token");
+		nonNull(userNames, "userNames");
+		noNulls(userNames, "Null name in userNames");
 		if (userNames.isEmpty()) {
 			return new HashMap<>();
 		}
@@ -936,6 +1294,28 @@ public class Authentication {
 			final IncomingToken token,
 			final UserSearchSpec spec)
 			throws InvalidTokenException, UnauthorizedException, AuthStorageException {
+		return searchUserDisplayNames(token, spec).getUsers();
+	}
+	
+	/** Look up display names based on a search specification. A maximum of 10000 users will be
+	 * returned.
+	 * 
+	 * If the search is paged (see {@link UserSearchSpec#isPaged()}), the users are returned in
+	 * user name order and, if more users may be available, the result includes a cursor with
+	 * which the next page may be requested. Page sizes are capped at 10000 users.
+	 * @param token a token for the user requesting the lookup.
+	 * @param spec the search specification.
+	 * @return the search results.
+	 * @throws InvalidTokenException if the token is invalid.
+	 * @throws UnauthorizedException if the user does not have the administrator, create
+	 * administrator, or root role and a role search, prefix-less search is requested or the
+	 * results are to include the root use or disabled users.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 */
+	public UserSearchResult searchUserDisplayNames(
+			final IncomingToken token,
+			final UserSearchSpec spec)
+			throws InvalidTokenException, UnauthorizedException, AuthStorageException {
 		nonNull(spec, "spec");
 		if (spec.isRegex()) {
 			throw new UnauthorizedException(ErrorType.UNAUTHORIZED,
@@ -956,17 +1336,43 @@ public class Authentication {
 						"Only admins may search with root or disabled users included");
 			}
 		}
-		final Map<UserName, DisplayName> displayNames = storage.getUserDisplayNames(
-				spec, MAX_RETURNED_USERS);
+		if (!spec.isPaged()) {
+			final Map<UserName, DisplayName> displayNames = storage.getUserDisplayNames(
+					spec, MAX_RETURNED_USERS);
+			if (!spec.isRootIncluded()) {
+				displayNames.remove(UserName.ROOT);
+			}
+			return new UserSearchResult(displayNames, Optional.absent());
+		}
+		final int limit = Math.min(spec.getLimit().or(MAX_RETURNED_USERS), MAX_RETURNED_USERS);
+		// fetch one extra user to determine whether there's another page
+		final Map<UserName, DisplayName> found = storage.getUserDisplayNames(spec, limit + 1);
+		final Map<UserName, DisplayName> displayNames = new LinkedHashMap<>();
+		UserName last = null;
+		for (final Entry<UserName, DisplayName> e: found.entrySet()) {
+			if (displayNames.size() >= limit) {
+				break;
+			}
+			displayNames.put(e.getKey(), e.getValue());
+			last = e.getKey();
+		}
+		final Optional<String> cursor = found.size() > limit ?
+				Optional.of(UserSearchSpec.toCursor(last)) : Optional.absent();
 		if (!spec.isRootIncluded()) {
 			displayNames.remove(UserName.ROOT);
 		}
-		return displayNames;
+		return new UserSearchResult(displayNames, cursor);
 	}
 	
 
 	/** Get a currently available user name given a user name suggestion. Returns absent
 	 * if a reasonable user name cannot be found.
+	 * 
+	 * If the suggestion is taken, a numeric suffix one greater than the largest suffix in use
+	 * with the same stem is appended. If that name is taken, or the suffix overflows or makes
+	 * the name too long, the smallest available suffix among the first few is used instead.
+	 * Suggestions are cached for a short time, so the returned
+	 * name may have been taken by a user created elsewhere in the meantime.
 	 * @param suggestedUserName the suggested user name.
 	 * @return an available user name.
 	 * @throws AuthStorageException if an error occurred accessing the storage system.
@@ -975,6 +1381,12 @@ public class Authentication {
 			throws AuthStorageException {
 		nonNull(suggestedUserName, "suggestedUserName");
 		final Optional<UserName> target = UserName.sanitizeName(suggestedUserName);
+		// suggestions are requested as the user types, so cache recent suggestions
+		final String key = target.isPresent() ? target.get().getName() : "";
+		final Optional<UserName> cached = userNameSuggestions.getIfPresent(key);
+		if (cached != null) {
+			return cached;
+		}
 		Optional<UserName> availableUserName = Optional.absent();
 		if (target.isPresent()) {
 			availableUserName = getAvailableUserName(target.get(), false, true);
@@ -982,6 +1394,7 @@ public class Authentication {
 		if (!availableUserName.isPresent()) {
 			availableUserName = getAvailableUserName(DEFAULT_SUGGESTED_USER_NAME, true, false);
 		}
+		userNameSuggestions.put(key, availableUserName);
 		return availableUserName;
 	}
 	
@@ -990,44 +1403,54 @@ public class Authentication {
 			final boolean forceNumericSuffix,
 			final boolean startAt2)
 			throws AuthStorageException {
-		// lots of opportunities for speed optimization in this method, but it probably doesn't
-		// matter
-		
 		final String sugName = suggestedUserName.getName();
 		final String sugStrip = sugName.replaceAll("\\d*$", "");
-		/* this might return a lot of names, but not super likely and it'd take a *lot* to cause
-		 * problems. Make this smarter if necessary. E.g. could store username and numeric suffix
-		 * db side and search and sort db side.
-		 */
-		final UserSearchSpec spec = UserSearchSpec.getBuilder()
-				// checked that this does indeed use an index for the mongo implementation
-				.withSearchRegex("^" + Pattern.quote(sugStrip) + "\\d*$")
-				.withSearchOnUserName(true).withIncludeDisabled(true).build();
-		final Map<UserName, DisplayName> users = storage.getUserDisplayNames(spec, -1);
-		final boolean match = users.containsKey(suggestedUserName);
 		final boolean hasNumSuffix = sugStrip.length() != sugName.length();
-		if (!match && (!forceNumericSuffix || hasNumSuffix)) {
+		if ((!forceNumericSuffix || hasNumSuffix) && !storage.userExists(suggestedUserName)) {
 			return Optional.of(suggestedUserName);
 		}
-		final Set<String> names = users.keySet().stream().map(u -> u.getName())
-				.collect(Collectors.toSet());
+		// suggest the suffix after the largest existing suffix rather than searching for gaps
+		final Optional<Long> max = storage.getMaximumUserNameSuffix(sugStrip);
 		final long start = startAt2 ? 2 : 1;
-		for (long i = start; i < Long.MAX_VALUE; i++) {
-			final String potential = sugStrip + i;
-			if (potential.length() > UserName.MAX_NAME_LENGTH) {
-				return Optional.absent();
+		final Optional<UserName> next;
+		if (!max.isPresent() || max.get() < start) {
+			next = getUserNameWithSuffix(sugStrip, start);
+		} else if (max.get() == Long.MAX_VALUE) {
+			next = Optional.absent();
+		} else {
+			next = getUserNameWithSuffix(sugStrip, max.get() + 1);
+		}
+		/* the name may be taken by a user whose suffix is too large to be stored or who hasn't
+		 * had the suffix stored yet
+		 */
+		if (next.isPresent() && !storage.userExists(next.get())) {
+			return next;
+		}
+		// the next suffix is taken, overflows, or is too long, so look for a gap instead
+		for (long s = start; s < start + USER_NAME_SUGGESTION_MAX_PROBES; s++) {
+			final Optional<UserName> probe = getUserNameWithSuffix(sugStrip, s);
+			if (!probe.isPresent()) {
+				return probe; // larger suffixes won't fit either
 			}
-			if (!names.contains(potential)) {
-				try {
-					return Optional.of(new UserName(potential));
-				} catch (IllegalParameterException | MissingParameterException e) {
-					throw new RuntimeException("this should be impossible", e);
-				}
+			if (!probe.equals(next) && !storage.userExists(probe.get())) {
+				return probe;
 			}
 		}
-		// this means there's > 10^63 names in the database. Not testing this path.
 		return Optional.absent();
 	}
+	
+	// absent if the name is too long
+	private Optional<UserName> getUserNameWithSuffix(final String stem, final long suffix) {
+		final String potential = stem + suffix;
+		if (potential.length() > UserName.MAX_NAME_LENGTH) {
+			return Optional.absent();
+		}
+		try {
+			return Optional.of(new UserName(potential));
+		} catch (IllegalParameterException | MissingParameterException e) {
+			throw new RuntimeException("this should be impossible", e);
+		}
+	}
 
 	/** Revoke a token.
 	 * @param token the user's token.
@@ -1045,6 +1468,7 @@ public class Authentication {
 		nonNull(tokenID, "tokenID");
 		final StoredToken ht = getToken(token, set(TokenType.LOGIN));
 		storage.deleteToken(ht.getUserName(), tokenID);
+		tokensRevoked();
 	}
 
 	/* maybe combine this with the above method...? The username is a good check that you're
@@ -1071,6 +1495,7 @@ public class Authentication {
 		nonNull(tokenID, "tokenID");
 		getUser(token, set(TokenType.LOGIN), Role.ADMIN); // ensure admin
 		storage.deleteToken(userName, tokenID);
+		tokensRevoked();
 		
 	}
 	
@@ -1087,6 +1512,7 @@ public class Authentication {
 		try {
 			ht = storage.getToken(token.getHashedToken());
 			storage.deleteToken(ht.getUserName(), ht.getId());
+			tokensRevoked();
 			return Optional.of(ht);
 		} catch (NoSuchTokenException e) {
 			// no problem, continue
@@ -1104,6 +1530,7 @@ public class Authentication {
 			throws AuthStorageException, InvalidTokenException, UnauthorizedException {
 		final StoredToken ht = getToken(token, set(TokenType.LOGIN));
 		storage.deleteTokens(ht.getUserName());
+		tokensRevoked();
 	}
 	
 	/** Revokes all tokens across all users, including the current user.
@@ -1117,6 +1544,7 @@ public class Authentication {
 			throws InvalidTokenException, UnauthorizedException, AuthStorageException {
 		getUser(token, set(TokenType.LOGIN), Role.ADMIN); // ensure admin
 		storage.deleteTokens();
+		tokensRevoked();
 	}
 	
 
@@ -1133,6 +1561,7 @@ public class Authentication {
 		nonNull(userName, "userName");
 		getUser(token, set(TokenType.LOGIN), Role.ADMIN); // ensure admin
 		storage.deleteTokens(userName);
+		tokensRevoked();
 	}
 	
 	/** Remove roles from a user.
@@ -1284,6 +1713,42 @@ public class Authentication {
 		return storage.getCustomRoles();
 	}
 
+	/** Get the number of users, including disabled users, that possess each built in role.
+	 * The counts are calculated by the storage system, so the users are not retrieved. Use
+	 * {@link #searchUserDisplayNames(IncomingToken, UserSearchSpec)} with a paged role search to
+	 * list the users.
+	 * @param token a token for a user account with the administrator, create administrator, or
+	 * root role.
+	 * @return the number of users per role.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 * @throws UnauthorizedException if the user account associated with the token does not have
+	 * an appropriate role, or if the token is not a login token.
+	 * @throws InvalidTokenException if the token is invalid.
+	 */
+	public Map<Role, Long> getRoleCounts(final IncomingToken token)
+			throws AuthStorageException, InvalidTokenException, UnauthorizedException {
+		getUser(token, set(TokenType.LOGIN), Role.ADMIN, Role.CREATE_ADMIN, Role.ROOT);
+		return storage.getRoleCounts();
+	}
+	
+	/** Get the number of users, including disabled users, that possess each custom role.
+	 * The counts are calculated by the storage system, so the users are not retrieved. Use
+	 * {@link #searchUserDisplayNames(IncomingToken, UserSearchSpec)} with a paged custom role
+	 * search to list the users.
+	 * @param token a token for a user account with the administrator, create administrator, or
+	 * root role.
+	 * @return the number of users per custom role ID.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 * @throws UnauthorizedException if the user account associated with the token does not have
+	 * an appropriate role, or if the token is not a login token.
+	 * @throws InvalidTokenException if the token is invalid.
+	 */
+	public Map<String, Long> getCustomRoleCounts(final IncomingToken token)
+			throws AuthStorageException, InvalidTokenException, UnauthorizedException {
+		getUser(token, set(TokenType.LOGIN), Role.ADMIN, Role.CREATE_ADMIN, Role.ROOT);
+		return storage.getCustomRoleCounts();
+	}
+
 	/** Update a user's custom roles.
 	 * @param userToken a token for a user account with the administrator role.
 	 * @param userName the name of the user for which the custom roles will be altered.
@@ -1487,12 +1952,12 @@ public class Authentication {
 		final String provider = ids.iterator().next().getRemoteID().getProviderName();
 		final LoginState.Builder builder = LoginState.getBuilder(provider,
 				cfg.getAppConfig().isLoginAllowed(), expires);
+		final Map<RemoteIdentity, AuthUser> users = storage.getUsers(ids);
 		for (final RemoteIdentity ri: ids) {
-			final Optional<AuthUser> u = storage.getUser(ri);
-			if (!u.isPresent()) {
+			if (!users.containsKey(ri)) {
 				builder.withIdentity(ri);
 			} else {
-				builder.withUser(u.get(), ri);
+				builder.withUser(users.get(ri), ri);
 			}
 		}
 		return builder.build();
@@ -1573,6 +2038,7 @@ public class Authentication {
 		}
 		try {
 			storage.createUser(b.build());
+			userNameSuggestions.invalidateAll();
 		} catch (NoSuchRoleException e) {
 			throw new RuntimeException("Didn't supply any roles", e);
 		}
@@ -1839,12 +2305,10 @@ public class Authentication {
 
 	private void filterLinkCandidates(final Set<? extends RemoteIdentity> rids)
 			throws AuthStorageException {
-		final Iterator<? extends RemoteIdentity> iter = rids.iterator();
-		while (iter.hasNext()) {
-			if (storage.getUser(iter.next()).isPresent()) {
-				iter.remove();
-			}
+		if (rids.isEmpty()) {
+			return;
 		}
+		rids.removeAll(storage.getUsers(new HashSet<>(rids)).keySet());
 	}
 	
 	/** Get the current state of a linking process associated with a temporary token.
@@ -2088,6 +2552,7 @@ public class Authentication {
 		 * as well as a backup
 		 */
 		storage.deleteTokens(userName);
+		tokensRevoked();
 	}
 	
 	/** Enable an account.
@@ -2252,6 +2717,7 @@ public class Authentication {
 		try {
 			storage.createUser(NewUser.getBuilder(userName, dn, clock.instant(), remoteIdentity)
 					.withEmailAddress(email).build());
+			userNameSuggestions.invalidateAll();
 		} catch (NoSuchRoleException e) {
 			throw new RuntimeException("didn't supply any roles", e);
 		}
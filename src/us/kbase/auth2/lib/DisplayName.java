@@ -1,7 +1,10 @@
 package us.kbase.auth2.lib;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import us.kbase.auth2.lib.exceptions.IllegalParameterException;
 import us.kbase.auth2.lib.exceptions.MissingParameterException;
@@ -15,6 +18,15 @@ public class DisplayName extends Name {
 
 	private final static int MAX_NAME_LENGTH = 100;
 	
+	/** The maximum length, in code points, of the prefixes returned by
+	 * {@link #getSearchPrefixes()}.
+	 */
+	public final static int MAX_SEARCH_PREFIX_LENGTH = 10;
+	
+	// derived from the name and calculated lazily, so not part of equals()
+	private transient volatile List<String> canonical = null;
+	private transient volatile List<String> prefixes = null;
+	
 	/* What's ok for a display name? for now just a non-empty string < 100 chars, trimmed. */
 	
 	/** Create a display name.
@@ -27,37 +39,102 @@ public class DisplayName extends Name {
 		super(name, "display name", MAX_NAME_LENGTH);
 	}
 	
+	private DisplayName(final String name, final boolean trusted) {
+		super(name);
+	}
+	
+	/** Create a display name from a trusted source, such as a name that was checked before it
+	 * was stored, without checking the contents of the name. Use {@link #DisplayName(String)}
+	 * for input from users or other untrusted sources.
+	 * @param name the display name.
+	 * @return the display name.
+	 */
+	public static DisplayName fromTrustedSource(final String name) {
+		return new DisplayName(name, true);
+	}
+	
 	/** Get the canonical display name for this name. Returns a list of the whitespace separated
 	 * tokens in the display name. The tokens are lowercased and punctuation on either side of the
 	 * token is removed.
+	 * 
+	 * The canonical display name is calculated once, on the first call to this method.
 	 * @return the canonical display name.
 	 */
 	public List<String> getCanonicalDisplayName() {
-		final String[] tokens = getName().toLowerCase().split("\\s+");
-		final List<String> ret = new LinkedList<>();
-		for (final String t: tokens) {
-			final int[] codepoints = t.codePoints().toArray();
-			int start;
-			for (start = 0; start < codepoints.length; start++) {
-				if (Character.isLetterOrDigit(codepoints[start])) {
-					break;
+		List<String> c = canonical;
+		if (c == null) {
+			c = canonicalize(getName());
+			canonical = c;
+		}
+		return c;
+	}
+	
+	/** Get the prefixes of the tokens of the canonical display name, up to
+	 * {@link #MAX_SEARCH_PREFIX_LENGTH} code points long. A search prefix of that length or less
+	 * matches a token of the canonical display name if and only if it is one of these prefixes.
+	 * 
+	 * For example, the prefixes for "Ann Anderson" are a, an, ann, and, ande, ander, anders,
+	 * anderso, and anderson.
+	 * @return the prefixes in no particular order, without duplicates.
+	 */
+	public List<String> getSearchPrefixes() {
+		List<String> p = prefixes;
+		if (p == null) {
+			final Set<String> ret = new LinkedHashSet<>();
+			for (final String t: getCanonicalDisplayName()) {
+				int end = 0;
+				for (int n = 0; n < MAX_SEARCH_PREFIX_LENGTH && end < t.length(); n++) {
+					end += Character.charCount(t.codePointAt(end));
+					ret.add(t.substring(0, end));
 				}
 			}
-			int end;
-			for (end = codepoints.length - 1; end > start; end--) {
-				if (Character.isLetterOrDigit(codepoints[end])) {
+			p = Collections.unmodifiableList(new ArrayList<>(ret));
+			prefixes = p;
+		}
+		return p;
+	}
+	
+	/* Splits on the same whitespace as the regex \s and uses the same lowercasing as
+	 * String.toLowerCase(), but scans the name once and only allocates the lowercased name and the
+	 * tokens themselves.
+	 */
+	private static List<String> canonicalize(final String name) {
+		final String lower = name.toLowerCase();
+		final List<String> ret = new ArrayList<>(4);
+		final int len = lower.length();
+		int i = 0;
+		while (i < len) {
+			// skip whitespace and leading punctuation
+			int start = -1;
+			while (i < len && !isWhitespace(lower.charAt(i))) {
+				final int cp = lower.codePointAt(i);
+				if (Character.isLetterOrDigit(cp)) {
+					start = i;
 					break;
 				}
+				i += Character.charCount(cp);
+			}
+			if (start < 0) {
+				i++; // either past the end or on whitespace
+				continue;
 			}
-			if (start <= end) {
-				final StringBuilder sb = new StringBuilder();
-				for (int i = start; i <= end; i++) {
-					sb.appendCodePoint(codepoints[i]);
+			// find the end of the token, tracking the end of the last letter or digit
+			int end = start;
+			while (i < len && !isWhitespace(lower.charAt(i))) {
+				final int cp = lower.codePointAt(i);
+				i += Character.charCount(cp);
+				if (Character.isLetterOrDigit(cp)) {
+					end = i;
 				}
-				ret.add(sb.toString());
 			}
+			ret.add(lower.substring(start, end));
 		}
-		return ret;
+		return Collections.unmodifiableList(ret);
+	}
+	
+	private static boolean isWhitespace(final char c) {
+		// space, or \t, \n, vertical tab, \f, or \r
+		return c == ' ' || (c >= '\t' && c <= '\r');
 	}
 	
 	@Override
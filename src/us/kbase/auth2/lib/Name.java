@@ -1,6 +1,5 @@
 package us.kbase.auth2.lib;
 
-import static us.kbase.auth2.lib.Utils.checkString;
 import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
 
 import us.kbase.auth2.lib.exceptions.IllegalParameterException;
@@ -32,6 +31,15 @@ public class Name {
 		this.name = checkValidName(name, type, maxCodePoints);
 	}
 	
+	/** Create a new name without any checks. Only for use by subclasses creating names from
+	 * a trusted source, such as values that were checked before they were stored.
+	 * @param name the name to create.
+	 */
+	protected Name(final String name) {
+		checkStringNoCheckedException(name, "name");
+		this.name = name;
+	}
+	
 	/** Check that a name is valid.
 	 * 
 	 * Prior to any operations .trim() is called on the name.
@@ -47,21 +55,42 @@ public class Name {
 	 * control characters.
 	 */
 	public static String checkValidName(
-			String name,
+			final String name,
 			final String type,
 			final int maxCodePoints)
 			throws MissingParameterException, IllegalParameterException {
 		checkStringNoCheckedException(type, "type");
-		checkString(name, type, maxCodePoints);
-		name = name.trim();
-		final boolean[] containsControlChars = {false};
-		name.codePoints().forEach(i -> {
-			containsControlChars[0] = containsControlChars[0] || Character.isISOControl(i);
-		});
-		if (containsControlChars[0]) {
+		if (name == null) {
+			throw new MissingParameterException(type);
+		}
+		// same bounds as String.trim(), but checked in the same pass as the contents
+		int start = 0;
+		int end = name.length();
+		while (start < end && name.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && name.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			throw new MissingParameterException(type);
+		}
+		int codePoints = 0;
+		boolean containsControlChars = false;
+		for (int i = start; i < end; ) {
+			final int cp = name.codePointAt(i);
+			containsControlChars = containsControlChars || Character.isISOControl(cp);
+			codePoints++;
+			i += Character.charCount(cp);
+		}
+		if (maxCodePoints > 0 && codePoints > maxCodePoints) {
+			throw new IllegalParameterException(
+					type + " size greater than limit " + maxCodePoints);
+		}
+		if (containsControlChars) {
 			throw new IllegalParameterException(type + " contains control characters");
 		}
-		return name;
+		return name.substring(start, end);
 	}
 	
 	/** Get the name.
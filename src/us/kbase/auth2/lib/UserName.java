@@ -2,9 +2,6 @@ package us.kbase.auth2.lib;
 
 import static us.kbase.auth2.lib.Utils.nonNull;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import com.google.common.base.Optional;
 
 import us.kbase.auth2.lib.exceptions.ErrorType;
@@ -37,7 +34,6 @@ public class UserName extends Name implements Comparable<UserName>{
 	}
 	
 	private static final String INVALID_CHARS_REGEX = "[^a-z\\d_]+";
-	private final static Pattern INVALID_CHARS = Pattern.compile(INVALID_CHARS_REGEX);
 	public final static int MAX_NAME_LENGTH = 100;
 	
 	/** Create a new user name.
@@ -49,19 +45,54 @@ public class UserName extends Name implements Comparable<UserName>{
 	public UserName(final String name)
 			throws MissingParameterException, IllegalParameterException {
 		super(name, "user name", MAX_NAME_LENGTH);
-		if (!name.trim().equals(ROOT_NAME)) {
-			final Matcher m = INVALID_CHARS.matcher(name);
-			if (m.find()) {
+		if (!getName().equals(ROOT_NAME)) {
+			final int bad = firstInvalidChar(name);
+			if (bad >= 0) {
+				int end = bad + 1;
+				while (end < name.length() && !isValidChar(name.charAt(end))) {
+					end++;
+				}
 				throw new IllegalParameterException(ErrorType.ILLEGAL_USER_NAME, String.format(
-						"Illegal character in user name %s: %s", name, m.group()));
+						"Illegal character in user name %s: %s", name,
+						name.substring(bad, end)));
 			}
-			if (!Character.isLetter(name.codePointAt(0))) {
+			// all the characters are legal, so checking for a digit or _ suffices
+			final char first = name.charAt(0);
+			if (first < 'a' || first > 'z') {
 				throw new IllegalParameterException(ErrorType.ILLEGAL_USER_NAME,
 						"Username must start with a letter");
 			}
 		}
 	}
 	
+	private UserName(final String name, final boolean trusted) {
+		super(name);
+	}
+	
+	/** Create a user name from a trusted source, such as a name that was checked before it was
+	 * stored, without checking the contents of the name. Use {@link #UserName(String)} for
+	 * input from users or other untrusted sources.
+	 * @param name the user name.
+	 * @return the user name.
+	 */
+	public static UserName fromTrustedSource(final String name) {
+		return new UserName(name, true);
+	}
+	
+	private static boolean isValidChar(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+	}
+	
+	// returns the index of the first invalid character or -1
+	private static int firstInvalidChar(final String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (!isValidChar(name.charAt(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	/** Returns whether this user name represents the root user.
 	 * @return true if this user name represents the root user.
 	 */
@@ -0,0 +1,84 @@
+package us.kbase.auth2.lib;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+
+/** The results of a user search. If the search was paged, the users are ordered by user name and
+ * the cursor for the next page of results is provided if more results may be available.
+ */
+public class UserSearchResult {
+
+	private final Map<UserName, DisplayName> users;
+	private final Optional<String> nextCursor;
+
+	/** Create a search result.
+	 * @param users the users found by the search mapped to their display names, in the order
+	 * in which they should be returned.
+	 * @param nextCursor the cursor for the next page of results, if any.
+	 */
+	public UserSearchResult(
+			final Map<UserName, DisplayName> users,
+			final Optional<String> nextCursor) {
+		nonNull(users, "users");
+		nonNull(nextCursor, "nextCursor");
+		this.users = Collections.unmodifiableMap(new LinkedHashMap<>(users));
+		this.nextCursor = nextCursor;
+	}
+
+	/** Get the users found by the search.
+	 * @return the users mapped to their display names.
+	 */
+	public Map<UserName, DisplayName> getUsers() {
+		return users;
+	}
+
+	/** Get the cursor for the next page of results.
+	 * @return the cursor, or absent if there are no more results.
+	 */
+	public Optional<String> getNextCursor() {
+		return nextCursor;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((nextCursor == null) ? 0 : nextCursor.hashCode());
+		result = prime * result + ((users == null) ? 0 : users.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final UserSearchResult other = (UserSearchResult) obj;
+		if (nextCursor == null) {
+			if (other.nextCursor != null) {
+				return false;
+			}
+		} else if (!nextCursor.equals(other.nextCursor)) {
+			return false;
+		}
+		if (users == null) {
+			if (other.users != null) {
+				return false;
+			}
+		} else if (!users.equals(other.users)) {
+			return false;
+		}
+		return true;
+	}
+}
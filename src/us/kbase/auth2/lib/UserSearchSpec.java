@@ -2,12 +2,17 @@ package us.kbase.auth2.lib;
 
 import static us.kbase.auth2.lib.Utils.nonNull;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 import com.google.common.base.Optional;
 
+import us.kbase.auth2.lib.exceptions.IllegalParameterException;
+import us.kbase.auth2.lib.exceptions.MissingParameterException;
+
 /** A specification for how a user search should be conducted.
  * 
  * If a search prefix or regex is supplied and neither withSearchOnUserName() nor
@@ -15,6 +20,10 @@ import com.google.common.base.Optional;
  * targets.
  * 
  * A regex can only be set by code in the same package as this class.
+ * 
+ * A search is paged if a limit or a cursor is provided. The results of paged searches are
+ * ordered by user name, and the cursor for the next page is derived from the last user name in
+ * the current page via {@link #toCursor(UserName)}.
  * @author gaprice@lbl.gov
  *
  */
@@ -30,6 +39,8 @@ public class UserSearchSpec {
 	private final boolean isRegex;
 	private final boolean includeRoot;
 	private final boolean includeDisabled;
+	private final Optional<Integer> limit;
+	private final Optional<UserName> cursor;
 
 	private UserSearchSpec(
 			final Optional<String> prefix,
@@ -39,7 +50,9 @@ public class UserSearchSpec {
 			final Set<String> searchCustomRoles,
 			final boolean isRegex,
 			final boolean includeRoot,
-			final boolean includeDisabled) {
+			final boolean includeDisabled,
+			final Optional<Integer> limit,
+			final Optional<UserName> cursor) {
 		this.prefix = prefix;
 		this.searchUser = searchUser;
 		this.searchDisplayName = searchDisplayName;
@@ -48,6 +61,8 @@ public class UserSearchSpec {
 		this.isRegex = isRegex;
 		this.includeRoot = includeRoot;
 		this.includeDisabled = includeDisabled;
+		this.limit = limit;
+		this.cursor = cursor;
 	}
 
 	/** Returns the user and/or display name prefix or regex for the search, if any.
@@ -137,6 +152,38 @@ public class UserSearchSpec {
 		return includeDisabled;
 	}
 	
+	/** Returns the maximum number of users to return, if set.
+	 * @return the limit.
+	 */
+	public Optional<Integer> getLimit() {
+		return limit;
+	}
+	
+	/** Returns the user name after which a paged search should start, if set.
+	 * @return the user name decoded from the search cursor.
+	 */
+	public Optional<UserName> getCursor() {
+		return cursor;
+	}
+	
+	/** Returns true if the search is paged, meaning a limit or a cursor is set. The results of
+	 * paged searches are ordered by user name.
+	 * @return true if the search is paged.
+	 */
+	public boolean isPaged() {
+		return limit.isPresent() || cursor.isPresent();
+	}
+	
+	/** Create an opaque cursor that starts a search after the given user.
+	 * @param lastUser the last user in the current page of results.
+	 * @return the cursor for the next page.
+	 */
+	public static String toCursor(final UserName lastUser) {
+		nonNull(lastUser, "lastUser");
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(
+				lastUser.getName().getBytes(StandardCharsets.UTF_8));
+	}
+	
 	/** Returns the field by which users should be ordered when applying a limit.
 	 * 
 	 * Returns the first field for which the is*Search() method returns true, in the order:
@@ -186,9 +233,11 @@ public class UserSearchSpec {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		result = prime * result + ((cursor == null) ? 0 : cursor.hashCode());
 		result = prime * result + (includeDisabled ? 1231 : 1237);
 		result = prime * result + (includeRoot ? 1231 : 1237);
 		result = prime * result + (isRegex ? 1231 : 1237);
+		result = prime * result + ((limit == null) ? 0 : limit.hashCode());
 		result = prime * result + ((prefix == null) ? 0 : prefix.hashCode());
 		result = prime * result + ((searchCustomRoles == null) ? 0 : searchCustomRoles.hashCode());
 		result = prime * result + (searchDisplayName ? 1231 : 1237);
@@ -209,6 +258,13 @@ public class UserSearchSpec {
 			return false;
 		}
 		UserSearchSpec other = (UserSearchSpec) obj;
+		if (cursor == null) {
+			if (other.cursor != null) {
+				return false;
+			}
+		} else if (!cursor.equals(other.cursor)) {
+			return false;
+		}
 		if (includeDisabled != other.includeDisabled) {
 			return false;
 		}
@@ -218,6 +274,13 @@ public class UserSearchSpec {
 		if (isRegex != other.isRegex) {
 			return false;
 		}
+		if (limit == null) {
+			if (other.limit != null) {
+				return false;
+			}
+		} else if (!limit.equals(other.limit)) {
+			return false;
+		}
 		if (prefix == null) {
 			if (other.prefix != null) {
 				return false;
@@ -262,6 +325,8 @@ public class UserSearchSpec {
 		private boolean isRegex = false;
 		private boolean includeRoot = false;
 		private boolean includeDisabled = false;
+		private Optional<Integer> limit = Optional.absent();
+		private Optional<UserName> cursor = Optional.absent();
 		
 		private Builder() {}
 		
@@ -375,12 +440,44 @@ public class UserSearchSpec {
 			return this;
 		}
 		
+		/** Set the maximum number of users to return. Setting a limit makes the search paged.
+		 * @param limit the limit.
+		 * @return this builder.
+		 */
+		public Builder withLimit(final int limit) {
+			if (limit < 1) {
+				throw new IllegalArgumentException("limit must be at least 1");
+			}
+			this.limit = Optional.of(limit);
+			return this;
+		}
+		
+		/** Set the cursor from which a paged search should continue. Setting a cursor makes the
+		 * search paged.
+		 * @param cursor a cursor created by {@link UserSearchSpec#toCursor(UserName)}.
+		 * @return this builder.
+		 * @throws IllegalParameterException if the cursor is invalid.
+		 */
+		public Builder withCursor(final String cursor) throws IllegalParameterException {
+			if (cursor == null || cursor.trim().isEmpty()) {
+				throw new IllegalArgumentException("Cursor cannot be null or the empty string");
+			}
+			try {
+				this.cursor = Optional.of(new UserName(new String(
+						Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8)));
+			} catch (IllegalArgumentException | MissingParameterException |
+					IllegalParameterException e) {
+				throw new IllegalParameterException("Invalid cursor: " + cursor);
+			}
+			return this;
+		}
+		
 		/** Build a UserSearchSpec instance.
 		 * @return a UserSearchSpec.
 		 */
 		public UserSearchSpec build() {
 			return new UserSearchSpec(prefix, searchUser, searchDisplayName, searchRoles,
-					searchCustomRoles, isRegex, includeRoot, includeDisabled);
+					searchCustomRoles, isRegex, includeRoot, includeDisabled, limit, cursor);
 		}
 	}
 }
@@ -37,6 +37,7 @@ import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
 import us.kbase.auth2.lib.token.IncomingHashedToken;
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.token.TemporaryHashedToken;
+import us.kbase.auth2.lib.token.TokenSigningKey;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.auth2.lib.user.LocalUser;
 import us.kbase.auth2.lib.user.NewUser;
@@ -151,6 +152,20 @@ public interface AuthStorage {
 	 */
 	Optional<AuthUser> getUser(RemoteIdentity remoteID) throws AuthStorageException;
 	
+	/** Gets the users linked to a set of remote identities in a single storage system query.
+	 * Remote identities that are not linked to a user are left out of the returned map. If the
+	 * provider details (provider username, email address, and full name) of any of the identities
+	 * are different, the details are updated in the storage system.
+	 * 
+	 * The remote identity IDs are expected to be unique within the set.
+	 * @param remoteIDs the remote identities for which to retrieve users.
+	 * @return a mapping of remote identity to the user linked to the identity.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Map<RemoteIdentity, AuthUser> getUsers(Set<RemoteIdentity> remoteIDs)
+			throws AuthStorageException;
+	
 	/** Get the display names for a set of users. Any non-existent users are left out of the
 	 * returned map. Disabled users are never returned.
 	 * @param usernames the usernames for which to get display names.
@@ -167,6 +182,10 @@ public interface AuthStorage {
 	 * Note that auth storage implementations have no knowledge of root users and therefore
 	 * ignore the root user selection in the search specification.
 	 * 
+	 * If the search is paged (see {@link UserSearchSpec#isPaged()}), the returned map iterates
+	 * in user name order and only contains users whose names sort after the cursor, if present.
+	 * The page size is determined by maxReturnedUsers rather than the limit in the specification.
+	 * 
 	 * @param spec the specification for the search.
 	 * @param maxReturnedUsers the maximum number of users to return.
 	 * @return a mapping of user name to display name for the discovered users.
@@ -177,6 +196,27 @@ public interface AuthStorage {
 			UserSearchSpec spec,
 			int maxReturnedUsers)
 			throws AuthStorageException;
+	
+	/** Check whether a user exists. Disabled users are included.
+	 * @param userName the name of the user.
+	 * @return true if the user exists.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	boolean userExists(UserName userName) throws AuthStorageException;
+	
+	/** Get the largest numeric suffix of the names of users whose names consist of the given
+	 * stem followed by one or more digits. For example, given the stem "foo" and the users foo,
+	 * foo3, foo12, and foobar7, the largest suffix is 12. Disabled users are included.
+	 * 
+	 * Suffixes too large to be represented as a long are ignored.
+	 * @param stem the user name stem.
+	 * @return the largest suffix, or absent if there are no users with the stem and a numeric
+	 * suffix.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Optional<Long> getMaximumUserNameSuffix(String stem) throws AuthStorageException;
 
 	/** Get a local user.
 	 * @param userName the user to get.
@@ -199,9 +239,13 @@ public interface AuthStorage {
 			throws NoSuchUserException, AuthStorageException;
 	
 	/** Set the last login date for a user.
+	 * 
+	 * Implementations may buffer last login dates and write them later, in which case the
+	 * existence of the user may not be checked and the date for a non-existent user is
+	 * discarded. As such, this method should only be called for users known to exist.
 	 * @param userName the user to modify.
 	 * @param lastLogin the last login date for the user.
-	 * @throws NoSuchUserException if the user does not exist.
+	 * @throws NoSuchUserException if the user does not exist and the date is not buffered.
 	 * @throws AuthStorageException if a problem connecting with the storage
 	 * system occurs.
 	 */
@@ -247,7 +291,7 @@ public interface AuthStorage {
 	StoredToken getToken(IncomingHashedToken token)
 			throws AuthStorageException, NoSuchTokenException;
 
-	/** Get all the tokens for a user.
+	/** Get all the unexpired tokens for a user.
 	 * @param userName the user for which to retrieve tokens.
 	 * @return the tokens that the user possesses.
 	 * @throws AuthStorageException if a problem connecting with the storage
@@ -277,6 +321,33 @@ public interface AuthStorage {
 	 * system occurs.
 	 */
 	void deleteTokens() throws AuthStorageException;
+	
+	/** Get the tokens that have been deleted from the database, and are therefore revoked, but
+	 * have not yet expired. Token deletions are recorded so that self contained tokens, which
+	 * may be verified without looking them up in the database, can be checked against the list
+	 * of revoked tokens. Storage systems may allow disabling the records when self contained
+	 * tokens are not issued.
+	 * @param revokedSince only return tokens revoked at or after this date.
+	 * @return the IDs of the revoked tokens mapped to the tokens' expiration dates.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Map<UUID, Instant> getRevokedTokens(Instant revokedSince) throws AuthStorageException;
+	
+	/** Store a key used to sign self contained tokens.
+	 * @param key the key.
+	 * @throws IllegalArgumentException if a key with the same ID already exists in the database.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	void storeTokenSigningKey(TokenSigningKey key) throws AuthStorageException;
+	
+	/** Get all the keys used to sign self contained tokens.
+	 * @return the keys.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Set<TokenSigningKey> getTokenSigningKeys() throws AuthStorageException;
 
 	/** Update roles for a user.
 	 * If a role is in addRoles and removeRoles it will be removed.
@@ -298,7 +369,9 @@ public interface AuthStorage {
 	 */
 	void setCustomRole(CustomRole role) throws AuthStorageException;
 	
-	/** Deletes a custom role from the database and removes it from all users.
+	/** Deletes a custom role from the database and removes it from all users. Implementations
+	 * may remove the role from users asynchronously, but must not return deleted roles as part
+	 * of a user record.
 	 * @param roleId the ID of the role.
 	 * @throws NoSuchRoleException if there is no such role.
 	 * @throws AuthStorageException if a problem connecting with the storage
@@ -315,6 +388,22 @@ public interface AuthStorage {
 	 * system occurs.
 	 */
 	Set<CustomRole> getCustomRoles() throws AuthStorageException;
+	
+	/** Get the number of users that possess each built in role, including disabled users.
+	 * Roles that no user possesses are included with a count of 0.
+	 * @return the number of users per role.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Map<Role, Long> getRoleCounts() throws AuthStorageException;
+	
+	/** Get the number of users that possess each custom role, including disabled users.
+	 * Roles that no user possesses are included with a count of 0.
+	 * @return the number of users per custom role ID.
+	 * @throws AuthStorageException if a problem connecting with the storage
+	 * system occurs.
+	 */
+	Map<String, Long> getCustomRoleCounts() throws AuthStorageException;
 
 	/** Updates custom roles for a user.
 	 * If a role is in addRoles and removeRoles it will be removed.
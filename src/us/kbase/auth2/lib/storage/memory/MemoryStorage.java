@@ -0,0 +1,1495 @@
+package us.kbase.auth2.lib.storage.memory;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+import static us.kbase.auth2.lib.Utils.noNulls;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+
+import us.kbase.auth2.lib.CustomRole;
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.EmailAddress;
+import us.kbase.auth2.lib.PasswordHashAndSalt;
+import us.kbase.auth2.lib.PolicyID;
+import us.kbase.auth2.lib.Role;
+import us.kbase.auth2.lib.TemporaryIdentities;
+import us.kbase.auth2.lib.TokenCreationContext;
+import us.kbase.auth2.lib.UserDisabledState;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchSpec;
+import us.kbase.auth2.lib.UserUpdate;
+import us.kbase.auth2.lib.config.AuthConfig;
+import us.kbase.auth2.lib.config.AuthConfig.ProviderConfig;
+import us.kbase.auth2.lib.config.AuthConfig.TokenLifetimeType;
+import us.kbase.auth2.lib.config.AuthConfigSet;
+import us.kbase.auth2.lib.config.AuthConfigUpdate;
+import us.kbase.auth2.lib.config.AuthConfigUpdate.ProviderUpdate;
+import us.kbase.auth2.lib.config.ConfigAction.Action;
+import us.kbase.auth2.lib.config.ConfigAction.State;
+import us.kbase.auth2.lib.config.ConfigItem;
+import us.kbase.auth2.lib.config.ExternalConfig;
+import us.kbase.auth2.lib.config.ExternalConfigMapper;
+import us.kbase.auth2.lib.exceptions.ExternalConfigMappingException;
+import us.kbase.auth2.lib.exceptions.IdentityLinkedException;
+import us.kbase.auth2.lib.exceptions.IllegalParameterException;
+import us.kbase.auth2.lib.exceptions.LinkFailedException;
+import us.kbase.auth2.lib.exceptions.MissingParameterException;
+import us.kbase.auth2.lib.exceptions.NoSuchIdentityException;
+import us.kbase.auth2.lib.exceptions.NoSuchLocalUserException;
+import us.kbase.auth2.lib.exceptions.NoSuchRoleException;
+import us.kbase.auth2.lib.exceptions.NoSuchTokenException;
+import us.kbase.auth2.lib.exceptions.NoSuchUserException;
+import us.kbase.auth2.lib.exceptions.UnLinkFailedException;
+import us.kbase.auth2.lib.exceptions.UserExistsException;
+import us.kbase.auth2.lib.identity.RemoteIdentity;
+import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
+import us.kbase.auth2.lib.identity.RemoteIdentityID;
+import us.kbase.auth2.lib.storage.AuthStorage;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.storage.exceptions.StorageInitException;
+import us.kbase.auth2.lib.storage.mongo.UserPrefixIndex;
+import us.kbase.auth2.lib.token.IncomingHashedToken;
+import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.token.TemporaryHashedToken;
+import us.kbase.auth2.lib.token.TokenName;
+import us.kbase.auth2.lib.token.TokenSigningKey;
+import us.kbase.auth2.lib.token.TokenType;
+import us.kbase.auth2.lib.user.AuthUser;
+import us.kbase.auth2.lib.user.LocalUser;
+import us.kbase.auth2.lib.user.NewUser;
+
+/** An in memory storage system for the auth server, for tests, benchmarks, and single server
+ * deployments. Like {@link us.kbase.auth2.lib.storage.mongo.MongoStorage}, the storage system
+ * enforces user name, remote identity, token ID and token hash uniqueness and never returns
+ * expired tokens, but data is only shared between threads in the same process. Other behavior,
+ * such as the order of truncated search results, may differ.
+ *
+ * Records are held in concurrent maps with secondary indexes on token hashes, remote identity
+ * IDs, and user name and display name search prefixes. Reads never block. Writes to users and
+ * custom roles are serialized, as are writes to tokens, so that uniqueness constraints spanning
+ * several indexes are enforced atomically.
+ *
+ * Expired tokens are deleted by a background thread about once a minute, but are never returned
+ * after they expire.
+ *
+ * Optionally, the contents of the storage system may be saved to a snapshot file periodically
+ * and on {@link #close()}, and are loaded from the file on startup. Data written since the last
+ * snapshot is lost if the process stops without closing the storage system. The snapshot file
+ * contains password and token hashes and is created readable only by its owner.
+ */
+public class MemoryStorage implements AuthStorage {
+
+	/* Don't modify a record once it's in a map - copy it and replace it (see Records). Lock
+	 * order, if more than one lock is required, is users, tokens, config.
+	 */
+
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final long EXPIRED_TOKEN_SWEEP_INTERVAL_MS = 60 * 1000;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+
+	private static final Pattern USER_NAME_SUFFIX = Pattern.compile("^(.*?)(\\d*)$");
+	// long max is 19 digits, so 18 digits always fit
+	private static final int MAX_SUFFIX_DIGITS = 18;
+
+	private final Clock clock;
+	private final Optional<Path> snapshotFile;
+
+	private final Object userLock = new Object();
+	private final Object tokenLock = new Object();
+	private final Object configLock = new Object();
+
+	// user name -> user
+	private final Map<String, Records.User> users = new ConcurrentHashMap<>();
+	// remote identity ID -> user name
+	private final Map<String, String> identityIndex = new ConcurrentHashMap<>();
+	// user name stem -> numeric suffixes
+	private final Map<String, ConcurrentSkipListSet<Long>> suffixIndex = new ConcurrentHashMap<>();
+	private final UserPrefixIndex userIndex = new UserPrefixIndex();
+	// role ID -> role
+	private final Map<String, CustomRole> customRoles = new ConcurrentHashMap<>();
+
+	// token hash -> token
+	private final Map<String, Records.Token> tokens = new ConcurrentHashMap<>();
+	// token ID -> token
+	private final Map<String, Records.Token> tokenIDs = new ConcurrentHashMap<>();
+	// user name -> token IDs
+	private final Map<String, Set<String>> userTokens = new ConcurrentHashMap<>();
+	// token hash -> temporary token
+	private final Map<String, Records.TemporaryToken> tempTokens = new ConcurrentHashMap<>();
+	// token ID -> temporary token
+	private final Map<String, Records.TemporaryToken> tempTokenIDs = new ConcurrentHashMap<>();
+	// token ID -> revoked token
+	private final Map<String, Records.RevokedToken> revokedTokens = new ConcurrentHashMap<>();
+	// key ID -> key
+	private final Map<String, Records.SigningKey> signingKeys = new ConcurrentHashMap<>();
+
+	private volatile Optional<Boolean> loginAllowed = Optional.absent();
+	private final Map<TokenLifetimeType, Long> tokenLifetimes = new ConcurrentHashMap<>();
+	private final Map<String, Records.ProviderConfig> providers = new ConcurrentHashMap<>();
+	private final Map<String, String> externalConfig = new ConcurrentHashMap<>();
+
+	private final Optional<ScheduledExecutorService> expiredTokenSweeper;
+	private final Optional<ScheduledExecutorService> snapshotWriter;
+
+	/** Create a new, empty, in memory authentication storage system.
+	 * @throws StorageInitException if the storage system could not be initialized.
+	 */
+	public MemoryStorage() throws StorageInitException {
+		this(Clock.systemDefaultZone(), null, 0, EXPIRED_TOKEN_SWEEP_INTERVAL_MS);
+	}
+
+	/** Create a new in memory authentication storage system that is saved to a snapshot file.
+	 * If the file exists, the storage system is loaded from the file.
+	 * @param snapshotFile the snapshot file.
+	 * @param snapshotIntervalMS the interval, in milliseconds, at which the storage system is
+	 * saved to the snapshot file. Pass 0 to only save the storage system on {@link #close()}.
+	 * @throws StorageInitException if the snapshot file could not be loaded.
+	 */
+	public MemoryStorage(final Path snapshotFile, final long snapshotIntervalMS)
+			throws StorageInitException {
+		this(Clock.systemDefaultZone(), checkSnapshotFile(snapshotFile), snapshotIntervalMS,
+				EXPIRED_TOKEN_SWEEP_INTERVAL_MS);
+	}
+
+	private static Path checkSnapshotFile(final Path snapshotFile) {
+		nonNull(snapshotFile, "snapshotFile");
+		return snapshotFile;
+	}
+
+	// this should only be used for tests. Expired tokens are only swept on request.
+	private MemoryStorage(final Clock clock) throws StorageInitException {
+		this(clock, null, 0, 0);
+	}
+
+	// snapshotFile may be null. 0 for the sweep interval disables the sweeper.
+	private MemoryStorage(
+			final Clock clock,
+			final Path snapshotFile,
+			final long snapshotIntervalMS,
+			final long expiredTokenSweepMS)
+			throws StorageInitException {
+		if (snapshotIntervalMS < 0) {
+			throw new IllegalArgumentException("snapshotIntervalMS must be at least 0");
+		}
+		this.clock = clock;
+		this.snapshotFile = Optional.fromNullable(snapshotFile);
+		if (snapshotFile != null && Files.exists(snapshotFile)) {
+			loadSnapshot(snapshotFile);
+		}
+		if (expiredTokenSweepMS > 0) {
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "memory-storage-expired-token-sweep");
+				t.setDaemon(true);
+				return t;
+			});
+			ex.scheduleWithFixedDelay(() -> {
+				try {
+					sweepExpiredTokens();
+				} catch (RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Deleting expired tokens failed: " + e.getMessage(), e);
+				}
+			}, expiredTokenSweepMS, expiredTokenSweepMS, TimeUnit.MILLISECONDS);
+			expiredTokenSweeper = Optional.of(ex);
+		} else {
+			expiredTokenSweeper = Optional.absent();
+		}
+		if (snapshotFile != null && snapshotIntervalMS > 0) {
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "memory-storage-snapshot");
+				t.setDaemon(true);
+				return t;
+			});
+			ex.scheduleWithFixedDelay(() -> {
+				try {
+					writeSnapshot();
+				} catch (AuthStorageException | RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Writing storage snapshot failed: " + e.getMessage(), e);
+				}
+			}, snapshotIntervalMS, snapshotIntervalMS, TimeUnit.MILLISECONDS);
+			snapshotWriter = Optional.of(ex);
+		} else {
+			snapshotWriter = Optional.absent();
+		}
+	}
+
+	/** Stop any background threads and, if a snapshot file was provided, save the storage system
+	 * to the file. The storage system remains usable after closing, but changes will no longer
+	 * be saved.
+	 * @throws AuthStorageException if the snapshot could not be written.
+	 * @throws InterruptedException if the thread is interrupted while waiting for background
+	 * threads to stop.
+	 */
+	public void close() throws AuthStorageException, InterruptedException {
+		if (expiredTokenSweeper.isPresent()) {
+			expiredTokenSweeper.get().shutdownNow();
+		}
+		if (snapshotWriter.isPresent()) {
+			snapshotWriter.get().shutdown();
+			snapshotWriter.get().awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		if (snapshotFile.isPresent()) {
+			writeSnapshot();
+		}
+	}
+
+	/** Save the storage system to the snapshot file. The file is replaced atomically, so a
+	 * failure while writing the snapshot leaves the previous snapshot intact.
+	 * @throws IllegalStateException if no snapshot file was provided.
+	 * @throws AuthStorageException if the snapshot could not be written.
+	 */
+	public synchronized void writeSnapshot() throws AuthStorageException {
+		if (!snapshotFile.isPresent()) {
+			throw new IllegalStateException("No snapshot file was provided");
+		}
+		final Records.Snapshot s = new Records.Snapshot();
+		s.version = SNAPSHOT_VERSION;
+		// records are never modified, so only the maps need to be copied under the locks
+		synchronized (userLock) {
+			s.users.addAll(users.values());
+			for (final CustomRole r: customRoles.values()) {
+				s.customRoles.put(r.getID(), r.getDesc());
+			}
+			synchronized (tokenLock) {
+				s.tokens.addAll(tokenIDs.values());
+				s.temporaryTokens.addAll(tempTokenIDs.values());
+				s.revokedTokens.addAll(revokedTokens.values());
+				s.signingKeys.addAll(signingKeys.values());
+				synchronized (configLock) {
+					s.loginAllowed = loginAllowed.orNull();
+					for (final Entry<TokenLifetimeType, Long> e: tokenLifetimes.entrySet()) {
+						s.tokenLifetimes.put(e.getKey().name(), e.getValue());
+					}
+					s.providers.putAll(providers);
+					s.externalConfig.putAll(externalConfig);
+				}
+			}
+		}
+		final Path file = snapshotFile.get().toAbsolutePath();
+		Path temp = null;
+		try {
+			// temp files are only readable by the owner
+			temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			MAPPER.writeValue(temp.toFile(), s);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e2) {
+					// the original exception is more important
+				}
+			}
+			throw new AuthStorageException("Failed to write snapshot: " + e.getMessage(), e);
+		}
+	}
+
+	private void loadSnapshot(final Path file) throws StorageInitException {
+		final Records.Snapshot s;
+		try {
+			s = MAPPER.readValue(file.toFile(), Records.Snapshot.class);
+		} catch (IOException e) {
+			throw new StorageInitException(String.format("Failed to read snapshot %s: %s",
+					file, e.getMessage()), e);
+		}
+		if (s.version != SNAPSHOT_VERSION) {
+			throw new StorageInitException(String.format(
+					"Incompatible snapshot. Server is v%s, snapshot is v%s",
+					SNAPSHOT_VERSION, s.version));
+		}
+		try {
+			for (final Entry<String, String> r: s.customRoles.entrySet()) {
+				customRoles.put(r.getKey(), new CustomRole(r.getKey(), r.getValue()));
+			}
+			for (final Records.User u: s.users) {
+				toUser(u); // check the record is valid
+				putUser(u);
+				indexUserNameSuffix(u.name);
+				for (final String id: u.identities.keySet()) {
+					identityIndex.put(id, u.name);
+				}
+			}
+			for (final Records.Token t: s.tokens) {
+				toToken(t);
+				putToken(t);
+			}
+			for (final Records.TemporaryToken t: s.temporaryTokens) {
+				toTemporaryIdentities(t);
+				tempTokens.put(t.hash, t);
+				tempTokenIDs.put(t.id, t);
+			}
+			for (final Records.RevokedToken t: s.revokedTokens) {
+				UUID.fromString(t.id);
+				revokedTokens.put(t.id, t);
+			}
+			for (final Records.SigningKey k: s.signingKeys) {
+				toSigningKey(k);
+				signingKeys.put(k.id, k);
+			}
+			loginAllowed = Optional.fromNullable(s.loginAllowed);
+			for (final Entry<String, Long> e: s.tokenLifetimes.entrySet()) {
+				tokenLifetimes.put(TokenLifetimeType.valueOf(e.getKey()), e.getValue());
+			}
+			providers.putAll(s.providers);
+			externalConfig.putAll(s.externalConfig);
+		} catch (AuthStorageException | MissingParameterException | IllegalParameterException |
+				IllegalArgumentException | NullPointerException e) {
+			throw new StorageInitException(String.format("Illegal value in snapshot %s: %s",
+					file, e.getMessage()), e);
+		}
+	}
+
+	/** Delete expired tokens and temporary tokens, and revoked token records for tokens that
+	 * have expired. A background thread calls this method about once a minute.
+	 *
+	 * This method is public so it may be called to delete expired tokens immediately.
+	 * @return the number of tokens and temporary tokens deleted.
+	 */
+	public long sweepExpiredTokens() {
+		final long now = clock.millis();
+		long count = 0;
+		for (final Records.Token t: tokenIDs.values()) {
+			if (t.expires <= now) {
+				synchronized (tokenLock) {
+					// the token may have been deleted since the scan
+					if (tokenIDs.get(t.id) == t) {
+						removeToken(t);
+						count++;
+					}
+				}
+			}
+		}
+		for (final Records.TemporaryToken t: tempTokenIDs.values()) {
+			if (t.expires <= now) {
+				synchronized (tokenLock) {
+					if (tempTokenIDs.get(t.id) == t) {
+						removeTemporaryToken(t);
+						count++;
+					}
+				}
+			}
+		}
+		revokedTokens.values().removeIf(t -> t.expires <= now);
+		return count;
+	}
+
+	private Instant now() {
+		return clock.instant();
+	}
+
+	/* *************************
+	 * users
+	 * *************************
+	 */
+
+	// must be called while holding the user lock
+	private void putUser(final Records.User user) {
+		users.put(user.name, user);
+		userIndex.put(UserName.fromTrustedSource(user.name),
+				DisplayName.fromTrustedSource(user.displayName), user.disabledReason != null);
+	}
+
+	private void indexUserNameSuffix(final String userName) {
+		final Matcher m = USER_NAME_SUFFIX.matcher(userName);
+		m.matches(); // always matches
+		final String digits = m.group(2);
+		if (!digits.isEmpty() && digits.length() <= MAX_SUFFIX_DIGITS) {
+			suffixIndex.computeIfAbsent(m.group(1), k -> new ConcurrentSkipListSet<>())
+					.add(Long.parseLong(digits));
+		}
+	}
+
+	private Records.User getUserRecord(final UserName userName, final boolean local)
+			throws NoSuchUserException {
+		nonNull(userName, "userName");
+		final Records.User user = users.get(userName.getName());
+		if (user == null) {
+			throw new NoSuchUserException(userName.getName());
+		}
+		if (local && !user.local) {
+			throw new NoSuchLocalUserException(userName.getName());
+		}
+		return user;
+	}
+
+	// returns the updated user
+	private Records.User updateUser(final UserName userName, final Consumer<Records.User> update)
+			throws NoSuchUserException {
+		synchronized (userLock) {
+			final Records.User user = getUserRecord(userName, false).copy();
+			update.accept(user);
+			putUser(user);
+			return user;
+		}
+	}
+
+	private Records.User toRecord(final AuthUser user) {
+		final Records.User u = new Records.User();
+		u.name = user.getUserName().getName();
+		u.local = user.isLocal();
+		u.email = user.getEmail().getAddress();
+		u.displayName = user.getDisplayName().getName();
+		u.roles.addAll(user.getRoles().stream().map(r -> r.getID()).collect(Collectors.toSet()));
+		u.customRoles.addAll(user.getCustomRoles());
+		for (final Entry<PolicyID, Instant> e: user.getPolicyIDs().entrySet()) {
+			u.policyIDs.put(e.getKey().getName(), e.getValue().toEpochMilli());
+		}
+		u.created = user.getCreated().toEpochMilli();
+		u.lastLogin = toMillis(user.getLastLogin());
+		u.disabledReason = user.getReasonForDisabled().orNull();
+		u.disabledAdmin = user.getAdminThatToggledEnabledState().isPresent() ?
+				user.getAdminThatToggledEnabledState().get().getName() : null;
+		u.disabledDate = toMillis(user.getEnableToggleDate());
+		return u;
+	}
+
+	private Long toMillis(final Optional<Instant> instant) {
+		return instant.isPresent() ? instant.get().toEpochMilli() : null;
+	}
+
+	private Optional<Instant> toInstant(final Long millis) {
+		return millis == null ? Optional.absent() : Optional.of(Instant.ofEpochMilli(millis));
+	}
+
+	private Records.Identity toRecord(final RemoteIdentity ri) {
+		final Records.Identity i = new Records.Identity();
+		i.provider = ri.getRemoteID().getProviderName();
+		i.providerID = ri.getRemoteID().getProviderIdentityId();
+		i.userName = ri.getDetails().getUsername();
+		i.fullName = ri.getDetails().getFullname();
+		i.email = ri.getDetails().getEmail();
+		return i;
+	}
+
+	private RemoteIdentity toIdentity(final Records.Identity i) {
+		return new RemoteIdentity(new RemoteIdentityID(i.provider, i.providerID),
+				new RemoteIdentityDetails(i.userName, i.fullName, i.email));
+	}
+
+	private AuthUser toUser(final Records.User user) throws AuthStorageException {
+		final AuthUser.Builder b = AuthUser.getBuilder(
+				UserName.fromTrustedSource(user.name),
+				DisplayName.fromTrustedSource(user.displayName),
+				Instant.ofEpochMilli(user.created));
+		for (final Records.Identity i: user.identities.values()) {
+			b.withIdentity(toIdentity(i));
+		}
+		addUserFields(b, user);
+		return b.build();
+	}
+
+	private void addUserFields(final AuthUser.AbstractBuilder<?> b, final Records.User user)
+			throws AuthStorageException {
+		try {
+			b.withEmailAddress(user.email == null ?
+					EmailAddress.UNKNOWN : new EmailAddress(user.email));
+			b.withUserDisabledState(UserDisabledState.create(
+					Optional.fromNullable(user.disabledReason),
+					Optional.fromNullable(user.disabledAdmin == null ?
+							null : UserName.fromTrustedSource(user.disabledAdmin)),
+					toInstant(user.disabledDate)));
+			for (final String r: user.roles) {
+				b.withRole(Role.getRole(r));
+			}
+			for (final String r: user.customRoles) {
+				// the role may have been deleted since the user was read
+				if (customRoles.containsKey(r)) {
+					b.withCustomRole(r);
+				}
+			}
+			for (final Entry<String, Long> p: user.policyIDs.entrySet()) {
+				b.withPolicyID(new PolicyID(p.getKey()), Instant.ofEpochMilli(p.getValue()));
+			}
+		} catch (IllegalParameterException | MissingParameterException |
+				IllegalStateException e) {
+			throw new AuthStorageException("Illegal value stored in memory: " + e.getMessage(), e);
+		}
+		if (user.lastLogin != null) {
+			b.withLastLogin(Instant.ofEpochMilli(user.lastLogin));
+		}
+	}
+
+	private void checkCustomRolesExist(final Set<String> roles) throws NoSuchRoleException {
+		for (final String r: roles) {
+			if (!customRoles.containsKey(r)) {
+				throw new NoSuchRoleException(r);
+			}
+		}
+	}
+
+	@Override
+	public void createLocalUser(final LocalUser local, final PasswordHashAndSalt creds)
+			throws UserExistsException, AuthStorageException, NoSuchRoleException {
+		nonNull(local, "local");
+		nonNull(creds, "creds");
+		final Records.User u = toRecord(local);
+		u.forceReset = local.isPwdResetRequired();
+		u.lastReset = toMillis(local.getLastPwdReset());
+		// the caller may clear the credentials after the call, so store a copy
+		u.passwordHash = Base64.getEncoder().encodeToString(creds.getPasswordHash());
+		u.salt = Base64.getEncoder().encodeToString(creds.getSalt());
+		synchronized (userLock) {
+			checkCustomRolesExist(local.getCustomRoles());
+			if (users.containsKey(u.name)) {
+				throw new UserExistsException(u.name);
+			}
+			indexUserNameSuffix(u.name);
+			putUser(u);
+		}
+	}
+
+	@Override
+	public PasswordHashAndSalt getPasswordHashAndSalt(final UserName userName)
+			throws AuthStorageException, NoSuchLocalUserException {
+		nonNull(userName, "userName");
+		final Records.User u = users.get(userName.getName());
+		if (u == null || !u.local) {
+			throw new NoSuchLocalUserException(userName.getName());
+		}
+		return new PasswordHashAndSalt(
+				Base64.getDecoder().decode(u.passwordHash),
+				Base64.getDecoder().decode(u.salt));
+	}
+
+	@Override
+	public void changePassword(
+			final UserName name,
+			final PasswordHashAndSalt creds,
+			final boolean forceReset)
+			throws NoSuchUserException, AuthStorageException {
+		nonNull(creds, "creds");
+		getUserRecord(name, true); //check the user actually is local
+		final String pwdhsh = Base64.getEncoder().encodeToString(creds.getPasswordHash());
+		final String salt = Base64.getEncoder().encodeToString(creds.getSalt());
+		final long now = now().toEpochMilli();
+		updateUser(name, u -> {
+			u.forceReset = forceReset;
+			u.lastReset = now;
+			u.passwordHash = pwdhsh;
+			u.salt = salt;
+		});
+	}
+
+	@Override
+	public void forcePasswordReset(final UserName name)
+			throws NoSuchUserException, AuthStorageException {
+		getUserRecord(name, true);
+		updateUser(name, u -> u.forceReset = true);
+	}
+
+	@Override
+	public void forcePasswordReset() throws AuthStorageException {
+		synchronized (userLock) {
+			for (final Records.User u: users.values()) {
+				if (u.local && !u.forceReset) {
+					final Records.User copy = u.copy();
+					copy.forceReset = true;
+					putUser(copy);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void createUser(final NewUser newUser)
+			throws UserExistsException, AuthStorageException, IdentityLinkedException,
+			NoSuchRoleException {
+		nonNull(newUser, "newUser");
+		final Records.User u = toRecord(newUser);
+		final String id = newUser.getIdentity().getRemoteID().getID();
+		u.identities.put(id, toRecord(newUser.getIdentity()));
+		synchronized (userLock) {
+			checkCustomRolesExist(newUser.getCustomRoles());
+			if (users.containsKey(u.name)) {
+				throw new UserExistsException(u.name);
+			}
+			if (identityIndex.containsKey(id)) {
+				throw new IdentityLinkedException(id);
+			}
+			identityIndex.put(id, u.name);
+			indexUserNameSuffix(u.name);
+			putUser(u);
+		}
+	}
+
+	@Override
+	public void disableAccount(final UserName user, final UserName admin, final String reason)
+			throws NoSuchUserException, AuthStorageException {
+		if (reason == null || reason.trim().isEmpty()) {
+			throw new IllegalArgumentException("reason cannot be null or empty");
+		}
+		toggleAccount(user, admin, reason);
+	}
+
+	@Override
+	public void enableAccount(final UserName user, final UserName admin)
+			throws NoSuchUserException, AuthStorageException {
+		toggleAccount(user, admin, null);
+	}
+
+	private void toggleAccount(final UserName user, final UserName admin, final String reason)
+			throws NoSuchUserException {
+		nonNull(admin, "admin");
+		final long now = now().toEpochMilli();
+		updateUser(user, u -> {
+			u.disabledReason = reason;
+			u.disabledAdmin = admin.getName();
+			u.disabledDate = now;
+		});
+	}
+
+	@Override
+	public AuthUser getUser(final UserName userName)
+			throws AuthStorageException, NoSuchUserException {
+		return toUser(getUserRecord(userName, false));
+	}
+
+	@Override
+	public Optional<AuthUser> getUser(final RemoteIdentity remoteID) throws AuthStorageException {
+		nonNull(remoteID, "remoteID");
+		return Optional.fromNullable(getUsers(new HashSet<>(Arrays.asList(remoteID)))
+				.get(remoteID));
+	}
+
+	@Override
+	public Map<RemoteIdentity, AuthUser> getUsers(final Set<RemoteIdentity> remoteIDs)
+			throws AuthStorageException {
+		nonNull(remoteIDs, "remoteIDs");
+		noNulls(remoteIDs, "Null remote identity in remoteIDs");
+		final Map<String, List<RemoteIdentity>> userToIdentities = new HashMap<>();
+		for (final RemoteIdentity ri: remoteIDs) {
+			final String user = identityIndex.get(ri.getRemoteID().getID());
+			if (user != null) {
+				userToIdentities.computeIfAbsent(user, k -> new LinkedList<>()).add(ri);
+			}
+		}
+		final Map<RemoteIdentity, AuthUser> ret = new HashMap<>();
+		for (final Entry<String, List<RemoteIdentity>> e: userToIdentities.entrySet()) {
+			Records.User user = users.get(e.getKey());
+			final List<RemoteIdentity> updates = new LinkedList<>();
+			for (final RemoteIdentity ri: e.getValue()) {
+				final Records.Identity stored = user.identities.get(ri.getRemoteID().getID());
+				if (stored != null && !toIdentity(stored).getDetails().equals(ri.getDetails())) {
+					updates.add(ri);
+				}
+			}
+			if (!updates.isEmpty()) {
+				user = updateIdentities(e.getKey(), updates);
+			}
+			final AuthUser authUser = toUser(user);
+			for (final RemoteIdentity ri: e.getValue()) {
+				// the identity may have been unlinked since the index was read
+				if (user.identities.containsKey(ri.getRemoteID().getID())) {
+					ret.put(ri, authUser);
+				}
+			}
+		}
+		return ret;
+	}
+
+	// returns the updated user
+	private Records.User updateIdentities(
+			final String userName,
+			final List<RemoteIdentity> remoteIDs) {
+		synchronized (userLock) {
+			final Records.User user = users.get(userName).copy();
+			for (final RemoteIdentity ri: remoteIDs) {
+				final String id = ri.getRemoteID().getID();
+				// ids might have been unlinked, in which case there's nothing to update
+				if (user.identities.containsKey(id)) {
+					user.identities.put(id, toRecord(ri));
+				}
+			}
+			putUser(user);
+			return user;
+		}
+	}
+
+	@Override
+	public Map<UserName, DisplayName> getUserDisplayNames(final Set<UserName> usernames)
+			throws AuthStorageException {
+		nonNull(usernames, "users");
+		noNulls(usernames, "Null username in users set");
+		final Map<UserName, DisplayName> ret = new HashMap<>();
+		for (final UserName n: usernames) {
+			final Records.User u = users.get(n.getName());
+			if (u != null && u.disabledReason == null) {
+				ret.put(n, DisplayName.fromTrustedSource(u.displayName));
+			}
+		}
+		return ret;
+	}
+
+	/* Searches with a prefix use the prefix index, all other searches scan the users. When a
+	 * limit truncates the results of an unpaged search, the users are ordered by user name, or
+	 * by the lowest display name token for display name searches. Unlike MongoStorage, role
+	 * searches are also ordered by user name.
+	 */
+	@Override
+	public Map<UserName, DisplayName> getUserDisplayNames(
+			final UserSearchSpec spec,
+			final int limit)
+			throws AuthStorageException {
+		nonNull(spec, "spec");
+		final Collection<Records.User> candidates;
+		if (spec.getSearchPrefix().isPresent() && !spec.isRegex()) {
+			candidates = new LinkedList<>();
+			for (final UserName n: userIndex.search(spec.getSearchPrefix().get(),
+					spec.isUserNameSearch(), spec.isDisplayNameSearch(),
+					spec.isDisabledIncluded()).keySet()) {
+				final Records.User u = users.get(n.getName());
+				if (u != null) {
+					candidates.add(u);
+				}
+			}
+		} else {
+			candidates = users.values();
+		}
+		final Pattern regex = getSearchRegex(spec);
+		final Set<String> searchCustomRoles = spec.getSearchCustomRoles().stream()
+				.filter(r -> customRoles.containsKey(r)).collect(Collectors.toSet());
+		if (spec.isCustomRoleSearch() && searchCustomRoles.isEmpty()) {
+			return new HashMap<>(); // none of the roles exist
+		}
+		final Set<String> searchRoles = spec.getSearchRoles().stream().map(r -> r.getID())
+				.collect(Collectors.toSet());
+		final List<Records.User> found = new ArrayList<>();
+		for (final Records.User u: candidates) {
+			if ((spec.isDisabledIncluded() || u.disabledReason == null) &&
+					(regex == null || regexMatches(spec, regex, u)) &&
+					u.roles.containsAll(searchRoles) &&
+					u.customRoles.containsAll(searchCustomRoles) &&
+					(!spec.getCursor().isPresent() ||
+							u.name.compareTo(spec.getCursor().get().getName()) > 0)) {
+				found.add(u);
+			}
+		}
+		if (spec.isPaged() || (limit > 0 && found.size() > limit)) {
+			if (spec.isPaged() || !spec.orderBy().equals(UserSearchSpec.SearchField.DISPLAYNAME)) {
+				found.sort(Comparator.comparing(u -> u.name));
+			} else {
+				found.sort(Comparator.comparing((Records.User u) -> lowestDisplayNameToken(u))
+						.thenComparing(u -> u.name));
+			}
+		}
+		final Map<UserName, DisplayName> ret =
+				spec.isPaged() ? new LinkedHashMap<>() : new HashMap<>();
+		for (final Records.User u: found) {
+			if (limit > 0 && ret.size() >= limit) {
+				break;
+			}
+			ret.put(UserName.fromTrustedSource(u.name),
+					DisplayName.fromTrustedSource(u.displayName));
+		}
+		return ret;
+	}
+
+	private Pattern getSearchRegex(final UserSearchSpec spec) throws AuthStorageException {
+		if (!spec.isRegex()) {
+			return null;
+		}
+		try {
+			return Pattern.compile(spec.getSearchPrefix().get());
+		} catch (PatternSyntaxException e) {
+			throw new AuthStorageException("Illegal search regex: " + e.getMessage(), e);
+		}
+	}
+
+	// as for a MongoDB $regex query, the regex may match any part of the field
+	private boolean regexMatches(
+			final UserSearchSpec spec,
+			final Pattern regex,
+			final Records.User user) {
+		if (spec.isUserNameSearch() && regex.matcher(user.name).find()) {
+			return true;
+		}
+		if (spec.isDisplayNameSearch()) {
+			for (final String t: DisplayName.fromTrustedSource(user.displayName)
+					.getCanonicalDisplayName()) {
+				if (regex.matcher(t).find()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private String lowestDisplayNameToken(final Records.User user) {
+		return DisplayName.fromTrustedSource(user.displayName).getCanonicalDisplayName().stream()
+				.min(Comparator.naturalOrder()).orElse("");
+	}
+
+	@Override
+	public boolean userExists(final UserName userName) throws AuthStorageException {
+		nonNull(userName, "userName");
+		return users.containsKey(userName.getName());
+	}
+
+	@Override
+	public Optional<Long> getMaximumUserNameSuffix(final String stem)
+			throws AuthStorageException {
+		checkStringNoCheckedException(stem, "stem");
+		final ConcurrentSkipListSet<Long> suffixes = suffixIndex.get(stem);
+		return suffixes == null ? Optional.absent() : Optional.of(suffixes.last());
+	}
+
+	@Override
+	public LocalUser getLocalUser(final UserName userName)
+			throws AuthStorageException, NoSuchLocalUserException {
+		final Records.User user;
+		try {
+			user = getUserRecord(userName, true);
+		} catch (NoSuchUserException e) {
+			throw new NoSuchLocalUserException(userName.getName());
+		}
+		final LocalUser.Builder b = LocalUser.getLocalUserBuilder(
+				UserName.fromTrustedSource(user.name),
+				DisplayName.fromTrustedSource(user.displayName),
+				Instant.ofEpochMilli(user.created))
+				.withForceReset(user.forceReset);
+		addUserFields(b, user);
+		if (user.lastReset != null) {
+			b.withLastReset(Instant.ofEpochMilli(user.lastReset));
+		}
+		return b.build();
+	}
+
+	@Override
+	public void updateUser(final UserName userName, final UserUpdate update)
+			throws NoSuchUserException, AuthStorageException {
+		nonNull(update, "update");
+		if (!update.hasUpdates()) {
+			return; //noop
+		}
+		updateUser(userName, u -> {
+			if (update.getDisplayName().isPresent()) {
+				u.displayName = update.getDisplayName().get().getName();
+			}
+			if (update.getEmail().isPresent()) {
+				u.email = update.getEmail().get().getAddress();
+			}
+		});
+	}
+
+	@Override
+	public void setLastLogin(final UserName userName, final Instant lastLogin)
+			throws NoSuchUserException, AuthStorageException {
+		nonNull(lastLogin, "lastLogin");
+		updateUser(userName, u -> u.lastLogin = lastLogin.toEpochMilli());
+	}
+
+	@Override
+	public void addPolicyIDs(final UserName userName, final Set<PolicyID> policyIDs)
+			throws NoSuchUserException, AuthStorageException {
+		nonNull(userName, "userName");
+		nonNull(policyIDs, "policyIDs");
+		noNulls(policyIDs, "null item in policyIDs");
+		final long now = now().toEpochMilli();
+		updateUser(userName, u -> {
+			for (final PolicyID pid: policyIDs) {
+				u.policyIDs.putIfAbsent(pid.getName(), now);
+			}
+		});
+	}
+
+	@Override
+	public void removePolicyID(final PolicyID policyID) throws AuthStorageException {
+		nonNull(policyID, "policyID");
+		synchronized (userLock) {
+			for (final Records.User u: users.values()) {
+				if (u.policyIDs.containsKey(policyID.getName())) {
+					final Records.User copy = u.copy();
+					copy.policyIDs.remove(policyID.getName());
+					putUser(copy);
+				}
+			}
+		}
+	}
+
+	/* *************************
+	 * roles
+	 * *************************
+	 */
+
+	@Override
+	public void updateRoles(
+			final UserName userName,
+			final Set<Role> addRoles,
+			final Set<Role> removeRoles)
+			throws AuthStorageException, NoSuchUserException {
+		nonNull(addRoles, "addRoles");
+		nonNull(removeRoles, "removeRoles");
+		if (addRoles.contains(Role.ROOT) || removeRoles.contains(Role.ROOT)) {
+			throw new IllegalArgumentException("Cannot change root role");
+		}
+		noNulls(addRoles, "Null role in addRoles");
+		noNulls(removeRoles, "Null role in removeRoles");
+		nonNull(userName, "userName");
+		if (addRoles.isEmpty() && removeRoles.isEmpty()) {
+			return;
+		}
+		updateUser(userName, u -> {
+			u.roles.addAll(addRoles.stream().map(r -> r.getID()).collect(Collectors.toSet()));
+			u.roles.removeAll(removeRoles.stream().map(r -> r.getID())
+					.collect(Collectors.toSet()));
+		});
+	}
+
+	@Override
+	public void setCustomRole(final CustomRole role) throws AuthStorageException {
+		nonNull(role, "role");
+		// lock so a role can't be recreated while a deleted role is being removed from users
+		synchronized (userLock) {
+			customRoles.put(role.getID(), role);
+		}
+	}
+
+	@Override
+	public void deleteCustomRole(final String roleId)
+			throws NoSuchRoleException, AuthStorageException,
+			MissingParameterException, IllegalParameterException {
+		CustomRole.checkValidRoleID(roleId);
+		synchronized (userLock) {
+			// remove the role first, reads ignore roles that don't exist
+			if (customRoles.remove(roleId) == null) {
+				throw new NoSuchRoleException(roleId);
+			}
+			for (final Records.User u: users.values()) {
+				if (u.customRoles.contains(roleId)) {
+					final Records.User copy = u.copy();
+					copy.customRoles.remove(roleId);
+					putUser(copy);
+				}
+			}
+		}
+	}
+
+	@Override
+	public Set<CustomRole> getCustomRoles() throws AuthStorageException {
+		return new HashSet<>(customRoles.values());
+	}
+
+	@Override
+	public Map<Role, Long> getRoleCounts() throws AuthStorageException {
+		final Map<Role, Long> ret = new HashMap<>();
+		for (final Role r: Role.values()) {
+			ret.put(r, 0L);
+		}
+		for (final Records.User u: users.values()) {
+			for (final String r: u.roles) {
+				ret.merge(Role.getRole(r), 1L, Long::sum);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public Map<String, Long> getCustomRoleCounts() throws AuthStorageException {
+		final Map<String, Long> ret = new HashMap<>();
+		for (final String r: customRoles.keySet()) {
+			ret.put(r, 0L);
+		}
+		for (final Records.User u: users.values()) {
+			for (final String r: u.customRoles) {
+				// deleted roles are ignored
+				ret.computeIfPresent(r, (k, v) -> v + 1);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void updateCustomRoles(
+			final UserName userName,
+			final Set<String> addRoles,
+			final Set<String> removeRoles)
+			throws NoSuchUserException, AuthStorageException, NoSuchRoleException {
+		nonNull(addRoles, "addRoles");
+		nonNull(removeRoles, "removeRoles");
+		noNulls(addRoles, "Null role in addRoles");
+		noNulls(removeRoles, "Null role in removeRoles");
+		synchronized (userLock) {
+			checkCustomRolesExist(addRoles);
+			checkCustomRolesExist(removeRoles);
+			nonNull(userName, "userName");
+			if (addRoles.isEmpty() && removeRoles.isEmpty()) {
+				return;
+			}
+			updateUser(userName, u -> {
+				u.customRoles.addAll(addRoles);
+				u.customRoles.removeAll(removeRoles);
+			});
+		}
+	}
+
+	/* *************************
+	 * identities
+	 * *************************
+	 */
+
+	@Override
+	public void link(final UserName userName, final RemoteIdentity remoteID)
+			throws NoSuchUserException, AuthStorageException, LinkFailedException,
+			IdentityLinkedException {
+		synchronized (userLock) {
+			final Records.User user = getUserRecord(userName, false).copy();
+			nonNull(remoteID, "remoteID");
+			if (user.local) {
+				throw new LinkFailedException("Cannot link identities to a local user");
+			}
+			final String id = remoteID.getRemoteID().getID();
+			final String linked = identityIndex.get(id);
+			if (linked != null && !linked.equals(user.name)) {
+				throw new IdentityLinkedException(id);
+			}
+			// if the user is already linked, this updates the identity details
+			user.identities.put(id, toRecord(remoteID));
+			identityIndex.put(id, user.name);
+			putUser(user);
+		}
+	}
+
+	@Override
+	public void unlink(final UserName userName, final String id)
+			throws AuthStorageException, UnLinkFailedException, NoSuchUserException,
+			NoSuchIdentityException {
+		checkStringNoCheckedException(id, "id");
+		synchronized (userLock) {
+			final Records.User user = getUserRecord(userName, false).copy();
+			if (user.local) {
+				throw new UnLinkFailedException("Local users have no identities");
+			}
+			if (user.identities.size() < 2) {
+				throw new UnLinkFailedException("The user has only one associated identity");
+			}
+			if (user.identities.remove(id) == null) {
+				throw new NoSuchIdentityException("The user is not linked to identity " + id);
+			}
+			identityIndex.remove(id);
+			putUser(user);
+		}
+	}
+
+	/* *************************
+	 * tokens
+	 * *************************
+	 */
+
+	// must be called while holding the token lock
+	private void putToken(final Records.Token token) {
+		tokens.put(token.hash, token);
+		tokenIDs.put(token.id, token);
+		userTokens.computeIfAbsent(token.userName, k -> ConcurrentHashMap.newKeySet())
+				.add(token.id);
+	}
+
+	// must be called while holding the token lock
+	private void removeToken(final Records.Token token) {
+		tokens.remove(token.hash);
+		tokenIDs.remove(token.id);
+		final Set<String> ids = userTokens.get(token.userName);
+		ids.remove(token.id);
+		if (ids.isEmpty()) {
+			userTokens.remove(token.userName);
+		}
+	}
+
+	// must be called while holding the token lock
+	private void revokeAndRemoveToken(final Records.Token token, final long now) {
+		// record the revocation first so a signed token is never usable after it's deleted
+		final Records.RevokedToken r = new Records.RevokedToken();
+		r.id = token.id;
+		r.revoked = now;
+		r.expires = token.expires;
+		revokedTokens.put(r.id, r);
+		removeToken(token);
+	}
+
+	@Override
+	public void storeToken(final StoredToken token, final String hash)
+			throws AuthStorageException {
+		nonNull(token, "token");
+		checkStringNoCheckedException(hash, "hash");
+		final TokenCreationContext ctx = token.getContext();
+		final Records.Token t = new Records.Token();
+		t.type = token.getTokenType().getID();
+		t.id = token.getId().toString();
+		t.hash = hash;
+		t.userName = token.getUserName().getName();
+		t.name = token.getTokenName().isPresent() ? token.getTokenName().get().getName() : null;
+		t.created = token.getCreationDate().toEpochMilli();
+		t.expires = token.getExpirationDate().toEpochMilli();
+		t.agent = ctx.getAgent().orNull();
+		t.agentVersion = ctx.getAgentVersion().orNull();
+		t.os = ctx.getOS().orNull();
+		t.osVersion = ctx.getOSVersion().orNull();
+		t.device = ctx.getDevice().orNull();
+		t.ipAddress = ctx.getIpAddress().isPresent() ?
+				ctx.getIpAddress().get().getHostAddress() : null;
+		t.customContext.putAll(ctx.getCustomContext());
+		synchronized (tokenLock) {
+			if (tokenIDs.containsKey(t.id)) {
+				throw new IllegalArgumentException(String.format(
+						"Token ID %s already exists in the database", token.getId()));
+			}
+			if (tokens.containsKey(t.hash)) {
+				throw new IllegalArgumentException(String.format(
+						"Token hash for token ID %s already exists in the database",
+						token.getId()));
+			}
+			putToken(t);
+		}
+	}
+
+	private StoredToken toToken(final Records.Token t) throws AuthStorageException {
+		final TokenCreationContext.Builder b = TokenCreationContext.getBuilder()
+				.withNullableAgent(t.agent, t.agentVersion)
+				.withNullableOS(t.os, t.osVersion)
+				.withNullableDevice(t.device);
+		try {
+			if (t.ipAddress != null) {
+				// the address is an IP address, so there's no lookup
+				b.withIpAddress(InetAddress.getByName(t.ipAddress));
+			}
+			for (final Entry<String, String> e: t.customContext.entrySet()) {
+				b.withCustomContext(e.getKey(), e.getValue());
+			}
+			return StoredToken.getBuilder(
+						TokenType.getType(t.type),
+						UUID.fromString(t.id),
+						UserName.fromTrustedSource(t.userName))
+					.withLifeTime(Instant.ofEpochMilli(t.created), Instant.ofEpochMilli(t.expires))
+					.withNullableTokenName(t.name == null ? null : new TokenName(t.name))
+					.withContext(b.build())
+					.build();
+		} catch (UnknownHostException | MissingParameterException |
+				IllegalParameterException e) {
+			throw new AuthStorageException("Illegal value stored in memory: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public StoredToken getToken(final IncomingHashedToken token)
+			throws AuthStorageException, NoSuchTokenException {
+		nonNull(token, "token");
+		final Records.Token t = tokens.get(token.getTokenHash());
+		// expired tokens may not have been swept yet
+		if (t == null || now().isAfter(Instant.ofEpochMilli(t.expires))) {
+			throw new NoSuchTokenException("Token not found");
+		}
+		return toToken(t);
+	}
+
+	@Override
+	public Set<StoredToken> getTokens(final UserName userName) throws AuthStorageException {
+		nonNull(userName, "userName");
+		final Set<StoredToken> ret = new HashSet<>();
+		final Set<String> ids = userTokens.get(userName.getName());
+		if (ids == null) {
+			return ret;
+		}
+		final long now = now().toEpochMilli();
+		for (final String id: ids) {
+			final Records.Token t = tokenIDs.get(id);
+			// the token may have been deleted since the IDs were read
+			if (t != null && t.expires > now) {
+				ret.add(toToken(t));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void deleteToken(final UserName userName, final UUID tokenId)
+			throws AuthStorageException, NoSuchTokenException {
+		nonNull(userName, "userName");
+		nonNull(tokenId, "tokenId");
+		synchronized (tokenLock) {
+			final Records.Token t = tokenIDs.get(tokenId.toString());
+			if (t == null || !t.userName.equals(userName.getName())) {
+				throw new NoSuchTokenException(String.format(
+						"No token %s for user %s exists", tokenId, userName.getName()));
+			}
+			revokeAndRemoveToken(t, now().toEpochMilli());
+		}
+	}
+
+	@Override
+	public void deleteTokens(final UserName userName) throws AuthStorageException {
+		nonNull(userName, "userName");
+		synchronized (tokenLock) {
+			final Set<String> ids = userTokens.get(userName.getName());
+			if (ids == null) {
+				return;
+			}
+			final long now = now().toEpochMilli();
+			for (final String id: new ArrayList<>(ids)) {
+				revokeAndRemoveToken(tokenIDs.get(id), now);
+			}
+		}
+	}
+
+	@Override
+	public void deleteTokens() throws AuthStorageException {
+		synchronized (tokenLock) {
+			final long now = now().toEpochMilli();
+			for (final Records.Token t: new ArrayList<>(tokenIDs.values())) {
+				revokeAndRemoveToken(t, now);
+			}
+		}
+	}
+
+	@Override
+	public Map<UUID, Instant> getRevokedTokens(final Instant revokedSince)
+			throws AuthStorageException {
+		nonNull(revokedSince, "revokedSince");
+		final long since = revokedSince.toEpochMilli();
+		final Map<UUID, Instant> ret = new HashMap<>();
+		for (final Records.RevokedToken t: revokedTokens.values()) {
+			if (t.revoked >= since) {
+				ret.put(UUID.fromString(t.id), Instant.ofEpochMilli(t.expires));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void storeTokenSigningKey(final TokenSigningKey key) throws AuthStorageException {
+		nonNull(key, "key");
+		final Records.SigningKey k = new Records.SigningKey();
+		k.id = key.getKeyID();
+		k.created = key.getCreationDate().toEpochMilli();
+		k.publicKey = key.getEncodedPublicKey();
+		k.privateKey = key.getEncodedPrivateKey();
+		if (signingKeys.putIfAbsent(k.id, k) != null) {
+			throw new IllegalArgumentException(String.format(
+					"Token signing key %s already exists in the database", key.getKeyID()));
+		}
+	}
+
+	private TokenSigningKey toSigningKey(final Records.SigningKey k) {
+		return TokenSigningKey.fromEncoded(
+				k.id, Instant.ofEpochMilli(k.created), k.publicKey, k.privateKey);
+	}
+
+	@Override
+	public Set<TokenSigningKey> getTokenSigningKeys() throws AuthStorageException {
+		final Set<TokenSigningKey> ret = new HashSet<>();
+		try {
+			for (final Records.SigningKey k: signingKeys.values()) {
+				ret.add(toSigningKey(k));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new AuthStorageException("Illegal value stored in memory: " + e.getMessage(), e);
+		}
+		return ret;
+	}
+
+	// must be called while holding the token lock
+	private void removeTemporaryToken(final Records.TemporaryToken token) {
+		tempTokens.remove(token.hash);
+		tempTokenIDs.remove(token.id);
+	}
+
+	@Override
+	public void storeIdentitiesTemporarily(
+			final TemporaryHashedToken token,
+			final Set<RemoteIdentity> identitySet)
+			throws AuthStorageException {
+		nonNull(token, "token");
+		nonNull(identitySet, "identitySet");
+		// ok for the set to be empty
+		noNulls(identitySet, "Null value in identitySet");
+		final Records.TemporaryToken t = new Records.TemporaryToken();
+		t.id = token.getId().toString();
+		t.hash = token.getTokenHash();
+		t.created = token.getCreationDate().toEpochMilli();
+		t.expires = token.getExpirationDate().toEpochMilli();
+		for (final RemoteIdentity ri: identitySet) {
+			t.identities.add(toRecord(ri));
+		}
+		synchronized (tokenLock) {
+			if (tempTokenIDs.containsKey(t.id)) {
+				throw new IllegalArgumentException(String.format(
+						"Temporary token ID %s already exists in the database", token.getId()));
+			}
+			if (tempTokens.containsKey(t.hash)) {
+				throw new IllegalArgumentException(String.format(
+						"Token hash for temporary token ID %s already exists in the database",
+						token.getId()));
+			}
+			tempTokens.put(t.hash, t);
+			tempTokenIDs.put(t.id, t);
+		}
+	}
+
+	private TemporaryIdentities toTemporaryIdentities(final Records.TemporaryToken t) {
+		return new TemporaryIdentities(
+				UUID.fromString(t.id),
+				Instant.ofEpochMilli(t.created),
+				Instant.ofEpochMilli(t.expires),
+				t.identities.stream().map(i -> toIdentity(i)).collect(Collectors.toSet()));
+	}
+
+	@Override
+	public TemporaryIdentities getTemporaryIdentities(final IncomingHashedToken token)
+			throws AuthStorageException, NoSuchTokenException {
+		nonNull(token, "token");
+		final Records.TemporaryToken t = tempTokens.get(token.getTokenHash());
+		if (t == null || now().isAfter(Instant.ofEpochMilli(t.expires))) {
+			throw new NoSuchTokenException("Token not found");
+		}
+		return toTemporaryIdentities(t);
+	}
+
+	@Override
+	public void deleteTemporaryIdentities(final IncomingHashedToken token)
+			throws AuthStorageException {
+		nonNull(token, "token");
+		synchronized (tokenLock) {
+			final Records.TemporaryToken t = tempTokens.get(token.getTokenHash());
+			// if it's not there, fine. Job's done.
+			if (t != null) {
+				removeTemporaryToken(t);
+			}
+		}
+	}
+
+	/* *************************
+	 * configuration
+	 * *************************
+	 */
+
+	private <K, V> void updateConfig(
+			final Map<K, V> config,
+			final K key,
+			final V value,
+			final boolean overwrite) {
+		if (overwrite) {
+			config.put(key, value);
+		} else {
+			config.putIfAbsent(key, value);
+		}
+	}
+
+	@Override
+	public <T extends ExternalConfig> void updateConfig(
+			final AuthConfigUpdate<T> cfgUpdate,
+			final boolean overwrite)
+			throws AuthStorageException {
+		nonNull(cfgUpdate, "cfgSet");
+		synchronized (configLock) {
+			if (cfgUpdate.getLoginAllowed().isPresent() &&
+					(overwrite || !loginAllowed.isPresent())) {
+				loginAllowed = cfgUpdate.getLoginAllowed();
+			}
+			for (final Entry<TokenLifetimeType, Long> e:
+					cfgUpdate.getTokenLifetimeMS().entrySet()) {
+				updateConfig(tokenLifetimes, e.getKey(), e.getValue(), overwrite);
+			}
+			for (final Entry<String, ProviderUpdate> e: cfgUpdate.getProviders().entrySet()) {
+				final Records.ProviderConfig old = providers.get(e.getKey());
+				final Records.ProviderConfig pc = new Records.ProviderConfig();
+				if (old != null) {
+					pc.enabled = old.enabled;
+					pc.forceLoginChoice = old.forceLoginChoice;
+					pc.forceLinkChoice = old.forceLinkChoice;
+				}
+				final ProviderUpdate pu = e.getValue();
+				pc.enabled = updateConfig(pc.enabled, pu.getEnabled(), overwrite);
+				pc.forceLoginChoice = updateConfig(
+						pc.forceLoginChoice, pu.getForceLoginChoice(), overwrite);
+				pc.forceLinkChoice = updateConfig(
+						pc.forceLinkChoice, pu.getForceLinkChoice(), overwrite);
+				providers.put(e.getKey(), pc);
+			}
+			if (cfgUpdate.getExternalConfig().isPresent()) {
+				for (final Entry<String, ConfigItem<String, Action>> e:
+						cfgUpdate.getExternalConfig().get().toMap().entrySet()) {
+					if (e.getValue().getAction().isSet()) {
+						updateConfig(externalConfig, e.getKey(), e.getValue().getItem(),
+								overwrite);
+					} else if (e.getValue().getAction().isRemove() && overwrite) {
+						// don't remove keys unless overwrite is specified
+						externalConfig.remove(e.getKey());
+					}
+				}
+			}
+		}
+	}
+
+	private Boolean updateConfig(
+			final Boolean current,
+			final Optional<Boolean> update,
+			final boolean overwrite) {
+		if (update.isPresent() && (overwrite || current == null)) {
+			return update.get();
+		}
+		return current;
+	}
+
+	@Override
+	public <T extends ExternalConfig> AuthConfigSet<T> getConfig(
+			final ExternalConfigMapper<T> mapper)
+			throws AuthStorageException, ExternalConfigMappingException {
+		nonNull(mapper, "mapper");
+		final Map<String, ConfigItem<String, State>> ext = new HashMap<>();
+		for (final Entry<String, String> e: externalConfig.entrySet()) {
+			ext.put(e.getKey(), ConfigItem.state(e.getValue()));
+		}
+		final Map<String, ProviderConfig> provs = new HashMap<>();
+		for (final Entry<String, Records.ProviderConfig> e: providers.entrySet()) {
+			final Records.ProviderConfig pc = e.getValue();
+			provs.put(e.getKey(), new ProviderConfig(
+					Boolean.TRUE.equals(pc.enabled),
+					Boolean.TRUE.equals(pc.forceLoginChoice),
+					Boolean.TRUE.equals(pc.forceLinkChoice)));
+		}
+		return new AuthConfigSet<T>(new AuthConfig(
+				loginAllowed.or(AuthConfig.DEFAULT_LOGIN_ALLOWED), provs,
+				new HashMap<>(tokenLifetimes)),
+				mapper.fromMap(ext));
+	}
+}
@@ -0,0 +1,132 @@
+package us.kbase.auth2.lib.storage.memory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The records held by {@link MemoryStorage}. The records contain only simple types so that they
+ * can be written to and read from a snapshot file as is.
+ *
+ * Records are never modified once they are visible to other threads - updates copy the record,
+ * modify the copy, and replace the original. Therefore readers always see a consistent record
+ * without locking.
+ */
+class Records {
+
+	private Records() {}
+
+	static class User {
+		String name;
+		boolean local;
+		String email;
+		String displayName;
+		Set<String> roles = new HashSet<>();
+		Set<String> customRoles = new HashSet<>();
+		// ordered by identity ID
+		Map<String, Identity> identities = new LinkedHashMap<>();
+		// policy ID -> agreed on date in epoch ms
+		Map<String, Long> policyIDs = new HashMap<>();
+		long created;
+		Long lastLogin;
+		String disabledReason;
+		String disabledAdmin;
+		Long disabledDate;
+		boolean forceReset;
+		Long lastReset;
+		String passwordHash;
+		String salt;
+
+		User copy() {
+			final User u = new User();
+			u.name = name;
+			u.local = local;
+			u.email = email;
+			u.displayName = displayName;
+			u.roles = new HashSet<>(roles);
+			u.customRoles = new HashSet<>(customRoles);
+			u.identities = new LinkedHashMap<>(identities);
+			u.policyIDs = new HashMap<>(policyIDs);
+			u.created = created;
+			u.lastLogin = lastLogin;
+			u.disabledReason = disabledReason;
+			u.disabledAdmin = disabledAdmin;
+			u.disabledDate = disabledDate;
+			u.forceReset = forceReset;
+			u.lastReset = lastReset;
+			u.passwordHash = passwordHash;
+			u.salt = salt;
+			return u;
+		}
+	}
+
+	static class Identity {
+		String provider;
+		String providerID;
+		String userName;
+		String fullName;
+		String email;
+	}
+
+	static class Token {
+		String type;
+		String id;
+		String hash;
+		String userName;
+		String name;
+		long created;
+		long expires;
+		String agent;
+		String agentVersion;
+		String os;
+		String osVersion;
+		String device;
+		String ipAddress;
+		Map<String, String> customContext = new HashMap<>();
+	}
+
+	static class TemporaryToken {
+		String id;
+		String hash;
+		long created;
+		long expires;
+		List<Identity> identities = new ArrayList<>();
+	}
+
+	static class RevokedToken {
+		String id;
+		long revoked;
+		long expires;
+	}
+
+	static class SigningKey {
+		String id;
+		long created;
+		String publicKey;
+		String privateKey;
+	}
+
+	static class ProviderConfig {
+		Boolean enabled;
+		Boolean forceLoginChoice;
+		Boolean forceLinkChoice;
+	}
+
+	static class Snapshot {
+		int version;
+		List<User> users = new ArrayList<>();
+		List<Token> tokens = new ArrayList<>();
+		List<TemporaryToken> temporaryTokens = new ArrayList<>();
+		List<RevokedToken> revokedTokens = new ArrayList<>();
+		List<SigningKey> signingKeys = new ArrayList<>();
+		// role ID -> description
+		Map<String, String> customRoles = new HashMap<>();
+		Boolean loginAllowed;
+		Map<String, Long> tokenLifetimes = new HashMap<>();
+		Map<String, ProviderConfig> providers = new HashMap<>();
+		Map<String, String> externalConfig = new HashMap<>();
+	}
+}
@@ -0,0 +1,118 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.BsonBinarySubType;
+import org.bson.types.Binary;
+
+/** Converts token hashes, token IDs, and remote identity IDs between the string form and the
+ * more compact BSON binary form in which they may be stored in the database.
+ *
+ * A SHA-256 token hash is stored as 32 bytes rather than a 44 character base64 string, a UUID
+ * as 16 bytes rather than a 36 character string, and an MD5 remote identity ID as 16 bytes
+ * rather than a 32 character hex string.
+ */
+public class BinaryKeys {
+
+	private static final int UUID_LENGTH = 16;
+
+	private BinaryKeys() {}
+
+	/** Convert a base64 encoded token hash to binary form. Hashes that are not valid base64, which
+	 * the server never creates, are returned unchanged.
+	 * @param hash the base64 encoded hash.
+	 * @return the hash in binary form, or the hash if it is not valid base64.
+	 */
+	public static Object compactTokenHash(final String hash) {
+		nonNull(hash, "hash");
+		try {
+			return new Binary(Base64.getDecoder().decode(hash));
+		} catch (IllegalArgumentException e) {
+			return hash;
+		}
+	}
+
+	/** Convert a UUID to binary form.
+	 * @param id the UUID.
+	 * @return the UUID in binary form.
+	 */
+	public static Binary fromUUID(final UUID id) {
+		nonNull(id, "id");
+		return new Binary(BsonBinarySubType.UUID_STANDARD, ByteBuffer.allocate(UUID_LENGTH)
+				.putLong(id.getMostSignificantBits())
+				.putLong(id.getLeastSignificantBits())
+				.array());
+	}
+
+	/** Convert a hex encoded remote identity ID to binary form. IDs that are not hex strings,
+	 * which the server never creates, are returned unchanged.
+	 * @param id the hex encoded ID.
+	 * @return the ID in binary form, or the ID if it is not a hex string.
+	 */
+	public static Object compactIdentityID(final String id) {
+		nonNull(id, "id");
+		if (id.isEmpty() || id.length() % 2 != 0) {
+			return id;
+		}
+		final byte[] b = new byte[id.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			final int hi = Character.digit(id.charAt(i * 2), 16);
+			final int lo = Character.digit(id.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0) {
+				return id;
+			}
+			b[i] = (byte) ((hi << 4) + lo);
+		}
+		return new Binary(BsonBinarySubType.MD5, b);
+	}
+
+	/** Get a UUID stored in either string or binary form.
+	 * @param stored the stored value.
+	 * @return the UUID.
+	 * @throws IllegalArgumentException if the value is not a UUID.
+	 */
+	public static UUID toUUID(final Object stored) {
+		if (stored instanceof String) {
+			return UUID.fromString((String) stored);
+		}
+		if (stored instanceof Binary && ((Binary) stored).length() == UUID_LENGTH) {
+			final ByteBuffer bb = ByteBuffer.wrap(((Binary) stored).getData());
+			return new UUID(bb.getLong(), bb.getLong());
+		}
+		throw new IllegalArgumentException("Illegal UUID: " + stored);
+	}
+
+	/* The methods below return the values that match a key stored in either form, for use in
+	 * $in queries, so that reads work during and after a migration to binary keys.
+	 */
+
+	/** Get the string and binary forms of a token hash.
+	 * @param hash the base64 encoded hash.
+	 * @return the forms of the hash.
+	 */
+	public static List<Object> anyTokenHash(final String hash) {
+		return Arrays.asList(hash, compactTokenHash(hash));
+	}
+
+	/** Get the string and binary forms of a UUID.
+	 * @param id the UUID.
+	 * @return the forms of the UUID.
+	 */
+	public static List<Object> anyUUID(final UUID id) {
+		return Arrays.asList(id.toString(), fromUUID(id));
+	}
+
+	/** Get the string and binary forms of a remote identity ID.
+	 * @param id the remote identity ID.
+	 * @return the forms of the ID.
+	 */
+	public static List<Object> anyIdentityID(final String id) {
+		return Arrays.asList(id, compactIdentityID(id));
+	}
+}
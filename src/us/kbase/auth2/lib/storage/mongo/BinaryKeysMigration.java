@@ -0,0 +1,148 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.UpdateOneModel;
+
+/** Migrations that convert keys stored in string form to binary form. See {@link BinaryKeys}.
+ */
+public class BinaryKeysMigration implements SchemaMigration {
+
+	private static final int BSON_TYPE_STRING = 2;
+
+	private final String name;
+	private final String collection;
+	private final Document query;
+	private final Document projection;
+	private final Function<Document, List<UpdateOneModel<Document>>> converter;
+
+	private BinaryKeysMigration(
+			final String name,
+			final String collection,
+			final Document query,
+			final Document projection,
+			final Function<Document, List<UpdateOneModel<Document>>> converter) {
+		this.name = name;
+		this.collection = collection;
+		this.query = query;
+		this.projection = projection;
+		this.converter = converter;
+	}
+
+	/** Get a migration that converts the IDs and hashes of the tokens in a collection.
+	 * @param name the name of the migration.
+	 * @param collection the collection containing the tokens.
+	 * @param idField the field containing the token UUID.
+	 * @param hashField the field containing the base64 encoded token hash.
+	 * @return the migration.
+	 */
+	public static SchemaMigration forTokens(
+			final String name,
+			final String collection,
+			final String idField,
+			final String hashField) {
+		final Document query = new Document("$or", Arrays.asList(
+				new Document(idField, new Document("$type", BSON_TYPE_STRING)),
+				new Document(hashField, new Document("$type", BSON_TYPE_STRING))));
+		return new BinaryKeysMigration(name, collection, query,
+				new Document(idField, 1).append(hashField, 1),
+				d -> {
+					final Document filter = new Document(Fields.MONGO_ID, d.get(Fields.MONGO_ID));
+					final Document set = new Document();
+					final Object id = d.get(idField);
+					if (id instanceof String) {
+						try {
+							set.append(idField, BinaryKeys.fromUUID(UUID.fromString((String) id)));
+							filter.append(idField, id);
+						} catch (IllegalArgumentException e) {
+							// not a UUID, leave it alone
+						}
+					}
+					final Object hash = d.get(hashField);
+					if (hash instanceof String) {
+						final Object binhash = BinaryKeys.compactTokenHash((String) hash);
+						if (!(binhash instanceof String)) {
+							set.append(hashField, binhash);
+							filter.append(hashField, hash);
+						}
+					}
+					if (set.isEmpty()) {
+						return Collections.emptyList();
+					}
+					return Arrays.asList(
+							new UpdateOneModel<Document>(filter, new Document("$set", set)));
+				});
+	}
+
+	/** Get a migration that converts the remote identity IDs of the users in a collection.
+	 * @param name the name of the migration.
+	 * @param collection the collection containing the users.
+	 * @param identitiesField the field containing the list of remote identities.
+	 * @param idField the field in each remote identity containing the hex encoded ID.
+	 * @return the migration.
+	 */
+	public static SchemaMigration forIdentities(
+			final String name,
+			final String collection,
+			final String identitiesField,
+			final String idField) {
+		final String idPath = identitiesField + Fields.FIELD_SEP + idField;
+		return new BinaryKeysMigration(name, collection,
+				new Document(idPath, new Document("$type", BSON_TYPE_STRING)),
+				new Document(identitiesField, 1),
+				d -> {
+					final List<UpdateOneModel<Document>> updates = new LinkedList<>();
+					@SuppressWarnings("unchecked")
+					final List<Document> idents = (List<Document>) d.get(identitiesField);
+					if (idents == null) {
+						return updates;
+					}
+					for (final Document i: idents) {
+						final Object id = i.get(idField);
+						if (id instanceof String) {
+							final Object binid = BinaryKeys.compactIdentityID((String) id);
+							if (!(binid instanceof String)) {
+								updates.add(new UpdateOneModel<>(
+										new Document(Fields.MONGO_ID, d.get(Fields.MONGO_ID))
+												.append(idPath, id),
+										new Document("$set", new Document(
+												identitiesField + ".$." + idField, binid))));
+							}
+						}
+					}
+					return updates;
+				});
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getCollection() {
+		return collection;
+	}
+
+	@Override
+	public Document getQuery() {
+		return query;
+	}
+
+	@Override
+	public Document getProjection() {
+		return projection;
+	}
+
+	@Override
+	public List<UpdateOneModel<Document>> migrate(final Document document) {
+		return converter.apply(document);
+	}
+}
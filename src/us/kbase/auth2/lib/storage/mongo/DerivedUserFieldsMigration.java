@@ -0,0 +1,90 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.UpdateOneModel;
+
+/** A migration that adds the fields derived from the user name and display name, which are used
+ * for user name suggestions and display name searches, to users created before the fields
+ * existed.
+ *
+ * Until the migration is complete, display name searches match on the canonical display name
+ * rather than the stored prefixes, so users that have not been migrated are still found. Users
+ * that have not been migrated are not considered when finding the largest user name suffix, so
+ * user name suggestions must check whether the suggested name exists.
+ */
+public class DerivedUserFieldsMigration implements SchemaMigration {
+
+	private final String name;
+	private final String collection;
+	private final Function<Document, Document> deriver;
+
+	/** Create the migration.
+	 * @param name the name of the migration.
+	 * @param collection the collection containing the users.
+	 * @param deriver computes the derived fields from a user document containing the user name
+	 * and display name. Returns null if the fields cannot be derived.
+	 */
+	public DerivedUserFieldsMigration(
+			final String name,
+			final String collection,
+			final Function<Document, Document> deriver) {
+		nonNull(name, "name");
+		nonNull(collection, "collection");
+		nonNull(deriver, "deriver");
+		this.name = name;
+		this.collection = collection;
+		this.deriver = deriver;
+	}
+
+	private static Document getQuery(final Document filter) {
+		return filter.append("$or", Arrays.asList(
+				new Document(Fields.USER_NAME_STEM, new Document("$exists", false)),
+				new Document(Fields.USER_DISPLAY_NAME_PREFIXES,
+						new Document("$exists", false))));
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getCollection() {
+		return collection;
+	}
+
+	@Override
+	public Document getQuery() {
+		return getQuery(new Document());
+	}
+
+	@Override
+	public Document getProjection() {
+		return new Document(Fields.USER_NAME, 1).append(Fields.USER_DISPLAY_NAME, 1);
+	}
+
+	@Override
+	public List<UpdateOneModel<Document>> migrate(final Document document) {
+		if (document.containsKey(Fields.USER_NAME_STEM) &&
+				document.containsKey(Fields.USER_DISPLAY_NAME_PREFIXES)) {
+			return Collections.emptyList();
+		}
+		final Document set = deriver.apply(document);
+		if (set == null) {
+			return Collections.emptyList();
+		}
+		// don't overwrite the fields if the display name was changed since the document was read
+		final Document filter = getQuery(new Document(Fields.MONGO_ID,
+				document.get(Fields.MONGO_ID))
+				.append(Fields.USER_DISPLAY_NAME, document.get(Fields.USER_DISPLAY_NAME)));
+		return Arrays.asList(new UpdateOneModel<Document>(filter, new Document("$set", set)));
+	}
+}
@@ -0,0 +1,161 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+
+/** A bounded cache of display names for enabled users. Users that do not exist or are disabled
+ * are cached as absent, so repeated lookups of such users also avoid the storage system.
+ *
+ * Entries expire after a fixed time, which bounds how long changes made by other processes
+ * sharing the storage system, for example other servers, may go unnoticed. Changes made by
+ * this process should be followed by a call to {@link #invalidate(UserName)}.
+ *
+ * Cache statistics are logged at most every five minutes when the cache is in use.
+ */
+public class DisplayNameCache {
+
+	/** Loads display names from the storage system. */
+	public interface Loader {
+
+		/** Load display names.
+		 * @param userNames the users for which to load display names.
+		 * @return the display names of the users that exist and are enabled.
+		 * @throws AuthStorageException if an error occurred accessing the storage system.
+		 */
+		Map<UserName, DisplayName> load(Set<UserName> userNames) throws AuthStorageException;
+	}
+
+	private static final long STATS_LOG_INTERVAL_MS = 5 * 60 * 1000;
+
+	private final Cache<UserName, Optional<DisplayName>> cache;
+	// incremented on every invalidation so loads that race with an invalidation aren't cached
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong nextStatsLog = new AtomicLong(
+			System.currentTimeMillis() + STATS_LOG_INTERVAL_MS);
+
+	/** Create a cache.
+	 * @param maximumSize the maximum number of users to cache.
+	 * @param expireAfterMS the time, in milliseconds, after which a cache entry expires.
+	 */
+	public DisplayNameCache(final long maximumSize, final long expireAfterMS) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be at least 1");
+		}
+		if (expireAfterMS < 1) {
+			throw new IllegalArgumentException("expireAfterMS must be at least 1");
+		}
+		cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterMS, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+	}
+
+	/** Get display names for a set of users. Only the users that are not in the cache are
+	 * requested from the loader.
+	 * @param userNames the users for which to get display names.
+	 * @param loader the loader for users that are not in the cache.
+	 * @return the display names of the users that exist and are enabled.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 */
+	public Map<UserName, DisplayName> get(final Set<UserName> userNames, final Loader loader)
+			throws AuthStorageException {
+		nonNull(userNames, "userNames");
+		nonNull(loader, "loader");
+		logStats();
+		final Map<UserName, DisplayName> ret = new HashMap<>();
+		final Set<UserName> misses = new HashSet<>();
+		for (final UserName u: userNames) {
+			final Optional<DisplayName> dn = cache.getIfPresent(u);
+			if (dn == null) {
+				misses.add(u);
+			} else if (dn.isPresent()) {
+				ret.put(u, dn.get());
+			}
+		}
+		if (misses.isEmpty()) {
+			return ret;
+		}
+		final long gen = invalidations.get();
+		final Map<UserName, DisplayName> loaded = loader.load(misses);
+		ret.putAll(loaded);
+		for (final UserName u: misses) {
+			cache.put(u, Optional.fromNullable(loaded.get(u)));
+		}
+		// a user may have changed while loading, in which case the loaded data may be stale
+		if (gen != invalidations.get()) {
+			cache.invalidateAll(misses);
+		}
+		return ret;
+	}
+
+	private void logStats() {
+		final long now = System.currentTimeMillis();
+		final long next = nextStatsLog.get();
+		// only one thread logs per interval
+		if (now >= next && nextStatsLog.compareAndSet(next, now + STATS_LOG_INTERVAL_MS)) {
+			LoggerFactory.getLogger(getClass()).info(getStatsSummary());
+		}
+	}
+
+	/** Get a summary of the cache statistics, suitable for logging.
+	 * @return the statistics summary.
+	 */
+	public String getStatsSummary() {
+		return String.format("Display name cache size: %s, hits: %s, misses: %s, hit rate: %.3f",
+				size(), getHitCount(), getMissCount(), getHitRate());
+	}
+
+	/** Remove a user from the cache.
+	 * @param userName the user to remove.
+	 */
+	public void invalidate(final UserName userName) {
+		nonNull(userName, "userName");
+		invalidations.incrementAndGet();
+		cache.invalidate(userName);
+	}
+
+	/** Get the approximate number of users in the cache, including absent users.
+	 * @return the number of users.
+	 */
+	public long size() {
+		return cache.size();
+	}
+
+	/** Get the number of lookups of a single user that were served from the cache.
+	 * @return the number of hits.
+	 */
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+
+	/** Get the number of lookups of a single user that required a request to the storage system.
+	 * @return the number of misses.
+	 */
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+
+	/** Get the ratio of cache hits to lookups.
+	 * @return the hit rate, or 1 if no lookups have been made.
+	 */
+	public double getHitRate() {
+		return cache.stats().hitRate();
+	}
+}
@@ -20,11 +20,20 @@ public class Fields {
 	
 	/** The user name. */
 	public static final String USER_NAME = "user";
+	/** The user name with any trailing digits removed. */
+	public static final String USER_NAME_STEM = "userstem";
+	/** The trailing digits of the user name as a number. Null if the user name has no trailing
+	 * digits or the digits are too large to store as a 64 bit integer.
+	 */
+	public static final String USER_NAME_SUFFIX = "usersuf";
 	/** The display name for the user. */
 	public static final String USER_DISPLAY_NAME = "display";
 	/** The canonical version of the display name. E.g. split into parts, whitespace removed, etc.
 	 */
 	public static final String USER_DISPLAY_NAME_CANONICAL = "dispcan";
+	/** The prefixes of the tokens of the canonical display name, for exact match prefix searches.
+	 */
+	public static final String USER_DISPLAY_NAME_PREFIXES = "dispprefix";
 	/** The user's email address. */
 	public static final String USER_EMAIL = "email";
 	/** The user's remote identities. */
@@ -130,6 +139,32 @@ public class Fields {
 	/** A value for a custom context key / value pair. */
 	public static final String TOKEN_CUSTOM_VALUE = "v";
 	
+	/* **********************
+	 * revoked token fields
+	 * **********************
+	 */
+	
+	/** The ID of the revoked token. */
+	public static final String TOKEN_REVOKED_ID = "id";
+	/** The date the token was revoked. */
+	public static final String TOKEN_REVOKED_DATE = "revoked";
+	/** The date the revoked token expires. */
+	public static final String TOKEN_REVOKED_EXPIRY = "expires";
+	
+	/* ****************************
+	 * token signing key fields
+	 * ****************************
+	 */
+	
+	/** The ID of the token signing key. */
+	public static final String SIGNING_KEY_ID = "kid";
+	/** The date the token signing key was created. */
+	public static final String SIGNING_KEY_CREATION = "create";
+	/** The encoded public key. */
+	public static final String SIGNING_KEY_PUBLIC = "pub";
+	/** The encrypted private key. */
+	public static final String SIGNING_KEY_PRIVATE = "priv";
+	
 	/* ************************
 	 * temporary token fields
 	 * ************************
@@ -156,6 +191,16 @@ public class Fields {
 	/** The description of the custom role. */
 	public static final String ROLES_DESC = "desc";
 	
+	/* *****************************
+	 * deleted custom roles fields
+	 * *****************************
+	 */
+	
+	/** The date the custom role was deleted. The document ID is the object ID of the deleted
+	 * role.
+	 */
+	public static final String ROLES_DELETED_DATE = "deleted";
+	
 	/* ***********************
 	 * database schema fields
 	 * ***********************
@@ -173,6 +218,32 @@ public class Fields {
 	public static final String DB_SCHEMA_UPDATE = "inupdate";
 	/** The version of the database schema. */
 	public static final String DB_SCHEMA_VERSION = "schemaver";
+	/** Whether token hashes, token IDs, and remote identity IDs are written to the database in
+	 * binary form.
+	 */
+	public static final String DB_SCHEMA_BINARY_KEYS = "binarykeys";
+	/** The progress of online data migrations, keyed by migration name. */
+	public static final String DB_SCHEMA_MIGRATIONS = "migrations";
+	
+	/* ***********************
+	 * data migration fields
+	 * ***********************
+	 */
+	
+	/** The state of the migration. */
+	public static final String MIGRATION_STATE = "state";
+	/** The ID of the last document processed by the migration. */
+	public static final String MIGRATION_LAST_ID = "lastid";
+	/** The number of documents updated by the migration. */
+	public static final String MIGRATION_COUNT = "count";
+	/** The date the migration was started. */
+	public static final String MIGRATION_STARTED = "started";
+	/** The date the migration progress was last updated. */
+	public static final String MIGRATION_UPDATED = "updated";
+	/** The ID of the storage instance currently running the migration. */
+	public static final String MIGRATION_OWNER = "owner";
+	/** The date the current owner's claim on the migration expires. */
+	public static final String MIGRATION_LEASE_EXPIRY = "leaseexp";
 
 	/* *********************
 	 * configuration fields
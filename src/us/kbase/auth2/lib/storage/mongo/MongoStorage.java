@@ -15,12 +15,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,15 +33,18 @@ import java.util.stream.Collectors;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
 import com.mongodb.ErrorCategory;
 import com.mongodb.MongoException;
 import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.UpdateOneModel;
@@ -90,6 +98,8 @@ import us.kbase.auth2.lib.token.IncomingHashedToken;
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.token.TemporaryHashedToken;
 import us.kbase.auth2.lib.token.TokenName;
+import us.kbase.auth2.lib.token.SigningKeyEncryptor;
+import us.kbase.auth2.lib.token.TokenSigningKey;
 import us.kbase.auth2.lib.token.TokenType;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.auth2.lib.user.LocalUser;
@@ -127,7 +137,10 @@ public class MongoStorage implements AuthStorage {
 	private static final String COL_USERS = "users";
 	private static final String COL_TOKEN = "tokens";
 	private static final String COL_TEMP_TOKEN = "temptokens";
+	private static final String COL_TOKEN_REVOKED = "tokens_revoked";
+	private static final String COL_TOKEN_SIGNING_KEYS = "token_keys";
 	private static final String COL_CUST_ROLES = "cust_roles";
+	private static final String COL_CUST_ROLES_DELETED = "cust_roles_deleted";
 	
 	private static final Map<TokenLifetimeType, String>
 			TOKEN_LIFETIME_FIELD_MAP;
@@ -159,6 +172,10 @@ public class MongoStorage implements AuthStorage {
 				Fields.IDENTITIES_ID), IDX_UNIQ_SPARSE);
 		//find users by display name
 		users.put(Arrays.asList(Fields.USER_DISPLAY_NAME_CANONICAL), null);
+		//find users by short display name prefixes
+		users.put(Arrays.asList(Fields.USER_DISPLAY_NAME_PREFIXES), null);
+		//find the largest numeric suffix for a user name stem
+		users.put(Arrays.asList(Fields.USER_NAME_STEM, Fields.USER_NAME_SUFFIX), null);
 		//find users by roles
 		users.put(Arrays.asList(Fields.USER_ROLES), IDX_SPARSE);
 		//find users by custom roles
@@ -170,9 +187,16 @@ public class MongoStorage implements AuthStorage {
 		roles.put(Arrays.asList(Fields.ROLES_ID), IDX_UNIQ);
 		INDEXES.put(COL_CUST_ROLES, roles);
 		
+		//deleted custom roles indexes
+		final Map<List<String>, IndexOptions> delroles = new HashMap<>();
+		//process deleted roles in order
+		delroles.put(Arrays.asList(Fields.ROLES_DELETED_DATE), null);
+		INDEXES.put(COL_CUST_ROLES_DELETED, delroles);
+		
 		//token indexes
 		final Map<List<String>, IndexOptions> token = new HashMap<>();
-		token.put(Arrays.asList(Fields.TOKEN_USER_NAME), null);
+		//find a user's unexpired tokens
+		token.put(Arrays.asList(Fields.TOKEN_USER_NAME, Fields.TOKEN_EXPIRY), null);
 		token.put(Arrays.asList(Fields.TOKEN_TOKEN), IDX_UNIQ);
 		token.put(Arrays.asList(Fields.TOKEN_ID), IDX_UNIQ);
 		token.put(Arrays.asList(Fields.TOKEN_EXPIRY),
@@ -183,6 +207,21 @@ public class MongoStorage implements AuthStorage {
 				new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
 		INDEXES.put(COL_TOKEN, token);
 		
+		//revoked token indexes
+		final Map<List<String>, IndexOptions> revoked = new HashMap<>();
+		revoked.put(Arrays.asList(Fields.TOKEN_REVOKED_ID), IDX_UNIQ);
+		//find recent revocations
+		revoked.put(Arrays.asList(Fields.TOKEN_REVOKED_DATE), null);
+		// revocations are no longer needed after the token would have expired
+		revoked.put(Arrays.asList(Fields.TOKEN_REVOKED_EXPIRY),
+				new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+		INDEXES.put(COL_TOKEN_REVOKED, revoked);
+		
+		//token signing key indexes
+		final Map<List<String>, IndexOptions> keys = new HashMap<>();
+		keys.put(Arrays.asList(Fields.SIGNING_KEY_ID), IDX_UNIQ);
+		INDEXES.put(COL_TOKEN_SIGNING_KEYS, keys);
+		
 		//temporary token indexes
 		final Map<List<String>, IndexOptions> temptoken = new HashMap<>();
 		temptoken.put(Arrays.asList(Fields.TOKEN_TEMP_TOKEN), IDX_UNIQ);
@@ -219,26 +258,285 @@ public class MongoStorage implements AuthStorage {
 		INDEXES.put(COL_CONFIG_EXTERNAL, extcfg);
 	}
 	
+	/* indexes that have been replaced and are dropped at startup if they exist. Mongo would
+	 * otherwise keep updating them on every write.
+	 */
+	private static final Map<String, List<List<String>>> OBSOLETE_INDEXES = new HashMap<>();
+	static {
+		// replaced by the user / expires index
+		OBSOLETE_INDEXES.put(COL_TOKEN, Arrays.asList(Arrays.asList(Fields.TOKEN_USER_NAME)));
+	}
+	
+	private static final int WRITE_BEHIND_BATCH_SIZE = 1000;
+	private static final int REVOKED_TOKEN_BATCH_SIZE = 1000;
+	private static final long IDENTITY_UPDATE_INTERVAL_MS = 1000;
+	private static final int CUSTOM_ROLE_GC_BATCH_SIZE = 500;
+	private static final long CUSTOM_ROLE_GC_BATCH_DELAY_MS = 200;
+	private static final int EXPIRED_TOKEN_SWEEP_BATCH_SIZE = 1000;
+	private static final long EXPIRED_TOKEN_SWEEP_BATCH_DELAY_MS = 100;
+	private static final int MIGRATION_BATCH_SIZE = 1000;
+	private static final long MIGRATION_BATCH_DELAY_MS = 100;
+	
+	private static final String MIGRATION_BINARY_KEYS_TOKENS = "binarykeys-tokens";
+	private static final String MIGRATION_BINARY_KEYS_TEMP_TOKENS = "binarykeys-temptokens";
+	private static final String MIGRATION_BINARY_KEYS_USERS = "binarykeys-users";
+	private static final String MIGRATION_DERIVED_USER_FIELDS = "derived-user-fields";
+	
+	private static final List<SchemaMigration> MIGRATIONS = Arrays.asList(
+			BinaryKeysMigration.forTokens(MIGRATION_BINARY_KEYS_TOKENS, COL_TOKEN,
+					Fields.TOKEN_ID, Fields.TOKEN_TOKEN),
+			BinaryKeysMigration.forTokens(MIGRATION_BINARY_KEYS_TEMP_TOKENS, COL_TEMP_TOKEN,
+					Fields.TOKEN_TEMP_ID, Fields.TOKEN_TEMP_TOKEN),
+			BinaryKeysMigration.forIdentities(MIGRATION_BINARY_KEYS_USERS, COL_USERS,
+					Fields.USER_IDENTITIES, Fields.IDENTITIES_ID),
+			new DerivedUserFieldsMigration(MIGRATION_DERIVED_USER_FIELDS, COL_USERS,
+					MongoStorage::getDerivedUserFields));
+	
 	private final MongoDatabase db;
 	private final Clock clock;
+	private final ReadPreference nonCriticalReadPreference;
+	private final Optional<SigningKeyEncryptor> signingKeyEncryptor;
+	private final boolean revokedTokenRecords;
+	private final Optional<WriteBehindQueue<String, RemoteIdentity>> identityUpdates;
+	private final Optional<WriteBehindQueue<UserName, Instant>> lastLoginUpdates;
+	private final Optional<UserPrefixIndex> userIndex;
+	private final Optional<ScheduledExecutorService> userIndexReloader;
+	private final Optional<DisplayNameCache> displayNameCache;
+	private final Optional<ScheduledExecutorService> customRoleCollector;
+	// prevents concurrent collections from processing the same batches
+	private final Object customRoleCollectionLock = new Object();
+	private final Optional<ScheduledExecutorService> expiredTokenSweeper;
+	private final SchemaMigrator migrator;
+	private final Optional<ScheduledExecutorService> migrationRunner;
+	// whether keys are written in binary form. Reads always accept either form.
+	private volatile boolean binaryKeys = false;
 	
-	/** Create a new MongoDB authentication storage system.
+	/** Create a new MongoDB authentication storage system with the default options. See
+	 * {@link #getBuilder(MongoDatabase)} for optional features.
 	 * @param db the MongoDB database to use for storage.
 	 * @throws StorageInitException if the storage system could not be initialized.
 	 */
 	public MongoStorage(final MongoDatabase db) throws StorageInitException {
-		this(db, Clock.systemDefaultZone()); //don't use timezone
+		//don't use timezone
+		this(getBuilder(db), Clock.systemDefaultZone());
 	}
 	
 	// this should only be used for tests
-	private MongoStorage(final MongoDatabase db, final Clock clock) throws StorageInitException {
-		nonNull(db, "db");
-		this.db = db;
+	private MongoStorage(final Builder b, final Clock clock) throws StorageInitException {
+		if (b.displayNameCacheSize > 0) {
+			// throws IllegalArgumentException for bad expiration times
+			displayNameCache = Optional.of(
+					new DisplayNameCache(b.displayNameCacheSize, b.displayNameCacheExpireMS));
+		} else {
+			displayNameCache = Optional.absent();
+		}
+		this.db = b.db;
 		this.clock = clock;
+		this.nonCriticalReadPreference = b.nonCriticalReadPreference;
+		this.signingKeyEncryptor = b.signingKeyEncryptor;
+		this.revokedTokenRecords = b.revokedTokenRecords;
 		
-		//TODO MISC port over schemamanager from UJS (will need changes for schema key & mdb ver)
+		dropObsoleteIndexes();
 		ensureIndexes(); // MUST come before checkConfig();
 		checkConfig();
+		try {
+			migrator = new SchemaMigrator(db, COL_CONFIG,
+					new Document(Fields.DB_SCHEMA_KEY, Fields.DB_SCHEMA_VALUE),
+					MIGRATIONS, MIGRATION_BATCH_SIZE, MIGRATION_BATCH_DELAY_MS, clock);
+			// users created before the derived fields existed are updated in the background
+			if (SchemaMigrator.State.NOT_STARTED.equals(
+					migrator.getState(MIGRATION_DERIVED_USER_FIELDS))) {
+				migrator.start(MIGRATION_DERIVED_USER_FIELDS);
+			}
+		} catch (AuthStorageException e) {
+			throw new StorageInitException(
+					"There was a problem communicating with the database: " + e.getMessage(), e);
+		}
+		if (b.deferIdentityUpdates) {
+			identityUpdates = Optional.of(new WriteBehindQueue<>("identity-updates",
+					batch -> updateIdentities(new LinkedList<>(batch.values())),
+					WRITE_BEHIND_BATCH_SIZE, IDENTITY_UPDATE_INTERVAL_MS));
+		} else {
+			identityUpdates = Optional.absent();
+		}
+		if (b.lastLoginWriteBehindMS > 0) {
+			lastLoginUpdates = Optional.of(new WriteBehindQueue<>("last-login-updates",
+					batch -> updateLastLogins(batch),
+					(older, newer) -> newer.isAfter(older) ? newer : older,
+					WRITE_BEHIND_BATCH_SIZE, b.lastLoginWriteBehindMS));
+		} else {
+			lastLoginUpdates = Optional.absent();
+		}
+		if (b.userSearchIndexReloadMS > 0) {
+			final UserPrefixIndex index = new UserPrefixIndex();
+			try {
+				loadUserIndex(index);
+			} catch (AuthStorageException e) {
+				throw new StorageInitException(
+						"Failed to load user search index: " + e.getMessage(), e);
+			}
+			userIndex = Optional.of(index);
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "user-search-index-reload");
+				t.setDaemon(true);
+				return t;
+			});
+			ex.scheduleWithFixedDelay(() -> {
+				try {
+					loadUserIndex(index);
+				} catch (AuthStorageException | RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Reloading user search index failed: " + e.getMessage(), e);
+				}
+			}, b.userSearchIndexReloadMS, b.userSearchIndexReloadMS, TimeUnit.MILLISECONDS);
+			userIndexReloader = Optional.of(ex);
+		} else {
+			userIndex = Optional.absent();
+			userIndexReloader = Optional.absent();
+		}
+		if (b.customRoleCollectionMS > 0) {
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "custom-role-gc");
+				t.setDaemon(true);
+				return t;
+			});
+			// also picks up roles deleted by other instances or before a restart
+			ex.scheduleWithFixedDelay(this::collectDeletedCustomRolesAndLog,
+					b.customRoleCollectionMS, b.customRoleCollectionMS, TimeUnit.MILLISECONDS);
+			customRoleCollector = Optional.of(ex);
+		} else {
+			customRoleCollector = Optional.absent();
+		}
+		if (b.expiredTokenSweepMS > 0) {
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "expired-token-sweep");
+				t.setDaemon(true);
+				return t;
+			});
+			ex.scheduleWithFixedDelay(() -> {
+				try {
+					sweepExpiredTokens();
+				} catch (AuthStorageException | RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Deleting expired tokens failed: " + e.getMessage(), e);
+				}
+			}, b.expiredTokenSweepMS, b.expiredTokenSweepMS, TimeUnit.MILLISECONDS);
+			expiredTokenSweeper = Optional.of(ex);
+		} else {
+			expiredTokenSweeper = Optional.absent();
+		}
+		if (b.schemaMigrationMS > 0) {
+			final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "schema-migration");
+				t.setDaemon(true);
+				return t;
+			});
+			// picks up migrations started by other instances or interrupted by a shutdown
+			ex.scheduleWithFixedDelay(() -> {
+				try {
+					runMigrations();
+				} catch (AuthStorageException | RuntimeException e) {
+					LoggerFactory.getLogger(getClass()).error(
+							"Running schema migrations failed: " + e.getMessage(), e);
+				}
+			}, b.schemaMigrationMS, b.schemaMigrationMS, TimeUnit.MILLISECONDS);
+			migrationRunner = Optional.of(ex);
+		} else {
+			migrationRunner = Optional.absent();
+		}
+	}
+	
+	/** Get a builder for a MongoDB authentication storage system.
+	 * @param db the MongoDB database to use for storage.
+	 * @return a new builder.
+	 */
+	public static Builder getBuilder(final MongoDatabase db) {
+		return new Builder(db);
+	}
+	
+	// users are never deleted, so reloading only needs to add or replace users in the index
+	private void loadUserIndex(final UserPrefixIndex index) throws AuthStorageException {
+		final Document projection = new Document(Fields.USER_NAME, 1)
+				.append(Fields.USER_DISPLAY_NAME, 1)
+				.append(Fields.USER_DISABLED_REASON, 1);
+		try {
+			for (final Document d: getNonCriticalCollection(COL_USERS).find()
+					.projection(projection)) {
+				indexUser(index, d);
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+	}
+	
+	private void indexUser(final UserPrefixIndex index, final Document user)
+			throws AuthStorageException {
+		index.put(getTrustedUserName(user.getString(Fields.USER_NAME)),
+				getTrustedDisplayName(user.getString(Fields.USER_DISPLAY_NAME)),
+				user.get(Fields.USER_DISABLED_REASON) != null);
+	}
+	
+	private void reindexUser(final UserName userName) throws AuthStorageException {
+		if (displayNameCache.isPresent()) {
+			displayNameCache.get().invalidate(userName);
+		}
+		if (userIndex.isPresent()) {
+			final Document projection = new Document(Fields.USER_NAME, 1)
+					.append(Fields.USER_DISPLAY_NAME, 1)
+					.append(Fields.USER_DISABLED_REASON, 1);
+			final Document user = findOne(COL_USERS,
+					new Document(Fields.USER_NAME, userName.getName()), projection);
+			if (user != null) {
+				indexUser(userIndex.get(), user);
+			}
+		}
+	}
+	
+	/** Write any pending deferred updates to the database and stop any background threads. The
+	 * storage system remains usable after closing, but updates will no longer be deferred.
+	 * @throws InterruptedException if the thread is interrupted while waiting for background
+	 * threads to stop.
+	 */
+	public void close() throws InterruptedException {
+		if (identityUpdates.isPresent()) {
+			identityUpdates.get().close();
+		}
+		if (lastLoginUpdates.isPresent()) {
+			lastLoginUpdates.get().close();
+		}
+		if (userIndexReloader.isPresent()) {
+			userIndexReloader.get().shutdownNow();
+		}
+		if (customRoleCollector.isPresent()) {
+			customRoleCollector.get().shutdownNow();
+		}
+		if (expiredTokenSweeper.isPresent()) {
+			expiredTokenSweeper.get().shutdownNow();
+		}
+		if (migrationRunner.isPresent()) {
+			migrationRunner.get().shutdownNow();
+		}
+		migrator.close();
+	}
+	
+	/** Get the display name cache, if enabled, in order to retrieve cache statistics. The
+	 * statistics are also logged periodically by the cache.
+	 * @return the display name cache.
+	 */
+	public Optional<DisplayNameCache> getDisplayNameCache() {
+		return displayNameCache;
+	}
+	
+	// for reads that may be out of date, which may then be served by replica set secondaries
+	private MongoCollection<Document> getNonCriticalCollection(final String collection) {
+		return db.getCollection(collection).withReadPreference(nonCriticalReadPreference);
+	}
+	
+	/** Get the schema migrator, in order to check the state of data migrations.
+	 * @return the schema migrator.
+	 */
+	public SchemaMigrator getSchemaMigrator() {
+		return migrator;
 	}
 	
 	private void checkConfig() throws StorageInitException  {
@@ -246,6 +544,7 @@ public class MongoStorage implements AuthStorage {
 		final Document cfg = new Document(Fields.DB_SCHEMA_KEY, Fields.DB_SCHEMA_VALUE);
 		cfg.put(Fields.DB_SCHEMA_UPDATE, false);
 		cfg.put(Fields.DB_SCHEMA_VERSION, SCHEMA_VERSION);
+		cfg.put(Fields.DB_SCHEMA_BINARY_KEYS, false);
 		try {
 			col.insertOne(cfg);
 		} catch (MongoWriteException dk) {
@@ -276,12 +575,71 @@ public class MongoStorage implements AuthStorage {
 								"v%s of the schema. Aborting startup.", 
 								doc.get(Fields.DB_SCHEMA_VERSION)));
 			}
+			// databases created before binary keys were supported have no binary keys field
+			binaryKeys = Boolean.TRUE.equals(doc.get(Fields.DB_SCHEMA_BINARY_KEYS));
 		} catch (MongoException me) {
 			throw new StorageInitException(
 					"There was a problem communicating with the database: " + me.getMessage(), me);
 		}
 	}
 
+	private static final Pattern USER_NAME_SUFFIX = Pattern.compile("^(.*?)(\\d*)$");
+	// long max is 19 digits, so 18 digits always fit
+	private static final int MAX_SUFFIX_DIGITS = 18;
+	
+	// splits a user name into a stem and optional numeric suffix for user name suggestions
+	private static Document getUserNameParts(final String userName) {
+		final Matcher m = USER_NAME_SUFFIX.matcher(userName);
+		m.matches(); // always matches
+		final String digits = m.group(2);
+		final Long suffix = digits.isEmpty() || digits.length() > MAX_SUFFIX_DIGITS ?
+				null : Long.parseLong(digits);
+		return new Document(Fields.USER_NAME_STEM, m.group(1))
+				.append(Fields.USER_NAME_SUFFIX, suffix);
+	}
+	
+	private static Document getDisplayNameFields(final DisplayName displayName) {
+		return new Document(Fields.USER_DISPLAY_NAME, displayName.getName())
+				.append(Fields.USER_DISPLAY_NAME_CANONICAL, displayName.getCanonicalDisplayName())
+				.append(Fields.USER_DISPLAY_NAME_PREFIXES, displayName.getSearchPrefixes());
+	}
+	
+	/* gets the user name stem and suffix and the display name prefixes for users created before
+	 * the fields existed, or null if the user document is incomplete or invalid
+	 */
+	private static Document getDerivedUserFields(final Document user) {
+		final String name = user.getString(Fields.USER_NAME);
+		final String displayName = user.getString(Fields.USER_DISPLAY_NAME);
+		if (name == null || displayName == null) {
+			return null;
+		}
+		final Document fields = getUserNameParts(name);
+		try {
+			fields.putAll(getDisplayNameFields(DisplayName.fromTrustedSource(displayName)));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		return fields;
+	}
+	
+	private void dropObsoleteIndexes() throws StorageInitException {
+		for (final String col: OBSOLETE_INDEXES.keySet()) {
+			final MongoCollection<Document> dbcol = db.getCollection(col);
+			try {
+				for (final Document index: dbcol.listIndexes()) {
+					// compare fields only, indexes created in the shell have double directions
+					final List<String> fields = new LinkedList<>(
+							((Document) index.get("key")).keySet());
+					if (OBSOLETE_INDEXES.get(col).contains(fields)) {
+						dbcol.dropIndex(index.getString("name"));
+					}
+				}
+			} catch (MongoException me) {
+				throw new StorageInitException("Failed to drop index: " + me.getMessage(), me);
+			}
+		}
+	}
+	
 	private void ensureIndexes() throws StorageInitException {
 		for (String col: INDEXES.keySet()) {
 			for (List<String> idx: INDEXES.get(col).keySet()) {
@@ -326,6 +684,8 @@ public class MongoStorage implements AuthStorage {
 				.append(Fields.USER_DISPLAY_NAME, local.getDisplayName().getName())
 				.append(Fields.USER_DISPLAY_NAME_CANONICAL, local.getDisplayName()
 						.getCanonicalDisplayName())
+				.append(Fields.USER_DISPLAY_NAME_PREFIXES, local.getDisplayName()
+						.getSearchPrefixes())
 				.append(Fields.USER_ROLES, roles)
 				.append(Fields.USER_CUSTOM_ROLES, customRoles)
 				.append(Fields.USER_IDENTITIES, local.getIdentities()) // better be empty
@@ -342,6 +702,7 @@ public class MongoStorage implements AuthStorage {
 						Date.from(reset.get()) : null)
 				.append(Fields.USER_PWD_HSH, encpwdhsh)
 				.append(Fields.USER_SALT, encsalt);
+		u.putAll(getUserNameParts(local.getUserName().getName()));
 		try {
 			db.getCollection(COL_USERS).insertOne(u);
 		} catch (MongoWriteException mwe) {
@@ -353,6 +714,12 @@ public class MongoStorage implements AuthStorage {
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
+		if (displayNameCache.isPresent()) {
+			displayNameCache.get().invalidate(local.getUserName());
+		}
+		if (userIndex.isPresent()) {
+			userIndex.get().put(local.getUserName(), local.getDisplayName(), local.isDisabled());
+		}
 	}
 	
 	@Override
@@ -412,12 +779,28 @@ public class MongoStorage implements AuthStorage {
 
 	private void addCustomRoles(final AuthUser.AbstractBuilder<?> b, final Document user)
 			throws AuthStorageException {
-		final UserName userName = getUserName(user.getString(Fields.USER_NAME));
+		addCustomRoles(b, user, getCustomRoleIDToName(getCustomRoleIDs(user)));
+	}
+	
+	/* roleNames maps custom role object IDs to role IDs, and must contain all the extant roles
+	 * possessed by the user. Any roles not in the map are assumed to have been deleted and are
+	 * ignored - they're removed from the user by the custom role collector.
+	 */
+	private void addCustomRoles(
+			final AuthUser.AbstractBuilder<?> b,
+			final Document user,
+			final Map<ObjectId, String> roleNames) {
+		for (final ObjectId role: getCustomRoleIDs(user)) {
+			if (roleNames.containsKey(role)) {
+				b.withCustomRole(roleNames.get(role));
+			}
+		}
+	}
+	
+	private Set<ObjectId> getCustomRoleIDs(final Document user) {
 		@SuppressWarnings("unchecked")
 		final List<ObjectId> custroles = (List<ObjectId>) user.get(Fields.USER_CUSTOM_ROLES);
-		for (final String cr: getCustomRoles(userName, new HashSet<>(custroles))) {
-			b.withCustomRole(cr);
-		}
+		return new HashSet<>(custroles);
 	}
 	
 	private void addPolicyIDs(final AuthUser.AbstractBuilder<?> b, final Document user)
@@ -469,6 +852,26 @@ public class MongoStorage implements AuthStorage {
 		}
 	}
 	
+	/* names in bulk listings were checked before they were stored, so skip the full checks.
+	 * Single record reads still use the full checks.
+	 */
+	private UserName getTrustedUserName(final String namestr) throws AuthStorageException {
+		try {
+			return UserName.fromTrustedSource(namestr);
+		} catch (IllegalArgumentException e) {
+			throw new AuthStorageException("Illegal value stored in db: " + e.getMessage(), e);
+		}
+	}
+	
+	private DisplayName getTrustedDisplayName(final String displayName)
+			throws AuthStorageException {
+		try {
+			return DisplayName.fromTrustedSource(displayName);
+		} catch (IllegalArgumentException e) {
+			throw new AuthStorageException("Illegal value stored in db: " + e.getMessage(), e);
+		}
+	}
+	
 	private DisplayName getDisplayName(final String displayName) throws AuthStorageException {
 		try {
 			return new DisplayName(displayName);
@@ -563,6 +966,8 @@ public class MongoStorage implements AuthStorage {
 				.append(Fields.USER_DISPLAY_NAME, newUser.getDisplayName().getName())
 				.append(Fields.USER_DISPLAY_NAME_CANONICAL, newUser.getDisplayName()
 						.getCanonicalDisplayName())
+				.append(Fields.USER_DISPLAY_NAME_PREFIXES, newUser.getDisplayName()
+						.getSearchPrefixes())
 				.append(Fields.USER_ROLES, roles)
 				.append(Fields.USER_CUSTOM_ROLES, customRoles)
 				.append(Fields.USER_IDENTITIES, Arrays.asList(toDocument(newUser.getIdentity())))
@@ -574,6 +979,7 @@ public class MongoStorage implements AuthStorage {
 						admin.isPresent() ? admin.get().getName() : null)
 				.append(Fields.USER_DISABLED_DATE, time.isPresent() ? Date.from(time.get()) : null)
 				.append(Fields.USER_DISABLED_REASON, reason.isPresent() ? reason.get() : null);
+		u.putAll(getUserNameParts(newUser.getUserName().getName()));
 		try {
 			db.getCollection(COL_USERS).insertOne(u);
 		} catch (MongoWriteException mwe) {
@@ -593,6 +999,13 @@ public class MongoStorage implements AuthStorage {
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
+		if (displayNameCache.isPresent()) {
+			displayNameCache.get().invalidate(newUser.getUserName());
+		}
+		if (userIndex.isPresent()) {
+			userIndex.get().put(
+					newUser.getUserName(), newUser.getDisplayName(), newUser.isDisabled());
+		}
 	}
 
 	private List<Document> toDocument(final Map<PolicyID, Instant> policyIDs) {
@@ -635,6 +1048,7 @@ public class MongoStorage implements AuthStorage {
 				.append(Fields.USER_DISABLED_ADMIN, admin.getName())
 				.append(Fields.USER_DISABLED_DATE, Date.from(clock.instant()));
 		updateUser(user, update);
+		reindexUser(user);
 	}
 	
 	@Override
@@ -653,10 +1067,10 @@ public class MongoStorage implements AuthStorage {
 		final Document td = new Document(
 				Fields.TOKEN_TYPE, token.getTokenType().getID())
 				.append(Fields.TOKEN_USER_NAME, token.getUserName().getName())
-				.append(Fields.TOKEN_ID, token.getId().toString())
+				.append(Fields.TOKEN_ID, toStoredUUID(token.getId()))
 				.append(Fields.TOKEN_NAME, tokenName.isPresent() ?
 						tokenName.get().getName() : null)
-				.append(Fields.TOKEN_TOKEN, hash)
+				.append(Fields.TOKEN_TOKEN, toStoredTokenHash(hash))
 				.append(Fields.TOKEN_EXPIRY, Date.from(token.getExpirationDate()))
 				.append(Fields.TOKEN_CREATION, Date.from(token.getCreationDate()))
 				.append(Fields.TOKEN_AGENT, ctx.getAgent().isPresent() ?
@@ -731,12 +1145,12 @@ public class MongoStorage implements AuthStorage {
 	public StoredToken getToken(final IncomingHashedToken token)
 			throws AuthStorageException, NoSuchTokenException {
 		nonNull(token, "token");
-		final Document t = findOne(COL_TOKEN,
-				new Document(Fields.TOKEN_TOKEN, token.getTokenHash()),
-				new Document(Fields.TOKEN_TOKEN, 0));
+		final Document t = findOne(COL_TOKEN, new Document(Fields.TOKEN_TOKEN,
+				new Document("$in", BinaryKeys.anyTokenHash(token.getTokenHash()))));
 		if (t == null) {
 			throw new NoSuchTokenException("Token not found");
 		}
+		migrator.upgradeOnRead(COL_TOKEN, t);
 		final StoredToken htoken = getToken(t);
 		/* although expired tokens are automatically deleted from the DB by mongo, the thread
 		 * only runs ~1/min, so check here
@@ -748,10 +1162,16 @@ public class MongoStorage implements AuthStorage {
 	}
 	
 	private StoredToken getToken(final Document t) throws AuthStorageException {
+		return getToken(t, getUserName(t.getString(Fields.TOKEN_USER_NAME)));
+	}
+	
+	// userName must be the name stored in the token document
+	private StoredToken getToken(final Document t, final UserName userName)
+			throws AuthStorageException {
 		return StoredToken.getBuilder(
 					TokenType.getType(t.getString(Fields.TOKEN_TYPE)),
-					UUID.fromString(t.getString(Fields.TOKEN_ID)),
-					getUserName(t.getString(Fields.TOKEN_USER_NAME)))
+					BinaryKeys.toUUID(t.get(Fields.TOKEN_ID)),
+					userName)
 				.withLifeTime(
 						t.getDate(Fields.TOKEN_CREATION).toInstant(),
 						t.getDate(Fields.TOKEN_EXPIRY).toInstant())
@@ -790,11 +1210,15 @@ public class MongoStorage implements AuthStorage {
 		nonNull(userName, "userName");
 		final Set<StoredToken> ret = new HashSet<>();
 		try {
+			// expired tokens may not have been deleted yet
 			final FindIterable<Document> ts = db.getCollection(COL_TOKEN).find(
-					new Document(Fields.TOKEN_USER_NAME, userName.getName())).projection(
-					new Document(Fields.TOKEN_TOKEN, 0));
+					new Document(Fields.TOKEN_USER_NAME, userName.getName())
+							.append(Fields.TOKEN_EXPIRY, new Document(
+									"$gt", Date.from(clock.instant()))))
+					.projection(new Document(Fields.TOKEN_TOKEN, 0));
 			for (final Document d: ts) {
-				ret.add(getToken(d));
+				// the query matched the user name exactly, so there's no need to check it again
+				ret.add(getToken(d, userName));
 			}
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
@@ -809,6 +1233,12 @@ public class MongoStorage implements AuthStorage {
 	}
 
 	private AuthUser toUser(final Document user) throws AuthStorageException {
+		return toUser(user, getCustomRoleIDToName(getCustomRoleIDs(user)));
+	}
+	
+	// roleNames is as for addCustomRoles()
+	private AuthUser toUser(final Document user, final Map<ObjectId, String> roleNames)
+			throws AuthStorageException {
 		@SuppressWarnings("unchecked")
 		final List<Document> ids = (List<Document>) user.get(Fields.USER_IDENTITIES);
 		
@@ -822,7 +1252,7 @@ public class MongoStorage implements AuthStorage {
 			b.withIdentity(ri);
 		}
 		addRoles(b, user);
-		addCustomRoles(b, user);
+		addCustomRoles(b, user, roleNames);
 		addPolicyIDs(b, user);
 		addLastLogin(b, user);
 		return b.build();
@@ -844,30 +1274,43 @@ public class MongoStorage implements AuthStorage {
 		if (users.isEmpty()) {
 			return new HashMap<>();
 		}
+		if (displayNameCache.isPresent()) {
+			return displayNameCache.get().get(users, misses -> queryDisplayNames(misses));
+		}
+		return queryDisplayNames(users);
+	}
+	
+	private Map<UserName, DisplayName> queryDisplayNames(final Set<UserName> users)
+			throws AuthStorageException {
 		final List<String> queryusers = users.stream().map(u -> u.getName())
 				.collect(Collectors.toList());
 		final Document query = new Document(Fields.USER_NAME, new Document("$in", queryusers))
 				.append(Fields.USER_DISABLED_REASON, null);
-		return getDisplayNames(query, Fields.USER_NAME, -1);
+		return getDisplayNames(query, Fields.USER_NAME, -1, false);
 	}
 
 	private Map<UserName, DisplayName> getDisplayNames(
 			final Document query,
 			final String sortField,
-			final int limit)
+			final int limit,
+			final boolean ordered)
 			throws AuthStorageException {
 		final Document projection = new Document(Fields.USER_NAME, 1)
 				.append(Fields.USER_DISPLAY_NAME, 1);
 		try {
-			final FindIterable<Document> docs = db.getCollection(COL_USERS)
+			final FindIterable<Document> docs = getNonCriticalCollection(COL_USERS)
 					.find(query).projection(projection);
+			if (limit > 0 || ordered) {
+				docs.sort(new Document(sortField, 1));
+			}
 			if (limit > 0) {
-				docs.sort(new Document(sortField, 1)).limit(limit);
+				docs.limit(limit);
 			}
-			final Map<UserName, DisplayName> ret = new HashMap<>();
+			final Map<UserName, DisplayName> ret =
+					ordered ? new LinkedHashMap<>() : new HashMap<>();
 			for (final Document d: docs) {
-				ret.put(getUserName(d.getString(Fields.USER_NAME)),
-						getDisplayName(d.getString(Fields.USER_DISPLAY_NAME)));
+				ret.put(getTrustedUserName(d.getString(Fields.USER_NAME)),
+						getTrustedDisplayName(d.getString(Fields.USER_DISPLAY_NAME)));
 			}
 			return ret;
 		} catch (MongoException e) {
@@ -875,6 +1318,33 @@ public class MongoStorage implements AuthStorage {
 		}
 	}
 	
+	@Override
+	public boolean userExists(final UserName userName) throws AuthStorageException {
+		nonNull(userName, "userName");
+		return findOne(COL_USERS, new Document(Fields.USER_NAME, userName.getName()),
+				new Document(Fields.USER_NAME, 1)) != null;
+	}
+	
+	@Override
+	public Optional<Long> getMaximumUserNameSuffix(final String stem)
+			throws AuthStorageException {
+		checkStringNoCheckedException(stem, "stem");
+		final Document query = new Document(Fields.USER_NAME_STEM, stem)
+				.append(Fields.USER_NAME_SUFFIX, new Document("$ne", null));
+		try {
+			// uses the stem / suffix index for both the query and the sort
+			final Document d = db.getCollection(COL_USERS).find(query)
+					.projection(new Document(Fields.USER_NAME_SUFFIX, 1))
+					.sort(new Document(Fields.USER_NAME_STEM, -1)
+							.append(Fields.USER_NAME_SUFFIX, -1))
+					.limit(1).first();
+			return d == null ? Optional.absent() :
+				Optional.of(d.getLong(Fields.USER_NAME_SUFFIX));
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+	}
+	
 	private static final Map<UserSearchSpec.SearchField, String> SEARCHFIELD_TO_FIELD;
 	static {
 		final Map<UserSearchSpec.SearchField, String> m = new HashMap<>();
@@ -891,6 +1361,34 @@ public class MongoStorage implements AuthStorage {
 			final int limit)
 			throws AuthStorageException {
 		nonNull(spec, "spec");
+		if (userIndex.isPresent() && spec.getSearchPrefix().isPresent() && !spec.isRegex() &&
+				!spec.isRoleSearch() && !spec.isCustomRoleSearch()) {
+			NavigableMap<UserName, DisplayName> res = userIndex.get().search(
+					spec.getSearchPrefix().get(), spec.isUserNameSearch(),
+					spec.isDisplayNameSearch(), spec.isDisabledIncluded());
+			if (spec.isPaged()) {
+				if (spec.getCursor().isPresent()) {
+					res = res.tailMap(spec.getCursor().get(), false);
+				}
+				final Map<UserName, DisplayName> ret = new LinkedHashMap<>();
+				for (final Entry<UserName, DisplayName> e: res.entrySet()) {
+					if (limit > 0 && ret.size() >= limit) {
+						break;
+					}
+					ret.put(e.getKey(), e.getValue());
+				}
+				return ret;
+			}
+			if (limit <= 0 || res.size() <= limit) {
+				return new HashMap<>(res);
+			}
+			if (spec.orderBy().equals(UserSearchSpec.SearchField.USERNAME)) {
+				final NavigableMap<UserName, DisplayName> found = res;
+				return res.keySet().stream().limit(limit)
+						.collect(Collectors.toMap(u -> u, u -> found.get(u)));
+			}
+			// the ordering of truncated display name searches is left to the database
+		}
 		final Document query = new Document();
 		if (spec.getSearchPrefix().isPresent()) {
 			final String prefix = spec.getSearchPrefix().get();
@@ -898,7 +1396,18 @@ public class MongoStorage implements AuthStorage {
 			final Document regex = new Document("$regex", spec.isRegex() ? prefix :
 				"^" + Pattern.quote(prefix.toLowerCase()));
 			if (spec.isDisplayNameSearch()) {
-				queries.add(new Document(Fields.USER_DISPLAY_NAME_CANONICAL, regex));
+				final String lower = prefix.toLowerCase();
+				if (!spec.isRegex() && lower.codePointCount(0, lower.length()) <=
+						DisplayName.MAX_SEARCH_PREFIX_LENGTH &&
+						SchemaMigrator.State.COMPLETE.equals(
+								migrator.getState(MIGRATION_DERIVED_USER_FIELDS))) {
+					/* short prefixes are stored, so an exact match works. Older users only have
+					 * the stored prefixes once the migration is complete.
+					 */
+					queries.add(new Document(Fields.USER_DISPLAY_NAME_PREFIXES, lower));
+				} else {
+					queries.add(new Document(Fields.USER_DISPLAY_NAME_CANONICAL, regex));
+				}
 			}
 			if (spec.isUserNameSearch()) {
 				queries.add(new Document(Fields.USER_NAME, regex));
@@ -923,7 +1432,18 @@ public class MongoStorage implements AuthStorage {
 		if (!spec.isDisabledIncluded()) {
 			query.put(Fields.USER_DISABLED_REASON, null);
 		}
-		return getDisplayNames(query, SEARCHFIELD_TO_FIELD.get(spec.orderBy()), limit);
+		if (!spec.isPaged()) {
+			return getDisplayNames(query, SEARCHFIELD_TO_FIELD.get(spec.orderBy()), limit, false);
+		}
+		// paged searches are ordered by the unique user name so the cursor is stable
+		final Document pagedQuery;
+		if (spec.getCursor().isPresent()) {
+			pagedQuery = new Document("$and", Arrays.asList(query, new Document(
+					Fields.USER_NAME, new Document("$gt", spec.getCursor().get().getName()))));
+		} else {
+			pagedQuery = query;
+		}
+		return getDisplayNames(pagedQuery, Fields.USER_NAME, limit, true);
 	}
 
 	@Override
@@ -931,10 +1451,22 @@ public class MongoStorage implements AuthStorage {
 			throws AuthStorageException, NoSuchTokenException {
 		nonNull(userName, "userName");
 		nonNull(tokenId, "tokenId");
+		final Document query = new Document(Fields.TOKEN_USER_NAME, userName.getName())
+				.append(Fields.TOKEN_ID, new Document("$in", BinaryKeys.anyUUID(tokenId)));
+		final Document t = findOne(COL_TOKEN, query, new Document(Fields.TOKEN_ID, 1)
+				.append(Fields.TOKEN_EXPIRY, 1));
+		if (t == null) {
+			throw new NoSuchTokenException(String.format(
+					"No token %s for user %s exists",
+					tokenId, userName.getName()));
+		}
+		// record the revocation first so a failure can't leave a signed token usable
+		if (revokedTokenRecords) {
+			recordRevokedTokens(Arrays.asList(t));
+		}
 		try {
-			final DeleteResult dr = db.getCollection(COL_TOKEN)
-					.deleteOne(new Document(Fields.TOKEN_USER_NAME, userName.getName())
-							.append(Fields.TOKEN_ID, tokenId.toString()));
+			final DeleteResult dr = db.getCollection(COL_TOKEN).deleteOne(query);
+			// deleted by another call since the lookup. The extra revocation record is harmless
 			if (dr.getDeletedCount() != 1L) {
 				throw new NoSuchTokenException(String.format(
 						"No token %s for user %s exists",
@@ -952,18 +1484,144 @@ public class MongoStorage implements AuthStorage {
 		deleteTokens(new Document(Fields.TOKEN_USER_NAME, userName.getName()));
 	}
 
-	private void deleteTokens(final Document document) throws AuthStorageException {
+	private void deleteTokens(final Document query) throws AuthStorageException {
 		try {
-			db.getCollection(COL_TOKEN).deleteMany(document);
+			if (!revokedTokenRecords) {
+				db.getCollection(COL_TOKEN).deleteMany(query);
+				return;
+			}
+			/* Only tokens with a recorded revocation are deleted, so a token stored after a
+			 * batch is read is left for the next batch rather than deleted without a record.
+			 * Repeat until no tokens match.
+			 */
+			while (true) {
+				final List<Document> revoked = new LinkedList<>();
+				final List<Object> ids = new LinkedList<>();
+				for (final Document t: db.getCollection(COL_TOKEN).find(query)
+						.projection(new Document(Fields.TOKEN_ID, 1)
+								.append(Fields.TOKEN_EXPIRY, 1))
+						.limit(REVOKED_TOKEN_BATCH_SIZE)) {
+					revoked.add(t);
+					ids.add(t.get(Fields.MONGO_ID));
+				}
+				if (revoked.isEmpty()) {
+					return;
+				}
+				recordRevokedTokens(revoked);
+				db.getCollection(COL_TOKEN).deleteMany(
+						new Document(Fields.MONGO_ID, new Document("$in", ids)));
+			}
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed", e);
 		}
 	}
 	
+	// expects documents with the token id and expiration date
+	private void recordRevokedTokens(final List<Document> tokens) throws AuthStorageException {
+		if (tokens.isEmpty()) {
+			return;
+		}
+		final Date now = Date.from(clock.instant());
+		final List<UpdateOneModel<Document>> updates = new LinkedList<>();
+		for (final Document t: tokens) {
+			// revoked token IDs are always stored as strings
+			final String id;
+			try {
+				id = BinaryKeys.toUUID(t.get(Fields.TOKEN_ID)).toString();
+			} catch (IllegalArgumentException e) {
+				throw new AuthStorageException("Illegal value stored in db: " + e.getMessage(), e);
+			}
+			updates.add(new UpdateOneModel<>(
+					new Document(Fields.TOKEN_REVOKED_ID, id),
+					new Document("$set", new Document(Fields.TOKEN_REVOKED_DATE, now)
+							.append(Fields.TOKEN_REVOKED_EXPIRY,
+									t.getDate(Fields.TOKEN_EXPIRY))),
+					new UpdateOptions().upsert(true)));
+		}
+		try {
+			db.getCollection(COL_TOKEN_REVOKED).bulkWrite(
+					updates, new BulkWriteOptions().ordered(false));
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+	}
+	
 	@Override
 	public void deleteTokens() throws AuthStorageException {
 		deleteTokens(new Document());
 	}
+	
+	@Override
+	public Map<UUID, Instant> getRevokedTokens(final Instant revokedSince)
+			throws AuthStorageException {
+		nonNull(revokedSince, "revokedSince");
+		final Map<UUID, Instant> ret = new HashMap<>();
+		try {
+			final FindIterable<Document> revoked = db.getCollection(COL_TOKEN_REVOKED).find(
+					new Document(Fields.TOKEN_REVOKED_DATE,
+							new Document("$gte", Date.from(revokedSince))));
+			for (final Document d: revoked) {
+				ret.put(UUID.fromString(d.getString(Fields.TOKEN_REVOKED_ID)),
+						d.getDate(Fields.TOKEN_REVOKED_EXPIRY).toInstant());
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		} catch (IllegalArgumentException e) {
+			throw new AuthStorageException("Illegal value stored in db: " + e.getMessage(), e);
+		}
+		return ret;
+	}
+	
+	@Override
+	public void storeTokenSigningKey(final TokenSigningKey key) throws AuthStorageException {
+		nonNull(key, "key");
+		final Document kd = new Document(Fields.SIGNING_KEY_ID, key.getKeyID())
+				.append(Fields.SIGNING_KEY_CREATION, Date.from(key.getCreationDate()))
+				.append(Fields.SIGNING_KEY_PUBLIC, key.getEncodedPublicKey())
+				.append(Fields.SIGNING_KEY_PRIVATE,
+						getSigningKeyEncryptor().encryptPrivateKey(key));
+		try {
+			db.getCollection(COL_TOKEN_SIGNING_KEYS).insertOne(kd);
+		} catch (MongoWriteException mwe) {
+			if (DuplicateKeyExceptionChecker.isDuplicate(mwe)) {
+				throw new IllegalArgumentException(String.format(
+						"Token signing key %s already exists in the database", key.getKeyID()));
+			}
+			throw new AuthStorageException("Database write failed", mwe);
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+	}
+	
+	private SigningKeyEncryptor getSigningKeyEncryptor() {
+		if (!signingKeyEncryptor.isPresent()) {
+			throw new IllegalStateException(
+					"No signing key encryptor is configured, so token signing keys cannot be " +
+					"stored or retrieved");
+		}
+		return signingKeyEncryptor.get();
+	}
+	
+	@Override
+	public Set<TokenSigningKey> getTokenSigningKeys() throws AuthStorageException {
+		final Set<TokenSigningKey> ret = new HashSet<>();
+		try {
+			for (final Document d: db.getCollection(COL_TOKEN_SIGNING_KEYS).find()) {
+				final String keyID = d.getString(Fields.SIGNING_KEY_ID);
+				ret.add(TokenSigningKey.fromEncoded(
+						keyID,
+						d.getDate(Fields.SIGNING_KEY_CREATION).toInstant(),
+						d.getString(Fields.SIGNING_KEY_PUBLIC),
+						getSigningKeyEncryptor().decryptPrivateKey(
+								keyID, d.getString(Fields.SIGNING_KEY_PRIVATE))));
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		} catch (IllegalArgumentException e) {
+			throw new AuthStorageException("Illegal value stored in db: " + e.getMessage(), e);
+		}
+		return ret;
+	}
 
 	@Override
 	public void updateRoles(
@@ -1039,15 +1697,190 @@ public class MongoStorage implements AuthStorage {
 			if (role == null) {
 				throw new NoSuchRoleException(roleId);
 			}
-			/* note that in the getCustomRoles() method the user's roles are checked against the
-			 * db and removed if they don't exist, which protects against race conditions and
-			 * mongo / server downs.
+			/* the role is removed from users in the background. Until then, reads ignore
+			 * role object IDs that are no longer in the roles collection. If the server goes
+			 * down before the record below is written, the role is never removed from the
+			 * users, which is harmless since the object ID is never reused.
 			 */
-			db.getCollection(COL_USERS).updateMany(new Document(), new Document("$pull",
-					new Document(Fields.USER_CUSTOM_ROLES, role.getObjectId(Fields.MONGO_ID))));
+			db.getCollection(COL_CUST_ROLES_DELETED).insertOne(
+					new Document(Fields.MONGO_ID, role.getObjectId(Fields.MONGO_ID))
+							.append(Fields.ROLES_DELETED_DATE, Date.from(clock.instant())));
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+		if (customRoleCollector.isPresent()) {
+			try {
+				customRoleCollector.get().execute(this::collectDeletedCustomRolesAndLog);
+			} catch (RejectedExecutionException e) {
+				// storage is closed, the next instance will collect the role
+			}
+		}
+	}
+	
+	private void collectDeletedCustomRolesAndLog() {
+		try {
+			collectDeletedCustomRoles();
+		} catch (AuthStorageException | RuntimeException e) {
+			LoggerFactory.getLogger(getClass()).error(
+					"Removing deleted custom roles from users failed: " + e.getMessage(), e);
+		}
+	}
+	
+	/** Remove references to deleted custom roles from user records.
+	 * 
+	 * {@link #deleteCustomRole(String)} only deletes the role record. If enabled, the role is
+	 * removed from users by a background thread that calls this method periodically and after
+	 * each deletion. Users are updated in small batches with a delay between batches so that
+	 * deleting a commonly held role does not saturate the database. Reads ignore deleted roles,
+	 * so the delay is not visible to callers.
+	 * 
+	 * This method is public so it may be called to complete any pending work immediately.
+	 * @return the number of user records updated.
+	 * @throws AuthStorageException if a problem connecting with the storage system occurs.
+	 */
+	public long collectDeletedCustomRoles() throws AuthStorageException {
+		final MongoCollection<Document> deleted = db.getCollection(COL_CUST_ROLES_DELETED);
+		final MongoCollection<Document> users = db.getCollection(COL_USERS);
+		long count = 0;
+		try {
+			for (final Document d: deleted.find()
+					.sort(new Document(Fields.ROLES_DELETED_DATE, 1))) {
+				final ObjectId role = d.getObjectId(Fields.MONGO_ID);
+				final Document query = new Document(Fields.USER_CUSTOM_ROLES, role);
+				while (true) {
+					final int batchSize;
+					// don't hold the lock while sleeping
+					synchronized (customRoleCollectionLock) {
+						final List<ObjectId> batch = new LinkedList<>();
+						for (final Document u: users.find(query)
+								.projection(new Document(Fields.MONGO_ID, 1))
+								.limit(CUSTOM_ROLE_GC_BATCH_SIZE)) {
+							batch.add(u.getObjectId(Fields.MONGO_ID));
+						}
+						batchSize = batch.size();
+						if (batchSize > 0) {
+							count += users.updateMany(
+									new Document(Fields.MONGO_ID, new Document("$in", batch)),
+									new Document("$pull",
+											new Document(Fields.USER_CUSTOM_ROLES, role)))
+									.getModifiedCount();
+						}
+					}
+					if (batchSize < CUSTOM_ROLE_GC_BATCH_SIZE) {
+						break;
+					}
+					Thread.sleep(CUSTOM_ROLE_GC_BATCH_DELAY_MS);
+				}
+				deleted.deleteOne(new Document(Fields.MONGO_ID, role));
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			// shutting down, the remaining work is picked up by the next instance
+			Thread.currentThread().interrupt();
+		}
+		return count;
+	}
+	
+	/** Delete expired tokens and temporary tokens.
+	 * 
+	 * Tokens are deleted in small batches with a delay between batches so that deleting a large
+	 * number of tokens does not saturate the database. If enabled, a background thread calls
+	 * this method periodically.
+	 * 
+	 * This method is public so it may be called to delete expired tokens immediately.
+	 * @return the number of tokens and temporary tokens deleted.
+	 * @throws AuthStorageException if a problem connecting with the storage system occurs.
+	 */
+	public synchronized long sweepExpiredTokens() throws AuthStorageException {
+		final Date now = Date.from(clock.instant());
+		long count = 0;
+		try {
+			count += sweepExpiredTokens(COL_TOKEN, Fields.TOKEN_EXPIRY, now);
+			count += sweepExpiredTokens(COL_TEMP_TOKEN, Fields.TOKEN_TEMP_EXPIRY, now);
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			// shutting down, the remaining tokens are deleted by the TTL monitor
+			Thread.currentThread().interrupt();
+		}
+		return count;
+	}
+	
+	private long sweepExpiredTokens(
+			final String collection,
+			final String expiryField,
+			final Date now)
+			throws InterruptedException {
+		final MongoCollection<Document> col = db.getCollection(collection);
+		final Document query = new Document(expiryField, new Document("$lte", now));
+		long count = 0;
+		while (true) {
+			final List<ObjectId> batch = new LinkedList<>();
+			for (final Document t: col.find(query)
+					.projection(new Document(Fields.MONGO_ID, 1))
+					.limit(EXPIRED_TOKEN_SWEEP_BATCH_SIZE)) {
+				batch.add(t.getObjectId(Fields.MONGO_ID));
+			}
+			if (batch.isEmpty()) {
+				return count;
+			}
+			count += col.deleteMany(new Document(Fields.MONGO_ID, new Document("$in", batch)))
+					.getDeletedCount();
+			if (batch.size() < EXPIRED_TOKEN_SWEEP_BATCH_SIZE) {
+				return count;
+			}
+			Thread.sleep(EXPIRED_TOKEN_SWEEP_BATCH_DELAY_MS);
+		}
+	}
+	
+	/** Start storing token hashes, token IDs, and remote identity IDs in binary form, and
+	 * convert the keys already stored in string form. See {@link BinaryKeys}.
+	 * 
+	 * Other storage instances sharing the database start writing keys in binary form within
+	 * about a minute. Keys written in string form in the meantime are converted when they are
+	 * next read, or by calling this method again.
+	 * 
+	 * Reads accept keys stored in either form, so the conversion runs while the service is
+	 * serving requests. The conversion is run by {@link SchemaMigrator} and is resumed by any
+	 * storage instance if this method does not complete. Keys that were not created by the
+	 * server, and so cannot be converted, are left as is.
+	 * @return the number of documents and identities converted.
+	 * @throws AuthStorageException if a problem connecting with the storage system occurs.
+	 */
+	public long migrateToBinaryKeys() throws AuthStorageException {
+		try {
+			db.getCollection(COL_CONFIG).updateOne(
+					new Document(Fields.DB_SCHEMA_KEY, Fields.DB_SCHEMA_VALUE),
+					new Document("$set", new Document(Fields.DB_SCHEMA_BINARY_KEYS, true)));
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+		binaryKeys = true;
+		migrator.start(MIGRATION_BINARY_KEYS_TOKENS);
+		migrator.start(MIGRATION_BINARY_KEYS_TEMP_TOKENS);
+		migrator.start(MIGRATION_BINARY_KEYS_USERS);
+		return migrator.run();
+	}
+	
+	/** Run any schema migrations that are in progress, and reload settings that are changed by
+	 * migrations from the database. If enabled, a background thread calls this method
+	 * periodically.
+	 * @return the number of documents updated.
+	 * @throws AuthStorageException if a problem connecting with the storage system occurs.
+	 */
+	public long runMigrations() throws AuthStorageException {
+		final Document cfg;
+		try {
+			cfg = db.getCollection(COL_CONFIG).find(
+					new Document(Fields.DB_SCHEMA_KEY, Fields.DB_SCHEMA_VALUE)).first();
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
+		if (cfg != null) {
+			binaryKeys = Boolean.TRUE.equals(cfg.get(Fields.DB_SCHEMA_BINARY_KEYS));
+		}
+		return migrator.run();
 	}
 	
 	@Override
@@ -1055,6 +1888,71 @@ public class MongoStorage implements AuthStorage {
 		return toCustomRoles(getCustomRoles(new Document()));
 	}
 
+	@Override
+	public Map<Role, Long> getRoleCounts() throws AuthStorageException {
+		final Map<String, Role> roles = new HashMap<>();
+		final Map<Role, Long> ret = new HashMap<>();
+		for (final Role r: Role.values()) {
+			roles.put(r.getID(), r);
+			ret.put(r, 0L);
+		}
+		for (final Entry<Object, Long> e: countUsersPerElement(
+				Fields.USER_ROLES, roles.keySet()).entrySet()) {
+			ret.put(roles.get(e.getKey()), e.getValue());
+		}
+		return ret;
+	}
+	
+	@Override
+	public Map<String, Long> getCustomRoleCounts() throws AuthStorageException {
+		final Map<ObjectId, String> roles = new HashMap<>();
+		for (final Document role: getCustomRoles(new Document())) {
+			roles.put(role.getObjectId(Fields.MONGO_ID), role.getString(Fields.ROLES_ID));
+		}
+		final Map<String, Long> ret = new HashMap<>();
+		for (final String role: roles.values()) {
+			ret.put(role, 0L);
+		}
+		if (!roles.isEmpty()) {
+			// IDs of deleted roles that haven't yet been pulled from users are ignored
+			for (final Entry<Object, Long> e: countUsersPerElement(
+					Fields.USER_CUSTOM_ROLES, roles.keySet()).entrySet()) {
+				ret.put(roles.get(e.getKey()), e.getValue());
+			}
+		}
+		return ret;
+	}
+	
+	/* counts the users per array element server side, so only one document per distinct
+	 * element is transferred rather than every user with the element. The initial match uses
+	 * the index on the field so that only users with at least one of the elements are read,
+	 * and the second match drops any other elements before grouping.
+	 */
+	private Map<Object, Long> countUsersPerElement(
+			final String arrayField,
+			final Collection<?> elements)
+			throws AuthStorageException {
+		final Document match = new Document("$match", new Document(
+				arrayField, new Document("$in", elements)));
+		final List<Document> pipeline = Arrays.asList(
+				match,
+				new Document("$project", new Document(arrayField, 1)
+						.append(Fields.MONGO_ID, 0)),
+				new Document("$unwind", "$" + arrayField),
+				match,
+				new Document("$group", new Document(Fields.MONGO_ID, "$" + arrayField)
+						.append("count", new Document("$sum", 1))));
+		final Map<Object, Long> ret = new HashMap<>();
+		try {
+			for (final Document d: getNonCriticalCollection(COL_USERS).aggregate(pipeline)) {
+				ret.put(d.get(Fields.MONGO_ID), ((Number) d.get("count")).longValue());
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+		return ret;
+	}
+	
 	private Set<Document> getCustomRoles(final Document query)
 			throws AuthStorageException {
 		try {
@@ -1084,31 +1982,18 @@ public class MongoStorage implements AuthStorage {
 		return ret;
 	}
 
-	private Set<String> getCustomRoles(final UserName user, final Set<ObjectId> roleIds)
+	// returns a mapping of custom role object ID -> role ID for the extant roles in roleIds
+	private Map<ObjectId, String> getCustomRoleIDToName(final Set<ObjectId> roleIds)
 			throws AuthStorageException {
-		final Set<Document> roledocs = getCustomRoles(new Document(
-				Fields.MONGO_ID, new Document("$in", roleIds)));
-		final Set<ObjectId> extantRoleIds = roledocs.stream()
-				.map(d -> d.getObjectId(Fields.MONGO_ID)).collect(Collectors.toSet());
-		for (final ObjectId role: roleIds) {
-			if (!extantRoleIds.contains(role)) {
-				// should very rarely happen, if at all, so don't worry about optimization
-				final Document query = new Document(Fields.USER_NAME, user.getName());
-				final Document mod = new Document("$pull",
-						new Document(Fields.USER_CUSTOM_ROLES, role));
-				try {
-					// don't care if no changes are made, just means the role is already gone
-					db.getCollection(COL_USERS).updateOne(query, mod);
-				} catch (MongoException e) {
-					throw new AuthStorageException("Connection to database failed: " +
-							e.getMessage(), e);
-				}
-			}
+		if (roleIds.isEmpty()) {
+			return new HashMap<>();
 		}
-		return roledocs.stream().map(d -> d.getString(Fields.ROLES_ID))
-				.collect(Collectors.toSet());
+		return getCustomRoles(new Document(Fields.MONGO_ID, new Document("$in", roleIds)))
+				.stream().collect(Collectors.toMap(
+						d -> d.getObjectId(Fields.MONGO_ID),
+						d -> d.getString(Fields.ROLES_ID)));
 	}
-
+	
 	@Override
 	public void updateCustomRoles(
 			final UserName userName,
@@ -1149,60 +2034,137 @@ public class MongoStorage implements AuthStorage {
 
 	@Override
 	public Optional<AuthUser> getUser(final RemoteIdentity remoteID) throws AuthStorageException {
-		final Document query = makeUserQuery(remoteID);
-		//note a user with identities should never have these fields, but
-		//doesn't hurt to be safe
-		final Document projection = new Document(Fields.USER_PWD_HSH, 0)
-				.append(Fields.USER_SALT, 0);
-		final Document u = findOne(COL_USERS, query, projection);
-		if (u == null) {
-			return Optional.absent();
+		nonNull(remoteID, "remoteID");
+		return Optional.fromNullable(getUsers(new HashSet<>(Arrays.asList(remoteID)))
+				.get(remoteID));
+	}
+	
+	@Override
+	public Map<RemoteIdentity, AuthUser> getUsers(final Set<RemoteIdentity> remoteIDs)
+			throws AuthStorageException {
+		nonNull(remoteIDs, "remoteIDs");
+		noNulls(remoteIDs, "Null remote identity in remoteIDs");
+		final Map<RemoteIdentity, AuthUser> ret = new HashMap<>();
+		if (remoteIDs.isEmpty()) {
+			return ret;
 		}
-		AuthUser user = toUser(u);
+		final Map<String, RemoteIdentity> idToRemote = new HashMap<>();
+		for (final RemoteIdentity ri: remoteIDs) {
+			idToRemote.put(ri.getRemoteID().getID(), ri);
+		}
+		final List<Document> userdocs = getUserDocsByIdentity(idToRemote.keySet());
+		// get the custom roles for all the users at once rather than one query per user
+		final Set<ObjectId> roleIds = new HashSet<>();
+		userdocs.stream().forEach(d -> roleIds.addAll(getCustomRoleIDs(d)));
+		final Map<ObjectId, String> roleNames = getCustomRoleIDToName(roleIds);
+		
 		/* could do a findAndModify to set the fields on the first query, but
 		 * 99% of the time a set won't be necessary, so don't write lock the
 		 * DB/collection (depending on mongo version) unless necessary 
 		 */
-		RemoteIdentity update = null;
-		for (final RemoteIdentity ri: user.getIdentities()) {
-			if (ri.getRemoteID().equals(remoteID.getRemoteID()) &&
-					!ri.getDetails().equals(remoteID.getDetails())) {
-				update = ri;
-			}
-		}
-		if (update != null) {
+		final List<RemoteIdentity> updates = new LinkedList<>();
+		for (final Document u: userdocs) {
+			final AuthUser user = toUser(u, roleNames);
 			final AuthUser.Builder b = AuthUser.getBuilderWithoutIdentities(user);
+			final Set<RemoteIdentity> requested = new HashSet<>();
 			for (final RemoteIdentity ri: user.getIdentities()) {
-				if (!ri.equals(update)) {
+				final RemoteIdentity incoming = idToRemote.get(ri.getRemoteID().getID());
+				if (incoming == null) {
 					b.withIdentity(ri);
+				} else {
+					requested.add(incoming);
+					b.withIdentity(incoming);
+					if (!ri.getDetails().equals(incoming.getDetails())) {
+						updates.add(incoming);
+					}
 				}
 			}
-			b.withIdentity(remoteID);
-			user = b.build();
-			updateIdentity(remoteID);
+			final AuthUser updatedUser = b.build();
+			for (final RemoteIdentity ri: requested) {
+				ret.put(ri, updatedUser);
+			}
+		}
+		if (identityUpdates.isPresent()) {
+			for (final RemoteIdentity ri: updates) {
+				identityUpdates.get().add(ri.getRemoteID().getID(), ri);
+			}
+		} else {
+			updateIdentities(updates);
+		}
+		return ret;
+	}
+	
+	private List<Document> getUserDocsByIdentity(final Set<String> identityIDs)
+			throws AuthStorageException {
+		final Document query = new Document(
+				Fields.USER_IDENTITIES + Fields.FIELD_SEP + Fields.IDENTITIES_ID,
+				new Document("$in", anyIdentityID(identityIDs)));
+		//note a user with identities should never have these fields, but
+		//doesn't hurt to be safe
+		final Document projection = new Document(Fields.USER_PWD_HSH, 0)
+				.append(Fields.USER_SALT, 0);
+		try {
+			final List<Document> ret = new LinkedList<>();
+			for (final Document d: db.getCollection(COL_USERS).find(query)
+					.projection(projection)) {
+				migrator.upgradeOnRead(COL_USERS, d);
+				ret.add(d);
+			}
+			return ret;
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
-		return Optional.of(user);
 	}
 
 	private Document makeUserQuery(final RemoteIdentity remoteID) {
 		return new Document(Fields.USER_IDENTITIES + Fields.FIELD_SEP + Fields.IDENTITIES_ID,
-				remoteID.getRemoteID().getID());
+				new Document("$in", BinaryKeys.anyIdentityID(remoteID.getRemoteID().getID())));
+	}
+	
+	private List<Object> anyIdentityID(final Set<String> identityIDs) {
+		final List<Object> ret = new LinkedList<>();
+		for (final String id: identityIDs) {
+			ret.addAll(BinaryKeys.anyIdentityID(id));
+		}
+		return ret;
+	}
+	
+	private Object toStoredTokenHash(final String hash) {
+		return binaryKeys ? BinaryKeys.compactTokenHash(hash) : hash;
+	}
+	
+	private Object toStoredUUID(final UUID id) {
+		return binaryKeys ? BinaryKeys.fromUUID(id) : id.toString();
+	}
+	
+	private Object toStoredIdentityID(final String id) {
+		return binaryKeys ? BinaryKeys.compactIdentityID(id) : id;
 	}
 	
 	private void updateIdentity(final RemoteIdentity remoteID)
 			throws AuthStorageException {
-		final Document query = makeUserQuery(remoteID);
-		
+		updateIdentities(Arrays.asList(remoteID));
+	}
+	
+	private void updateIdentities(final List<RemoteIdentity> remoteIDs)
+			throws AuthStorageException {
+		if (remoteIDs.isEmpty()) {
+			return;
+		}
 		final String pre = Fields.USER_IDENTITIES + ".$.";
-		final RemoteIdentityDetails rid = remoteID.getDetails();
-		final Document update = new Document("$set",
-				new Document(pre + Fields.IDENTITIES_USER, rid.getUsername())
-				.append(pre + Fields.IDENTITIES_EMAIL, rid.getEmail())
-				.append(pre + Fields.IDENTITIES_NAME, rid.getFullname()));
+		final List<UpdateOneModel<Document>> updates = new LinkedList<>();
+		for (final RemoteIdentity ri: remoteIDs) {
+			final RemoteIdentityDetails rid = ri.getDetails();
+			updates.add(new UpdateOneModel<>(makeUserQuery(ri), new Document("$set",
+					new Document(pre + Fields.IDENTITIES_USER, rid.getUsername())
+					.append(pre + Fields.IDENTITIES_EMAIL, rid.getEmail())
+					.append(pre + Fields.IDENTITIES_NAME, rid.getFullname()))));
+		}
 		try {
-			// id might have been unlinked, so we just assume
-			// the update worked. If it was just unlinked we don't care.
-			db.getCollection(COL_USERS).updateOne(query, update);
+			// ids might have been unlinked, so we just assume
+			// the updates worked. If one was just unlinked we don't care.
+			db.getCollection(COL_USERS).bulkWrite(
+					updates, new BulkWriteOptions().ordered(false));
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
@@ -1282,8 +2244,8 @@ public class MongoStorage implements AuthStorage {
 		noNulls(identitySet, "Null value in identitySet");
 		final Set<Document> ids = toDocument(identitySet);
 		final Document td = new Document(
-				Fields.TOKEN_TEMP_ID, token.getId().toString())
-				.append(Fields.TOKEN_TEMP_TOKEN, token.getTokenHash())
+				Fields.TOKEN_TEMP_ID, toStoredUUID(token.getId()))
+				.append(Fields.TOKEN_TEMP_TOKEN, toStoredTokenHash(token.getTokenHash()))
 				.append(Fields.TOKEN_TEMP_EXPIRY, Date.from(token.getExpirationDate()))
 				.append(Fields.TOKEN_TEMP_CREATION, Date.from(token.getCreationDate()))
 				.append(Fields.TOKEN_TEMP_IDENTITIES, ids);
@@ -1311,7 +2273,7 @@ public class MongoStorage implements AuthStorage {
 
 	private Document toDocument(final RemoteIdentity id) {
 		final RemoteIdentityDetails rid = id.getDetails();
-		return new Document(Fields.IDENTITIES_ID, id.getRemoteID().getID())
+		return new Document(Fields.IDENTITIES_ID, toStoredIdentityID(id.getRemoteID().getID()))
 				.append(Fields.IDENTITIES_PROVIDER, id.getRemoteID().getProviderName())
 				.append(Fields.IDENTITIES_PROV_ID, id.getRemoteID().getProviderIdentityId())
 				.append(Fields.IDENTITIES_USER, rid.getUsername())
@@ -1324,11 +2286,12 @@ public class MongoStorage implements AuthStorage {
 			final IncomingHashedToken token)
 			throws AuthStorageException, NoSuchTokenException {
 		nonNull(token, "token");
-		final Document d = findOne(COL_TEMP_TOKEN,
-				new Document(Fields.TOKEN_TEMP_TOKEN, token.getTokenHash()));
+		final Document d = findOne(COL_TEMP_TOKEN, new Document(Fields.TOKEN_TEMP_TOKEN,
+				new Document("$in", BinaryKeys.anyTokenHash(token.getTokenHash()))));
 		if (d == null) {
 			throw new NoSuchTokenException("Token not found");
 		}
+		migrator.upgradeOnRead(COL_TEMP_TOKEN, d);
 		// if we do this anywhere else should make a method to go from doc -> temptoken class
 		if (Instant.now().isAfter(d.getDate(Fields.TOKEN_TEMP_EXPIRY).toInstant())) {
 			throw new NoSuchTokenException("Token not found");
@@ -1336,12 +2299,12 @@ public class MongoStorage implements AuthStorage {
 		@SuppressWarnings("unchecked")
 		final List<Document> ids = (List<Document>) d.get(Fields.TOKEN_TEMP_IDENTITIES);
 		if (ids == null) {
-			final String tid = d.getString(Fields.TOKEN_TEMP_ID);
+			final UUID tid = BinaryKeys.toUUID(d.get(Fields.TOKEN_TEMP_ID));
 			throw new AuthStorageException(String.format(
 					"Temporary token %s has no associated IDs field", tid));
 		}
 		return new TemporaryIdentities(
-				UUID.fromString(d.getString(Fields.TOKEN_ID)),
+				BinaryKeys.toUUID(d.get(Fields.TOKEN_ID)),
 				d.getDate(Fields.TOKEN_CREATION).toInstant(),
 				d.getDate(Fields.TOKEN_EXPIRY).toInstant(),
 				toIdentities(ids));
@@ -1367,8 +2330,8 @@ public class MongoStorage implements AuthStorage {
 			throws AuthStorageException {
 		nonNull(token, "token");
 		try {
-			db.getCollection(COL_TEMP_TOKEN).deleteOne(
-					new Document(Fields.TOKEN_TEMP_TOKEN, token.getTokenHash()));
+			db.getCollection(COL_TEMP_TOKEN).deleteOne(new Document(Fields.TOKEN_TEMP_TOKEN,
+					new Document("$in", BinaryKeys.anyTokenHash(token.getTokenHash()))));
 			// if it's not there, fine. Job's done.
 		} catch (MongoException e) {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
@@ -1436,7 +2399,8 @@ public class MongoStorage implements AuthStorage {
 
 		final Document query = new Document(Fields.USER_NAME, user.getUserName().getName())
 				.append(Fields.USER_IDENTITIES + Fields.FIELD_SEP + Fields.IDENTITIES_ID,
-						new Document("$ne", remoteID.getRemoteID().getID()));
+						new Document("$nin",
+								BinaryKeys.anyIdentityID(remoteID.getRemoteID().getID())));
 		final Document update = new Document("$addToSet",
 				new Document(Fields.USER_IDENTITIES, toDocument(remoteID)));
 		try {
@@ -1474,7 +2438,8 @@ public class MongoStorage implements AuthStorage {
 				 */
 				.append(Fields.USER_IDENTITIES + ".1", new Document("$exists", true));
 		final Document a = new Document("$pull", new Document(
-				Fields.USER_IDENTITIES, new Document(Fields.IDENTITIES_ID, id.toString())));
+				Fields.USER_IDENTITIES, new Document(Fields.IDENTITIES_ID,
+						new Document("$in", BinaryKeys.anyIdentityID(id)))));
 		try {
 			final UpdateResult r = db.getCollection(COL_USERS).updateOne(q, a);
 			if (r.getMatchedCount() != 1) {
@@ -1502,14 +2467,15 @@ public class MongoStorage implements AuthStorage {
 		}
 		final Document d = new Document();
 		if (update.getDisplayName().isPresent()) {
-			d.append(Fields.USER_DISPLAY_NAME, update.getDisplayName().get().getName())
-				.append(Fields.USER_DISPLAY_NAME_CANONICAL, 
-						update.getDisplayName().get().getCanonicalDisplayName());
+			d.putAll(getDisplayNameFields(update.getDisplayName().get()));
 		}
 		if (update.getEmail().isPresent()) {
 			d.append(Fields.USER_EMAIL, update.getEmail().get().getAddress());
 		}
 		updateUser(userName, d);
+		if (update.getDisplayName().isPresent()) {
+			reindexUser(userName);
+		}
 	}
 
 	// wraps update in a $set
@@ -1541,7 +2507,31 @@ public class MongoStorage implements AuthStorage {
 	public void setLastLogin(final UserName user, final Instant lastLogin) 
 			throws NoSuchUserException, AuthStorageException {
 		nonNull(lastLogin, "lastLogin");
-		updateUser(user, new Document(Fields.USER_LAST_LOGIN, Date.from(lastLogin)));
+		if (lastLoginUpdates.isPresent()) {
+			nonNull(user, "userName");
+			lastLoginUpdates.get().add(user, lastLogin);
+		} else {
+			updateUser(user, new Document(Fields.USER_LAST_LOGIN, Date.from(lastLogin)));
+		}
+	}
+	
+	private void updateLastLogins(final Map<UserName, Instant> lastLogins)
+			throws AuthStorageException {
+		final List<UpdateOneModel<Document>> updates = new LinkedList<>();
+		for (final Entry<UserName, Instant> e: lastLogins.entrySet()) {
+			// $max so a delayed write never overwrites a more recent login
+			updates.add(new UpdateOneModel<>(
+					new Document(Fields.USER_NAME, e.getKey().getName()),
+					new Document("$max", new Document(
+							Fields.USER_LAST_LOGIN, Date.from(e.getValue())))));
+		}
+		try {
+			// the user's existence isn't checked when queuing the date, so ignore misses
+			db.getCollection(COL_USERS).bulkWrite(
+					updates, new BulkWriteOptions().ordered(false));
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
 	}
 	
 	@Override
@@ -1576,15 +2566,6 @@ public class MongoStorage implements AuthStorage {
 		}
 	}
 	
-	private boolean userExists(final UserName userName) throws AuthStorageException {
-		try {
-			return db.getCollection(COL_USERS).count(
-					new Document(Fields.USER_NAME, userName.getName())) == 1;
-		} catch (MongoException e) {
-			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
-		}
-	}
-
 	@Override
 	public void removePolicyID(final PolicyID policyID) throws AuthStorageException {
 		nonNull(policyID, "policyID");
@@ -1779,4 +2760,216 @@ public class MongoStorage implements AuthStorage {
 			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
 		}
 	}
+	
+	/** A builder for a {@link MongoStorage} instance. All optional features are disabled by
+	 * default, other than revoked token records. Storage systems with features that use
+	 * background threads should be closed via {@link MongoStorage#close()} on shutdown.
+	 */
+	public static class Builder {
+		
+		private final MongoDatabase db;
+		private boolean deferIdentityUpdates = false;
+		private long lastLoginWriteBehindMS = 0;
+		private long userSearchIndexReloadMS = 0;
+		private long displayNameCacheSize = 0;
+		private long displayNameCacheExpireMS = 0;
+		private long expiredTokenSweepMS = 0;
+		private long customRoleCollectionMS = 0;
+		private long schemaMigrationMS = 0;
+		private ReadPreference nonCriticalReadPreference = ReadPreference.primary();
+		private Optional<SigningKeyEncryptor> signingKeyEncryptor = Optional.absent();
+		private boolean revokedTokenRecords = true;
+		
+		private Builder(final MongoDatabase db) {
+			nonNull(db, "db");
+			this.db = db;
+		}
+		
+		/** Defer identity detail updates.
+		 * 
+		 * If deferred identity updates are enabled, updates to remote identity details (the
+		 * provider user name, full name, and email address) found when getting users by remote
+		 * identity are queued, coalesced by identity ID, and written to the database in batches
+		 * by a background thread rather than on the calling thread.
+		 * @param defer true to defer identity detail updates.
+		 * @return this builder.
+		 */
+		public Builder withDeferredIdentityUpdates(final boolean defer) {
+			this.deferIdentityUpdates = defer;
+			return this;
+		}
+		
+		/** Buffer last login dates in memory.
+		 * 
+		 * If last login write behind is enabled,
+		 * {@link MongoStorage#setLastLogin(UserName, Instant)} buffers the last login date in
+		 * memory, keeping only the most recent date per user, and the dates are written to the
+		 * database in batches at the given interval. As such, the last login date returned from
+		 * the storage system may be out of date by up to the interval. Buffered dates are not
+		 * checked against existing users, so setLastLogin does not throw
+		 * {@link NoSuchUserException} and dates for non-existent users are discarded.
+		 * @param writeBehindMS the maximum time, in milliseconds, to buffer last login dates
+		 * before writing them to the database. Pass 0 to write the dates immediately.
+		 * @return this builder.
+		 */
+		public Builder withLastLoginWriteBehindMS(final long writeBehindMS) {
+			if (writeBehindMS < 0) {
+				throw new IllegalArgumentException("lastLoginWriteBehindMS must be at least 0");
+			}
+			this.lastLoginWriteBehindMS = writeBehindMS;
+			return this;
+		}
+		
+		/** Enable the user search index.
+		 * 
+		 * If the user search index is enabled, all user names and display names are loaded
+		 * into an in memory {@link UserPrefixIndex} on startup. Searches on a user or display
+		 * name prefix that do not filter on roles are then answered from the index rather than
+		 * the database. The index is updated when this storage instance creates users, changes
+		 * display names, or enables or disables accounts. Changes made by other instances, for
+		 * example other servers using the same database, are picked up when the index is
+		 * reloaded from the database at the given interval.
+		 * @param reloadMS the interval, in milliseconds, at which the user search index is
+		 * reloaded from the database. Pass 0 to disable the index.
+		 * @return this builder.
+		 */
+		public Builder withUserSearchIndexReloadMS(final long reloadMS) {
+			if (reloadMS < 0) {
+				throw new IllegalArgumentException("userSearchIndexReloadMS must be at least 0");
+			}
+			this.userSearchIndexReloadMS = reloadMS;
+			return this;
+		}
+		
+		/** Enable the display name cache.
+		 * 
+		 * If the display name cache is enabled, lookups of display names for a set of users
+		 * ({@link MongoStorage#getUserDisplayNames(Set)}) are served from a bounded
+		 * {@link DisplayNameCache} and only users missing from the cache are requested from the
+		 * database. Users that do not exist or are disabled are also cached. Cache entries are
+		 * removed when this storage instance creates users, changes display names, or enables or
+		 * disables accounts. Changes made by other instances are picked up when the cache
+		 * entries expire.
+		 * @param size the maximum number of users in the cache. Pass 0 to disable the cache.
+		 * @param expireMS the time, in milliseconds, after which cache entries expire. Ignored
+		 * if the cache is disabled.
+		 * @return this builder.
+		 */
+		public Builder withDisplayNameCache(final long size, final long expireMS) {
+			if (size < 0) {
+				throw new IllegalArgumentException("displayNameCacheSize must be at least 0");
+			}
+			this.displayNameCacheSize = size;
+			this.displayNameCacheExpireMS = expireMS;
+			return this;
+		}
+		
+		/** Enable the expired token sweeper.
+		 * 
+		 * Expired tokens and temporary tokens are always deleted by MongoDB's TTL monitor,
+		 * which runs about once a minute and deletes all the expired documents in one pass. If
+		 * the expired token sweeper is enabled, a background thread also deletes expired tokens
+		 * at the given interval via {@link MongoStorage#sweepExpiredTokens()}, in bounded
+		 * batches with a delay between batches, so that few expired tokens are left for the TTL
+		 * monitor.
+		 * @param sweepMS the interval, in milliseconds, at which expired tokens are deleted.
+		 * Pass 0 to disable the sweeper.
+		 * @return this builder.
+		 */
+		public Builder withExpiredTokenSweepMS(final long sweepMS) {
+			if (sweepMS < 0) {
+				throw new IllegalArgumentException("expiredTokenSweepMS must be at least 0");
+			}
+			this.expiredTokenSweepMS = sweepMS;
+			return this;
+		}
+		
+		/** Enable the deleted custom role collector.
+		 * 
+		 * Deleting a custom role only deletes the role record, and reads ignore deleted roles.
+		 * If the collector is enabled, a background thread removes deleted roles from user
+		 * records via {@link MongoStorage#collectDeletedCustomRoles()} after each deletion and
+		 * at the given interval, which also picks up roles deleted by other instances or before
+		 * a restart. Otherwise deleted roles remain in user records until
+		 * {@link MongoStorage#collectDeletedCustomRoles()} is called.
+		 * @param collectionMS the interval, in milliseconds, at which deleted roles are removed
+		 * from users. Pass 0 to disable the collector.
+		 * @return this builder.
+		 */
+		public Builder withCustomRoleCollectionMS(final long collectionMS) {
+			if (collectionMS < 0) {
+				throw new IllegalArgumentException("customRoleCollectionMS must be at least 0");
+			}
+			this.customRoleCollectionMS = collectionMS;
+			return this;
+		}
+		
+		/** Enable the schema migration runner.
+		 * 
+		 * If the runner is enabled, a background thread calls
+		 * {@link MongoStorage#runMigrations()} at the given interval. This resumes migrations
+		 * started by other instances or interrupted by a shutdown, and picks up settings changed
+		 * by migrations in other instances. Otherwise migrations only run when
+		 * {@link MongoStorage#runMigrations()} or {@link MongoStorage#migrateToBinaryKeys()} is
+		 * called.
+		 * @param migrationMS the interval, in milliseconds, at which migrations are run. Pass 0
+		 * to disable the runner.
+		 * @return this builder.
+		 */
+		public Builder withSchemaMigrationMS(final long migrationMS) {
+			if (migrationMS < 0) {
+				throw new IllegalArgumentException("schemaMigrationMS must be at least 0");
+			}
+			this.schemaMigrationMS = migrationMS;
+			return this;
+		}
+		
+		/** Set the read preference for reads where slightly out of date results are
+		 * acceptable, specifically display name lookups, user searches, user search index
+		 * reloads, and role counts. This allows spreading those reads across the members of a
+		 * replica set. All other reads, including token and user lookups, use the read
+		 * preference of the database. The default is the primary.
+		 * @param readPreference the read preference for reads that may be out of date.
+		 * @return this builder.
+		 */
+		public Builder withNonCriticalReadPreference(final ReadPreference readPreference) {
+			nonNull(readPreference, "nonCriticalReadPreference");
+			this.nonCriticalReadPreference = readPreference;
+			return this;
+		}
+		
+		/** Set the encryptor for the private keys of token signing keys. Private keys are only
+		 * stored in encrypted form, and so token signing keys cannot be stored or retrieved if
+		 * no encryptor is set.
+		 * @param encryptor the encryptor.
+		 * @return this builder.
+		 */
+		public Builder withSigningKeyEncryptor(final SigningKeyEncryptor encryptor) {
+			nonNull(encryptor, "encryptor");
+			this.signingKeyEncryptor = Optional.of(encryptor);
+			return this;
+		}
+		
+		/** Record deleted tokens as revoked. Revocation records are required if self contained
+		 * tokens are issued, since those tokens may be verified without looking them up in the
+		 * database. If revocation records are disabled, deleting tokens does not require
+		 * reading the tokens first and {@link MongoStorage#getRevokedTokens(Instant)} only
+		 * returns tokens revoked while records were enabled. Enabled by default.
+		 * @param record true to record deleted tokens as revoked.
+		 * @return this builder.
+		 */
+		public Builder withRevokedTokenRecords(final boolean record) {
+			this.revokedTokenRecords = record;
+			return this;
+		}
+		
+		/** Build the storage system.
+		 * @return the storage system.
+		 * @throws StorageInitException if the storage system could not be initialized.
+		 */
+		public MongoStorage build() throws StorageInitException {
+			//don't use timezone
+			return new MongoStorage(this, Clock.systemDefaultZone());
+		}
+	}
 }
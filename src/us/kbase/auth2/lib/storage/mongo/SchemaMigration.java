@@ -0,0 +1,48 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.UpdateOneModel;
+
+/** A data migration that upgrades the documents in a collection in place while the service is
+ * running. See {@link SchemaMigrator}.
+ *
+ * Since documents in the old and new forms coexist while a migration is running, the storage
+ * system must be able to read documents in either form.
+ */
+public interface SchemaMigration {
+
+	/** Get the name of the migration. The name is used to track the progress of the migration
+	 * in the database and must never change.
+	 * @return the name of the migration.
+	 */
+	String getName();
+
+	/** Get the name of the collection containing the documents to migrate.
+	 * @return the collection name.
+	 */
+	String getCollection();
+
+	/** Get a query that matches the documents that may need to be migrated. The query may match
+	 * documents that are already migrated, but should be as selective as possible.
+	 * @return the query.
+	 */
+	Document getQuery();
+
+	/** Get the fields required to migrate a document.
+	 * @return the projection.
+	 */
+	Document getProjection();
+
+	/** Get the updates that migrate a document. The updates must only apply if the document is
+	 * still in the old form, so that concurrent changes to the document are not overwritten and
+	 * the updates may be safely applied more than once.
+	 * @param document the document to migrate. The document contains at least the _id field and
+	 * the fields in the projection.
+	 * @return the updates, or an empty list if the document is already migrated or cannot be
+	 * migrated.
+	 */
+	List<UpdateOneModel<Document>> migrate(Document document);
+}
@@ -0,0 +1,375 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+import static us.kbase.auth2.lib.Utils.noNulls;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bson.Document;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+
+/** Runs online data migrations, so that the layout of stored documents can be changed without
+ * stopping the service.
+ *
+ * A migration is started with {@link #start(String)}, after which it is run in batches by
+ * {@link #run()}. Batches are small and separated by a delay so that a migration does not
+ * saturate the database. The progress of each migration, including the ID of the last document
+ * processed, is stored in the schema document in the config collection, so a migration
+ * interrupted by a shutdown is resumed where it stopped by the next call to {@link #run()} in any
+ * storage instance sharing the database. A storage instance claims a running migration for a
+ * limited time, renewed after each batch, so only one instance runs a migration at once.
+ *
+ * While a migration is running or complete, documents read by the storage system may be
+ * passed to {@link #upgradeOnRead(String, Document)}, which migrates them on a background thread
+ * if they are still in the old form. This upgrades frequently used documents early and catches
+ * documents written in the old form by instances that have not yet noticed the migration.
+ */
+public class SchemaMigrator {
+
+	/** The state of a migration. */
+	public enum State {
+		/** The migration has not been started. */
+		NOT_STARTED,
+		/** The migration has been started and has documents left to process. */
+		RUNNING,
+		/** The migration has processed all the documents. */
+		COMPLETE;
+	}
+
+	private static final String STATE_RUNNING = "running";
+	private static final String STATE_COMPLETE = "complete";
+
+	private static final long LEASE_MS = 5 * 60 * 1000;
+	private static final int UPGRADE_ON_READ_BATCH_SIZE = 1000;
+	private static final long UPGRADE_ON_READ_INTERVAL_MS = 1000;
+
+	private final MongoDatabase db;
+	private final Clock clock;
+	private final MongoCollection<Document> config;
+	private final Document configQuery;
+	private final Map<String, SchemaMigration> migrations = new LinkedHashMap<>();
+	private final int batchSize;
+	private final long batchDelayMS;
+	// identifies this instance when claiming migrations
+	private final String owner = UUID.randomUUID().toString();
+	private final WriteBehindQueue<String, Upgrade> upgrades;
+	private volatile Map<String, State> states = Collections.emptyMap();
+
+	private static class Upgrade {
+
+		private final String collection;
+		private final List<UpdateOneModel<Document>> updates;
+
+		private Upgrade(final String collection, final List<UpdateOneModel<Document>> updates) {
+			this.collection = collection;
+			this.updates = updates;
+		}
+	}
+
+	/** Create a migrator. The migration states are loaded from the database.
+	 * @param db the database containing the documents to migrate.
+	 * @param configCollection the name of the collection containing the schema document.
+	 * @param configQuery a query that matches the single schema document.
+	 * @param migrations the migrations that may be run.
+	 * @param batchSize the maximum number of documents to process in a batch.
+	 * @param batchDelayMS the delay between batches in milliseconds.
+	 * @param clock the clock used to date migrations and claims.
+	 * @throws AuthStorageException if the migration states could not be loaded.
+	 */
+	public SchemaMigrator(
+			final MongoDatabase db,
+			final String configCollection,
+			final Document configQuery,
+			final List<SchemaMigration> migrations,
+			final int batchSize,
+			final long batchDelayMS,
+			final Clock clock)
+			throws AuthStorageException {
+		nonNull(db, "db");
+		nonNull(configCollection, "configCollection");
+		nonNull(configQuery, "configQuery");
+		nonNull(migrations, "migrations");
+		noNulls(migrations, "Null migration in migrations");
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		if (batchDelayMS < 0) {
+			throw new IllegalArgumentException("batchDelayMS must be at least 0");
+		}
+		nonNull(clock, "clock");
+		for (final SchemaMigration m: migrations) {
+			// names are used in field paths
+			if (m.getName() == null || !m.getName().matches("[a-zA-Z0-9_-]+")) {
+				throw new IllegalArgumentException("Illegal migration name: " + m.getName());
+			}
+			if (this.migrations.put(m.getName(), m) != null) {
+				throw new IllegalArgumentException("Duplicate migration name: " + m.getName());
+			}
+		}
+		this.db = db;
+		this.clock = clock;
+		this.config = db.getCollection(configCollection);
+		this.configQuery = configQuery;
+		this.batchSize = batchSize;
+		this.batchDelayMS = batchDelayMS;
+		refresh();
+		upgrades = new WriteBehindQueue<>("schema-migration-upgrades", batch -> upgrade(batch),
+				UPGRADE_ON_READ_BATCH_SIZE, UPGRADE_ON_READ_INTERVAL_MS);
+	}
+
+	/** Reload the migration states from the database, to notice migrations started or completed
+	 * by other storage instances.
+	 * @throws AuthStorageException if an error occurred accessing the database.
+	 */
+	public void refresh() throws AuthStorageException {
+		final Document progress = getProgress();
+		final Map<String, State> s = new HashMap<>();
+		for (final String name: migrations.keySet()) {
+			s.put(name, toState(progress.get(name, Document.class)));
+		}
+		states = Collections.unmodifiableMap(s);
+	}
+
+	private Document getProgress() throws AuthStorageException {
+		final Document cfg;
+		try {
+			cfg = config.find(configQuery).first();
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+		if (cfg == null) {
+			throw new AuthStorageException("No schema document found in the database");
+		}
+		final Document progress = cfg.get(Fields.DB_SCHEMA_MIGRATIONS, Document.class);
+		return progress == null ? new Document() : progress;
+	}
+
+	private State toState(final Document progress) {
+		if (progress == null) {
+			return State.NOT_STARTED;
+		}
+		final String state = progress.getString(Fields.MIGRATION_STATE);
+		if (STATE_COMPLETE.equals(state)) {
+			return State.COMPLETE;
+		}
+		return STATE_RUNNING.equals(state) ? State.RUNNING : State.NOT_STARTED;
+	}
+
+	/** Get the state of a migration as of the last time the states were loaded from the
+	 * database.
+	 * @param name the name of the migration.
+	 * @return the state of the migration.
+	 */
+	public State getState(final String name) {
+		checkName(name);
+		return states.get(name);
+	}
+
+	private void checkName(final String name) {
+		nonNull(name, "name");
+		if (!migrations.containsKey(name)) {
+			throw new IllegalArgumentException("No such migration: " + name);
+		}
+	}
+
+	private String field(final String name, final String field) {
+		return Fields.DB_SCHEMA_MIGRATIONS + Fields.FIELD_SEP + name + Fields.FIELD_SEP + field;
+	}
+
+	/** Start a migration. A complete migration is restarted from the beginning, while starting a
+	 * running migration has no effect. The migration is not run until {@link #run()} is called.
+	 * @param name the name of the migration.
+	 * @throws AuthStorageException if an error occurred accessing the database.
+	 */
+	public void start(final String name) throws AuthStorageException {
+		checkName(name);
+		final Date now = new Date(clock.millis());
+		final Document query = new Document(configQuery)
+				.append(field(name, Fields.MIGRATION_STATE), new Document("$ne", STATE_RUNNING));
+		final Document update = new Document("$set", new Document(
+						Fields.DB_SCHEMA_MIGRATIONS + Fields.FIELD_SEP + name,
+						new Document(Fields.MIGRATION_STATE, STATE_RUNNING)
+								.append(Fields.MIGRATION_COUNT, 0L)
+								.append(Fields.MIGRATION_STARTED, now)
+								.append(Fields.MIGRATION_UPDATED, now)));
+		try {
+			config.updateOne(query, update);
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		}
+		refresh();
+	}
+
+	/** Run all the running migrations to completion, skipping any migration currently claimed by
+	 * another storage instance. If the thread is interrupted the migrations are left to be
+	 * resumed by a later call to this method.
+	 * @return the number of documents updated.
+	 * @throws AuthStorageException if an error occurred accessing the database.
+	 */
+	public long run() throws AuthStorageException {
+		refresh();
+		long count = 0;
+		try {
+			for (final SchemaMigration m: migrations.values()) {
+				if (State.RUNNING.equals(states.get(m.getName()))) {
+					count += run(m);
+				}
+			}
+		} catch (MongoException e) {
+			throw new AuthStorageException("Connection to database failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			// shutting down, the claim expires and the migration is resumed later
+			Thread.currentThread().interrupt();
+		} finally {
+			refresh();
+		}
+		return count;
+	}
+
+	private long run(final SchemaMigration m) throws InterruptedException {
+		final MongoCollection<Document> col = db.getCollection(m.getCollection());
+		long count = 0;
+		while (true) {
+			final Document progress = claim(m.getName());
+			if (progress == null) {
+				return count; // complete, or claimed by another instance
+			}
+			final Object lastID = progress.get(Fields.MIGRATION_LAST_ID);
+			final Document query = new Document(m.getQuery());
+			if (lastID != null) {
+				// walk the documents in _id order so each is visited once
+				query.append(Fields.MONGO_ID, new Document("$gt", lastID));
+			}
+			final List<UpdateOneModel<Document>> updates = new LinkedList<>();
+			Object last = lastID;
+			int size = 0;
+			for (final Document d: col.find(query).projection(m.getProjection())
+					.sort(new Document(Fields.MONGO_ID, 1)).limit(batchSize)) {
+				updates.addAll(m.migrate(d));
+				last = d.get(Fields.MONGO_ID);
+				size++;
+			}
+			final long updated = write(m.getCollection(), updates);
+			count += updated;
+			final Document set = new Document(field(m.getName(), Fields.MIGRATION_UPDATED),
+					new Date(clock.millis()));
+			if (last != null) {
+				set.append(field(m.getName(), Fields.MIGRATION_LAST_ID), last);
+			}
+			if (size < batchSize) {
+				set.append(field(m.getName(), Fields.MIGRATION_STATE), STATE_COMPLETE)
+						.append(field(m.getName(), Fields.MIGRATION_OWNER), null)
+						.append(field(m.getName(), Fields.MIGRATION_LEASE_EXPIRY), null);
+			}
+			// if the claim was lost the batch is repeated by the new owner, which is harmless
+			config.updateOne(new Document(configQuery)
+					.append(field(m.getName(), Fields.MIGRATION_OWNER), owner),
+					new Document("$set", set).append("$inc", new Document(
+							field(m.getName(), Fields.MIGRATION_COUNT), updated)));
+			if (size < batchSize) {
+				LoggerFactory.getLogger(getClass()).info(
+						"Completed schema migration " + m.getName());
+				return count;
+			}
+			Thread.sleep(batchDelayMS);
+		}
+	}
+
+	// returns the migration progress if the migration is running and this instance claimed it
+	private Document claim(final String name) {
+		final long now = clock.millis();
+		final Document query = new Document(configQuery)
+				.append(field(name, Fields.MIGRATION_STATE), STATE_RUNNING)
+				.append("$or", Arrays.asList(
+						new Document(field(name, Fields.MIGRATION_OWNER), owner),
+						new Document(field(name, Fields.MIGRATION_LEASE_EXPIRY), null),
+						new Document(field(name, Fields.MIGRATION_LEASE_EXPIRY),
+								new Document("$lt", new Date(now)))));
+		final Document update = new Document("$set", new Document(
+				field(name, Fields.MIGRATION_OWNER), owner)
+				.append(field(name, Fields.MIGRATION_LEASE_EXPIRY), new Date(now + LEASE_MS)));
+		final Document cfg = config.findOneAndUpdate(query, update,
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+		if (cfg == null) {
+			return null;
+		}
+		return cfg.get(Fields.DB_SCHEMA_MIGRATIONS, Document.class).get(name, Document.class);
+	}
+
+	private long write(final String collection, final List<UpdateOneModel<Document>> updates) {
+		if (updates.isEmpty()) {
+			return 0;
+		}
+		try {
+			return db.getCollection(collection).bulkWrite(
+					updates, new BulkWriteOptions().ordered(false)).getModifiedCount();
+		} catch (MongoBulkWriteException e) {
+			// retrying won't help, so leave the documents for an administrator to inspect
+			LoggerFactory.getLogger(getClass()).error(String.format(
+					"Failed to migrate %s documents in collection %s: %s",
+					e.getWriteErrors().size(), collection, e.getMessage()), e);
+			return e.getWriteResult().getModifiedCount();
+		}
+	}
+
+	/** Migrate a document that was read from the database if any running or complete migration
+	 * applies to it. The migration is deferred to a background thread, and so the document
+	 * passed to this method is not altered.
+	 * @param collection the collection from which the document was read.
+	 * @param document the document, including the _id field.
+	 */
+	public void upgradeOnRead(final String collection, final Document document) {
+		nonNull(collection, "collection");
+		nonNull(document, "document");
+		final Map<String, State> s = states;
+		for (final SchemaMigration m: migrations.values()) {
+			if (!State.NOT_STARTED.equals(s.get(m.getName())) &&
+					m.getCollection().equals(collection)) {
+				final List<UpdateOneModel<Document>> updates = m.migrate(document);
+				if (!updates.isEmpty()) {
+					upgrades.add(m.getName() + Fields.FIELD_SEP +
+							document.get(Fields.MONGO_ID), new Upgrade(collection, updates));
+				}
+			}
+		}
+	}
+
+	private void upgrade(final Map<String, Upgrade> batch) {
+		final Map<String, List<UpdateOneModel<Document>>> updates = new HashMap<>();
+		for (final Upgrade u: batch.values()) {
+			updates.computeIfAbsent(u.collection, k -> new LinkedList<>()).addAll(u.updates);
+		}
+		for (final String collection: updates.keySet()) {
+			// connection failures are retried by the write behind queue
+			write(collection, updates.get(collection));
+		}
+	}
+
+	/** Write any pending upgrades to the database and stop the background thread.
+	 * @throws InterruptedException if the thread is interrupted while waiting for the background
+	 * thread to stop.
+	 */
+	public void close() throws InterruptedException {
+		upgrades.close();
+	}
+}
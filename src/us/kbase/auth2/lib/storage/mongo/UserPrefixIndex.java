@@ -0,0 +1,123 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+
+/** An in memory index of user names and display names that supports the same prefix searches
+ * as the storage system - a prefix matches the start of the user name or the start of any token
+ * of the canonical display name (see {@link DisplayName#getCanonicalDisplayName()}).
+ *
+ * The index is a pair of sorted maps from user names and display name tokens to users, so a
+ * prefix search is a range scan over the matching keys. Updates replace all the entries for a
+ * user and are serialized; searches do not block.
+ */
+public class UserPrefixIndex {
+
+	private static class IndexedUser {
+
+		private final DisplayName displayName;
+		private final Set<String> tokens;
+		private final boolean disabled;
+
+		private IndexedUser(final DisplayName displayName, final boolean disabled) {
+			this.displayName = displayName;
+			this.tokens = new HashSet<>(displayName.getCanonicalDisplayName());
+			this.disabled = disabled;
+		}
+	}
+
+	private final ConcurrentHashMap<UserName, IndexedUser> users = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<String, UserName> userNames =
+			new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<String, Set<UserName>> tokens =
+			new ConcurrentSkipListMap<>();
+
+	/** Add a user to the index or replace the user's entry.
+	 * @param userName the user's name.
+	 * @param displayName the user's display name.
+	 * @param disabled true if the user's account is disabled.
+	 */
+	public synchronized void put(
+			final UserName userName,
+			final DisplayName displayName,
+			final boolean disabled) {
+		nonNull(userName, "userName");
+		nonNull(displayName, "displayName");
+		final IndexedUser newUser = new IndexedUser(displayName, disabled);
+		final IndexedUser old = users.put(userName, newUser);
+		userNames.put(userName.getName(), userName);
+		if (old != null) {
+			for (final String t: old.tokens) {
+				if (!newUser.tokens.contains(t)) {
+					final Set<UserName> s = tokens.get(t);
+					s.remove(userName);
+					if (s.isEmpty()) {
+						tokens.remove(t);
+					}
+				}
+			}
+		}
+		for (final String t: newUser.tokens) {
+			tokens.computeIfAbsent(t, k -> ConcurrentHashMap.newKeySet()).add(userName);
+		}
+	}
+
+	/** Get the number of users in the index.
+	 * @return the number of users.
+	 */
+	public int size() {
+		return users.size();
+	}
+
+	/** Search for users.
+	 * @param prefix the prefix to search for. The prefix is lowercased before searching.
+	 * @param searchUserName true to search on the user name.
+	 * @param searchDisplayName true to search on the display name tokens.
+	 * @param includeDisabled true to include disabled users in the results.
+	 * @return the matching users mapped to their display names, sorted by user name.
+	 */
+	public NavigableMap<UserName, DisplayName> search(
+			final String prefix,
+			final boolean searchUserName,
+			final boolean searchDisplayName,
+			final boolean includeDisabled) {
+		nonNull(prefix, "prefix");
+		final String p = prefix.toLowerCase();
+		final Set<UserName> matches = new HashSet<>();
+		if (searchUserName) {
+			matches.addAll(range(userNames, p).values());
+		}
+		if (searchDisplayName) {
+			for (final Set<UserName> s: range(tokens, p).values()) {
+				matches.addAll(s);
+			}
+		}
+		final NavigableMap<UserName, DisplayName> ret = new TreeMap<>(
+				(u1, u2) -> u1.getName().compareTo(u2.getName()));
+		for (final UserName u: matches) {
+			final IndexedUser iu = users.get(u);
+			// iu may be null for a user added since the search started
+			if (iu != null && (includeDisabled || !iu.disabled)) {
+				ret.put(u, iu.displayName);
+			}
+		}
+		return ret;
+	}
+
+	private <T> Map<String, T> range(final ConcurrentSkipListMap<String, T> map, final String p) {
+		if (p.isEmpty()) {
+			return map;
+		}
+		return map.subMap(p, true, p + Character.MAX_VALUE, true);
+	}
+}
@@ -0,0 +1,177 @@
+package us.kbase.auth2.lib.storage.mongo;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+
+import org.slf4j.LoggerFactory;
+
+/** A queue for non-critical writes that coalesces the writes by key and writes them to the
+ * storage system in batches on a background thread.
+ *
+ * Writes with the same key that are added between flushes are merged, so at most one write per
+ * key is sent to the storage system per flush. The queue is flushed periodically, when the number
+ * of pending keys reaches the batch size, and when the queue is closed.
+ *
+ * If a batch write fails, the failure is logged and the batch is returned to the queue to be
+ * retried on the next flush.
+ *
+ * @param <K> the type of the key by which writes are coalesced.
+ * @param <V> the type of the writes.
+ */
+public class WriteBehindQueue<K, V> {
+
+	/** Writes a batch of coalesced writes to a storage system.
+	 *
+	 * @param <K> the type of the key by which writes are coalesced.
+	 * @param <V> the type of the writes.
+	 */
+	public interface BatchWriter<K, V> {
+
+		/** Write a batch of writes.
+		 * @param batch the writes to make, keyed by the coalescing key.
+		 * @throws Exception if the writes failed.
+		 */
+		void write(Map<K, V> batch) throws Exception;
+	}
+
+	private final ConcurrentHashMap<K, V> pending = new ConcurrentHashMap<>();
+	private final Object flushLock = new Object();
+	private final BatchWriter<K, V> writer;
+	private final BinaryOperator<V> merger;
+	private final int batchSize;
+	private final ScheduledExecutorService executor;
+	private volatile boolean closed = false;
+
+	/** Create a write behind queue where a newer write for a key replaces an older write.
+	 * @param name the name of the queue, used to name the background thread.
+	 * @param writer the writer that writes batches to the storage system.
+	 * @param batchSize the maximum number of writes to send to the writer at once.
+	 * @param flushIntervalMS the interval between flushes in milliseconds.
+	 */
+	public WriteBehindQueue(
+			final String name,
+			final BatchWriter<K, V> writer,
+			final int batchSize,
+			final long flushIntervalMS) {
+		this(name, writer, (older, newer) -> newer, batchSize, flushIntervalMS);
+	}
+
+	/** Create a write behind queue.
+	 * @param name the name of the queue, used to name the background thread.
+	 * @param writer the writer that writes batches to the storage system.
+	 * @param merger merges two writes with the same key. The first argument is the older write
+	 * and the second the newer.
+	 * @param batchSize the maximum number of writes to send to the writer at once.
+	 * @param flushIntervalMS the interval between flushes in milliseconds.
+	 */
+	public WriteBehindQueue(
+			final String name,
+			final BatchWriter<K, V> writer,
+			final BinaryOperator<V> merger,
+			final int batchSize,
+			final long flushIntervalMS) {
+		checkStringNoCheckedException(name, "name");
+		nonNull(writer, "writer");
+		nonNull(merger, "merger");
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		if (flushIntervalMS < 1) {
+			throw new IllegalArgumentException("flushIntervalMS must be at least 1");
+		}
+		this.writer = writer;
+		this.merger = merger;
+		this.batchSize = batchSize;
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(
+				this::flush, flushIntervalMS, flushIntervalMS, TimeUnit.MILLISECONDS);
+	}
+
+	/** Add a write to the queue. If a write with the same key is already pending, the writes are
+	 * merged.
+	 *
+	 * If the queue has been closed, the write is made immediately on the calling thread.
+	 * @param key the key by which to coalesce the write.
+	 * @param value the write.
+	 */
+	public void add(final K key, final V value) {
+		nonNull(key, "key");
+		nonNull(value, "value");
+		pending.merge(key, value, merger);
+		if (closed) {
+			flush();
+		} else if (pending.size() >= batchSize) {
+			try {
+				executor.execute(this::flush);
+			} catch (RejectedExecutionException e) {
+				// closed between the check and the submission
+				flush();
+			}
+		}
+	}
+
+	/** Get the number of keys with pending writes.
+	 * @return the number of pending writes.
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/** Write all pending writes to the storage system on the calling thread. Stops at the first
+	 * failed batch.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			while (!pending.isEmpty()) {
+				final Map<K, V> batch = new HashMap<>();
+				final Iterator<K> keys = pending.keySet().iterator();
+				while (keys.hasNext() && batch.size() < batchSize) {
+					final K key = keys.next();
+					final V value = pending.remove(key);
+					if (value != null) { // removed by a concurrent flush, shouldn't happen
+						batch.put(key, value);
+					}
+				}
+				try {
+					writer.write(batch);
+				} catch (Exception e) {
+					LoggerFactory.getLogger(getClass()).error(String.format(
+							"Deferred write of %s items failed, will retry: %s",
+							batch.size(), e.getMessage()), e);
+					// any write added since the batch was removed is newer than the failed write
+					for (final K key: batch.keySet()) {
+						pending.merge(key, batch.get(key),
+								(current, failed) -> merger.apply(failed, current));
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/** Stop the background thread and write any pending writes to the storage system. Writes
+	 * added after the queue is closed are made immediately.
+	 * @throws InterruptedException if the thread is interrupted while waiting for the background
+	 * thread to stop.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		flush();
+	}
+}
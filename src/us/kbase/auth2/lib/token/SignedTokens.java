@@ -0,0 +1,297 @@
+package us.kbase.auth2.lib.token;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.exceptions.IllegalParameterException;
+import us.kbase.auth2.lib.exceptions.InvalidTokenException;
+import us.kbase.auth2.lib.exceptions.MissingParameterException;
+
+/** Signs and verifies self contained tokens and token assertions.
+ *
+ * A signed token is an RS256 JSON Web Token (JWT) carrying the token ID, user name, type,
+ * name, and lifetime of a {@link StoredToken}, and can therefore be verified without a storage
+ * system lookup given the public key with which it was signed. The token creation context is
+ * not included. Token dates are stored with a precision of one second, and so tokens should be
+ * created with dates truncated to seconds.
+ *
+ * Standard tokens never contain a period, so signed tokens can be distinguished from standard
+ * tokens with {@link #isSigned(String)}.
+ *
+ * A token assertion is a signed statement of the same token fields, with dates in
+ * milliseconds, that may be handed to other services so they can verify a user's identity
+ * without contacting the authentication service. An assertion has a different JWT type than a
+ * signed token and cannot be used as a token.
+ */
+public class SignedTokens {
+
+	private static final String ALGORITHM = "RS256";
+	private static final String JAVA_ALGORITHM = "SHA256withRSA";
+
+	private static final String HEADER_ALG = "alg";
+	private static final String HEADER_TYPE = "typ";
+	private static final String HEADER_KEY_ID = "kid";
+	private static final String TYPE_TOKEN = "JWT";
+	private static final String TYPE_ASSERTION = "token-assertion+jwt";
+
+	private static final String CLAIM_ID = "jti";
+	private static final String CLAIM_USER = "sub";
+	private static final String CLAIM_TYPE = "type";
+	private static final String CLAIM_NAME = "name";
+	private static final String CLAIM_CREATED = "iat";
+	private static final String CLAIM_EXPIRES = "exp";
+	private static final String CLAIM_TOKEN_CREATED = "created";
+	private static final String CLAIM_TOKEN_EXPIRES = "expires";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private SignedTokens() {}
+
+	/** Check whether a token string is in the signed token format. This method does not check
+	 * the signature.
+	 * @param token the token string.
+	 * @return true if the token is in the signed token format.
+	 */
+	public static boolean isSigned(final String token) {
+		checkStringNoCheckedException(token, "token");
+		return token.indexOf('.') >= 0;
+	}
+
+	/** Sign a token.
+	 * @param token the token to sign.
+	 * @param key the key with which to sign the token.
+	 * @return the signed token string.
+	 */
+	public static String sign(final StoredToken token, final TokenSigningKey key) {
+		nonNull(token, "token");
+		nonNull(key, "key");
+		final Map<String, Object> claims = getTokenClaims(token);
+		claims.put(CLAIM_CREATED, token.getCreationDate().getEpochSecond());
+		claims.put(CLAIM_EXPIRES, token.getExpirationDate().getEpochSecond());
+		return sign(TYPE_TOKEN, claims, key);
+	}
+	
+	/** Create a signed assertion of a token's details. The assertion expires when the token
+	 * expires.
+	 * @param token the token.
+	 * @param key the key with which to sign the assertion.
+	 * @param issued the date the assertion was issued.
+	 * @return the signed assertion.
+	 */
+	public static String signAssertion(
+			final StoredToken token,
+			final TokenSigningKey key,
+			final Instant issued) {
+		nonNull(token, "token");
+		nonNull(key, "key");
+		nonNull(issued, "issued");
+		final Map<String, Object> claims = getTokenClaims(token);
+		claims.put(CLAIM_TOKEN_CREATED, token.getCreationDate().toEpochMilli());
+		claims.put(CLAIM_TOKEN_EXPIRES, token.getExpirationDate().toEpochMilli());
+		claims.put(CLAIM_CREATED, issued.getEpochSecond());
+		claims.put(CLAIM_EXPIRES, token.getExpirationDate().getEpochSecond());
+		return sign(TYPE_ASSERTION, claims, key);
+	}
+	
+	private static Map<String, Object> getTokenClaims(final StoredToken token) {
+		final Map<String, Object> claims = new LinkedHashMap<>();
+		claims.put(CLAIM_ID, token.getId().toString());
+		claims.put(CLAIM_USER, token.getUserName().getName());
+		claims.put(CLAIM_TYPE, token.getTokenType().getID());
+		if (token.getTokenName().isPresent()) {
+			claims.put(CLAIM_NAME, token.getTokenName().get().getName());
+		}
+		return claims;
+	}
+	
+	private static String sign(
+			final String type,
+			final Map<String, Object> claims,
+			final TokenSigningKey key) {
+		final Map<String, Object> header = new LinkedHashMap<>();
+		header.put(HEADER_ALG, ALGORITHM);
+		header.put(HEADER_TYPE, type);
+		header.put(HEADER_KEY_ID, key.getKeyID());
+		final String signed = encode(header) + "." + encode(claims);
+		try {
+			final Signature sig = Signature.getInstance(JAVA_ALGORITHM);
+			sig.initSign(key.getPrivateKey());
+			sig.update(signed.getBytes(StandardCharsets.US_ASCII));
+			return signed + "." + ENCODER.encodeToString(sig.sign());
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Unable to sign token: " + e.getMessage(), e);
+		}
+	}
+
+	private static String encode(final Map<String, Object> json) {
+		try {
+			return ENCODER.encodeToString(MAPPER.writeValueAsBytes(json));
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+	}
+
+	/** Get the ID of the key with which a signed token was signed. This method does not check
+	 * the signature.
+	 * @param token the signed token string.
+	 * @return the key ID.
+	 * @throws InvalidTokenException if the token is not a well formed signed token.
+	 */
+	public static String getKeyID(final String token) throws InvalidTokenException {
+		final Object kid = decodeJSON(split(token)[0]).get(HEADER_KEY_ID);
+		if (!(kid instanceof String)) {
+			throw new InvalidTokenException("Signed token has no key ID");
+		}
+		return (String) kid;
+	}
+
+	/** Verify a signed token.
+	 * @param token the signed token string.
+	 * @param key the public key of the key with which the token was signed.
+	 * @param now the current time. If the token is expired at this time, verification fails.
+	 * @return the token.
+	 * @throws InvalidTokenException if the token is not a well formed signed token, the
+	 * signature is invalid, or the token is expired.
+	 */
+	public static StoredToken verify(final String token, final PublicKey key, final Instant now)
+			throws InvalidTokenException {
+		final Map<String, Object> claims = verify(TYPE_TOKEN, token, key);
+		return toToken(claims, now, CLAIM_CREATED, CLAIM_EXPIRES, 1000);
+	}
+	
+	/** Verify a token assertion.
+	 * @param assertion the signed assertion.
+	 * @param key the public key of the key with which the assertion was signed.
+	 * @param now the current time. If the asserted token is expired at this time, verification
+	 * fails.
+	 * @return the asserted token.
+	 * @throws InvalidTokenException if the assertion is not a well formed token assertion, the
+	 * signature is invalid, or the token is expired.
+	 */
+	public static StoredToken verifyAssertion(
+			final String assertion,
+			final PublicKey key,
+			final Instant now)
+			throws InvalidTokenException {
+		final Map<String, Object> claims = verify(TYPE_ASSERTION, assertion, key);
+		return toToken(claims, now, CLAIM_TOKEN_CREATED, CLAIM_TOKEN_EXPIRES, 1);
+	}
+	
+	// returns the claims
+	private static Map<String, Object> verify(
+			final String type,
+			final String token,
+			final PublicKey key)
+			throws InvalidTokenException {
+		nonNull(key, "key");
+		final String[] parts = split(token);
+		final Map<String, Object> header = decodeJSON(parts[0]);
+		if (!ALGORITHM.equals(header.get(HEADER_ALG))) {
+			throw new InvalidTokenException("Unsupported signed token algorithm");
+		}
+		if (!type.equals(header.get(HEADER_TYPE))) {
+			throw new InvalidTokenException("Unexpected signed token type");
+		}
+		try {
+			final Signature sig = Signature.getInstance(JAVA_ALGORITHM);
+			sig.initVerify(key);
+			sig.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+			if (!sig.verify(decode(parts[2]))) {
+				throw new InvalidTokenException("Bad token signature");
+			}
+		} catch (GeneralSecurityException e) {
+			throw new InvalidTokenException("Bad token signature");
+		}
+		return decodeJSON(parts[1]);
+	}
+	
+	private static StoredToken toToken(
+			final Map<String, Object> claims,
+			final Instant now,
+			final String createdClaim,
+			final String expiresClaim,
+			final long msPerUnit)
+			throws InvalidTokenException {
+		nonNull(now, "now");
+		final StoredToken st;
+		try {
+			st = StoredToken.getBuilder(
+						TokenType.getType(getString(claims, CLAIM_TYPE)),
+						UUID.fromString(getString(claims, CLAIM_ID)),
+						new UserName(getString(claims, CLAIM_USER)))
+					.withLifeTime(
+							Instant.ofEpochMilli(getLong(claims, createdClaim) * msPerUnit),
+							Instant.ofEpochMilli(getLong(claims, expiresClaim) * msPerUnit))
+					.withNullableTokenName(claims.get(CLAIM_NAME) == null ? null :
+						new TokenName(getString(claims, CLAIM_NAME)))
+					.build();
+		} catch (IllegalArgumentException | IllegalParameterException |
+				MissingParameterException e) {
+			throw new InvalidTokenException("Illegal signed token contents");
+		}
+		if (now.isAfter(st.getExpirationDate())) {
+			throw new InvalidTokenException("Token is expired");
+		}
+		return st;
+	}
+
+	private static String[] split(final String token) throws InvalidTokenException {
+		checkStringNoCheckedException(token, "token");
+		final String[] parts = token.split("\\.");
+		if (parts.length != 3) {
+			throw new InvalidTokenException("Not a signed token");
+		}
+		return parts;
+	}
+
+	private static byte[] decode(final String part) throws InvalidTokenException {
+		try {
+			return DECODER.decode(part);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidTokenException("Illegal signed token encoding");
+		}
+	}
+
+	private static Map<String, Object> decodeJSON(final String part)
+			throws InvalidTokenException {
+		try {
+			return MAPPER.readValue(decode(part), new TypeReference<Map<String, Object>>() {});
+		} catch (IOException e) {
+			throw new InvalidTokenException("Illegal signed token encoding");
+		}
+	}
+
+	private static String getString(final Map<String, Object> claims, final String claim) {
+		final Object o = claims.get(claim);
+		if (!(o instanceof String)) {
+			throw new IllegalArgumentException("bad claim " + claim);
+		}
+		return (String) o;
+	}
+
+	private static long getLong(final Map<String, Object> claims, final String claim) {
+		final Object o = claims.get(claim);
+		if (!(o instanceof Integer) && !(o instanceof Long)) {
+			throw new IllegalArgumentException("bad claim " + claim);
+		}
+		return ((Number) o).longValue();
+	}
+}
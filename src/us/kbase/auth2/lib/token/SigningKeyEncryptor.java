@@ -0,0 +1,104 @@
+package us.kbase.auth2.lib.token;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Encrypts and decrypts the private keys of {@link TokenSigningKey}s so that they are not
+ * stored in plain text.
+ *
+ * Private keys are encrypted with AES in GCM mode with a key derived from a secret, which should
+ * be long and random and must be kept out of the storage system. The key ID is authenticated
+ * along with the private key, so an encrypted private key cannot be moved to a different key ID.
+ */
+public class SigningKeyEncryptor {
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final String KEY_ALGORITHM = "AES";
+	private static final int KEY_SIZE_BYTES = 16;
+	private static final int IV_SIZE_BYTES = 12;
+	private static final int TAG_SIZE_BITS = 128;
+
+	private final SecretKeySpec key;
+	private final SecureRandom random = new SecureRandom();
+
+	/** Create an encryptor.
+	 * @param secret the secret from which the encryption key is derived.
+	 */
+	public SigningKeyEncryptor(final String secret) {
+		checkStringNoCheckedException(secret, "secret");
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(
+					secret.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+		key = new SecretKeySpec(Arrays.copyOf(digest, KEY_SIZE_BYTES), KEY_ALGORITHM);
+	}
+
+	/** Encrypt the private key of a signing key.
+	 * @param signingKey the signing key.
+	 * @return the base64 encoded encrypted private key.
+	 */
+	public String encryptPrivateKey(final TokenSigningKey signingKey) {
+		nonNull(signingKey, "signingKey");
+		final byte[] iv = new byte[IV_SIZE_BYTES];
+		random.nextBytes(iv);
+		try {
+			final Cipher c = getCipher(Cipher.ENCRYPT_MODE, iv, signingKey.getKeyID());
+			final byte[] enc = c.doFinal(signingKey.getPrivateKey().getEncoded());
+			return Base64.getEncoder().encodeToString(
+					ByteBuffer.allocate(iv.length + enc.length).put(iv).put(enc).array());
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+	}
+
+	/** Decrypt a private key encrypted by {@link #encryptPrivateKey(TokenSigningKey)}.
+	 * @param keyID the ID of the signing key.
+	 * @param encryptedPrivateKey the base64 encoded encrypted private key.
+	 * @return the base64 encoded PKCS #8 form of the private key, as returned by
+	 * {@link TokenSigningKey#getEncodedPrivateKey()}.
+	 * @throws IllegalArgumentException if the private key cannot be decrypted, for example
+	 * because it was encrypted with a different secret or for a different key ID.
+	 */
+	public String decryptPrivateKey(final String keyID, final String encryptedPrivateKey) {
+		checkStringNoCheckedException(keyID, "keyID");
+		checkStringNoCheckedException(encryptedPrivateKey, "encryptedPrivateKey");
+		try {
+			final byte[] enc = Base64.getDecoder().decode(encryptedPrivateKey);
+			if (enc.length <= IV_SIZE_BYTES) {
+				throw new IllegalArgumentException(
+						"Encrypted private key for key ID " + keyID + " is too short");
+			}
+			final Cipher c = getCipher(Cipher.DECRYPT_MODE,
+					Arrays.copyOf(enc, IV_SIZE_BYTES), keyID);
+			return Base64.getEncoder().encodeToString(
+					c.doFinal(enc, IV_SIZE_BYTES, enc.length - IV_SIZE_BYTES));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException(
+					"Unable to decrypt private key for key ID " + keyID, e);
+		}
+	}
+
+	private Cipher getCipher(final int mode, final byte[] iv, final String keyID)
+			throws GeneralSecurityException {
+		final Cipher c = Cipher.getInstance(CIPHER);
+		c.init(mode, key, new GCMParameterSpec(TAG_SIZE_BITS, iv));
+		c.updateAAD(keyID.getBytes(StandardCharsets.UTF_8));
+		return c;
+	}
+}
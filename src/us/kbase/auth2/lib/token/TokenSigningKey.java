@@ -0,0 +1,179 @@
+package us.kbase.auth2.lib.token;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+
+/** An RSA key pair used to sign and verify self contained tokens.
+ *
+ * Keys are identified by a key ID, which is included in the header of each token signed with
+ * the key so that the key can be found when verifying the token.
+ */
+public class TokenSigningKey {
+
+	private static final String ALGORITHM = "RSA";
+	private static final int KEY_SIZE = 2048;
+
+	private final String keyID;
+	private final Instant created;
+	private final RSAPublicKey publicKey;
+	private final PrivateKey privateKey;
+
+	private TokenSigningKey(
+			final String keyID,
+			final Instant created,
+			final RSAPublicKey publicKey,
+			final PrivateKey privateKey) {
+		this.keyID = keyID;
+		this.created = created;
+		this.publicKey = publicKey;
+		this.privateKey = privateKey;
+	}
+
+	/** Generate a new signing key.
+	 * @param keyID the ID of the key.
+	 * @param created the creation date of the key.
+	 * @return the new key.
+	 */
+	public static TokenSigningKey generate(final String keyID, final Instant created) {
+		checkStringNoCheckedException(keyID, "keyID");
+		nonNull(created, "created");
+		final KeyPairGenerator gen;
+		try {
+			gen = KeyPairGenerator.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+		gen.initialize(KEY_SIZE);
+		final KeyPair kp = gen.generateKeyPair();
+		return new TokenSigningKey(
+				keyID, created, (RSAPublicKey) kp.getPublic(), kp.getPrivate());
+	}
+
+	/** Create a signing key from encoded keys, for example keys retrieved from a storage system.
+	 * @param keyID the ID of the key.
+	 * @param created the creation date of the key.
+	 * @param encodedPublicKey the base64 encoded X.509 form of the public key, as returned by
+	 * {@link #getEncodedPublicKey()}.
+	 * @param encodedPrivateKey the base64 encoded PKCS #8 form of the private key, as returned
+	 * by {@link #getEncodedPrivateKey()}.
+	 * @return the key.
+	 * @throws IllegalArgumentException if either encoded key is invalid.
+	 */
+	public static TokenSigningKey fromEncoded(
+			final String keyID,
+			final Instant created,
+			final String encodedPublicKey,
+			final String encodedPrivateKey) {
+		checkStringNoCheckedException(keyID, "keyID");
+		nonNull(created, "created");
+		checkStringNoCheckedException(encodedPublicKey, "encodedPublicKey");
+		checkStringNoCheckedException(encodedPrivateKey, "encodedPrivateKey");
+		try {
+			final KeyFactory kf = KeyFactory.getInstance(ALGORITHM);
+			final PublicKey pub = kf.generatePublic(new X509EncodedKeySpec(
+					Base64.getDecoder().decode(encodedPublicKey)));
+			final PrivateKey priv = kf.generatePrivate(new PKCS8EncodedKeySpec(
+					Base64.getDecoder().decode(encodedPrivateKey)));
+			return new TokenSigningKey(keyID, created, (RSAPublicKey) pub, priv);
+		} catch (GeneralSecurityException | ClassCastException e) {
+			throw new IllegalArgumentException("Invalid key for key ID " + keyID, e);
+		}
+	}
+
+	/** Get the ID of the key.
+	 * @return the key ID.
+	 */
+	public String getKeyID() {
+		return keyID;
+	}
+
+	/** Get the date the key was created.
+	 * @return the creation date.
+	 */
+	public Instant getCreationDate() {
+		return created;
+	}
+
+	/** Get the public key, used to verify tokens.
+	 * @return the public key.
+	 */
+	public RSAPublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	/** Get the private key, used to sign tokens.
+	 * @return the private key.
+	 */
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	/** Get the base64 encoded X.509 form of the public key.
+	 * @return the encoded public key.
+	 */
+	public String getEncodedPublicKey() {
+		return Base64.getEncoder().encodeToString(publicKey.getEncoded());
+	}
+
+	/** Get the base64 encoded PKCS #8 form of the private key.
+	 * @return the encoded private key.
+	 */
+	public String getEncodedPrivateKey() {
+		return Base64.getEncoder().encodeToString(privateKey.getEncoded());
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((created == null) ? 0 : created.hashCode());
+		result = prime * result + ((keyID == null) ? 0 : keyID.hashCode());
+		result = prime * result + Arrays.hashCode(publicKey.getEncoded());
+		result = prime * result + Arrays.hashCode(privateKey.getEncoded());
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final TokenSigningKey other = (TokenSigningKey) obj;
+		if (created == null) {
+			if (other.created != null) {
+				return false;
+			}
+		} else if (!created.equals(other.created)) {
+			return false;
+		}
+		if (keyID == null) {
+			if (other.keyID != null) {
+				return false;
+			}
+		} else if (!keyID.equals(other.keyID)) {
+			return false;
+		}
+		return Arrays.equals(publicKey.getEncoded(), other.publicKey.getEncoded()) &&
+				Arrays.equals(privateKey.getEncoded(), other.privateKey.getEncoded());
+	}
+}
@@ -14,13 +14,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.ProcessingException;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
@@ -29,6 +27,8 @@ import javax.ws.rs.core.UriBuilder;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import us.kbase.auth2.lib.exceptions.IdentityRetrievalException;
 import us.kbase.auth2.lib.identity.IdentityProvider;
@@ -59,6 +59,14 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 		/* Docs: https://docs.globus.org/api/auth/ */
 		
 		private static final String IGNORE_SECONDARY_IDENTITIES = "ignore-secondary-identities";
+		
+		/** The custom configuration key for the time in milliseconds to cache secondary identity
+		 * details. 0, the default, disables the cache.
+		 */
+		public static final String SECONDARY_ID_CACHE_TTL = "secondary-identity-cache-ttl-ms";
+		private static final long DEFAULT_SECONDARY_ID_CACHE_TTL_MS = 0;
+		private static final long SECONDARY_ID_CACHE_SIZE = 10000;
+		
 		private static final String NAME = "Globus";
 		private static final String SCOPE =
 				"urn:globus:auth:scope:auth.globus.org:view_identities email";
@@ -67,15 +75,23 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 		private static final String INTROSPECT_PATH = TOKEN_PATH + "/introspect";
 		private static final String IDENTITIES_PATH = "/v2/api/identities";
 		
-		//thread safe
-		private static final Client CLI = ClientBuilder.newClient();
-		
 		private static final ObjectMapper MAPPER = new ObjectMapper();
 		
 		private final IdentityProviderConfig cfg;
 		private final boolean ignoreSecondaries;
+		private final IdentityProviderClient client;
+		private final Cache<String, RemoteIdentity> secondaryCache;
 		
 		/** Create a new identity provider for the Globus service.
+		 * 
+		 * The HTTP client for the provider is configured from the custom configuration - see
+		 * {@link IdentityProviderClient}.
+		 * 
+		 * If {@value #SECONDARY_ID_CACHE_TTL} is set to a positive number of milliseconds, the
+		 * details of secondary identities are cached by identity ID for that time, so users with
+		 * many linked Globus identities that log in repeatedly don't require a call to the Globus
+		 * identities API on each login. The cache is disabled by default. Primary identity
+		 * details are never cached.
 		 * @param idc the configuration for the provider.
 		 */
 		public GlobusIdentityProvider(final IdentityProviderConfig idc) {
@@ -89,6 +105,41 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 			this.cfg = idc;
 			ignoreSecondaries = "true".equals(idc.getCustomConfiguation()
 					.get(IGNORE_SECONDARY_IDENTITIES));
+			client = new IdentityProviderClient(NAME, idc.getCustomConfiguation());
+			final long ttl = getCacheTTL(idc.getCustomConfiguation());
+			if (ttl > 0) {
+				secondaryCache = CacheBuilder.newBuilder()
+						.expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+						.maximumSize(SECONDARY_ID_CACHE_SIZE)
+						.build();
+			} else {
+				secondaryCache = null;
+			}
+		}
+		
+		private long getCacheTTL(final Map<String, String> customConfig) {
+			final String value = customConfig.get(SECONDARY_ID_CACHE_TTL);
+			if (value == null || value.trim().isEmpty()) {
+				return DEFAULT_SECONDARY_ID_CACHE_TTL_MS;
+			}
+			try {
+				final long ttl = Long.parseLong(value.trim());
+				if (ttl >= 0) {
+					return ttl;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			throw new IllegalArgumentException(String.format(
+					"Configuration value %s for %s identity provider must be a non-negative " +
+					"integer: %s", SECONDARY_ID_CACHE_TTL, NAME, value));
+		}
+		
+		/** Get the HTTP client used to contact Globus, which provides request metrics.
+		 * @return the client.
+		 */
+		public IdentityProviderClient getClient() {
+			return client;
 		}
 		
 		@Override
@@ -161,12 +212,23 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 				final String accessToken,
 				final Set<String> secondaryIDs)
 				throws IdentityRetrievalException {
-			if (secondaryIDs.isEmpty()) {
-				return new HashSet<>();
+			final Set<RemoteIdentity> ret = new HashSet<>();
+			final Set<String> toFetch = new HashSet<>();
+			for (final String id: secondaryIDs) {
+				final RemoteIdentity cached = secondaryCache == null ?
+						null : secondaryCache.getIfPresent(id);
+				if (cached == null) {
+					toFetch.add(id);
+				} else {
+					ret.add(cached);
+				}
+			}
+			if (toFetch.isEmpty()) {
+				return ret;
 			}
 			final URI idtarget = UriBuilder.fromUri(toURI(cfg.getApiURL()))
 					.path(IDENTITIES_PATH)
-					.queryParam("ids", String.join(",", secondaryIDs))
+					.queryParam("ids", String.join(",", toFetch))
 					.build();
 			
 			final Map<String, Object> ids; 
@@ -184,13 +246,19 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 			final Set<RemoteIdentity> idents = makeIdentities(sids);
 			final Set<String> got = idents.stream()
 					.map(i -> i.getRemoteID().getProviderIdentityId()).collect(Collectors.toSet());
-			if (!secondaryIDs.equals(got)) {
+			if (!toFetch.equals(got)) {
 				
 				throw new IdentityRetrievalException(String.format(
 						"Requested secondary identities do not match recieved: %s vs %s",
-						sort(secondaryIDs), sort(got)));
+						sort(toFetch), sort(got)));
+			}
+			if (secondaryCache != null) {
+				for (final RemoteIdentity ri: idents) {
+					secondaryCache.put(ri.getRemoteID().getProviderIdentityId(), ri);
+				}
 			}
-			return idents;
+			ret.addAll(idents);
+			return ret;
 		}
 	
 		private List<String> sort(final Set<String> s) {
@@ -306,18 +374,11 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 				throws IdentityRetrievalException {
 			final String bauth = "Basic " + Base64.getEncoder().encodeToString(
 					(cfg.getClientID() + ":" + cfg.getClientSecret()).getBytes());
-			final WebTarget wt = CLI.target(target);
-			Response r = null;
-			try {
-				r = wt.request(MediaType.APPLICATION_JSON_TYPE)
-						.header("Authorization", bauth)
-						.post(Entity.form(formParameters));
-				return processResponse(r, 200);
-			} finally {
-				if (r != null) {
-					r.close();
-				}
-			}
+			return client.execute(cli -> cli.target(target)
+					.request(MediaType.APPLICATION_JSON_TYPE)
+					.header("Authorization", bauth)
+					.post(Entity.form(formParameters)),
+					r -> processResponse(r, 200));
 		}
 		
 	
@@ -325,18 +386,11 @@ public class GlobusIdentityProviderFactory implements IdentityProviderFactory {
 				final String accessToken,
 				final URI idtarget)
 				throws IdentityRetrievalException {
-			final WebTarget wt = CLI.target(idtarget);
-			Response r = null;
-			try {
-				r = wt.request(MediaType.APPLICATION_JSON_TYPE)
-						.header("Authorization", "Bearer " + accessToken)
-						.get();
-				return processResponse(r, 200);
-			} finally {
-				if (r != null) {
-					r.close();
-				}
-			}
+			return client.execute(cli -> cli.target(idtarget)
+					.request(MediaType.APPLICATION_JSON_TYPE)
+					.header("Authorization", "Bearer " + accessToken)
+					.get(),
+					r -> processResponse(r, 200));
 		}
 		
 		private Map<String, Object> processResponse(final Response r, final int expectedCode)
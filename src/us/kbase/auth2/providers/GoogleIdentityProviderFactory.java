@@ -14,10 +14,7 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.ws.rs.ProcessingException;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
@@ -62,21 +59,44 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 		 * https://developers.google.com/+/web/api/rest/latest/people
 		 */
 		
+		/** The custom configuration key that, when set to "true", causes the identity to be read
+		 * from the ID token returned with the access token rather than from the Google+ people
+		 * API.
+		 */
+		public static final String VERIFY_ID_TOKEN = "verify-id-token";
+		/** The custom configuration key for the interval in milliseconds at which Google's
+		 * signing keys are refreshed.
+		 */
+		public static final String JWKS_REFRESH = "jwks-refresh-ms";
+		
 		private static final String NAME = "Google";
 		private static final String SCOPE =
 				"https://www.googleapis.com/auth/plus.me profile email";
 		private static final String LOGIN_PATH = "/o/oauth2/v2/auth";
 		private static final String TOKEN_PATH = "/oauth2/v4/token";
 		private static final String IDENTITY_PATH = "/plus/v1/people/me";
-		
-		//thread safe
-		private static final Client CLI = ClientBuilder.newClient();
+		private static final String JWKS_PATH = "/oauth2/v3/certs";
+		private static final Set<String> ISSUERS = new HashSet<>(Arrays.asList(
+				"accounts.google.com", "https://accounts.google.com"));
+		private static final long DEFAULT_JWKS_REFRESH_MS = 3600000;
 		
 		private static final ObjectMapper MAPPER = new ObjectMapper();
 		
 		private final IdentityProviderConfig cfg;
+		private final IdentityProviderClient client;
+		private final IDTokenVerifier verifier;
 		
 		/** Create an identity provider for Google.
+		 * 
+		 * The HTTP client for the provider is configured from the custom configuration - see
+		 * {@link IdentityProviderClient}.
+		 * 
+		 * If {@value #VERIFY_ID_TOKEN} is true in the custom configuration, the user's identity
+		 * is taken from the OpenID Connect ID token returned with the access token. The token is
+		 * verified locally against Google's signing keys, which are fetched from the API URL and
+		 * cached, saving a call to Google per login. The keys are refreshed every
+		 * {@value #JWKS_REFRESH} milliseconds (default one hour) or when a token is signed with
+		 * an unknown key.
 		 * @param idc the configuration for this provider.
 		 */
 		public GoogleIdentityProvider(final IdentityProviderConfig idc) {
@@ -88,6 +108,39 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 						idc.getIdentityProviderFactoryClassName());
 			}
 			this.cfg = idc;
+			client = new IdentityProviderClient(NAME, idc.getCustomConfiguation());
+			if ("true".equals(idc.getCustomConfiguation().get(VERIFY_ID_TOKEN))) {
+				verifier = new IDTokenVerifier(NAME, client,
+						UriBuilder.fromUri(toURI(cfg.getApiURL())).path(JWKS_PATH).build(),
+						ISSUERS, getRefreshInterval(idc.getCustomConfiguation()));
+			} else {
+				verifier = null;
+			}
+		}
+		
+		private long getRefreshInterval(final Map<String, String> customConfig) {
+			final String value = customConfig.get(JWKS_REFRESH);
+			if (value == null || value.trim().isEmpty()) {
+				return DEFAULT_JWKS_REFRESH_MS;
+			}
+			try {
+				final long refresh = Long.parseLong(value.trim());
+				if (refresh > 0) {
+					return refresh;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			throw new IllegalArgumentException(String.format(
+					"Configuration value %s for %s identity provider must be a positive " +
+					"integer: %s", JWKS_REFRESH, NAME, value));
+		}
+		
+		/** Get the HTTP client used to contact Google, which provides request metrics.
+		 * @return the client.
+		 */
+		public IdentityProviderClient getClient() {
+			return client;
 		}
 	
 		@Override
@@ -100,7 +153,7 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 		public URL getLoginURL(final String state, final boolean link) {
 			final URI target = UriBuilder.fromUri(toURI(cfg.getLoginURL()))
 					.path(LOGIN_PATH)
-					.queryParam("scope", SCOPE)
+					.queryParam("scope", verifier == null ? SCOPE : "openid " + SCOPE)
 					.queryParam("state", state)
 					.queryParam("redirect_uri", link ? cfg.getLinkRedirectURL() :
 						cfg.getLoginRedirectURL())
@@ -135,10 +188,41 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 			if (authcode == null || authcode.trim().isEmpty()) {
 				throw new IllegalArgumentException("authcode cannot be null or empty");
 			}
-			final String accessToken = getAccessToken(authcode, link);
-			final RemoteIdentity ri = getIdentity(accessToken);
+			final Map<String, Object> tokens = getTokens(authcode, link);
+			final RemoteIdentity ri;
+			if (verifier == null) {
+				ri = getIdentity(getAccessToken(tokens));
+			} else {
+				ri = getIdentityFromIDToken(tokens);
+			}
 			return new HashSet<>(Arrays.asList(ri));
 		}
+		
+		private RemoteIdentity getIdentityFromIDToken(final Map<String, Object> tokens)
+				throws IdentityRetrievalException {
+			final String idToken = (String) tokens.get("id_token");
+			if (idToken == null || idToken.trim().isEmpty()) {
+				throw new IdentityRetrievalException("No ID token was returned by " + NAME);
+			}
+			final Map<String, Object> claims = verifier.verify(idToken, cfg.getClientID());
+			final String sub = (String) claims.get("sub");
+			if (sub == null || sub.trim().isEmpty()) {
+				throw new IdentityRetrievalException("No user ID included in ID token from " +
+						NAME);
+			}
+			final String email = (String) claims.get("email");
+			if (email == null || email.trim().isEmpty()) {
+				throw new IdentityRetrievalException("No username included in response from " +
+						NAME);
+			}
+			// the subject is the same ID as returned by the people API
+			return new RemoteIdentity(
+					new RemoteIdentityID(NAME, sub),
+					new RemoteIdentityDetails(
+							email, // use email for user id
+							(String) claims.get("name"),
+							email));
+		}
 	
 		private RemoteIdentity getIdentity(final String accessToken)
 				throws IdentityRetrievalException {
@@ -172,40 +256,33 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 				final String accessToken,
 				final URI target)
 				throws IdentityRetrievalException {
-			final WebTarget wt = CLI.target(target);
-			Response r = null;
-			try {
-				r = wt.request(MediaType.APPLICATION_JSON_TYPE)
-						.header("Authorization", "Bearer " + accessToken)
-						.get();
-				return processResponse(r, 200, new ErrorHandler() {
-					
-					@Override
-					public void handleError(final Response r, final Map<String, Object> response)
-							throws IdentityRetrievalException {
-						// ignoring type checking again, assuming that Google aren't jerks
-						@SuppressWarnings("unchecked")
-						final Map<String, Object> m = (Map<String, Object>) response.get("error");
-						// there's more details in the 'errors' key but ignore that for now
-						// could log later
-						if (m == null || !m.containsKey("message")) {
-							throw new IdentityRetrievalException(String.format(
-									"Got unexpected HTTP code with null error in the response " +
-									"body from %s service: %s.", NAME, r.getStatus()));
-						}
+			return client.execute(cli -> cli.target(target)
+					.request(MediaType.APPLICATION_JSON_TYPE)
+					.header("Authorization", "Bearer " + accessToken)
+					.get(),
+					resp -> processResponse(resp, 200, new ErrorHandler() {
+				
+				@Override
+				public void handleError(final Response r, final Map<String, Object> response)
+						throws IdentityRetrievalException {
+					// ignoring type checking again, assuming that Google aren't jerks
+					@SuppressWarnings("unchecked")
+					final Map<String, Object> m = (Map<String, Object>) response.get("error");
+					// there's more details in the 'errors' key but ignore that for now
+					// could log later
+					if (m == null || !m.containsKey("message")) {
 						throw new IdentityRetrievalException(String.format(
-								"%s service returned an error. HTTP code: %s. Error: %s",
-								NAME, r.getStatus(), m.get("message")));
+								"Got unexpected HTTP code with null error in the response " +
+								"body from %s service: %s.", NAME, r.getStatus()));
 					}
-				});
-			} finally {
-				if (r != null) {
-					r.close();
+					throw new IdentityRetrievalException(String.format(
+							"%s service returned an error. HTTP code: %s. Error: %s",
+							NAME, r.getStatus(), m.get("message")));
 				}
-			}
+			}));
 		}
 	
-		private String getAccessToken(final String authcode, final boolean link)
+		private Map<String, Object> getTokens(final String authcode, final boolean link)
 				throws IdentityRetrievalException {
 			final MultivaluedMap<String, String> formParameters =
 					new MultivaluedHashMap<>();
@@ -229,6 +306,11 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 				throw new IdentityRetrievalException("Authtoken retrieval failed: " +
 						msg[msg.length - 1].trim());
 			}
+			return m;
+		}
+		
+		private String getAccessToken(final Map<String, Object> m)
+				throws IdentityRetrievalException {
 			final String token = (String) m.get("access_token");
 			if (token == null || token.trim().isEmpty()) {
 				throw new IdentityRetrievalException("No access token was returned by " + NAME);
@@ -240,29 +322,22 @@ public class GoogleIdentityProviderFactory implements IdentityProviderFactory {
 				final MultivaluedMap<String, String> formParameters,
 				final URI target)
 				throws IdentityRetrievalException {
-			final WebTarget wt = CLI.target(target);
-			Response r = null;
-			try {
-				r = wt.request(MediaType.APPLICATION_JSON_TYPE)
-						.post(Entity.form(formParameters));
-				return processResponse(r, 200, new ErrorHandler() {
+			return client.execute(cli -> cli.target(target)
+					.request(MediaType.APPLICATION_JSON_TYPE)
+					.post(Entity.form(formParameters)),
+					resp -> processResponse(resp, 200, new ErrorHandler() {
+				
+				@Override
+				public void handleError(final Response r, final Map<String, Object> response)
+						throws IdentityRetrievalException {
+					throw new IdentityRetrievalException(String.format(
+							"%s service returned an error. HTTP code: %s. Error: %s. " +
+							"Error description: %s",
+							NAME, r.getStatus(), response.get("error"),
+							response.get("error_description")));
 					
-					@Override
-					public void handleError(final Response r, final Map<String, Object> response)
-							throws IdentityRetrievalException {
-						throw new IdentityRetrievalException(String.format(
-								"%s service returned an error. HTTP code: %s. Error: %s. " +
-								"Error description: %s",
-								NAME, r.getStatus(), response.get("error"),
-								response.get("error_description")));
-						
-					}
-				});
-			} finally {
-				if (r != null) {
-					r.close();
 				}
-			}
+			}));
 		}
 		
 		private interface ErrorHandler {
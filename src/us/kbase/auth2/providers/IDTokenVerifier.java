@@ -0,0 +1,240 @@
+package us.kbase.auth2.providers;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import us.kbase.auth2.lib.exceptions.IdentityRetrievalException;
+
+/** Verifies RS256 signed OpenID Connect ID tokens against the signing keys published by an
+ * identity provider in JSON Web Key Set (JWKS) format.
+ *
+ * The key set is fetched on first use and cached. It is refreshed when it is older than the
+ * refresh interval, or when a token is signed with a key that is not in the cached set (for
+ * example, after the provider rotates its keys). Once a key set has been retrieved, refreshes
+ * happen at most once per {@value #MIN_REFRESH_INTERVAL_MS} milliseconds, and if a refresh fails
+ * the stale key set continues to be used.
+ */
+public class IDTokenVerifier {
+
+	private static final long MIN_REFRESH_INTERVAL_MS = 10000;
+	private static final long CLOCK_SKEW_SEC = 60;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private final String providerName;
+	private final IdentityProviderClient client;
+	private final URI jwksURI;
+	private final Set<String> issuers;
+	private final long refreshIntervalMS;
+
+	// guarded by this
+	private Map<String, PublicKey> keys = Collections.emptyMap();
+	private long fetched = 0;
+	private long lastAttempt = 0;
+
+	/** Create a verifier.
+	 * @param providerName the name of the identity provider.
+	 * @param client the client with which to fetch the key set from the provider.
+	 * @param jwksURI the location of the provider's key set.
+	 * @param issuers the acceptable values of the issuer claim in ID tokens.
+	 * @param refreshIntervalMS the maximum age of the cached key set in milliseconds.
+	 */
+	public IDTokenVerifier(
+			final String providerName,
+			final IdentityProviderClient client,
+			final URI jwksURI,
+			final Set<String> issuers,
+			final long refreshIntervalMS) {
+		checkStringNoCheckedException(providerName, "providerName");
+		nonNull(client, "client");
+		nonNull(jwksURI, "jwksURI");
+		nonNull(issuers, "issuers");
+		if (refreshIntervalMS < 1) {
+			throw new IllegalArgumentException("refreshIntervalMS must be at least 1");
+		}
+		this.providerName = providerName;
+		this.client = client;
+		this.jwksURI = jwksURI;
+		this.issuers = Collections.unmodifiableSet(new HashSet<>(issuers));
+		this.refreshIntervalMS = refreshIntervalMS;
+	}
+
+	/** Verify an ID token and return its claims. The signature, issuer, audience, and expiration
+	 * date of the token are checked.
+	 * @param idToken the ID token.
+	 * @param audience the client ID to which the token must have been issued.
+	 * @return the claims in the token.
+	 * @throws IdentityRetrievalException if the token is invalid or the key set could not be
+	 * retrieved.
+	 */
+	public Map<String, Object> verify(final String idToken, final String audience)
+			throws IdentityRetrievalException {
+		checkStringNoCheckedException(idToken, "idToken");
+		checkStringNoCheckedException(audience, "audience");
+		final String[] parts = idToken.trim().split("\\.");
+		if (parts.length != 3) {
+			throw invalid("not a signed JWT");
+		}
+		final Map<String, Object> header = decodeJSON(parts[0], "header");
+		if (!"RS256".equals(header.get("alg"))) {
+			throw invalid("unsupported algorithm " + header.get("alg"));
+		}
+		final Object kid = header.get("kid");
+		final PublicKey key = getKey(kid instanceof String ? (String) kid : null);
+		try {
+			final Signature sig = Signature.getInstance("SHA256withRSA");
+			sig.initVerify(key);
+			sig.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+			if (!sig.verify(decode(parts[2], "signature"))) {
+				throw invalid("bad signature");
+			}
+		} catch (GeneralSecurityException e) {
+			throw invalid("bad signature");
+		}
+		final Map<String, Object> claims = decodeJSON(parts[1], "payload");
+		if (!issuers.contains(claims.get("iss"))) {
+			throw invalid("unexpected issuer " + claims.get("iss"));
+		}
+		if (!audienceMatches(claims.get("aud"), audience)) {
+			throw invalid("token was not issued to this client");
+		}
+		if (!(claims.get("exp") instanceof Number)) {
+			throw invalid("no expiration date");
+		}
+		final long exp = ((Number) claims.get("exp")).longValue();
+		if (Instant.now().getEpochSecond() > exp + CLOCK_SKEW_SEC) {
+			throw invalid("token is expired");
+		}
+		return claims;
+	}
+
+	private boolean audienceMatches(final Object aud, final String audience) {
+		if (aud instanceof List) {
+			return ((List<?>) aud).contains(audience);
+		}
+		return audience.equals(aud);
+	}
+
+	private IdentityRetrievalException invalid(final String reason) {
+		return new IdentityRetrievalException(String.format(
+				"Invalid ID token from %s service: %s", providerName, reason));
+	}
+
+	private byte[] decode(final String part, final String name)
+			throws IdentityRetrievalException {
+		try {
+			return DECODER.decode(part);
+		} catch (IllegalArgumentException e) {
+			throw invalid("illegal encoding in " + name);
+		}
+	}
+
+	private Map<String, Object> decodeJSON(final String part, final String name)
+			throws IdentityRetrievalException {
+		final byte[] json = decode(part, name);
+		try {
+			return MAPPER.readValue(json, new TypeReference<Map<String, Object>>() {});
+		} catch (IOException e) {
+			throw invalid("unparseable " + name);
+		}
+	}
+
+	private synchronized PublicKey getKey(final String kid) throws IdentityRetrievalException {
+		final long now = System.currentTimeMillis();
+		final boolean stale = now - fetched > refreshIntervalMS;
+		final boolean unknown = kid == null || !keys.containsKey(kid);
+		if ((stale || unknown) &&
+				(keys.isEmpty() || now - lastAttempt > MIN_REFRESH_INTERVAL_MS)) {
+			lastAttempt = now;
+			try {
+				keys = fetchKeys();
+				fetched = now;
+			} catch (IdentityRetrievalException e) {
+				if (keys.isEmpty()) {
+					throw e;
+				}
+				LoggerFactory.getLogger(getClass()).error(String.format(
+						"Failed to refresh %s key set, using cached keys: %s",
+						providerName, e.getMessage()));
+			}
+		}
+		final PublicKey key = kid == null ? null : keys.get(kid);
+		if (key == null) {
+			throw invalid("unknown signing key " + kid);
+		}
+		return key;
+	}
+
+	private Map<String, PublicKey> fetchKeys() throws IdentityRetrievalException {
+		final Map<String, Object> jwks = client.execute(cli -> cli.target(jwksURI)
+				.request(MediaType.APPLICATION_JSON_TYPE)
+				.get(),
+				r -> {
+					if (r.getStatus() != 200) {
+						throw new IdentityRetrievalException(String.format(
+								"Got unexpected HTTP code from %s service when retrieving " +
+								"the signing key set: %s.", providerName, r.getStatus()));
+					}
+					try {
+						@SuppressWarnings("unchecked")
+						final Map<String, Object> m = r.readEntity(Map.class);
+						return m;
+					} catch (ProcessingException e) {
+						throw new IdentityRetrievalException(String.format(
+								"Unable to parse signing key set from %s service.",
+								providerName));
+					}
+				});
+		if (!(jwks.get("keys") instanceof List)) {
+			throw new IdentityRetrievalException(String.format(
+					"Unable to parse signing key set from %s service.", providerName));
+		}
+		final Map<String, PublicKey> ret = new HashMap<>();
+		for (final Object o: (List<?>) jwks.get("keys")) {
+			if (!(o instanceof Map)) {
+				continue;
+			}
+			final Map<?, ?> jwk = (Map<?, ?>) o;
+			if (!"RSA".equals(jwk.get("kty")) || !(jwk.get("kid") instanceof String) ||
+					!(jwk.get("n") instanceof String) || !(jwk.get("e") instanceof String)) {
+				continue;
+			}
+			try {
+				final BigInteger n = new BigInteger(1, DECODER.decode((String) jwk.get("n")));
+				final BigInteger e = new BigInteger(1, DECODER.decode((String) jwk.get("e")));
+				ret.put((String) jwk.get("kid"), KeyFactory.getInstance("RSA")
+						.generatePublic(new RSAPublicKeySpec(n, e)));
+			} catch (GeneralSecurityException | IllegalArgumentException e) {
+				// skip malformed keys, the remaining keys may still be usable
+			}
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+}
@@ -0,0 +1,330 @@
+package us.kbase.auth2.providers;
+
+import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
+import static us.kbase.auth2.lib.Utils.nonNull;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.slf4j.LoggerFactory;
+
+import us.kbase.auth2.lib.exceptions.IdentityRetrievalException;
+
+/** An HTTP client for contacting an identity provider's API. Each identity provider should have
+ * its own client.
+ *
+ * The client provides:
+ * <ul>
+ * <li>connect and read timeouts.</li>
+ * <li>a limit on the number of concurrent requests to the provider. Requests over the limit fail
+ * immediately rather than waiting for a slot, so a slow provider can't tie up an unbounded number
+ * of server threads.</li>
+ * <li>a circuit breaker. After a configurable number of consecutive requests fail to get a
+ * response from the provider (for example, because of a timeout or refused connection), all
+ * requests fail immediately until the reset period passes. A single trial request is then
+ * allowed through; if it succeeds the circuit is closed, otherwise it reopens.</li>
+ * <li>request count and latency metrics, which are logged periodically and when the circuit
+ * opens. The latency of a request includes reading and processing the response.</li>
+ * </ul>
+ *
+ * Connections are kept alive and reused by the underlying JDK HTTP connection pool.
+ *
+ * The client is configured via the custom configuration of the identity provider:
+ * <ul>
+ * <li>{@value #CONNECT_TIMEOUT} - the connect timeout in milliseconds. Default
+ * {@value #DEFAULT_CONNECT_TIMEOUT_MS}.</li>
+ * <li>{@value #READ_TIMEOUT} - the read timeout in milliseconds. Default
+ * {@value #DEFAULT_READ_TIMEOUT_MS}.</li>
+ * <li>{@value #MAX_CONCURRENT} - the maximum number of concurrent requests. Default
+ * {@value #DEFAULT_MAX_CONCURRENT}.</li>
+ * <li>{@value #CIRCUIT_FAILURES} - the number of consecutive failures that opens the circuit.
+ * Default {@value #DEFAULT_CIRCUIT_FAILURES}.</li>
+ * <li>{@value #CIRCUIT_RESET} - how long the circuit stays open in milliseconds. Default
+ * {@value #DEFAULT_CIRCUIT_RESET_MS}.</li>
+ * <li>{@value #METRICS_LOG_INTERVAL} - the minimum time between metrics log entries in
+ * milliseconds. Default {@value #DEFAULT_METRICS_LOG_INTERVAL_MS}.</li>
+ * </ul>
+ */
+public class IdentityProviderClient {
+
+	/** The custom configuration key for the connect timeout. */
+	public static final String CONNECT_TIMEOUT = "http-connect-timeout-ms";
+	/** The custom configuration key for the read timeout. */
+	public static final String READ_TIMEOUT = "http-read-timeout-ms";
+	/** The custom configuration key for the maximum number of concurrent requests. */
+	public static final String MAX_CONCURRENT = "http-max-concurrent-requests";
+	/** The custom configuration key for the number of failures that opens the circuit. */
+	public static final String CIRCUIT_FAILURES = "circuit-breaker-failures";
+	/** The custom configuration key for the time the circuit stays open. */
+	public static final String CIRCUIT_RESET = "circuit-breaker-reset-ms";
+	/** The custom configuration key for the minimum time between metrics log entries. */
+	public static final String METRICS_LOG_INTERVAL = "metrics-log-interval-ms";
+
+	private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	private static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+	private static final int DEFAULT_MAX_CONCURRENT = 50;
+	private static final int DEFAULT_CIRCUIT_FAILURES = 5;
+	private static final int DEFAULT_CIRCUIT_RESET_MS = 30000;
+	private static final int DEFAULT_METRICS_LOG_INTERVAL_MS = 5 * 60 * 1000;
+
+	/** Makes a request with a client. */
+	public interface Request {
+
+		/** Make the request.
+		 * @param client the client with which to make the request.
+		 * @return the response.
+		 */
+		Response request(Client client);
+	}
+
+	/** Processes a response from the identity provider.
+	 *
+	 * @param <T> the type of the processed response.
+	 */
+	public interface ResponseProcessor<T> {
+
+		/** Process a response.
+		 * @param r the response.
+		 * @return the processed response.
+		 * @throws IdentityRetrievalException if the response indicates an error.
+		 */
+		T process(Response r) throws IdentityRetrievalException;
+	}
+
+	private final String providerName;
+	private final Client client;
+	private final Semaphore concurrent;
+	private final int circuitFailures;
+	private final int circuitResetMS;
+	private final int metricsLogIntervalMS;
+
+	// circuit state, guarded by this
+	private int consecutiveFailures = 0;
+	private long openUntil = 0;
+	private boolean trialInProgress = false;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalLatencyMS = new AtomicLong();
+	private final AtomicLong maxLatencyMS = new AtomicLong();
+	private final AtomicLong nextMetricsLog;
+
+	/** Create a client.
+	 * @param providerName the name of the identity provider.
+	 * @param customConfig the custom configuration for the provider.
+	 * @throws IllegalArgumentException if a configuration value is not a positive integer.
+	 */
+	public IdentityProviderClient(
+			final String providerName,
+			final Map<String, String> customConfig) {
+		checkStringNoCheckedException(providerName, "providerName");
+		nonNull(customConfig, "customConfig");
+		this.providerName = providerName;
+		final int connect = getInt(customConfig, CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT_MS);
+		final int read = getInt(customConfig, READ_TIMEOUT, DEFAULT_READ_TIMEOUT_MS);
+		concurrent = new Semaphore(getInt(customConfig, MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT));
+		circuitFailures = getInt(customConfig, CIRCUIT_FAILURES, DEFAULT_CIRCUIT_FAILURES);
+		circuitResetMS = getInt(customConfig, CIRCUIT_RESET, DEFAULT_CIRCUIT_RESET_MS);
+		metricsLogIntervalMS = getInt(
+				customConfig, METRICS_LOG_INTERVAL, DEFAULT_METRICS_LOG_INTERVAL_MS);
+		nextMetricsLog = new AtomicLong(System.currentTimeMillis() + metricsLogIntervalMS);
+		//thread safe
+		client = ClientBuilder.newClient()
+				.property(ClientProperties.CONNECT_TIMEOUT, connect)
+				.property(ClientProperties.READ_TIMEOUT, read);
+	}
+
+	private int getInt(final Map<String, String> cfg, final String key, final int defaultValue) {
+		final String value = cfg.get(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			final int i = Integer.parseInt(value.trim());
+			if (i > 0) {
+				return i;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException(String.format(
+				"Configuration value %s for %s identity provider must be a positive integer: %s",
+				key, providerName, value));
+	}
+
+	/** Make a request to the identity provider. The response is closed after processing.
+	 * @param <T> the type of the processed response.
+	 * @param request the request to make.
+	 * @param processor the processor for the response.
+	 * @return the processed response.
+	 * @throws IdentityRetrievalException if the request could not be made, no response was
+	 * received, or the processor throws an exception.
+	 */
+	public <T> T execute(final Request request, final ResponseProcessor<T> processor)
+			throws IdentityRetrievalException {
+		final boolean trial = checkCircuit();
+		if (!concurrent.tryAcquire()) {
+			rejected.incrementAndGet();
+			if (trial) {
+				releaseTrial();
+			}
+			throw new IdentityRetrievalException(String.format(
+					"Too many concurrent requests to %s service.", providerName));
+		}
+		final long start = System.nanoTime();
+		Response r = null;
+		boolean recorded = false;
+		try {
+			// reading the response body is part of the request, so time and account for it
+			final T ret;
+			try {
+				r = request.request(client);
+				ret = processor.process(r);
+			} catch (ProcessingException e) {
+				recordRequest(start, false);
+				recorded = true;
+				throw new IdentityRetrievalException(String.format(
+						"Unable to contact %s service: %s", providerName, e.getMessage()));
+			} catch (IdentityRetrievalException e) {
+				// the provider responded, but with an error
+				recordRequest(start, true);
+				recorded = true;
+				throw e;
+			}
+			recordRequest(start, true);
+			recorded = true;
+			return ret;
+		} finally {
+			concurrent.release();
+			if (trial && !recorded) {
+				releaseTrial(); // some unexpected error building the request
+			}
+			if (r != null) {
+				r.close();
+			}
+		}
+	}
+
+	// returns true if this request is the trial request for a circuit that's been open
+	private synchronized boolean checkCircuit() throws IdentityRetrievalException {
+		if (consecutiveFailures < circuitFailures) {
+			return false;
+		}
+		if (System.currentTimeMillis() < openUntil || trialInProgress) {
+			rejected.incrementAndGet();
+			throw new IdentityRetrievalException(String.format(
+					"Requests to %s service are suspended after repeated failures to contact " +
+					"the service.", providerName));
+		}
+		trialInProgress = true;
+		return true;
+	}
+
+	private synchronized void releaseTrial() {
+		trialInProgress = false;
+	}
+
+	private void recordRequest(final long startNanos, final boolean success) {
+		final long latency = (System.nanoTime() - startNanos) / 1000000;
+		requests.incrementAndGet();
+		totalLatencyMS.addAndGet(latency);
+		maxLatencyMS.accumulateAndGet(latency, Math::max);
+		final boolean opened;
+		synchronized (this) {
+			trialInProgress = false;
+			if (success) {
+				consecutiveFailures = 0;
+				opened = false;
+			} else {
+				failures.incrementAndGet();
+				consecutiveFailures++;
+				opened = consecutiveFailures >= circuitFailures;
+				if (opened) {
+					openUntil = System.currentTimeMillis() + circuitResetMS;
+				}
+			}
+		}
+		if (opened) {
+			LoggerFactory.getLogger(getClass()).warn(String.format(
+					"Suspending requests to %s service for %s ms after %s consecutive " +
+					"failures. %s", providerName, circuitResetMS, circuitFailures,
+					getMetricsSummary()));
+		} else {
+			logMetrics();
+		}
+	}
+
+	private void logMetrics() {
+		final long now = System.currentTimeMillis();
+		final long next = nextMetricsLog.get();
+		// only one thread logs per interval
+		if (now >= next && nextMetricsLog.compareAndSet(next, now + metricsLogIntervalMS)) {
+			LoggerFactory.getLogger(getClass()).info(getMetricsSummary());
+		}
+	}
+
+	/** Get a summary of the request metrics for the identity provider, suitable for logging.
+	 * @return the metrics summary.
+	 */
+	public String getMetricsSummary() {
+		return String.format("%s service requests: %s, failures: %s, rejected: %s, " +
+				"mean latency: %.1f ms, max latency: %s ms, circuit open: %s",
+				providerName, getRequestCount(), getFailureCount(), getRejectedCount(),
+				getMeanLatencyMS(), getMaxLatencyMS(), isCircuitOpen());
+	}
+
+	/** Get the number of requests made to the identity provider, including requests that failed
+	 * to get a response.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** Get the number of requests that failed to get a response from the identity provider.
+	 * @return the number of failed requests.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/** Get the number of requests that were rejected without contacting the identity provider,
+	 * either because the circuit was open or the concurrent request limit was reached.
+	 * @return the number of rejected requests.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/** Get the mean latency of requests made to the identity provider.
+	 * @return the mean latency in milliseconds, or 0 if no requests have been made.
+	 */
+	public double getMeanLatencyMS() {
+		final long count = requests.get();
+		return count == 0 ? 0 : (double) totalLatencyMS.get() / count;
+	}
+
+	/** Get the maximum latency of requests made to the identity provider.
+	 * @return the maximum latency in milliseconds.
+	 */
+	public long getMaxLatencyMS() {
+		return maxLatencyMS.get();
+	}
+
+	/** Check whether the circuit is open, meaning requests to the identity provider are
+	 * currently being rejected.
+	 * @return true if the circuit is open.
+	 */
+	public synchronized boolean isCircuitOpen() {
+		return consecutiveFailures >= circuitFailures &&
+				System.currentTimeMillis() < openUntil;
+	}
+}
@@ -2,17 +2,21 @@ package us.kbase.auth2.service;
 
 import static us.kbase.auth2.lib.Utils.nonNull;
 
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
 import com.mongodb.MongoCredential;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoDatabase;
 
 import us.kbase.auth2.lib.Authentication;
@@ -23,6 +27,7 @@ import us.kbase.auth2.lib.identity.IdentityProviderFactory;
 import us.kbase.auth2.lib.storage.AuthStorage;
 import us.kbase.auth2.lib.storage.exceptions.StorageInitException;
 import us.kbase.auth2.lib.storage.mongo.MongoStorage;
+import us.kbase.auth2.lib.token.SigningKeyEncryptor;
 import us.kbase.auth2.service.common.ServiceCommon;
 import us.kbase.auth2.service.exceptions.AuthConfigurationException;
 
@@ -31,7 +36,11 @@ public class AuthBuilder {
 	//TODO TEST
 	//TODO JAVADOC
 	
+	private static final long CUSTOM_ROLE_COLLECTION_MS = 60 * 1000;
+	private static final long SCHEMA_MIGRATION_MS = 60 * 1000;
+	
 	private MongoClient mc;
+	private MongoStorage storage;
 	private Authentication auth;
 	
 	public AuthBuilder(
@@ -56,17 +65,27 @@ public class AuthBuilder {
 		auth = buildAuth(cfg, mc, defaultExternalConfig);
 	}
 	
-	private MongoClient buildMongo(final AuthStartupConfig c) throws StorageInitException {
-		//TODO ZLATER MONGO handle shards & replica sets
+	private MongoClient buildMongo(final AuthStartupConfig c)
+			throws StorageInitException, AuthConfigurationException {
+		final MongoClientOptions.Builder opts = buildMongoOptions(c);
+		if (c.getMongoConnectionString().isPresent() && c.getMongoUser().isPresent()) {
+			// the driver would silently drop any credentials in the connection string
+			throw new AuthConfigurationException("A MongoDB user may not be provided with a " +
+					"connection string. Provide the credentials in the connection string");
+		}
 		try {
+			if (c.getMongoConnectionString().isPresent()) {
+				// options in the connection string override the options from the config
+				return new MongoClient(getMongoURI(c.getMongoConnectionString().get(), opts));
+			}
+			final List<MongoCredential> creds = new LinkedList<>();
 			if (c.getMongoUser().isPresent()) {
-				final List<MongoCredential> creds = Arrays.asList(MongoCredential.createCredential(
-						c.getMongoUser().get(), c.getMongoDatabase(), c.getMongoPwd().get()));
 				// unclear if and when it's safe to clear the password
-				return new MongoClient(new ServerAddress(c.getMongoHost()), creds);
-			} else {
-				return new MongoClient(new ServerAddress(c.getMongoHost()));
+				creds.add(MongoCredential.createCredential(
+						c.getMongoUser().get(), c.getMongoDatabase(), c.getMongoPwd().get()));
 			}
+			return new MongoClient(
+					new ServerAddress(c.getMongoHost().get()), creds, opts.build());
 		} catch (MongoException e) {
 			LoggerFactory.getLogger(getClass()).error(
 					"Failed to connect to MongoDB: " + e.getMessage(), e);
@@ -74,6 +93,68 @@ public class AuthBuilder {
 		}
 	}
 	
+	private MongoClientOptions.Builder buildMongoOptions(final AuthStartupConfig c)
+			throws AuthConfigurationException {
+		final MongoClientOptions.Builder opts = MongoClientOptions.builder();
+		if (c.getMongoMaxPoolSize() > 0 && c.getMongoMinPoolSize() > c.getMongoMaxPoolSize()) {
+			throw new AuthConfigurationException(
+					"The MongoDB minimum pool size must be no greater than the maximum pool size");
+		}
+		if (c.getMongoMaxPoolSize() > 0) {
+			opts.connectionsPerHost(c.getMongoMaxPoolSize());
+		}
+		if (c.getMongoMinPoolSize() > 0) {
+			opts.minConnectionsPerHost(c.getMongoMinPoolSize());
+		}
+		if (c.getMongoMaxWaitMS() > 0) {
+			opts.maxWaitTime(c.getMongoMaxWaitMS());
+		}
+		if (c.getMongoConnectTimeoutMS() > 0) {
+			opts.connectTimeout(c.getMongoConnectTimeoutMS());
+		}
+		if (c.getMongoSocketTimeoutMS() > 0) {
+			opts.socketTimeout(c.getMongoSocketTimeoutMS());
+		}
+		if (c.getMongoServerSelectionTimeoutMS() > 0) {
+			opts.serverSelectionTimeout(c.getMongoServerSelectionTimeoutMS());
+		}
+		if (c.getMongoWriteConcern().isPresent()) {
+			final WriteConcern wc = WriteConcern.valueOf(c.getMongoWriteConcern().get());
+			if (wc == null) {
+				throw new AuthConfigurationException(
+						"Unknown MongoDB write concern: " + c.getMongoWriteConcern().get());
+			}
+			opts.writeConcern(wc);
+		}
+		return opts;
+	}
+	
+	private MongoClientURI getMongoURI(
+			final String connectionString,
+			final MongoClientOptions.Builder opts)
+			throws AuthConfigurationException {
+		try {
+			return new MongoClientURI(connectionString, opts);
+		} catch (IllegalArgumentException e) {
+			// don't include the connection string in the error, it may contain a password
+			throw new AuthConfigurationException(
+					"Illegal MongoDB connection string: " + e.getMessage(), e);
+		}
+	}
+	
+	private ReadPreference getNonCriticalReadPreference(final AuthStartupConfig c)
+			throws AuthConfigurationException {
+		if (!c.getMongoNonCriticalReadPreference().isPresent()) {
+			return ReadPreference.primary();
+		}
+		try {
+			return ReadPreference.valueOf(c.getMongoNonCriticalReadPreference().get());
+		} catch (IllegalArgumentException e) {
+			throw new AuthConfigurationException("Unknown MongoDB read preference: " +
+					c.getMongoNonCriticalReadPreference().get(), e);
+		}
+	}
+	
 	private Authentication buildAuth(
 			final AuthStartupConfig c,
 			final MongoClient mc,
@@ -89,7 +170,23 @@ public class AuthBuilder {
 					e.getMessage(), e);
 		}
 		//TODO TEST authenticate to db, write actual test with authentication
-		final AuthStorage s = new MongoStorage(db);
+		// identity detail refreshes are not critical, so don't make logins wait on them
+		final MongoStorage.Builder sb = MongoStorage.getBuilder(db)
+				.withDeferredIdentityUpdates(true)
+				.withLastLoginWriteBehindMS(c.getLastLoginWriteBehindMS())
+				.withUserSearchIndexReloadMS(c.getUserSearchIndexReloadMS())
+				.withDisplayNameCache(c.getDisplayNameCacheSize(), c.getDisplayNameCacheExpireMS())
+				.withExpiredTokenSweepMS(c.getExpiredTokenSweepMS())
+				.withCustomRoleCollectionMS(CUSTOM_ROLE_COLLECTION_MS)
+				.withSchemaMigrationMS(SCHEMA_MIGRATION_MS)
+				.withNonCriticalReadPreference(getNonCriticalReadPreference(c))
+				// revocations are only checked when verifying signed tokens
+				.withRevokedTokenRecords(!c.getSignedTokenTypes().isEmpty());
+		if (c.getTokenSigningKeySecret().isPresent()) {
+			sb.withSigningKeyEncryptor(new SigningKeyEncryptor(c.getTokenSigningKeySecret().get()));
+		}
+		storage = sb.build();
+		final AuthStorage s = storage;
 		
 		final Set<IdentityProvider> providers = new HashSet<>();
 		for (final IdentityProviderConfig idc: c.getIdentityProviderConfigs()) {
@@ -97,13 +194,18 @@ public class AuthBuilder {
 					idc.getIdentityProviderFactoryClassName(), IdentityProviderFactory.class);
 			providers.add(fac.configure(idc));
 		}
-		return new Authentication(s, providers, defaultExternalConfig);
+		return new Authentication(s, providers, defaultExternalConfig, c.getSignedTokenTypes(),
+				c.getTokenSigningKeySecret().isPresent());
 	}
 	
 	public MongoClient getMongoClient() {
 		return mc;
 	}
 
+	public MongoStorage getStorage() {
+		return storage;
+	}
+
 	public Authentication getAuth() {
 		return auth;
 	}
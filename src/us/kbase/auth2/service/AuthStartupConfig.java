@@ -5,6 +5,7 @@ import java.util.Set;
 import com.google.common.base.Optional;
 
 import us.kbase.auth2.lib.identity.IdentityProviderConfig;
+import us.kbase.auth2.lib.token.TokenType;
 
 public interface AuthStartupConfig {
 
@@ -12,10 +13,36 @@ public interface AuthStartupConfig {
 	
 	SLF4JAutoLogger getLogger();
 	Set<IdentityProviderConfig> getIdentityProviderConfigs();
-	String getMongoHost();
+	// note at least one of the host & connection string, the connection string takes precedence
+	Optional<String> getMongoHost();
+	Optional<String> getMongoConnectionString();
 	String getMongoDatabase();
 	// note both or neither for user & pwd
 	Optional<String> getMongoUser();
 	Optional<char[]> getMongoPwd();
+	// 0 for the driver default for the pool and timeout settings
+	int getMongoMaxPoolSize();
+	int getMongoMinPoolSize();
+	int getMongoMaxWaitMS();
+	int getMongoConnectTimeoutMS();
+	int getMongoSocketTimeoutMS();
+	int getMongoServerSelectionTimeoutMS();
+	// absent for the driver default
+	Optional<String> getMongoWriteConcern();
+	// absent to use the primary for all reads
+	Optional<String> getMongoNonCriticalReadPreference();
 	String getTokenCookieName();
+	// 0 to write last login dates immediately
+	long getLastLoginWriteBehindMS();
+	// 0 to disable the in memory user search index
+	long getUserSearchIndexReloadMS();
+	// 0 to disable the display name cache
+	long getDisplayNameCacheSize();
+	long getDisplayNameCacheExpireMS();
+	// empty to disable signed tokens
+	Set<TokenType> getSignedTokenTypes();
+	// the secret used to encrypt token signing private keys, absent if signed tokens are disabled
+	Optional<String> getTokenSigningKeySecret();
+	// 0 to leave deleting expired tokens to the MongoDB TTL monitor
+	long getExpiredTokenSweepMS();
 }
@@ -3,6 +3,8 @@ package us.kbase.auth2.service;
 import static us.kbase.auth2.lib.Utils.checkStringNoCheckedException;
 
 import java.nio.file.Paths;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
@@ -17,6 +19,7 @@ import ch.qos.logback.classic.Logger;
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.config.ExternalConfig;
 import us.kbase.auth2.lib.storage.exceptions.StorageInitException;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
 import us.kbase.auth2.service.LoggingFilter;
 import us.kbase.auth2.service.common.ServiceCommon;
 import us.kbase.auth2.service.exceptions.AuthConfigurationException;
@@ -31,6 +34,7 @@ public class AuthenticationService extends ResourceConfig {
 	
 	private static String cfgClass = null;
 	private static MongoClient mc;
+	private static final List<MongoStorage> storages = new LinkedList<>();
 	@SuppressWarnings("unused")
 	private final SLF4JAutoLogger logger; //keep a reference to prevent GC
 	
@@ -83,6 +87,9 @@ public class AuthenticationService extends ResourceConfig {
 				ab = new AuthBuilder(c, defaultExternalConfig, mc);
 			}
 		}
+		synchronized(storages) {
+			storages.add(ab.getStorage());
+		}
 		packages("us.kbase.auth2.service.api", "us.kbase.auth2.service.ui");
 		register(JacksonJaxbJsonProvider.class);
 		register(MustacheMvcFeature.class);
@@ -106,6 +113,17 @@ public class AuthenticationService extends ResourceConfig {
 	}
 	
 	static void shutdown() {
+		synchronized(storages) {
+			for (final MongoStorage s: storages) {
+				try {
+					s.close();
+				} catch (InterruptedException e) {
+					LoggerFactory.getLogger(AuthenticationService.class).error(
+							"Interrupted while writing pending storage updates", e);
+				}
+			}
+			storages.clear();
+		}
 		mc.close();
 	}
 }
@@ -0,0 +1,138 @@
+package us.kbase.auth2.service.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.exceptions.AuthException;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.token.StoredToken;
+
+/** Adds HTTP caching headers to API responses and handles conditional requests.
+ *
+ * Responses are marked private, since they depend on the token in the request, and may be
+ * cached for the lesser of the suggested token cache time and the remaining lifetime of the
+ * token. Entity tags are digests of the response contents.
+ */
+public class APICaching {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private APICaching() {}
+
+	/** Supplies the response for a request whose contents have changed. */
+	public interface ResponseSupplier {
+		
+		/** Get the response.
+		 * @return the response.
+		 * @throws AuthException if the response could not be created.
+		 * @throws AuthStorageException if an error occurred accessing the storage system.
+		 */
+		Response.ResponseBuilder get() throws AuthException, AuthStorageException;
+	}
+
+	/** Get the time for which a response may be cached.
+	 * @param cacheTimeMS the suggested token cache time in milliseconds.
+	 * @param token the token with which the request was made.
+	 * @param now the current time.
+	 * @return the maximum age of the response in seconds.
+	 */
+	public static int getMaxAge(
+			final long cacheTimeMS,
+			final StoredToken token,
+			final Instant now) {
+		final long remaining = token.getExpirationDate().toEpochMilli() - now.toEpochMilli();
+		return (int) Math.max(0, Math.min(cacheTimeMS, remaining) / 1000);
+	}
+
+	/** Get an entity tag for an object that will be serialized to JSON.
+	 * @param entity the object.
+	 * @return the entity tag.
+	 */
+	public static EntityTag getETag(final Object entity) {
+		final MessageDigest digest = getDigest();
+		try {
+			digest.update(MAPPER.writeValueAsBytes(entity));
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException("Unable to serialize entity: " + e.getMessage(), e);
+		}
+		return toETag(digest);
+	}
+
+	/** Get an entity tag for a set of users without copying the users.
+	 * @param users the users mapped to their display names.
+	 * @return the entity tag.
+	 */
+	public static EntityTag getUsersETag(final Map<UserName, DisplayName> users) {
+		final MessageDigest digest = getDigest();
+		for (final Entry<UserName, DisplayName> e: users.entrySet()) {
+			// user names can't contain whitespace
+			digest.update(e.getKey().getName().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) ' ');
+			digest.update(e.getValue().getName().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+		}
+		return toETag(digest);
+	}
+
+	/** Build a cacheable response. If the request's If-None-Match header matches the entity tag,
+	 * a 304 Not Modified response without a body is returned, and the response supplier is not
+	 * called.
+	 * @param request the request.
+	 * @param etag the entity tag of the response contents.
+	 * @param maxAgeSec the time in seconds for which the response may be cached.
+	 * @param response a supplier of the response to return if the contents have changed.
+	 * @return the response.
+	 * @throws AuthException if the response supplier could not create the response.
+	 * @throws AuthStorageException if an error occurred accessing the storage system.
+	 */
+	public static Response build(
+			final Request request,
+			final EntityTag etag,
+			final int maxAgeSec,
+			final ResponseSupplier response)
+			throws AuthException, AuthStorageException {
+		final CacheControl cc = new CacheControl();
+		cc.setPrivate(true);
+		cc.setNoTransform(false);
+		cc.setMaxAge(maxAgeSec);
+		Response.ResponseBuilder r = request.evaluatePreconditions(etag);
+		if (r == null) {
+			r = response.get().tag(etag);
+		}
+		return r.cacheControl(cc).header(HttpHeaders.VARY, APIConstants.HEADER_TOKEN).build();
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+	}
+
+	private static EntityTag toETag(final MessageDigest digest) {
+		final byte[] hash = digest.digest();
+		final char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new EntityTag(new String(hex));
+	}
+}
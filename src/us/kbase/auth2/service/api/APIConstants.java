@@ -5,5 +5,6 @@ public class APIConstants {
 	//TODO JAVADOC
 	
 	public static final String HEADER_TOKEN = "authorization";
+	public static final String HEADER_NEXT_CURSOR = "X-Next-Cursor";
 
 }
@@ -23,4 +23,6 @@ public class APIPaths {
 	public static final String USERS_SEARCH = "search/{prefix}";
 	
 	public static final String API_V2_ME = API_V2 + SEP + "me";
+	
+	public static final String API_V2_JWKS = API_V2 + SEP + "jwks";
 }
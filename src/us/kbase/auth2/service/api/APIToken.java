@@ -1,5 +1,8 @@
 package us.kbase.auth2.service.api;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.service.common.ExternalToken;
 
@@ -9,13 +12,28 @@ public class APIToken extends ExternalToken {
 	//TODO JAVADOC
 	
 	private final long cachefor;
+	private final String assertion;
 	
 	public APIToken(final StoredToken token, final long tokenCacheTimeMillis) {
+		this(token, tokenCacheTimeMillis, null);
+	}
+	
+	// assertion may be null
+	public APIToken(
+			final StoredToken token,
+			final long tokenCacheTimeMillis,
+			final String assertion) {
 		super(token);
 		cachefor = tokenCacheTimeMillis;
+		this.assertion = assertion;
 	}
 
 	public long getCachefor() {
 		return cachefor;
 	}
+	
+	@JsonInclude(Include.NON_NULL)
+	public String getAssertion() {
+		return assertion;
+	}
 }
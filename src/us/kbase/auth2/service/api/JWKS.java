@@ -0,0 +1,62 @@
+package us.kbase.auth2.service.api;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.Authentication;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+
+/** Provides the public keys with which signed tokens and token assertions may be verified as a
+ * JSON Web Key Set (RFC 7517). The key set is empty if neither signed tokens nor token
+ * assertions are enabled.
+ */
+@Path(APIPaths.API_V2_JWKS)
+public class JWKS {
+
+	//TODO TEST
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	@Inject
+	private Authentication auth;
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> getKeys() throws AuthStorageException {
+		final List<Map<String, String>> keys = new LinkedList<>();
+		for (final Entry<String, RSAPublicKey> k: auth.getTokenVerificationKeys().entrySet()) {
+			keys.add(ImmutableMap.<String, String>builder()
+					.put("kty", "RSA")
+					.put("use", "sig")
+					.put("alg", "RS256")
+					.put("kid", k.getKey())
+					.put("n", encode(k.getValue().getModulus()))
+					.put("e", encode(k.getValue().getPublicExponent()))
+					.build());
+		}
+		return ImmutableMap.of("keys", keys);
+	}
+
+	// base64url encoding of the unsigned big endian value
+	private static String encode(final BigInteger i) {
+		final byte[] b = i.toByteArray();
+		if (b.length > 1 && b[0] == 0) {
+			return ENCODER.encodeToString(Arrays.copyOfRange(b, 1, b.length));
+		}
+		return ENCODER.encodeToString(b);
+	}
+}
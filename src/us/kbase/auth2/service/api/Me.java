@@ -2,6 +2,8 @@ package us.kbase.auth2.service.api;
 
 import static us.kbase.auth2.service.common.ServiceCommon.getToken;
 import static us.kbase.auth2.service.common.ServiceCommon.updateUser;
+import static us.kbase.auth2.service.api.APICaching.getETag;
+import static us.kbase.auth2.service.api.APICaching.getMaxAge;
 
 import java.time.Instant;
 import java.util.HashMap;
@@ -18,7 +20,10 @@ import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
@@ -26,6 +31,7 @@ import com.google.common.collect.ImmutableMap;
 
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.Role;
+import us.kbase.auth2.lib.exceptions.AuthException;
 import us.kbase.auth2.lib.exceptions.DisabledUserException;
 import us.kbase.auth2.lib.exceptions.IllegalParameterException;
 import us.kbase.auth2.lib.exceptions.InvalidTokenException;
@@ -33,6 +39,7 @@ import us.kbase.auth2.lib.exceptions.NoTokenProvidedException;
 import us.kbase.auth2.lib.exceptions.UnauthorizedException;
 import us.kbase.auth2.lib.identity.RemoteIdentity;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.user.AuthUser;
 
 @Path(APIPaths.API_V2_ME)
@@ -46,11 +53,20 @@ public class Me {
 	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> me(@HeaderParam(APIConstants.HEADER_TOKEN) final String token)
+	public Response me(
+			@Context final Request request,
+			@HeaderParam(APIConstants.HEADER_TOKEN) final String token)
 			throws NoTokenProvidedException, InvalidTokenException, AuthStorageException,
-			DisabledUserException {
+			DisabledUserException, AuthException {
+		final StoredToken st = auth.getToken(getToken(token));
+		final Map<String, Object> me = toMap(auth.getUser(st));
+		return APICaching.build(request, getETag(me),
+				getMaxAge(auth.getSuggestedTokenCacheTime(), st, Instant.now()),
+				() -> Response.ok(me));
+	}
+	
+	private Map<String, Object> toMap(final AuthUser u) {
 		// this code is almost identical to ui.Me but I don't want to couple the API and UI outputs
-		final AuthUser u = auth.getUser(getToken(token));
 		final Map<String, Object> ret = new HashMap<String, Object>();
 		ret.put("user", u.getUserName().getName());
 		ret.put("local", u.isLocal());
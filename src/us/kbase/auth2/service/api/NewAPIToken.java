@@ -10,7 +10,15 @@ public class NewAPIToken extends APIToken {
 	private final String token;
 	
 	public NewAPIToken(final NewToken token, final long tokenCacheTimeMillis) {
-		super(token.getStoredToken(), tokenCacheTimeMillis);
+		this(token, tokenCacheTimeMillis, null);
+	}
+	
+	// assertion may be null
+	public NewAPIToken(
+			final NewToken token,
+			final long tokenCacheTimeMillis,
+			final String assertion) {
+		super(token.getStoredToken(), tokenCacheTimeMillis, assertion);
 		this.token = token.getToken();
 	}
 
@@ -3,7 +3,12 @@ package us.kbase.auth2.service.api;
 import static us.kbase.auth2.service.common.ServiceCommon.getToken;
 import static us.kbase.auth2.service.common.ServiceCommon.getTokenContext;
 import static us.kbase.auth2.service.common.ServiceCommon.isIgnoreIPsInHeaders;
+import static us.kbase.auth2.service.api.APICaching.getETag;
+import static us.kbase.auth2.service.api.APICaching.getMaxAge;
 
+import java.time.Instant;
+
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 
@@ -16,20 +21,28 @@ import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.TokenCreationContext;
+import us.kbase.auth2.lib.exceptions.AuthException;
+import us.kbase.auth2.lib.exceptions.ErrorType;
 import us.kbase.auth2.lib.exceptions.IllegalParameterException;
 import us.kbase.auth2.lib.exceptions.InvalidTokenException;
 import us.kbase.auth2.lib.exceptions.MissingParameterException;
 import us.kbase.auth2.lib.exceptions.NoTokenProvidedException;
 import us.kbase.auth2.lib.exceptions.UnauthorizedException;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.token.IncomingToken;
+import us.kbase.auth2.lib.token.NewToken;
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.token.TokenName;
 import us.kbase.auth2.lib.token.TokenType;
@@ -48,13 +61,48 @@ public class Token {
 	@Inject
 	private UserAgentParser userAgentParser;
 	
+	private static final String TRUE = "true";
+	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public APIToken viewToken(
-			@HeaderParam(APIConstants.HEADER_TOKEN) final String token)
-			throws NoTokenProvidedException, InvalidTokenException, AuthStorageException {
-		final StoredToken ht = auth.getToken(getToken(token));
-		return new APIToken(ht, auth.getSuggestedTokenCacheTime());
+	public Response viewToken(
+			@Context final Request request,
+			@HeaderParam(APIConstants.HEADER_TOKEN) final String token,
+			@QueryParam("assertion") final String assertion)
+			throws NoTokenProvidedException, InvalidTokenException, AuthStorageException,
+			AuthException {
+		checkAssertionsEnabled(assertion);
+		final IncomingToken t = getToken(token);
+		final StoredToken ht = auth.getToken(t);
+		final long cacheTime = auth.getSuggestedTokenCacheTime();
+		/* assertions are signed at request time, so tag the token details rather than the
+		 * response. An assertion is valid until the token expires, so a cached one is still good.
+		 */
+		final EntityTag etag = getETag(Arrays.asList(
+				new APIToken(ht, cacheTime), TRUE.equals(assertion)));
+		// only sign the assertion if the response has changed
+		return APICaching.build(request, etag, getMaxAge(cacheTime, ht, Instant.now()),
+				() -> Response.ok(new APIToken(ht, cacheTime, getAssertion(t, assertion))));
+	}
+	
+	// check before creating tokens so a token isn't created if the assertion can't be provided
+	private void checkAssertionsEnabled(final String assertion) throws AuthException {
+		if (TRUE.equals(assertion) && !auth.isTokenAssertionsEnabled()) {
+			throw new AuthException(ErrorType.UNSUPPORTED_OP, "Token assertions are not enabled");
+		}
+	}
+	
+	// returns null if no assertion was requested
+	private String getAssertion(final IncomingToken token, final String assertion)
+			throws InvalidTokenException, AuthStorageException, AuthException {
+		return TRUE.equals(assertion) ? auth.getTokenAssertion(token) : null;
+	}
+	
+	private NewAPIToken toAPIToken(final NewToken token, final String assertion)
+			throws InvalidTokenException, AuthStorageException, MissingParameterException,
+			AuthException {
+		return new NewAPIToken(token, auth.getSuggestedTokenCacheTime(),
+				getAssertion(new IncomingToken(token.getToken()), assertion));
 	}
 	
 	@POST
@@ -63,15 +111,16 @@ public class Token {
 	public NewAPIToken createAgentTokenForm(
 			@Context final HttpServletRequest req,
 			@HeaderParam(APIConstants.HEADER_TOKEN) final String token,
-			@FormParam("name") final String name)
+			@FormParam("name") final String name,
+			@QueryParam("assertion") final String assertion)
 			throws InvalidTokenException, MissingParameterException, UnauthorizedException,
-			NoTokenProvidedException, IllegalParameterException, AuthStorageException {
-		
+			NoTokenProvidedException, IllegalParameterException, AuthStorageException,
+			AuthException {
+		checkAssertionsEnabled(assertion);
 		final TokenCreationContext tcc = getTokenContext(
 				userAgentParser, req, isIgnoreIPsInHeaders(auth), Collections.emptyMap());
-		return new NewAPIToken(auth.createToken(
-				getToken(token), new TokenName(name), TokenType.AGENT, tcc),
-				auth.getSuggestedTokenCacheTime());
+		return toAPIToken(auth.createToken(
+				getToken(token), new TokenName(name), TokenType.AGENT, tcc), assertion);
 	}
 	
 	private static class CreateToken extends IncomingJSON {
@@ -101,16 +150,18 @@ public class Token {
 	public NewAPIToken createAgentTokenJSON(
 			@Context final HttpServletRequest req,
 			@HeaderParam(APIConstants.HEADER_TOKEN) final String token,
+			@QueryParam("assertion") final String assertion,
 			final CreateToken create)
 			throws InvalidTokenException, UnauthorizedException, NoTokenProvidedException,
-			MissingParameterException, IllegalParameterException, AuthStorageException {
+			MissingParameterException, IllegalParameterException, AuthStorageException,
+			AuthException {
 		create.exceptOnAdditionalProperties();
+		checkAssertionsEnabled(assertion);
 		
 		final TokenCreationContext tcc = getTokenContext(
 				userAgentParser, req, isIgnoreIPsInHeaders(auth), create.getCustomContext());
 		
-		return new NewAPIToken(auth.createToken(
-				getToken(token), new TokenName(create.name), TokenType.AGENT, tcc),
-				auth.getSuggestedTokenCacheTime());
+		return toAPIToken(auth.createToken(
+				getToken(token), new TokenName(create.name), TokenType.AGENT, tcc), assertion);
 	}
 }
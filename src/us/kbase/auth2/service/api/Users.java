@@ -1,8 +1,12 @@
 package us.kbase.auth2.service.api;
 
 import static us.kbase.auth2.service.common.ServiceCommon.getToken;
+import static us.kbase.auth2.service.api.APICaching.getUsersETag;
+import static us.kbase.auth2.service.api.APICaching.getMaxAge;
 
-import java.util.HashMap;
+import java.time.Instant;
+
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -15,12 +19,21 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.DisplayName;
 import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchResult;
 import us.kbase.auth2.lib.UserSearchSpec;
+import us.kbase.auth2.lib.exceptions.AuthException;
 import us.kbase.auth2.lib.exceptions.ErrorType;
 import us.kbase.auth2.lib.exceptions.IllegalParameterException;
 import us.kbase.auth2.lib.exceptions.InvalidTokenException;
@@ -28,6 +41,7 @@ import us.kbase.auth2.lib.exceptions.MissingParameterException;
 import us.kbase.auth2.lib.exceptions.NoTokenProvidedException;
 import us.kbase.auth2.lib.exceptions.UnauthorizedException;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.token.StoredToken;
 
 @Path(APIPaths.API_V2_USERS)
 public class Users {
@@ -35,6 +49,10 @@ public class Users {
 	//TODO TEST
 	//TODO JAVADOC
 
+	// the container owns the response stream
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	
 	@Inject
 	private Authentication auth;
 
@@ -43,15 +61,25 @@ public class Users {
 	 */
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, String> getUsers(
+	public Response getUsers(
+			@Context final Request request,
 			@HeaderParam(APIConstants.HEADER_TOKEN) final String token,
 			@QueryParam("list") final String users)
 			throws MissingParameterException, IllegalParameterException, NoTokenProvidedException,
-			InvalidTokenException, AuthStorageException {
-		final Map<String, String> ret = new HashMap<>();
+			InvalidTokenException, AuthStorageException, AuthException {
+		final StoredToken st = auth.getToken(getToken(token));
+		final Map<UserName, DisplayName> names;
 		if (users == null || users.trim().isEmpty()) {
-			return ret;
+			names = Collections.emptyMap();
+		} else {
+			names = auth.getUserDisplayNames(st, toUserNames(users));
 		}
+		return APICaching.build(request, getUsersETag(names),
+				getMaxAge(auth.getSuggestedTokenCacheTime(), st, Instant.now()),
+				() -> toJSON(names));
+	}
+	
+	private Set<UserName> toUserNames(final String users) throws IllegalParameterException {
 		final String[] usersplt = users.split(",");
 		final Set<UserName> uns = new HashSet<>();
 		for (final String u: usersplt) {
@@ -62,20 +90,41 @@ public class Users {
 						"Illegal username [%s]: %s", u, e.getMessage()));
 			}
 		}
-		final Map<UserName, DisplayName> dns = auth.getUserDisplayNames(getToken(token), uns);
-		for (final Entry<UserName, DisplayName> e: dns.entrySet()) {
-			ret.put(e.getKey().getName(), e.getValue().getName());
-		}
-		return ret;
+		return uns;
+	}
+	
+	/* Writes the users directly to the response rather than copying them into a map of strings
+	 * for Jackson to serialize, which for large result sets would be a second and third copy of
+	 * the results in memory.
+	 */
+	private Response.ResponseBuilder toJSON(final Map<UserName, DisplayName> users) {
+		return toJSON(users, Response.ok());
+	}
+	
+	private Response.ResponseBuilder toJSON(
+			final Map<UserName, DisplayName> users,
+			final Response.ResponseBuilder response) {
+		final StreamingOutput out = os -> {
+			try (final JsonGenerator gen = JSON_FACTORY.createGenerator(os)) {
+				gen.writeStartObject();
+				for (final Entry<UserName, DisplayName> e: users.entrySet()) {
+					gen.writeStringField(e.getKey().getName(), e.getValue().getName());
+				}
+				gen.writeEndObject();
+			}
+		};
+		return response.entity(out).type(MediaType.APPLICATION_JSON_TYPE);
 	}
 	
 	@GET
 	@Path(APIPaths.USERS_SEARCH)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, String> getUsersByPrefix(
+	public Response getUsersByPrefix(
 			@HeaderParam(APIConstants.HEADER_TOKEN) final String token,
 			@PathParam("prefix") final String prefix,
-			@QueryParam("fields") final String fields)
+			@QueryParam("fields") final String fields,
+			@QueryParam("limit") final String limit,
+			@QueryParam("cursor") final String cursor)
 			throws InvalidTokenException, NoTokenProvidedException, AuthStorageException,
 			IllegalParameterException {
 		final UserSearchSpec.Builder build = UserSearchSpec.getBuilder();
@@ -94,16 +143,35 @@ public class Users {
 				}
 			}
 		}
-		final Map<UserName, DisplayName> dns;
+		if (limit != null && !limit.trim().isEmpty()) {
+			build.withLimit(getLimit(limit));
+		}
+		if (cursor != null && !cursor.trim().isEmpty()) {
+			build.withCursor(cursor);
+		}
+		final UserSearchResult res;
 		try {
-			dns = auth.getUserDisplayNames(getToken(token), build.build());
+			res = auth.searchUserDisplayNames(getToken(token), build.build());
 		} catch (UnauthorizedException e) {
 			throw new RuntimeException("this should be impossible", e);
 		}
-		final Map<String, String> ret = new HashMap<>();
-		for (final Entry<UserName, DisplayName> e: dns.entrySet()) {
-			ret.put(e.getKey().getName(), e.getValue().getName());
+		// paged results are ordered by user name, which is preserved when streaming
+		final Response.ResponseBuilder r = Response.ok();
+		if (res.getNextCursor().isPresent()) {
+			r.header(APIConstants.HEADER_NEXT_CURSOR, res.getNextCursor().get());
+		}
+		return toJSON(res.getUsers(), r).build();
+	}
+	
+	private int getLimit(final String limit) throws IllegalParameterException {
+		try {
+			final int l = Integer.parseInt(limit.trim());
+			if (l > 0) {
+				return l;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
 		}
-		return ret;
+		throw new IllegalParameterException("limit must be a positive integer: " + limit);
 	}
 }
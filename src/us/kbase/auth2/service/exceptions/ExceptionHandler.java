@@ -4,10 +4,13 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.ws.rs.Produces;
@@ -21,12 +24,16 @@ import javax.ws.rs.ext.ExceptionMapper;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.config.ConfigAction.State;
+import us.kbase.auth2.lib.exceptions.AuthException;
 import us.kbase.auth2.lib.exceptions.ExternalConfigMappingException;
+import us.kbase.auth2.lib.exceptions.InvalidTokenException;
+import us.kbase.auth2.lib.exceptions.NoTokenProvidedException;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
 import us.kbase.auth2.service.AuthExternalConfig;
 import us.kbase.auth2.service.AuthExternalConfig.AuthExternalConfigMapper;
@@ -43,7 +50,7 @@ public class ExceptionHandler implements ExceptionMapper<Throwable> {
 	private HttpHeaders headers;
 	@Inject
 	private TemplateProcessor template;
-	private final ObjectMapper mapper = new ObjectMapper();
+	private static final ObjectMapper MAPPER = new ObjectMapper();
 	@Inject
 	private SLF4JAutoLogger logger;
 	@Inject
@@ -51,10 +58,28 @@ public class ExceptionHandler implements ExceptionMapper<Throwable> {
 	@Inject
 	private ResourceInfo resourceInfo;
 
+	/* Expected authentication failures, typically a client with a stale or missing token.
+	 * A misbehaving client can send these at a high rate, so they skip the stack trace, the
+	 * server configuration lookup, and JSON serialization of the error.
+	 */
+	private static final long AUTH_FAILURE_LOG_INTERVAL_MS = 10 * 1000;
+	private static final int MAX_CACHED_BODIES = 100;
+	// error message -> JSON error body without the call ID, time, or closing braces
+	private static final Map<String, String> AUTH_FAILURE_BODIES = new ConcurrentHashMap<>();
+	private static final AtomicLong SUPPRESSED_AUTH_FAILURES = new AtomicLong();
+	private static final AtomicLong LAST_AUTH_FAILURE_LOG = new AtomicLong();
+	
+	// the @Produces annotations can't change, so the media type per method is cached
+	private static final Map<Method, Optional<MediaType>> METHOD_MEDIA_TYPES =
+			new ConcurrentHashMap<>();
+	
 	@Override
 	public Response toResponse(Throwable ex) {
 		
 		final MediaType mt = getMediaType();
+		if (ex instanceof InvalidTokenException || ex instanceof NoTokenProvidedException) {
+			return authFailure((AuthException) ex, mt);
+		}
 		LoggerFactory.getLogger(getClass()).error("Logging exception:", ex);
 
 		boolean includeStack = false;
@@ -73,7 +98,7 @@ public class ExceptionHandler implements ExceptionMapper<Throwable> {
 			final Map<String, Object> err = new HashMap<>();
 			err.put("error", em);
 			try {
-				ret = mapper.writeValueAsString(err);
+				ret = MAPPER.writeValueAsString(err);
 			} catch (JsonProcessingException e) {
 				ret = "An error occured in the error handler when " +
 						"processing the error object to JSON. " +
@@ -86,13 +111,76 @@ public class ExceptionHandler implements ExceptionMapper<Throwable> {
 		return Response.status(em.getHttpCode()).entity(ret).type(mt).build();
 	}
 	
+	private Response authFailure(final AuthException ex, final MediaType mt) {
+		logAuthFailure(ex);
+		final ErrorMessage em = new ErrorMessage(ex, logger.getCallID(), false);
+		final String ret;
+		if (mt.equals(MediaType.APPLICATION_JSON_TYPE)) {
+			final StringBuilder sb = new StringBuilder(getAuthFailureBody(em));
+			if (em.getCallID() != null) {
+				sb.append(",\"callID\":\"")
+						.append(JsonStringEncoder.getInstance().quoteAsString(em.getCallID()))
+						.append("\"");
+			}
+			ret = sb.append(",\"time\":").append(em.getTime()).append("}}").toString();
+		} else {
+			ret = template.process("error", em);
+		}
+		return Response.status(em.getHttpCode()).entity(ret).type(mt).build();
+	}
+	
+	private String getAuthFailureBody(final ErrorMessage em) {
+		final String body = AUTH_FAILURE_BODIES.get(em.getMessage());
+		if (body != null) {
+			return body;
+		}
+		final Map<String, Object> err = new LinkedHashMap<>();
+		err.put("httpCode", em.getHttpCode());
+		err.put("httpStatus", em.getHttpStatus());
+		err.put("appCode", em.getAppCode());
+		err.put("appError", em.getAppError());
+		err.put("message", em.getMessage());
+		final String json;
+		try {
+			json = MAPPER.writeValueAsString(err);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+		// remove the closing brace so the per call fields can be appended
+		final String newBody = "{\"error\":" + json.substring(0, json.length() - 1);
+		// the messages come from a small set of constants, but don't let the cache grow
+		if (AUTH_FAILURE_BODIES.size() < MAX_CACHED_BODIES) {
+			AUTH_FAILURE_BODIES.put(em.getMessage(), newBody);
+		}
+		return newBody;
+	}
+	
+	// logs at most one summary line per interval
+	private void logAuthFailure(final AuthException ex) {
+		final long now = System.currentTimeMillis();
+		final long last = LAST_AUTH_FAILURE_LOG.get();
+		if (now - last < AUTH_FAILURE_LOG_INTERVAL_MS ||
+				!LAST_AUTH_FAILURE_LOG.compareAndSet(last, now)) {
+			SUPPRESSED_AUTH_FAILURES.incrementAndGet();
+			return;
+		}
+		final long suppressed = SUPPRESSED_AUTH_FAILURES.getAndSet(0);
+		LoggerFactory.getLogger(getClass()).warn(String.format(
+				"Rejected request: %s. %s similar rejections were not logged since the " +
+				"previous message", ex.getMessage(), suppressed));
+	}
+	
 	private final static Set<MediaType> MEDIA_SUPPORTED = new HashSet<>(Arrays.asList(
 			MediaType.APPLICATION_JSON_TYPE, MediaType.TEXT_HTML_TYPE));
 
 	private MediaType getMediaType() {
 		Optional<MediaType> mt = getMediaTypeFromHeaders(headers);
 		if (!mt.isPresent()) {
-			mt = getMediaTypeFromMethodAnnotation(resourceInfo);
+			final Method method = resourceInfo.getResourceMethod();
+			if (method != null) {
+				mt = METHOD_MEDIA_TYPES.computeIfAbsent(
+						method, m -> getMediaTypeFromMethodAnnotation(resourceInfo));
+			}
 		}
 		if (!mt.isPresent()) {
 			mt = Optional.of(MediaType.TEXT_HTML_TYPE);
@@ -18,6 +18,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import javax.inject.Inject;
@@ -48,6 +49,7 @@ import us.kbase.auth2.lib.Password;
 import us.kbase.auth2.lib.PolicyID;
 import us.kbase.auth2.lib.Role;
 import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchResult;
 import us.kbase.auth2.lib.UserSearchSpec;
 import us.kbase.auth2.lib.config.AuthConfigSetWithUpdateTime;
 import us.kbase.auth2.lib.config.AuthConfigUpdate;
@@ -108,6 +110,7 @@ public class Admin {
 		ret.put("tokenurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_TOKEN));
 		ret.put("policyurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_POLICY_ID));
 		ret.put("searchurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_SEARCH));
+		ret.put("rolecountsurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_ROLE_COUNTS));
 		ret.put("croles", auth.getCustomRoles(getTokenFromCookie(
 						headers, cfg.getTokenCookieName()), true));
 		return ret;
@@ -163,6 +166,8 @@ public class Admin {
 				new PolicyID(policyID));
 	}
 	
+	private static final int SEARCH_PAGE_SIZE = 100;
+	
 	@POST
 	@Path(UIPaths.ADMIN_SEARCH) 
 	@Template(name = "/adminsearch")
@@ -199,8 +204,13 @@ public class Admin {
 				}
 			}
 		}
-		final Map<UserName, DisplayName> users = auth.getUserDisplayNames(
+		build.withLimit(SEARCH_PAGE_SIZE);
+		if (!nullOrEmpty(form.getFirst("cursor"))) {
+			build.withCursor(form.getFirst("cursor"));
+		}
+		final UserSearchResult res = auth.searchUserDisplayNames(
 				getTokenFromCookie(headers, cfg.getTokenCookieName()), build.build());
+		final Map<UserName, DisplayName> users = res.getUsers();
 		final List<Map<String, String>> uiusers = new LinkedList<>();
 		for (final UserName user: users.keySet()) {
 			final Map<String, String> u = new HashMap<>();
@@ -209,7 +219,52 @@ public class Admin {
 			u.put("url", relativize(uriInfo, UIPaths.ADMIN_ROOT_USER + SEP + user.getName()));
 			uiusers.add(u);
 		}
-		return ImmutableMap.of("users", uiusers, "hasusers", !uiusers.isEmpty());
+		final Map<String, Object> ret = new HashMap<>();
+		ret.put("users", uiusers);
+		ret.put("hasusers", !uiusers.isEmpty());
+		if (res.getNextCursor().isPresent()) {
+			// resubmit the search fields along with the cursor to get the next page
+			final List<Map<String, String>> fields = new LinkedList<>();
+			for (final String key: form.keySet()) {
+				if (!key.equals("cursor")) {
+					fields.add(ImmutableMap.of("name", key, "value", form.getFirst(key)));
+				}
+			}
+			ret.put("nextpage", ImmutableMap.of(
+					"searchurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_SEARCH),
+					"fields", fields,
+					"cursor", res.getNextCursor().get()));
+		}
+		return ret;
+	}
+	
+	@GET
+	@Path(UIPaths.ADMIN_ROLE_COUNTS)
+	@Template(name = "/adminrolecounts")
+	@Produces(MediaType.TEXT_HTML)
+	public Map<String, Object> getRoleCounts(
+			@Context final HttpHeaders headers,
+			@Context final UriInfo uriInfo)
+			throws InvalidTokenException, UnauthorizedException, NoTokenProvidedException,
+			AuthStorageException {
+		final IncomingToken token = getTokenFromCookie(headers, cfg.getTokenCookieName());
+		final Map<Role, Long> counts = auth.getRoleCounts(token);
+		final Map<String, Long> ccounts = auth.getCustomRoleCounts(token);
+		// the search form fields for roles are the role IDs
+		final List<Map<String, Object>> roles = new LinkedList<>();
+		for (final Role r: Role.values()) {
+			roles.add(ImmutableMap.of("id", r.getID(), "desc", r.getDescription(),
+					"count", counts.get(r), "field", r.getID()));
+		}
+		final List<Map<String, Object>> croles = new LinkedList<>();
+		for (final String id: new TreeSet<>(ccounts.keySet())) {
+			croles.add(ImmutableMap.of("id", id, "count", ccounts.get(id),
+					"field", "crole_" + id));
+		}
+		return ImmutableMap.of(
+				"searchurl", relativize(uriInfo, UIPaths.ADMIN_ROOT_SEARCH),
+				"roles", roles,
+				"customroles", croles);
 	}
 	
 	@GET
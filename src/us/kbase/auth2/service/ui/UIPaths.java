@@ -70,6 +70,9 @@ public class UIPaths {
 	public static final String ADMIN_SEARCH = "search";
 	public static final String ADMIN_ROOT_SEARCH = ADMIN_ROOT + ADMIN_SEARCH;
 	
+	public static final String ADMIN_ROLE_COUNTS = "rolecounts";
+	public static final String ADMIN_ROOT_ROLE_COUNTS = ADMIN_ROOT + ADMIN_ROLE_COUNTS;
+	
 	public static final String ADMIN_TOKEN = TOKEN;
 	public static final String ADMIN_ROOT_TOKEN = ADMIN_ROOT + TOKEN;
 	public static final String ADMIN_TOKENS = TOKENS;
@@ -18,6 +18,8 @@ import java.util.UUID;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.CustomRole;
 import us.kbase.auth2.lib.DisplayName;
@@ -501,6 +503,53 @@ public class AuthenticationCustomRoleTest {
 		verify(storage).deleteTokens(new UserName("baz"));
 	}
 
+	@Test
+	public void getRoleCounts() throws Exception {
+		succeedGetRoleCounts(UserName.ROOT, Role.ROOT);
+		succeedGetRoleCounts(new UserName("foo"), Role.CREATE_ADMIN);
+		succeedGetRoleCounts(new UserName("foo"), Role.ADMIN);
+	}
+	
+	@Test
+	public void getRoleCountsFailAdmin() throws Exception {
+		for (final Role r: Arrays.asList(Role.SERV_TOKEN, Role.DEV_TOKEN)) {
+			try {
+				succeedGetRoleCounts(new UserName("foo"), r);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got,
+						new UnauthorizedException(ErrorType.UNAUTHORIZED));
+			}
+		}
+	}
+	
+	private void succeedGetRoleCounts(final UserName un, final Role r) throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		final IncomingToken token = new IncomingToken("foobar");
+		final StoredToken htoken = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), un)
+				.withLifeTime(Instant.now(), Instant.now()).build();
+		
+		final AuthUser u = AuthUser.getBuilder(
+				un, new DisplayName("foobar"), Instant.now())
+				.withRole(r).build();
+
+		when(storage.getToken(token.getHashedToken())).thenReturn(htoken, htoken, (StoredToken) null);
+		
+		when(storage.getUser(un)).thenReturn(u, u, (AuthUser) null);
+		
+		when(storage.getRoleCounts()).thenReturn(ImmutableMap.of(Role.ADMIN, 2L));
+		when(storage.getCustomRoleCounts()).thenReturn(ImmutableMap.of("a", 1L, "c", 0L));
+		
+		assertThat("incorrect counts", auth.getRoleCounts(token),
+				is(ImmutableMap.of(Role.ADMIN, 2L)));
+		assertThat("incorrect counts", auth.getCustomRoleCounts(token),
+				is(ImmutableMap.of("a", 1L, "c", 0L)));
+	}
+
 	private void succeedGetCustomRoles(final UserName un, final Role r, final boolean forceAdmin)
 			throws Exception {
 		final TestMocks testauth = initTestMocks();
@@ -3,52 +3,26 @@ package us.kbase.test.auth2.lib;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import static us.kbase.test.auth2.lib.AuthenticationTester.initTestMocks;
 
-import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Pattern;
-
 import org.junit.Test;
 
 import com.google.common.base.Optional;
 
 import us.kbase.auth2.lib.Authentication;
-import us.kbase.auth2.lib.DisplayName;
 import us.kbase.auth2.lib.UserName;
-import us.kbase.auth2.lib.UserSearchSpec;
-import us.kbase.auth2.lib.UserSearchSpec.Builder;
 import us.kbase.auth2.lib.storage.AuthStorage;
 import us.kbase.test.auth2.TestCommon;
 import us.kbase.test.auth2.lib.AuthenticationTester.TestMocks;
 
 public class AuthenticationGetAvailableUserNameTest {
 	
-	private static final DisplayName DISPNAME;
-	static {
-		try {
-			DISPNAME = new DisplayName("unused");
-		} catch (Exception e) {
-			throw new RuntimeException("Fix yer tests nub", e);
-		}
-	}
-
-	private UserSearchSpec getTestSpec(final String searchName) throws Exception {
-		final Builder b = UserSearchSpec.getBuilder();
+	private static final Optional<Long> NONE = Optional.absent();
 
-		final Method m = UserSearchSpec.Builder.class.getDeclaredMethod(
-				"withSearchRegex", String.class);
-		m.setAccessible(true);
-		m.invoke(b, "^" + Pattern.quote(searchName) + "\\d*$");
-		
-		final UserSearchSpec spec = b.withIncludeDisabled(true).withSearchOnUserName(true).build();
-		
-		return spec;
-	}
-	
 	@Test
 	public void failGetAvailableUserName() throws Exception {
 		final Authentication auth = initTestMocks().auth;
@@ -62,181 +36,192 @@ public class AuthenticationGetAvailableUserNameTest {
 
 	@Test
 	public void getAvailableUserNameNoMatchNum0() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO0*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo1"), DISPNAME);
-		names.put(new UserName("foo2"), DISPNAME);
-		names.put(new UserName("foo26"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo0"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOO0*(^", "foo0", false, "foo", Optional.of(26L),
+				Optional.of(new UserName("foo0")));
 	}
 	
 	@Test
 	public void getAvailableUserNameNoMatchNum1() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO1*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo0"), DISPNAME);
-		names.put(new UserName("foo2"), DISPNAME);
-		names.put(new UserName("foo26"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo1"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOO1*(^", "foo1", false, "foo", Optional.of(26L),
+				Optional.of(new UserName("foo1")));
 	}
 	
 	@Test
 	public void getAvailableUserNameNoMatchNum2() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO2*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo0"), DISPNAME);
-		names.put(new UserName("foo1"), DISPNAME);
-		names.put(new UserName("foo3"), DISPNAME);
-		names.put(new UserName("foo26"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo2"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOO2*(^", "foo2", false, "foo", Optional.of(26L),
+				Optional.of(new UserName("foo2")));
 	}
 	
 	@Test
 	public void getAvailableUserNameWithMatch() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo"), DISPNAME);
-		names.put(new UserName("foo2"), DISPNAME);
-		names.put(new UserName("foo3"), DISPNAME);
-		names.put(new UserName("foo5"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo4"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOO*(^", "foo", true, "foo", Optional.of(5L),
+				Optional.of(new UserName("foo6")));
 	}
 	
 	@Test
 	public void getAvailableUserNameWithNumMatch() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO3*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo2"), DISPNAME);
-		names.put(new UserName("foo3"), DISPNAME);
-		names.put(new UserName("foo4"), DISPNAME);
-		names.put(new UserName("foo6"), DISPNAME);
-		names.put(new UserName("foo24"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo5"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOO3*(^", "foo3", true, "foo", Optional.of(24L),
+				Optional.of(new UserName("foo25")));
 	}
 	
 	@Test
-	public void getAvailableUserNameWithNumMatchEarly() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOO3*(^";
-		final String searchName = "foo";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foo3"), DISPNAME);
-		names.put(new UserName("foo4"), DISPNAME);
-		names.put(new UserName("foo6"), DISPNAME);
-		names.put(new UserName("foo24"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foo2"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+	public void getAvailableUserNameWithNumMatchLargest() throws Exception {
+		getAvailableUserName("  !# 999  45FOO3*(^", "foo3", true, "foo", Optional.of(3L),
+				Optional.of(new UserName("foo4")));
+	}
+	
+	@Test
+	public void getAvailableUserNameWithMatchSuffixBelowStart() throws Exception {
+		getAvailableUserName("  !# 999  45FOO*(^", "foo", true, "foo", Optional.of(1L),
+				Optional.of(new UserName("foo2")));
 	}
 	
 	@Test
 	public void getAvailableUserNameWithMatchNoNums() throws Exception {
-		
-		final String suggestedUserName = "  !# 999  45FOOp*(^";
-		final String searchName = "foop";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("foop"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("foop2"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		getAvailableUserName("  !# 999  45FOOp*(^", "foop", true, "foop", NONE,
+				Optional.of(new UserName("foop2")));
 	}
 	
 	@Test
 	public void getAvailableUserNameIllegalNameNoNames() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
 		
-		final String suggestedUserName = "  !# 999  45*(^";
-		final String searchName = "user";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		final Optional<UserName> expected = Optional.of(new UserName("user1"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		when(storage.getMaximumUserNameSuffix("user")).thenReturn(NONE);
+		
+		assertThat("incorrect username", testauth.auth.getAvailableUserName("  !# 999  45*(^"),
+				is(Optional.of(new UserName("user1"))));
 	}
 	
 	@Test
 	public void getAvailableUserNameIllegalNameWithNames() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
 		
-		final String suggestedUserName = "  !# 999  45*(^";
-		final String searchName = "user";
-		final Map<UserName, DisplayName> names = new HashMap<>();
-		names.put(new UserName("user1"), DISPNAME);
-		names.put(new UserName("user2"), DISPNAME);
-		names.put(new UserName("user4"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("user3"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names);
+		when(storage.getMaximumUserNameSuffix("user")).thenReturn(Optional.of(4L));
+		
+		assertThat("incorrect username", testauth.auth.getAvailableUserName("  !# 999  45*(^"),
+				is(Optional.of(new UserName("user5"))));
 	}
 	
 	@Test
 	public void getAvailableUserNameMaxNameLength() throws Exception {
-		
 		final StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < UserName.MAX_NAME_LENGTH - 1; i++) {
 			sb.append("a");
 		}
-		final String searchName = sb.toString();
+		final String stem = sb.toString();
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
 		
-		final String suggestedUserName = searchName + 1;
+		when(storage.userExists(new UserName(stem + 1))).thenReturn(true);
+		when(storage.userExists(new UserName(stem + 2))).thenReturn(true);
+		when(storage.getMaximumUserNameSuffix(stem)).thenReturn(Optional.of(9L));
 		
-		final Map<UserName, DisplayName> names1 = new HashMap<>();
-		for (int i = 1; i < 10; i++) {
-			names1.put(new UserName(searchName + i), DISPNAME);
+		// the next suffix is too long, so look for a gap
+		assertThat("incorrect username", testauth.auth.getAvailableUserName(stem + 1),
+				is(Optional.of(new UserName(stem + 3))));
+	}
+	
+	@Test
+	public void getAvailableUserNameMaxNameLengthNoGap() throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < UserName.MAX_NAME_LENGTH - 1; i++) {
+			sb.append("a");
 		}
-		final Map<UserName, DisplayName> names2 = new HashMap<>();
-		names2.put(new UserName("user1"), DISPNAME);
-		names2.put(new UserName("user2"), DISPNAME);
-		names2.put(new UserName("user4"), DISPNAME);
-		final Optional<UserName> expected = Optional.of(new UserName("user3"));
-
-		getAvailableUserName(suggestedUserName, searchName, expected, names1, names2);
+		final String stem = sb.toString();
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		
+		when(storage.userExists(new UserName(stem + 1))).thenReturn(true);
+		for (int i = 2; i < 10; i++) {
+			when(storage.userExists(new UserName(stem + i))).thenReturn(true);
+		}
+		when(storage.getMaximumUserNameSuffix(stem)).thenReturn(Optional.of(9L));
+		when(storage.getMaximumUserNameSuffix("user")).thenReturn(Optional.of(4L));
+		
+		assertThat("incorrect username", testauth.auth.getAvailableUserName(stem + 1),
+				is(Optional.of(new UserName("user5"))));
 	}
-
-	private void getAvailableUserName(
-			final String suggestedUserName,
-			final String searchName,
-			final Optional<UserName> expected,
-			final Map<UserName, DisplayName> names1)
-			throws Exception {
-		getAvailableUserName(suggestedUserName, searchName, expected, names1, null);
+	
+	@Test
+	public void getAvailableUserNameMaxSuffix() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		
+		when(storage.userExists(new UserName("foo"))).thenReturn(true);
+		when(storage.userExists(new UserName("foo2"))).thenReturn(true);
+		when(storage.getMaximumUserNameSuffix("foo")).thenReturn(Optional.of(Long.MAX_VALUE));
+		
+		// the next suffix overflows, so look for a gap
+		assertThat("incorrect username", testauth.auth.getAvailableUserName("foo"),
+				is(Optional.of(new UserName("foo3"))));
+	}
+	
+	@Test
+	public void getAvailableUserNameNextSuffixTaken() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		
+		// e.g. a user with a suffix too large to store, or whose suffix isn't stored yet
+		when(storage.userExists(new UserName("foo"))).thenReturn(true);
+		when(storage.userExists(new UserName("foo6"))).thenReturn(true);
+		when(storage.userExists(new UserName("foo2"))).thenReturn(true);
+		when(storage.getMaximumUserNameSuffix("foo")).thenReturn(Optional.of(5L));
+		
+		assertThat("incorrect username", testauth.auth.getAvailableUserName("foo"),
+				is(Optional.of(new UserName("foo3"))));
 	}
 	
+	@Test
+	public void getAvailableUserNameNoGap() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		
+		when(storage.userExists(new UserName("foo"))).thenReturn(true);
+		for (int i = 2; i < 22; i++) {
+			when(storage.userExists(new UserName("foo" + i))).thenReturn(true);
+		}
+		when(storage.getMaximumUserNameSuffix("foo")).thenReturn(Optional.of(20L));
+		when(storage.getMaximumUserNameSuffix("user")).thenReturn(Optional.of(4L));
+		
+		assertThat("incorrect username", testauth.auth.getAvailableUserName("foo"),
+				is(Optional.of(new UserName("user5"))));
+	}
+	
+	@Test
+	public void getAvailableUserNameCached() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		when(storage.userExists(new UserName("foo"))).thenReturn(true);
+		when(storage.getMaximumUserNameSuffix("foo")).thenReturn(Optional.of(2L));
+		
+		assertThat("incorrect username", auth.getAvailableUserName("foo"),
+				is(Optional.of(new UserName("foo3"))));
+		// sanitizes to the same name
+		assertThat("incorrect username", auth.getAvailableUserName(" Foo*"),
+				is(Optional.of(new UserName("foo3"))));
+		
+		verify(storage, times(1)).userExists(new UserName("foo"));
+		verify(storage, times(1)).getMaximumUserNameSuffix("foo");
+	}
+
 	private void getAvailableUserName(
 			final String suggestedUserName,
-			final String searchName,
-			final Optional<UserName> expected,
-			final Map<UserName, DisplayName> names1,
-			final Map<UserName, DisplayName> names2)
+			final String sanitizedName,
+			final boolean exists,
+			final String stem,
+			final Optional<Long> maxSuffix,
+			final Optional<UserName> expected)
 			throws Exception {
 		final TestMocks testauth = initTestMocks();
 		final AuthStorage storage = testauth.storageMock;
 		final Authentication auth = testauth.auth;
 		
-		final UserSearchSpec spec = getTestSpec(searchName);
-		final UserSearchSpec spec2 = getTestSpec("user");
-		
-		when(storage.getUserDisplayNames(spec, -1)).thenReturn(names1);
-		if (names2 != null) {
-			when(storage.getUserDisplayNames(spec2, -1)).thenReturn(names2);
-		}
+		when(storage.userExists(new UserName(sanitizedName))).thenReturn(exists);
+		when(storage.getMaximumUserNameSuffix(stem)).thenReturn(maxSuffix);
 		
 		final Optional<UserName> available = auth.getAvailableUserName(suggestedUserName);
 		
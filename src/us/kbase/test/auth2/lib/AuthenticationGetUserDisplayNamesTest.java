@@ -3,6 +3,7 @@ package us.kbase.test.auth2.lib;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.never;
@@ -16,18 +17,24 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
 
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
 import us.kbase.auth2.lib.Authentication;
 import us.kbase.auth2.lib.DisplayName;
 import us.kbase.auth2.lib.EmailAddress;
 import us.kbase.auth2.lib.Role;
 import us.kbase.auth2.lib.UserDisabledState;
 import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchResult;
 import us.kbase.auth2.lib.UserSearchSpec;
 import us.kbase.auth2.lib.exceptions.DisabledUserException;
 import us.kbase.auth2.lib.exceptions.ErrorType;
@@ -92,6 +99,64 @@ public class AuthenticationGetUserDisplayNamesTest {
 		assertThat("incorrect display names", disp, is(new HashMap<>()));
 	}
 	
+	@Test
+	public void getDisplayNamesSetWithStoredToken() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		final StoredToken token = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("foo"))
+				.withLifeTime(Instant.now(), Instant.now()).build();
+		
+		final Map<UserName, DisplayName> expected = new HashMap<>();
+		expected.put(new UserName("foo"), new DisplayName("dfoo"));
+		
+		when(storage.getUserDisplayNames(set(new UserName("foo"), new UserName("***ROOT***"))))
+				.thenReturn(new HashMap<>(ImmutableMap.of(
+						new UserName("foo"), new DisplayName("dfoo"),
+						UserName.ROOT, new DisplayName("root"))));
+		
+		final Map<UserName, DisplayName> disp = auth.getUserDisplayNames(
+				token, set(new UserName("foo"), new UserName("***ROOT***")));
+		
+		assertThat("incorrect display names", disp, is(expected));
+		verify(storage, never()).getToken(any());
+	}
+	
+	@Test
+	public void getDisplayNamesSetWithStoredTokenFail() throws Exception {
+		final Authentication auth = initTestMocks().auth;
+		final StoredToken token = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("foo"))
+				.withLifeTime(Instant.now(), Instant.now()).build();
+		
+		failGetDisplayNamesSetStoredToken(auth, null, Collections.emptySet(),
+				new NullPointerException("token"));
+		failGetDisplayNamesSetStoredToken(auth, token, null, new NullPointerException("userNames"));
+		failGetDisplayNamesSetStoredToken(auth, token, set(new UserName("foo"), null),
+				new NullPointerException("Null name in userNames"));
+		final Set<UserName> users = new HashSet<>();
+		for (int i = 0; i < 10001; i++) {
+			users.add(new UserName("u" + i));
+		}
+		failGetDisplayNamesSetStoredToken(auth, token, users,
+				new IllegalParameterException("User count exceeds maximum of 10000"));
+	}
+	
+	private void failGetDisplayNamesSetStoredToken(
+			final Authentication auth,
+			final StoredToken token,
+			final Set<UserName> names,
+			final Exception e) {
+		try {
+			auth.getUserDisplayNames(token, names);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+	
 	@Test
 	public void getDisplayNamesSetFailNulls() throws Exception {
 		final Authentication auth = initTestMocks().auth;
@@ -392,6 +457,89 @@ public class AuthenticationGetUserDisplayNamesTest {
 				"Only admins may search with root or disabled users included"));
 	}
 	
+	@Test
+	public void searchDisplayNamesPaged() throws Exception {
+		final AuthUser user = AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("foo"), Instant.now())
+				.withEmailAddress(new EmailAddress("f@g.com")).build();
+		
+		final UserSearchSpec spec = UserSearchSpec.getBuilder().withSearchPrefix("a")
+				.withLimit(2).build();
+		
+		final Map<UserName, DisplayName> ret = new LinkedHashMap<>();
+		ret.put(new UserName("a1"), new DisplayName("d1"));
+		ret.put(new UserName("a2"), new DisplayName("d2"));
+		ret.put(new UserName("a3"), new DisplayName("d3"));
+		
+		final Map<UserName, DisplayName> expected = new LinkedHashMap<>();
+		expected.put(new UserName("a1"), new DisplayName("d1"));
+		expected.put(new UserName("a2"), new DisplayName("d2"));
+		
+		searchDisplayNamesPaged(user, spec, 3, ret, new UserSearchResult(
+				expected, Optional.of(UserSearchSpec.toCursor(new UserName("a2")))));
+	}
+	
+	@Test
+	public void searchDisplayNamesLastPage() throws Exception {
+		final AuthUser user = AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("foo"), Instant.now())
+				.withEmailAddress(new EmailAddress("f@g.com")).build();
+		
+		final UserSearchSpec spec = UserSearchSpec.getBuilder().withSearchPrefix("a")
+				.withLimit(2).withCursor(UserSearchSpec.toCursor(new UserName("a2"))).build();
+		
+		final Map<UserName, DisplayName> ret = new LinkedHashMap<>();
+		ret.put(new UserName("a3"), new DisplayName("d3"));
+		
+		searchDisplayNamesPaged(user, spec, 3, ret, new UserSearchResult(
+				ret, Optional.absent()));
+	}
+	
+	@Test
+	public void searchDisplayNamesPagedRemoveRootAndCapLimit() throws Exception {
+		final AuthUser user = AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("foo"), Instant.now())
+				.withEmailAddress(new EmailAddress("f@g.com"))
+				.withRole(Role.ADMIN).build();
+		
+		final UserSearchSpec spec = UserSearchSpec.getBuilder().withLimit(20000).build();
+		
+		final Map<UserName, DisplayName> ret = new LinkedHashMap<>();
+		ret.put(new UserName("***ROOT***"), new DisplayName("root"));
+		ret.put(new UserName("a1"), new DisplayName("d1"));
+		
+		searchDisplayNamesPaged(user, spec, 10001, ret, new UserSearchResult(
+				ImmutableMap.of(new UserName("a1"), new DisplayName("d1")), Optional.absent()));
+	}
+	
+	private void searchDisplayNamesPaged(
+			final AuthUser user,
+			final UserSearchSpec spec,
+			final int expectedLimit,
+			final Map<UserName, DisplayName> storageResult,
+			final UserSearchResult expected)
+			throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		final IncomingToken token = new IncomingToken("foobar");
+
+		when(storage.getToken(token.getHashedToken())).thenReturn(
+				StoredToken.getBuilder(TokenType.LOGIN, UUID.randomUUID(), user.getUserName())
+						.withLifeTime(Instant.now(), Instant.now()).build());
+		
+		when(storage.getUser(user.getUserName())).thenReturn(user);
+		
+		when(storage.getUserDisplayNames(spec, expectedLimit)).thenReturn(storageResult);
+		
+		final UserSearchResult got = auth.searchUserDisplayNames(token, spec);
+		
+		assertThat("incorrect result", got, is(expected));
+		assertThat("incorrect order", new LinkedList<>(got.getUsers().keySet()),
+				is(new LinkedList<>(expected.getUsers().keySet())));
+	}
+	
 	private void getDisplayNamesSpec(
 			final AuthUser user,
 			final UserSearchSpec spec,
@@ -3,6 +3,7 @@ package us.kbase.test.auth2.lib;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -96,6 +97,58 @@ public class AuthenticationGetUserTest {
 				"in the storage system. Token was valid, but no user"));
 	}
 
+	@Test
+	public void getUserWithStoredToken() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		final AuthUser user = AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), Instant.now()).build();
+		final StoredToken token = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("foo"))
+				.withLifeTime(Instant.now(), Instant.now()).build();
+		
+		when(storage.getUser(new UserName("foo"))).thenReturn(user);
+		
+		assertThat("incorrect user", auth.getUser(token), is(user));
+		verify(storage, never()).getToken(any());
+	}
+	
+	@Test
+	public void getUserWithStoredTokenFailNull() throws Exception {
+		try {
+			initTestMocks().auth.getUser((StoredToken) null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("token"));
+		}
+	}
+	
+	@Test
+	public void getUserWithStoredTokenFailDisabled() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		
+		final StoredToken token = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("foo"))
+				.withLifeTime(Instant.now(), Instant.now()).build();
+		
+		when(storage.getUser(new UserName("foo"))).thenReturn(AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), Instant.now())
+				.withUserDisabledState(
+						new UserDisabledState("baz", new UserName("bat"), Instant.now()))
+				.build());
+		
+		try {
+			testauth.auth.getUser(token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new DisabledUserException());
+		}
+		verify(storage).deleteTokens(new UserName("foo"));
+	}
+
 	private void getUser(final AuthUser user) throws Exception {
 		final TestMocks testauth = initTestMocks();
 		final AuthStorage storage = testauth.storageMock;
@@ -22,7 +22,6 @@ import java.util.UUID;
 
 import org.junit.Test;
 
-import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 
 import us.kbase.auth2.cryptutils.RandomDataGenerator;
@@ -112,7 +111,8 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("Prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent()).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
+				.thenReturn(null);
 		
 		final LinkToken lt = auth.link(token, "prov", "authcode");
 		
@@ -163,7 +163,8 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("Prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent()).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
+				.thenReturn(null);
 		
 		doThrow(new IdentityLinkedException("foo"))
 				.when(storage).link(new UserName("baz"), storageRemoteID);
@@ -226,7 +227,8 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent()).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
+				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		when(rand.randomUUID()).thenReturn(tokenID).thenReturn(null);
@@ -288,8 +290,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(ImmutableMap.of(storageRemoteID,
+				AuthUser.getBuilder(new UserName("someuser"), new DisplayName("a"), Instant.now())
+						.build()))
 				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
@@ -362,12 +365,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id4"),
 				new RemoteIdentityDetails("user4", "full4", "f4@g.com"));
 		
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID4)).thenReturn(Optional.absent())
+		when(storage.getUsers(set(storageRemoteID2, storageRemoteID3, storageRemoteID4)))
+				.thenReturn(ImmutableMap.of(storageRemoteID2, AuthUser.getBuilder(
+						new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
 				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
@@ -745,7 +745,8 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("Prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent()).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
+				.thenReturn(null);
 		
 		doThrow(new NoSuchUserException("baz"))
 				.when(storage).link(new UserName("baz"), storageRemoteID);
@@ -795,7 +796,8 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("Prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent()).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
+				.thenReturn(null);
 		
 		doThrow(new LinkFailedException("doodoo"))
 				.when(storage).link(new UserName("baz"), storageRemoteID);
@@ -859,12 +861,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id4"),
 				new RemoteIdentityDetails("user4", "full4", "f4@g.com"));
 		
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID4)).thenReturn(Optional.absent())
+		when(storage.getUsers(set(storageRemoteID2, storageRemoteID3, storageRemoteID4)))
+				.thenReturn(ImmutableMap.of(storageRemoteID2, AuthUser.getBuilder(
+						new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
 				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
@@ -1053,12 +1052,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id4"),
 				new RemoteIdentityDetails("user4", "full4", "f4@g.com"));
 		
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID4)).thenReturn(Optional.absent())
+		when(storage.getUsers(set(storageRemoteID2, storageRemoteID3, storageRemoteID4)))
+				.thenReturn(ImmutableMap.of(storageRemoteID2, AuthUser.getBuilder(
+						new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
 				.thenReturn(null);
 		
 		final LinkIdentities li = auth.getLinkState(userToken, tempToken);
@@ -1248,8 +1244,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "f2@g.com"));
 
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
+		when(storage.getUsers(set(storageRemoteID2))).thenReturn(ImmutableMap.of(storageRemoteID2,
+				AuthUser.getBuilder(new UserName("someuser"), new DisplayName("a"), Instant.now())
+						.build()))
 				.thenReturn(null);
 		
 		failGetLinkState(auth, userToken, tempToken,
@@ -1648,12 +1645,9 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id4"),
 				new RemoteIdentityDetails("user4", "full4", "f4@g.com"));
 		
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(AuthUser.getBuilder(
-				new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID4)).thenReturn(Optional.absent())
+		when(storage.getUsers(set(storageRemoteID2, storageRemoteID3, storageRemoteID4)))
+				.thenReturn(ImmutableMap.of(storageRemoteID2, AuthUser.getBuilder(
+						new UserName("someuser"), new DisplayName("a"), Instant.now()).build()))
 				.thenReturn(null);
 		
 		doThrow(new IdentityLinkedException("foo")).when(storage)
@@ -1842,7 +1836,7 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id3"),
 				new RemoteIdentityDetails("user3", "full3", "f3@g.com"));
 		
-		when(storage.getUser(storageRemote3)).thenReturn(Optional.absent());
+		when(storage.getUsers(set(storageRemote3))).thenReturn(Collections.emptyMap());
 
 		doThrow(new NoSuchUserException("baz")).when(storage).link(new UserName("baz"),
 				storageRemote3);
@@ -1880,7 +1874,7 @@ public class AuthenticationLinkTest {
 				new RemoteIdentityID("prov", "id3"),
 				new RemoteIdentityDetails("user3", "full3", "f3@g.com"));
 		
-		when(storage.getUser(storageRemote3)).thenReturn(Optional.absent());
+		when(storage.getUsers(set(storageRemote3))).thenReturn(Collections.emptyMap());
 
 		doThrow(new LinkFailedException("foobar"))
 				.when(storage).link(new UserName("baz"), storageRemote3);
@@ -125,7 +125,9 @@ public class AuthenticationLoginTest {
 				.withRole(userRole)
 				.withIdentity(storageRemoteID).build();
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.of(user)).thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID)))
+				.thenReturn(ImmutableMap.of(storageRemoteID, user))
+				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		
@@ -211,8 +213,8 @@ public class AuthenticationLoginTest {
 			user.withUserDisabledState(new UserDisabledState(
 					"d", new UserName("baz"), Instant.ofEpochMilli(5000)));
 		}
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.of(user.build()))
-				.thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(
+				ImmutableMap.of(storageRemoteID, user.build())).thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		
@@ -266,7 +268,7 @@ public class AuthenticationLoginTest {
 				new RemoteIdentityID("prov", "id1"),
 				new RemoteIdentityDetails("user1", "full1", "f@g.com"));
 		
-		when(storage.getUser(storageRemoteID)).thenReturn(Optional.absent())
+		when(storage.getUsers(set(storageRemoteID))).thenReturn(Collections.emptyMap())
 				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
@@ -327,14 +329,11 @@ public class AuthenticationLoginTest {
 				new RemoteIdentityID("prov", "id2"),
 				new RemoteIdentityDetails("user2", "full2", "e@g.com"));
 		
-		when(storage.getUser(storageRemoteID1)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		
 		final AuthUser user = AuthUser.getBuilder(new UserName("foo"),
 				new DisplayName("bar"), Instant.ofEpochMilli(10000L))
 				.withIdentity(storageRemoteID2).build();
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(user))
-				.thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID1, storageRemoteID2)))
+				.thenReturn(ImmutableMap.of(storageRemoteID2, user)).thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		
@@ -405,19 +404,19 @@ public class AuthenticationLoginTest {
 				new DisplayName("bar"), Instant.ofEpochMilli(10000L))
 				.withIdentity(storageRemoteID1)
 				.withIdentity(storageRemoteID2).build();
-		when(storage.getUser(storageRemoteID1)).thenReturn(Optional.of(user))
-			.thenReturn(null);
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.of(
-				AuthUser.getBuilderWithoutIdentities(user)
-				.withIdentity(storageRemoteID1).withIdentity(storageRemoteID2).build()))
-				.thenReturn(null);
 		
 		final AuthUser user2 = AuthUser.getBuilder(new UserName("foo2"),
 				new DisplayName("bar2"), Instant.ofEpochMilli(50000L))
 				.withIdentity(storageRemoteID3).build();
 		
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.of(user2))
-			.thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID1, storageRemoteID2, storageRemoteID3)))
+				.thenReturn(ImmutableMap.of(
+						storageRemoteID1, user,
+						storageRemoteID2, AuthUser.getBuilderWithoutIdentities(user)
+								.withIdentity(storageRemoteID1)
+								.withIdentity(storageRemoteID2).build(),
+						storageRemoteID3, user2))
+				.thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		
@@ -484,12 +483,8 @@ public class AuthenticationLoginTest {
 				new RemoteIdentityDetails("user3", "full3", "d@g.com"));
 		
 		
-		when(storage.getUser(storageRemoteID1)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID2)).thenReturn(Optional.absent())
-				.thenReturn(null);
-		when(storage.getUser(storageRemoteID3)).thenReturn(Optional.absent())
-				.thenReturn(null);
+		when(storage.getUsers(set(storageRemoteID1, storageRemoteID2, storageRemoteID3)))
+				.thenReturn(Collections.emptyMap()).thenReturn(null);
 		
 		final UUID tokenID = UUID.randomUUID();
 		
@@ -625,9 +620,9 @@ public class AuthenticationLoginTest {
 						new AuthConfig(true, null, null),
 						new CollectingExternalConfig(Collections.emptyMap())));
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+				new RemoteIdentityDetails("user1", "full1", "f@g.com")))))
+				.thenReturn(Collections.emptyMap());
 		
 		final LoginState got = auth.getLoginState(token);
 		
@@ -663,13 +658,11 @@ public class AuthenticationLoginTest {
 						new AuthConfig(false, null, null),
 						new CollectingExternalConfig(Collections.emptyMap())));
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+				new RemoteIdentityDetails("user1", "full1", "f@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+						new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+				.thenReturn(Collections.emptyMap());
 		
 		final LoginState got = auth.getLoginState(token);
 		
@@ -710,9 +703,10 @@ public class AuthenticationLoginTest {
 				.withIdentity(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
 						new RemoteIdentityDetails("user1", "full1", "f@g.com"))).build();
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.of(user));
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+				new RemoteIdentityDetails("user1", "full1", "f@g.com")))))
+				.thenReturn(ImmutableMap.of(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+						new RemoteIdentityDetails("user1", "full1", "f@g.com")), user));
 		
 		final LoginState got = auth.getLoginState(token);
 		
@@ -761,13 +755,15 @@ public class AuthenticationLoginTest {
 				.withIdentity(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
 						new RemoteIdentityDetails("user2", "full2", "e@g.com"))).build();
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.of(user1));
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.of(user2));
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+				new RemoteIdentityDetails("user1", "full1", "f@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+						new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+				.thenReturn(ImmutableMap.of(
+						new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+								new RemoteIdentityDetails("user1", "full1", "f@g.com")), user1,
+						new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+								new RemoteIdentityDetails("user2", "full2", "e@g.com")), user2));
 		
 		
 		final LoginState got = auth.getLoginState(token);
@@ -822,13 +818,13 @@ public class AuthenticationLoginTest {
 				.withIdentity(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
 						new RemoteIdentityDetails("user1", "full1", "f@g.com"))).build();
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.of(user));
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+				new RemoteIdentityDetails("user1", "full1", "f@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+						new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+				.thenReturn(ImmutableMap.of(
+						new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
+								new RemoteIdentityDetails("user1", "full1", "f@g.com")), user));
 		
 		
 		final LoginState got = auth.getLoginState(token);
@@ -1065,24 +1061,20 @@ public class AuthenticationLoginTest {
 									new RemoteIdentityDetails("user5", "full5", "b@g.com")))))
 				.thenReturn(null);
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id3"),
-				new RemoteIdentityDetails("user3", "full3", "d@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id4"),
-				new RemoteIdentityDetails("user4", "full4", "c@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
-				new RemoteIdentityDetails("user5", "full5", "b@g.com"))))
-				.thenReturn(Optional.of(NewUser.getBuilder(
-						new UserName("baz"), new DisplayName("bar"), Instant.ofEpochMilli(700000),
-						new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
-						new RemoteIdentityDetails("user5", "full5", "b@g.com"))).build()));
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+						new RemoteIdentityDetails("user2", "full2", "e@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id3"),
+						new RemoteIdentityDetails("user3", "full3", "d@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id4"),
+						new RemoteIdentityDetails("user4", "full4", "c@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+						new RemoteIdentityDetails("user5", "full5", "b@g.com")))))
+				.thenReturn(ImmutableMap.of(new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+						new RemoteIdentityDetails("user5", "full5", "b@g.com")),
+						NewUser.getBuilder(new UserName("baz"), new DisplayName("bar"),
+								Instant.ofEpochMilli(700000),
+								new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+								new RemoteIdentityDetails("user5", "full5", "b@g.com"))).build()));
 		
 		//the identity was linked after identity filtering. Code should just ignore this.
 		doThrow(new IdentityLinkedException("foo")).when(storage).link(
@@ -1465,13 +1457,9 @@ public class AuthenticationLoginTest {
 		
 		when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000L)).thenReturn(null);
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+				new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+				.thenReturn(Collections.emptyMap());
 		
 		doThrow(new NoSuchUserException("baz")).when(storage).link(
 				new UserName("baz"), new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
@@ -1514,13 +1502,9 @@ public class AuthenticationLoginTest {
 		
 		when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000L)).thenReturn(null);
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
-				new RemoteIdentityDetails("user1", "full1", "f@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+				new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+				.thenReturn(Collections.emptyMap());
 		
 		doThrow(new LinkFailedException("local")).when(storage).link(
 				new UserName("baz"), new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
@@ -1771,24 +1755,20 @@ public class AuthenticationLoginTest {
 								new RemoteIdentityDetails("user1", "full1", "f@g.com")))
 						.build()));
 
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id3"),
-				new RemoteIdentityDetails("user3", "full3", "d@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id4"),
-				new RemoteIdentityDetails("user4", "full4", "c@g.com"))))
-				.thenReturn(Optional.absent());
-		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
-				new RemoteIdentityDetails("user5", "full5", "b@g.com"))))
-				.thenReturn(Optional.of(NewUser.getBuilder(
-						new UserName("baz"), new DisplayName("bar"), Instant.ofEpochMilli(700000),
-						new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
-						new RemoteIdentityDetails("user5", "full5", "b@g.com"))).build()));
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+						new RemoteIdentityDetails("user2", "full2", "e@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id3"),
+						new RemoteIdentityDetails("user3", "full3", "d@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id4"),
+						new RemoteIdentityDetails("user4", "full4", "c@g.com")),
+				new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+						new RemoteIdentityDetails("user5", "full5", "b@g.com")))))
+				.thenReturn(ImmutableMap.of(new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+						new RemoteIdentityDetails("user5", "full5", "b@g.com")),
+						NewUser.getBuilder(new UserName("baz"), new DisplayName("bar"),
+								Instant.ofEpochMilli(700000),
+								new RemoteIdentity(new RemoteIdentityID("prov", "id5"),
+								new RemoteIdentityDetails("user5", "full5", "b@g.com"))).build()));
 		
 		//the identity was linked after identity filtering. Code should just ignore this.
 		doThrow(new IdentityLinkedException("foo")).when(storage).link(
@@ -2074,9 +2054,9 @@ public class AuthenticationLoginTest {
 					.withIdentity(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
 							new RemoteIdentityDetails("user1", "full1", "f@g.com"))).build()));
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-					.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+				new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+					.thenReturn(Collections.emptyMap());
 		
 		when(storage.getConfig(isA(CollectingExternalConfigMapper.class)))
 				.thenReturn(new AuthConfigSet<CollectingExternalConfig>(
@@ -2120,9 +2100,9 @@ public class AuthenticationLoginTest {
 					.withIdentity(new RemoteIdentity(new RemoteIdentityID("prov", "id1"),
 							new RemoteIdentityDetails("user1", "full1", "f@g.com"))).build()));
 		
-		when(storage.getUser(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
-				new RemoteIdentityDetails("user2", "full2", "e@g.com"))))
-					.thenReturn(Optional.absent());
+		when(storage.getUsers(set(new RemoteIdentity(new RemoteIdentityID("prov", "id2"),
+				new RemoteIdentityDetails("user2", "full2", "e@g.com")))))
+					.thenReturn(Collections.emptyMap());
 		
 		when(storage.getConfig(isA(CollectingExternalConfigMapper.class)))
 				.thenReturn(new AuthConfigSet<CollectingExternalConfig>(
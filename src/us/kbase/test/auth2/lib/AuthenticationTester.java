@@ -82,9 +82,35 @@ public class AuthenticationTester {
 	}
 	
 	public static TestMocks initTestMocks(final Set<IdentityProvider> providers) throws Exception {
+		return initTestMocks(providers, Collections.emptySet(), false, null);
+	}
+	
+	public static TestMocks initTestMocksWithTokenAssertions() throws Exception {
+		return initTestMocks(Collections.emptySet(), Collections.emptySet(), true, null);
+	}
+	
+	/* The clock mock always returns now, since the signed token manager checks the time
+	 * on construction.
+	 */
+	public static TestMocks initTestMocksWithSignedTokens(
+			final Set<TokenType> signedTokenTypes,
+			final Instant now)
+			throws Exception {
+		return initTestMocks(Collections.emptySet(), signedTokenTypes, true, now);
+	}
+	
+	private static TestMocks initTestMocks(
+			final Set<IdentityProvider> providers,
+			final Set<TokenType> signedTokenTypes,
+			final boolean tokenAssertions,
+			final Instant now)
+			throws Exception {
 		final AuthStorage storage = mock(AuthStorage.class);
 		final RandomDataGenerator randGen = mock(RandomDataGenerator.class);
 		final Clock clock = mock(Clock.class);
+		if (now != null) {
+			when(clock.instant()).thenReturn(now);
+		}
 		
 		final AuthConfig ac =  new AuthConfig(AuthConfig.DEFAULT_LOGIN_ALLOWED, null,
 				AuthConfig.DEFAULT_TOKEN_LIFETIMES_MS);
@@ -94,10 +120,10 @@ public class AuthenticationTester {
 		
 		final Constructor<Authentication> c = Authentication.class.getDeclaredConstructor(
 				AuthStorage.class, Set.class, ExternalConfig.class,
-				RandomDataGenerator.class, Clock.class);
+				RandomDataGenerator.class, Clock.class, Set.class, boolean.class);
 		c.setAccessible(true);
 		final Authentication instance = c.newInstance(storage, providers,
-				TEST_EXTERNAL_CONFIG, randGen, clock);
+				TEST_EXTERNAL_CONFIG, randGen, clock, signedTokenTypes, tokenAssertions);
 		reset(storage);
 		return new TestMocks(storage, randGen, instance, clock);
 	}
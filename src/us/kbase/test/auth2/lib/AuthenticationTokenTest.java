@@ -5,6 +5,8 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -13,14 +15,17 @@ import static us.kbase.test.auth2.lib.AuthenticationTester.initTestMocks;
 
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 
 import us.kbase.auth2.cryptutils.RandomDataGenerator;
 import us.kbase.auth2.lib.Authentication;
@@ -35,6 +40,7 @@ import us.kbase.auth2.lib.config.AuthConfigSet;
 import us.kbase.auth2.lib.config.CollectingExternalConfig;
 import us.kbase.auth2.lib.config.AuthConfig.TokenLifetimeType;
 import us.kbase.auth2.lib.config.CollectingExternalConfig.CollectingExternalConfigMapper;
+import us.kbase.auth2.lib.exceptions.AuthException;
 import us.kbase.auth2.lib.exceptions.DisabledUserException;
 import us.kbase.auth2.lib.exceptions.ErrorType;
 import us.kbase.auth2.lib.exceptions.InvalidTokenException;
@@ -44,9 +50,11 @@ import us.kbase.auth2.lib.exceptions.UnauthorizedException;
 import us.kbase.auth2.lib.storage.AuthStorage;
 import us.kbase.auth2.lib.token.IncomingToken;
 import us.kbase.auth2.lib.token.NewToken;
+import us.kbase.auth2.lib.token.SignedTokens;
 import us.kbase.auth2.lib.token.StoredToken;
 import us.kbase.auth2.lib.token.TokenName;
 import us.kbase.auth2.lib.token.TokenSet;
+import us.kbase.auth2.lib.token.TokenSigningKey;
 import us.kbase.auth2.lib.token.TokenType;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.test.auth2.TestCommon;
@@ -113,7 +121,200 @@ public class AuthenticationTokenTest {
 		
 		failGetToken(auth, t, new InvalidTokenException());
 	}
+	
+	@Test
+	public void getTokenFailNoSuchTokenCached() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final Authentication auth = testauth.auth;
+		
+		final IncomingToken t = new IncomingToken("foobar");
+		final IncomingToken t2 = new IncomingToken("foobaz");
+		
+		when(storage.getToken(t.getHashedToken())).thenThrow(new NoSuchTokenException("foo"));
+		when(storage.getToken(t2.getHashedToken())).thenReturn(
+				StoredToken.getBuilder(TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+						.withLifeTime(Instant.ofEpochMilli(3000), Instant.ofEpochMilli(4000))
+						.build());
+		
+		failGetToken(auth, t, new InvalidTokenException());
+		failGetToken(auth, t, new InvalidTokenException());
+		failGetToken(auth, new IncomingToken("foobar"), new InvalidTokenException());
+		// valid tokens are not cached
+		auth.getToken(t2);
+		auth.getToken(t2);
+		
+		verify(storage, times(1)).getToken(t.getHashedToken());
+		verify(storage, times(2)).getToken(t2.getHashedToken());
+	}
 
+	private NewToken createSignedAgentToken(
+			final TestMocks testauth,
+			final UUID id,
+			final TokenName name)
+			throws Exception {
+		final AuthStorage storage = testauth.storageMock;
+		final IncomingToken t = new IncomingToken("foobar");
+		final AuthUser user = AuthUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), Instant.now()).build();
+		when(storage.getToken(t.getHashedToken())).thenReturn(TOKEN1);
+		when(storage.getUser(new UserName("foo"))).thenReturn(user);
+		when(testauth.randGenMock.randomUUID()).thenReturn(id);
+		return testauth.auth.createToken(t, name, TokenType.AGENT, CTX);
+	}
+	
+	@Test
+	public void createAndGetSignedToken() throws Exception {
+		// the signed token manager truncates token dates to seconds
+		final Instant now = Instant.ofEpochMilli(100500);
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithSignedTokens(
+				set(TokenType.AGENT), now);
+		final AuthStorage storage = testauth.storageMock;
+		final UUID id = UUID.randomUUID();
+		
+		final NewToken nt = createSignedAgentToken(testauth, id, new TokenName("baz"));
+		
+		final StoredToken expected = StoredToken.getBuilder(
+				TokenType.AGENT, id, new UserName("foo"))
+				.withLifeTime(Instant.ofEpochSecond(100),
+						Instant.ofEpochSecond(100 + 7 * 24 * 3600))
+				.withTokenName(new TokenName("baz"))
+				.build();
+		assertThat("incorrect token", nt.getStoredToken(), is(expected));
+		assertThat("token not signed", SignedTokens.isSigned(nt.getToken()), is(true));
+		verify(storage).storeToken(expected, nt.getTokenHash());
+		verify(testauth.randGenMock, never()).getToken();
+		
+		final IncomingToken signed = new IncomingToken(nt.getToken());
+		assertThat("incorrect token", testauth.auth.getToken(signed), is(expected));
+		// the token is verified without a storage lookup
+		verify(storage, never()).getToken(signed.getHashedToken());
+	}
+	
+	@Test
+	public void getSignedTokenFailRevoked() throws Exception {
+		final Instant now = Instant.ofEpochMilli(100000);
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithSignedTokens(
+				set(TokenType.AGENT), now);
+		final AuthStorage storage = testauth.storageMock;
+		final UUID id = UUID.randomUUID();
+		
+		final NewToken nt = createSignedAgentToken(testauth, id, new TokenName("baz"));
+		final IncomingToken signed = new IncomingToken(nt.getToken());
+		testauth.auth.getToken(signed);
+		
+		when(storage.getRevokedTokens(isA(Instant.class))).thenReturn(
+				ImmutableMap.of(id, nt.getStoredToken().getExpirationDate()));
+		testauth.auth.revokeToken(new IncomingToken("foobar"), id);
+		
+		verify(storage).deleteToken(new UserName("foo"), id);
+		failGetToken(testauth.auth, signed, new InvalidTokenException());
+	}
+	
+	@Test
+	public void getSignedTokenFailUnknownKey() throws Exception {
+		final Instant now = Instant.ofEpochMilli(100000);
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithSignedTokens(
+				set(TokenType.AGENT), now);
+		final String signed = SignedTokens.sign(TOKEN2,
+				TokenSigningKey.generate("unknown", Instant.ofEpochMilli(1000)));
+		
+		failGetToken(testauth.auth, new IncomingToken(signed), new InvalidTokenException());
+		verify(testauth.storageMock, never()).getToken(
+				new IncomingToken(signed).getHashedToken());
+	}
+	
+	@Test
+	public void getSignedTokenFailBadSignature() throws Exception {
+		final Instant now = Instant.ofEpochMilli(100000);
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithSignedTokens(
+				set(TokenType.AGENT), now);
+		final NewToken nt = createSignedAgentToken(
+				testauth, UUID.randomUUID(), new TokenName("baz"));
+		final String[] parts = nt.getToken().split("\\.");
+		final String bad = parts[0] + "." + parts[1] + "." + parts[2].substring(3) + "AAA";
+		
+		failGetToken(testauth.auth, new IncomingToken(bad),
+				new InvalidTokenException("Bad token signature"));
+	}
+	
+	@Test
+	public void getTokenAssertion() throws Exception {
+		// assertions are available even if signed tokens are disabled
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithTokenAssertions();
+		final AuthStorage storage = testauth.storageMock;
+		final Instant now = Instant.ofEpochMilli(5500);
+		when(testauth.clockMock.instant()).thenReturn(now);
+		final IncomingToken t = new IncomingToken("foobar");
+		when(storage.getToken(t.getHashedToken())).thenReturn(TOKEN2);
+		when(storage.getTokenSigningKeys()).thenReturn(Collections.emptySet());
+		
+		final String assertion = testauth.auth.getTokenAssertion(t);
+		
+		final ArgumentCaptor<TokenSigningKey> key = ArgumentCaptor.forClass(
+				TokenSigningKey.class);
+		verify(storage).storeTokenSigningKey(key.capture());
+		assertThat("incorrect key date", key.getValue().getCreationDate(), is(now));
+		assertThat("incorrect key id", SignedTokens.getKeyID(assertion),
+				is(key.getValue().getKeyID()));
+		assertThat("incorrect assertion", SignedTokens.verifyAssertion(
+				assertion, key.getValue().getPublicKey(), now), is(TOKEN2));
+		assertThat("incorrect keys", testauth.auth.getTokenVerificationKeys(),
+				is(ImmutableMap.of(key.getValue().getKeyID(), key.getValue().getPublicKey())));
+		
+		// the assertion can't be used as a token
+		try {
+			SignedTokens.verify(assertion, key.getValue().getPublicKey(), now);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new InvalidTokenException("Unexpected signed token type"));
+		}
+	}
+	
+	@Test
+	public void getTokenAssertionFailNoSuchToken() throws Exception {
+		final TestMocks testauth = AuthenticationTester.initTestMocksWithTokenAssertions();
+		final AuthStorage storage = testauth.storageMock;
+		final IncomingToken t = new IncomingToken("foobar");
+		when(storage.getToken(t.getHashedToken())).thenThrow(new NoSuchTokenException("foo"));
+		
+		try {
+			testauth.auth.getTokenAssertion(t);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new InvalidTokenException());
+		}
+		verify(storage, never()).getTokenSigningKeys();
+	}
+	
+	@Test
+	public void getTokenAssertionFailNotEnabled() throws Exception {
+		final TestMocks testauth = initTestMocks();
+		final AuthStorage storage = testauth.storageMock;
+		final IncomingToken t = new IncomingToken("foobar");
+		
+		assertThat("incorrect enabled", testauth.auth.isTokenAssertionsEnabled(), is(false));
+		try {
+			testauth.auth.getTokenAssertion(t);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new AuthException(
+					ErrorType.UNSUPPORTED_OP, "Token assertions are not enabled"));
+		}
+		assertThat("incorrect keys", testauth.auth.getTokenVerificationKeys(),
+				is(Collections.emptyMap()));
+		verify(storage, never()).getToken(t.getHashedToken());
+		verify(storage, never()).getTokenSigningKeys();
+		verify(storage, never()).storeTokenSigningKey(isA(TokenSigningKey.class));
+	}
+	
+	@Test
+	public void isTokenAssertionsEnabled() throws Exception {
+		assertThat("incorrect enabled", AuthenticationTester.initTestMocksWithTokenAssertions()
+				.auth.isTokenAssertionsEnabled(), is(true));
+	}
+	
 	private void failGetToken(
 			final Authentication auth,
 			final IncomingToken t,
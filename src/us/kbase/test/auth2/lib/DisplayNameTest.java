@@ -3,8 +3,11 @@ package us.kbase.test.auth2.lib;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static us.kbase.test.auth2.TestCommon.set;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -24,6 +27,22 @@ public class DisplayNameTest {
 		assertThat("incorrect toString", dn.toString(), is("DisplayName [getName()=foooΔ]"));
 	}
 	
+	@Test
+	public void trustedSource() throws Exception {
+		final DisplayName dn = DisplayName.fromTrustedSource("foooΔ");
+		assertThat("incorrect displayname", dn.getName(), is("foooΔ"));
+		assertThat("incorrect equals", dn, is(new DisplayName("foooΔ")));
+		assertThat("incorrect canonical name", dn.getCanonicalDisplayName(),
+				is(Arrays.asList("foooδ")));
+		try {
+			DisplayName.fromTrustedSource(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IllegalArgumentException("Missing argument: name"));
+		}
+	}
+	
 	@Test
 	public void equals() throws Exception {
 		EqualsVerifier.forClass(DisplayName.class).usingGetClass().verify();
@@ -55,5 +74,37 @@ public class DisplayNameTest {
 		assertThat("incorrect canonical name", dn.getCanonicalDisplayName(),
 				is(Arrays.asList("whee", "ba՞+r", "bleδah", "wuξgga")));
 	}
+	
+	@Test
+	public void canonicalCached() throws Exception {
+		final DisplayName dn = new DisplayName("  Foo  bAr ");
+		final List<String> c = dn.getCanonicalDisplayName();
+		assertThat("incorrect canonical name", c, is(Arrays.asList("foo", "bar")));
+		assertThat("canonical name not cached", dn.getCanonicalDisplayName() == c, is(true));
+		try {
+			c.add("baz");
+			fail("expected exception");
+		} catch (UnsupportedOperationException e) {
+			// pass
+		}
+	}
+	
+	@Test
+	public void searchPrefixes() throws Exception {
+		final DisplayName dn = new DisplayName("Ann (Anderson) +ΔannabelleΞxyz");
+		assertThat("incorrect prefixes", new HashSet<>(dn.getSearchPrefixes()), is(set(
+				"a", "an", "ann", "and", "ande", "ander", "anders", "anderso", "anderson",
+				"δ", "δa", "δan", "δann", "δanna", "δannab", "δannabe", "δannabel",
+				"δannabell", "δannabelle")));
+		assertThat("incorrect prefix count", dn.getSearchPrefixes().size(), is(19));
+		assertThat("prefixes not cached", dn.getSearchPrefixes() == dn.getSearchPrefixes(),
+				is(true));
+		try {
+			dn.getSearchPrefixes().add("baz");
+			fail("expected exception");
+		} catch (UnsupportedOperationException e) {
+			// pass
+		}
+	}
 
 }
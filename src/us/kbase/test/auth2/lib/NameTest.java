@@ -44,6 +44,24 @@ public class NameTest {
 				throws MissingParameterException, IllegalParameterException {
 			super(n, "n", 20);
 		}
+		
+		public SubName(final String n, final boolean unchecked) {
+			super(n);
+		}
+	}
+	
+	@Test
+	public void constructUnchecked() throws Exception {
+		assertThat("incorrect name", new SubName("  fo\no", true).getName(), is("  fo\no"));
+		for (final String n: new String[] {null, "   \t  "}) {
+			try {
+				new SubName(n, true);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got,
+						new IllegalArgumentException("Missing argument: name"));
+			}
+		}
 	}
 	
 	@Test
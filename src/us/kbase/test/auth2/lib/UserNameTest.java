@@ -69,6 +69,35 @@ public class UserNameTest {
 		}
 	}
 	
+	@Test
+	public void constructFailRuns() throws Exception {
+		// the error contains the whole run of illegal characters
+		failConstruct("abae**Δ*tafoo", new IllegalParameterException(
+				ErrorType.ILLEGAL_USER_NAME, "Illegal character in user name abae**Δ*tafoo: **Δ*"));
+		failConstruct("_foo", new IllegalParameterException(ErrorType.ILLEGAL_USER_NAME,
+				"Username must start with a letter"));
+	}
+	
+	@Test
+	public void trustedSource() throws Exception {
+		final UserName un = UserName.fromTrustedSource("a8nba9");
+		assertThat("incorrect username", un.getName(), is("a8nba9"));
+		assertThat("incorrect is root", un.isRoot(), is(false));
+		assertThat("incorrect equals", un, is(new UserName("a8nba9")));
+		assertThat("incorrect is root", UserName.fromTrustedSource("***ROOT***").isRoot(),
+				is(true));
+		
+		for (final String n: new String[] {null, "   \t  "}) {
+			try {
+				UserName.fromTrustedSource(n);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got,
+						new IllegalArgumentException("Missing argument: name"));
+			}
+		}
+	}
+	
 	@Test
 	public void compareLessThan() throws Exception {
 		assertThat("incorrect compare",
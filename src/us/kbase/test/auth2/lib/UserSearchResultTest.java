@@ -0,0 +1,77 @@
+package us.kbase.test.auth2.lib;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchResult;
+import us.kbase.test.auth2.TestCommon;
+
+public class UserSearchResultTest {
+
+	@Test
+	public void equals() {
+		EqualsVerifier.forClass(UserSearchResult.class).usingGetClass().verify();
+	}
+	
+	@Test
+	public void construct() throws Exception {
+		final Map<UserName, DisplayName> users = new LinkedHashMap<>();
+		users.put(new UserName("b"), new DisplayName("db"));
+		users.put(new UserName("a"), new DisplayName("da"));
+		final UserSearchResult res = new UserSearchResult(users, Optional.of("cursor"));
+		users.put(new UserName("c"), new DisplayName("dc"));
+		
+		assertThat("incorrect order", new LinkedList<>(res.getUsers().keySet()),
+				is(Arrays.asList(new UserName("b"), new UserName("a"))));
+		assertThat("incorrect cursor", res.getNextCursor(), is(Optional.of("cursor")));
+		
+		final UserSearchResult res2 = new UserSearchResult(
+				Collections.emptyMap(), Optional.absent());
+		assertThat("incorrect users", res2.getUsers(), is(Collections.emptyMap()));
+		assertThat("incorrect cursor", res2.getNextCursor(), is(Optional.absent()));
+	}
+	
+	@Test
+	public void immutable() throws Exception {
+		final UserSearchResult res = new UserSearchResult(
+				Collections.emptyMap(), Optional.absent());
+		try {
+			res.getUsers().put(new UserName("a"), new DisplayName("d"));
+			fail("expected exception");
+		} catch (UnsupportedOperationException e) {
+			// test passed
+		}
+	}
+	
+	@Test
+	public void constructFail() {
+		failConstruct(null, Optional.absent(), new NullPointerException("users"));
+		failConstruct(Collections.emptyMap(), null, new NullPointerException("nextCursor"));
+	}
+	
+	private void failConstruct(
+			final Map<UserName, DisplayName> users,
+			final Optional<String> cursor,
+			final Exception e) {
+		try {
+			new UserSearchResult(users, cursor);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+}
@@ -12,11 +12,15 @@ import java.util.Collections;
 
 import org.junit.Test;
 
+import com.google.common.base.Optional;
+
 import nl.jqno.equalsverifier.EqualsVerifier;
 import us.kbase.auth2.lib.Role;
+import us.kbase.auth2.lib.UserName;
 import us.kbase.auth2.lib.UserSearchSpec;
 import us.kbase.auth2.lib.UserSearchSpec.Builder;
 import us.kbase.auth2.lib.UserSearchSpec.SearchField;
+import us.kbase.auth2.lib.exceptions.IllegalParameterException;
 import us.kbase.test.auth2.TestCommon;
 
 public class UserSearchSpecTest {
@@ -355,4 +359,69 @@ public class UserSearchSpecTest {
 			TestCommon.assertExceptionCorrect(got, e);
 		}
 	}
+	
+	@Test
+	public void paging() throws Exception {
+		final UserSearchSpec unpaged = UserSearchSpec.getBuilder().build();
+		assertThat("incorrect paged", unpaged.isPaged(), is(false));
+		assertThat("incorrect limit", unpaged.getLimit(), is(Optional.absent()));
+		assertThat("incorrect cursor", unpaged.getCursor(), is(Optional.absent()));
+		
+		final UserSearchSpec limited = UserSearchSpec.getBuilder().withLimit(1).build();
+		assertThat("incorrect paged", limited.isPaged(), is(true));
+		assertThat("incorrect limit", limited.getLimit(), is(Optional.of(1)));
+		assertThat("incorrect cursor", limited.getCursor(), is(Optional.absent()));
+		
+		final String cursor = UserSearchSpec.toCursor(new UserName("foo_bar"));
+		assertThat("cursor is not opaque", cursor.contains("foo"), is(false));
+		final UserSearchSpec cursored = UserSearchSpec.getBuilder()
+				.withCursor(cursor).build();
+		assertThat("incorrect paged", cursored.isPaged(), is(true));
+		assertThat("incorrect limit", cursored.getLimit(), is(Optional.absent()));
+		assertThat("incorrect cursor", cursored.getCursor(),
+				is(Optional.of(new UserName("foo_bar"))));
+	}
+	
+	@Test
+	public void toCursorFail() {
+		try {
+			UserSearchSpec.toCursor(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("lastUser"));
+		}
+	}
+	
+	@Test
+	public void withLimitFail() {
+		for (final int l: new int[] {0, -1}) {
+			try {
+				UserSearchSpec.getBuilder().withLimit(l);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got,
+						new IllegalArgumentException("limit must be at least 1"));
+			}
+		}
+	}
+	
+	@Test
+	public void withCursorFail() {
+		failWithCursor(null, new IllegalArgumentException(
+				"Cursor cannot be null or the empty string"));
+		failWithCursor("  \t ", new IllegalArgumentException(
+				"Cursor cannot be null or the empty string"));
+		failWithCursor("!!!", new IllegalParameterException("Invalid cursor: !!!"));
+		// decodes to "Foo", which is not a legal user name
+		failWithCursor("Rm9v", new IllegalParameterException("Invalid cursor: Rm9v"));
+	}
+	
+	private void failWithCursor(final String cursor, final Exception e) {
+		try {
+			UserSearchSpec.getBuilder().withCursor(cursor);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
 }
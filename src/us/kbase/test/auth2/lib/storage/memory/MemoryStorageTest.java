@@ -0,0 +1,909 @@
+package us.kbase.test.auth2.lib.storage.memory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import static us.kbase.test.auth2.TestCommon.set;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.CustomRole;
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.EmailAddress;
+import us.kbase.auth2.lib.PasswordHashAndSalt;
+import us.kbase.auth2.lib.PolicyID;
+import us.kbase.auth2.lib.Role;
+import us.kbase.auth2.lib.TemporaryIdentities;
+import us.kbase.auth2.lib.TokenCreationContext;
+import us.kbase.auth2.lib.UserDisabledState;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.UserSearchSpec;
+import us.kbase.auth2.lib.UserSearchSpec.Builder;
+import us.kbase.auth2.lib.config.AuthConfig;
+import us.kbase.auth2.lib.config.AuthConfig.ProviderConfig;
+import us.kbase.auth2.lib.config.AuthConfig.TokenLifetimeType;
+import us.kbase.auth2.lib.config.AuthConfigSet;
+import us.kbase.auth2.lib.config.AuthConfigUpdate;
+import us.kbase.auth2.lib.config.AuthConfigUpdate.ProviderUpdate;
+import us.kbase.auth2.lib.config.ConfigAction.State;
+import us.kbase.auth2.lib.config.ConfigItem;
+import us.kbase.auth2.lib.config.ExternalConfig;
+import us.kbase.auth2.lib.exceptions.IdentityLinkedException;
+import us.kbase.auth2.lib.exceptions.LinkFailedException;
+import us.kbase.auth2.lib.exceptions.MissingParameterException;
+import us.kbase.auth2.lib.exceptions.NoSuchIdentityException;
+import us.kbase.auth2.lib.exceptions.NoSuchRoleException;
+import us.kbase.auth2.lib.exceptions.NoSuchTokenException;
+import us.kbase.auth2.lib.exceptions.NoSuchUserException;
+import us.kbase.auth2.lib.exceptions.UnLinkFailedException;
+import us.kbase.auth2.lib.exceptions.UserExistsException;
+import us.kbase.auth2.lib.identity.RemoteIdentity;
+import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
+import us.kbase.auth2.lib.identity.RemoteIdentityID;
+import us.kbase.auth2.lib.storage.exceptions.StorageInitException;
+import us.kbase.auth2.lib.storage.memory.MemoryStorage;
+import us.kbase.auth2.lib.token.IncomingToken;
+import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.token.TemporaryHashedToken;
+import us.kbase.auth2.lib.token.TemporaryToken;
+import us.kbase.auth2.lib.token.TokenName;
+import us.kbase.auth2.lib.token.TokenType;
+import us.kbase.auth2.lib.user.AuthUser;
+import us.kbase.auth2.lib.user.LocalUser;
+import us.kbase.auth2.lib.user.NewUser;
+import us.kbase.test.auth2.TestCommon;
+import us.kbase.test.auth2.lib.config.TestExternalConfig;
+import us.kbase.test.auth2.lib.config.TestExternalConfig.TestExternalConfigMapper;
+
+public class MemoryStorageTest {
+
+	private static final Instant NOW = Instant.ofEpochMilli(1000000);
+
+	private static final String HASH = "nJKFR6Xc4vzCeI3jT+FjlC9k5Q/qVw0zd0gi1erL8ew=";
+
+	private static final RemoteIdentity REMOTE1 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar1"),
+			new RemoteIdentityDetails("user1", "full1", "email1"));
+
+	private static final RemoteIdentity REMOTE2 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar2"),
+			new RemoteIdentityDetails("user2", "full2", "email2"));
+
+	private static final RemoteIdentity REMOTE3 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar3"),
+			new RemoteIdentityDetails("user3", "full3", "email3"));
+
+	private static final RemoteIdentity REMOTE4 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar4"),
+			new RemoteIdentityDetails("user4", "full4", "email4"));
+
+	private Clock mockClock;
+	private MemoryStorage storage;
+
+	@Before
+	public void setUp() throws Exception {
+		mockClock = mock(Clock.class);
+		when(mockClock.instant()).thenReturn(NOW);
+		when(mockClock.millis()).thenReturn(NOW.toEpochMilli());
+		final Constructor<MemoryStorage> con = MemoryStorage.class.getDeclaredConstructor(
+				Clock.class);
+		con.setAccessible(true);
+		storage = con.newInstance(mockClock);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		storage.close();
+	}
+
+	private StoredToken getToken(final UUID id, final String user, final Instant expires)
+			throws Exception {
+		return StoredToken.getBuilder(TokenType.LOGIN, id, new UserName(user))
+				.withLifeTime(NOW, expires)
+				.withContext(TokenCreationContext.getBuilder()
+						.withNullableAgent("a", "av")
+						.withIpAddress(InetAddress.getByName("1.1.1.2"))
+						.withCustomContext("k1", "v1")
+						.build())
+				.withTokenName(new TokenName("foo")).build();
+	}
+
+	@Test
+	public void createAndGetUser() throws Exception {
+		storage.setCustomRole(new CustomRole("cr", "desc"));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar baz"), NOW, REMOTE1)
+				.withEmailAddress(new EmailAddress("f@g.com"))
+				.withRole(Role.DEV_TOKEN)
+				.withCustomRole("cr")
+				.build());
+
+		final Optional<AuthUser> u = storage.getUser(REMOTE1);
+		assertThat("incorrect user", u.get().getUserName(), is(new UserName("foo")));
+		assertThat("incorrect email", u.get().getEmail(), is(new EmailAddress("f@g.com")));
+		assertThat("incorrect roles", u.get().getRoles(), is(set(Role.DEV_TOKEN)));
+		assertThat("incorrect custom roles", u.get().getCustomRoles(), is(set("cr")));
+		assertThat("incorrect identities", u.get().getIdentities(), is(set(REMOTE1)));
+		assertThat("incorrect user", storage.getUser(REMOTE2), is(Optional.absent()));
+
+		// deleted custom roles are removed from users
+		storage.deleteCustomRole("cr");
+		assertThat("incorrect custom roles", storage.getUser(new UserName("foo"))
+				.getCustomRoles(), is(Collections.emptySet()));
+	}
+
+	@Test
+	public void createUserFail() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		try {
+			storage.createUser(NewUser.getBuilder(
+					new UserName("foo"), new DisplayName("bar"), NOW, REMOTE2).build());
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new UserExistsException("foo"));
+		}
+		try {
+			storage.createUser(NewUser.getBuilder(
+					new UserName("foo1"), new DisplayName("bar"), NOW, REMOTE1).build());
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IdentityLinkedException(REMOTE1.getRemoteID().getID()));
+		}
+		try {
+			storage.createLocalUser(LocalUser.getLocalUserBuilder(
+					new UserName("foo"), new DisplayName("bar"), NOW).build(),
+					new PasswordHashAndSalt("foobarbazbing".getBytes(), "aa".getBytes()));
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new UserExistsException("foo"));
+		}
+	}
+
+	@Test
+	public void linkAndUserNameSuffix() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo9"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo10"), new DisplayName("bar"), NOW, REMOTE2).build());
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.of(10L)));
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("bar"),
+				is(Optional.absent()));
+		try {
+			storage.link(new UserName("foo9"), REMOTE2);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IdentityLinkedException(REMOTE2.getRemoteID().getID()));
+		}
+	}
+
+	@Test
+	public void localUserCredentialsAreCopied() throws Exception {
+		final PasswordHashAndSalt creds = new PasswordHashAndSalt(
+				"foobarbazbing".getBytes(), "aa".getBytes());
+		storage.createLocalUser(LocalUser.getLocalUserBuilder(
+				new UserName("local"), new DisplayName("bar"), NOW).build(), creds);
+		creds.clear();
+		final PasswordHashAndSalt got = storage.getPasswordHashAndSalt(new UserName("local"));
+		assertThat("incorrect hash", new String(got.getPasswordHash()), is("foobarbazbing"));
+		assertThat("incorrect salt", new String(got.getSalt()), is("aa"));
+	}
+
+	@Test
+	public void tokens() throws Exception {
+		final UUID id = UUID.randomUUID();
+		final StoredToken t = getToken(id, "bar", NOW.plusSeconds(20));
+		storage.storeToken(t, HASH);
+
+		assertThat("incorrect token",
+				storage.getToken(new IncomingToken("sometoken").getHashedToken()), is(t));
+		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")), is(set(t)));
+
+		try {
+			storage.storeToken(getToken(id, "bar", NOW.plusSeconds(20)), "otherhash");
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(String.format(
+					"Token ID %s already exists in the database", id)));
+		}
+		final UUID id2 = UUID.randomUUID();
+		try {
+			storage.storeToken(getToken(id2, "bar", NOW.plusSeconds(20)), HASH);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(String.format(
+					"Token hash for token ID %s already exists in the database", id2)));
+		}
+
+		storage.deleteToken(new UserName("bar"), id);
+		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")),
+				is(Collections.emptySet()));
+		final Map<UUID, Instant> revoked = new HashMap<>();
+		revoked.put(id, NOW.plusSeconds(20));
+		assertThat("incorrect revoked", storage.getRevokedTokens(NOW), is(revoked));
+	}
+
+	@Test
+	public void expiredTokens() throws Exception {
+		when(mockClock.instant()).thenReturn(NOW.plusSeconds(30));
+		when(mockClock.millis()).thenReturn(NOW.plusSeconds(30).toEpochMilli());
+		storage.storeToken(getToken(UUID.randomUUID(), "bar", NOW.plusSeconds(20)), HASH);
+		final StoredToken t = getToken(UUID.randomUUID(), "bar", NOW.plusSeconds(40));
+		storage.storeToken(t, "otherhash");
+
+		try {
+			storage.getToken(new IncomingToken("sometoken").getHashedToken());
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NoSuchTokenException("Token not found"));
+		}
+		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")), is(set(t)));
+		assertThat("incorrect count", storage.sweepExpiredTokens(), is(1L));
+		assertThat("incorrect count", storage.sweepExpiredTokens(), is(0L));
+		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")), is(set(t)));
+	}
+
+	@Test
+	public void search() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("Herb Whoopee"), NOW, REMOTE1)
+				.withRole(Role.ADMIN).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("whoo"), new DisplayName("Bert"), NOW, REMOTE2).build());
+
+		final Map<UserName, DisplayName> both = new HashMap<>();
+		both.put(new UserName("foo"), new DisplayName("Herb Whoopee"));
+		both.put(new UserName("whoo"), new DisplayName("Bert"));
+		assertThat("incorrect users", storage.getUserDisplayNames(UserSearchSpec.getBuilder()
+				.withSearchPrefix("whoo").build(), -1), is(both));
+
+		final Map<UserName, DisplayName> foo = new HashMap<>();
+		foo.put(new UserName("foo"), new DisplayName("Herb Whoopee"));
+		assertThat("incorrect users", storage.getUserDisplayNames(UserSearchSpec.getBuilder()
+				.withSearchPrefix("whoo").withSearchOnDisplayName(true).build(), -1), is(foo));
+		assertThat("incorrect users", storage.getUserDisplayNames(UserSearchSpec.getBuilder()
+				.withSearchOnRole(Role.ADMIN).build(), -1), is(foo));
+
+		storage.disableAccount(new UserName("foo"), new UserName("admin"), "reason");
+		final Map<UserName, DisplayName> whoo = new HashMap<>();
+		whoo.put(new UserName("whoo"), new DisplayName("Bert"));
+		assertThat("incorrect users", storage.getUserDisplayNames(UserSearchSpec.getBuilder()
+				.withSearchPrefix("whoo").build(), -1), is(whoo));
+	}
+
+	private interface StorageOperation {
+		void execute(MemoryStorage storage) throws Exception;
+	}
+
+	private void failExecute(final StorageOperation op, final Exception e) {
+		try {
+			op.execute(storage);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+
+	@Test
+	public void temporaryIdentities() throws Exception {
+		final UUID id = UUID.randomUUID();
+		final TemporaryHashedToken tt = new TemporaryToken(id, "foobar", NOW, 10000)
+				.getHashedToken();
+		storage.storeIdentitiesTemporarily(tt, set(REMOTE1, REMOTE2));
+
+		assertThat("incorrect identities", storage.getTemporaryIdentities(
+				new IncomingToken("foobar").getHashedToken()), is(new TemporaryIdentities(
+						id, NOW, NOW.plusMillis(10000), set(REMOTE1, REMOTE2))));
+
+		final UUID id2 = UUID.randomUUID();
+		storage.storeIdentitiesTemporarily(new TemporaryToken(id2, "foobar2", NOW, 10000)
+				.getHashedToken(), Collections.emptySet());
+		assertThat("incorrect identities", storage.getTemporaryIdentities(
+				new IncomingToken("foobar2").getHashedToken()), is(new TemporaryIdentities(
+						id2, NOW, NOW.plusMillis(10000), Collections.emptySet())));
+
+		storage.deleteTemporaryIdentities(new IncomingToken("foobar").getHashedToken());
+		// deleting a missing token is a no-op
+		storage.deleteTemporaryIdentities(new IncomingToken("foobar").getHashedToken());
+		failExecute(s -> s.getTemporaryIdentities(new IncomingToken("foobar").getHashedToken()),
+				new NoSuchTokenException("Token not found"));
+	}
+
+	@Test
+	public void temporaryIdentitiesExpired() throws Exception {
+		storage.storeIdentitiesTemporarily(new TemporaryToken(
+				UUID.randomUUID(), "foobar", NOW, 10000).getHashedToken(), set(REMOTE1));
+
+		when(mockClock.instant()).thenReturn(NOW.plusMillis(10000));
+		storage.getTemporaryIdentities(new IncomingToken("foobar").getHashedToken());
+
+		when(mockClock.instant()).thenReturn(NOW.plusMillis(10001));
+		failExecute(s -> s.getTemporaryIdentities(new IncomingToken("foobar").getHashedToken()),
+				new NoSuchTokenException("Token not found"));
+	}
+
+	@Test
+	public void temporaryIdentitiesFail() throws Exception {
+		final UUID id = UUID.randomUUID();
+		final TemporaryHashedToken tt = new TemporaryToken(id, "foobar", NOW, 10000)
+				.getHashedToken();
+		storage.storeIdentitiesTemporarily(tt, set(REMOTE1));
+
+		failExecute(s -> s.storeIdentitiesTemporarily(new TemporaryToken(
+				id, "foobar2", NOW, 10000).getHashedToken(), set(REMOTE1)),
+				new IllegalArgumentException(String.format(
+						"Temporary token ID %s already exists in the database", id)));
+		final UUID id2 = UUID.randomUUID();
+		failExecute(s -> s.storeIdentitiesTemporarily(new TemporaryToken(
+				id2, "foobar", NOW, 10000).getHashedToken(), set(REMOTE1)),
+				new IllegalArgumentException(String.format(
+						"Token hash for temporary token ID %s already exists in the database",
+						id2)));
+		failExecute(s -> s.storeIdentitiesTemporarily(null, set(REMOTE1)),
+				new NullPointerException("token"));
+		failExecute(s -> s.storeIdentitiesTemporarily(tt, null),
+				new NullPointerException("identitySet"));
+		failExecute(s -> s.storeIdentitiesTemporarily(tt, set(REMOTE1, null)),
+				new NullPointerException("Null value in identitySet"));
+		failExecute(s -> s.getTemporaryIdentities(null), new NullPointerException("token"));
+		failExecute(s -> s.deleteTemporaryIdentities(null), new NullPointerException("token"));
+	}
+
+	@Test
+	public void linkAndUnlink() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.link(new UserName("foo"), REMOTE2);
+		// relinking an identity updates the details
+		final RemoteIdentity remote2Update = new RemoteIdentity(REMOTE2.getRemoteID(),
+				new RemoteIdentityDetails("user2b", "full2b", "email2b"));
+		storage.link(new UserName("foo"), remote2Update);
+		assertThat("incorrect identities", storage.getUser(new UserName("foo"))
+				.getIdentities(), is(set(REMOTE1, remote2Update)));
+
+		storage.unlink(new UserName("foo"), REMOTE1.getRemoteID().getID());
+		assertThat("incorrect identities", storage.getUser(new UserName("foo"))
+				.getIdentities(), is(set(remote2Update)));
+		assertThat("incorrect user", storage.getUser(REMOTE1), is(Optional.absent()));
+
+		// an unlinked identity can be linked to another user
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE3).build());
+		storage.link(new UserName("foo2"), REMOTE1);
+		assertThat("incorrect user", storage.getUser(REMOTE1).get().getUserName(),
+				is(new UserName("foo2")));
+	}
+
+	@Test
+	public void linkFail() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.createLocalUser(LocalUser.getLocalUserBuilder(
+				new UserName("local"), new DisplayName("bar"), NOW).build(),
+				new PasswordHashAndSalt("foobarbazbing".getBytes(), "aa".getBytes()));
+
+		failExecute(s -> s.link(null, REMOTE3), new NullPointerException("userName"));
+		failExecute(s -> s.link(new UserName("foo"), null),
+				new NullPointerException("remoteID"));
+		failExecute(s -> s.link(new UserName("foo3"), REMOTE3),
+				new NoSuchUserException("foo3"));
+		failExecute(s -> s.link(new UserName("local"), REMOTE3),
+				new LinkFailedException("Cannot link identities to a local user"));
+		failExecute(s -> s.link(new UserName("foo"), REMOTE2),
+				new IdentityLinkedException(REMOTE2.getRemoteID().getID()));
+	}
+
+	@Test
+	public void unlinkFail() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.link(new UserName("foo2"), REMOTE3);
+		storage.createLocalUser(LocalUser.getLocalUserBuilder(
+				new UserName("local"), new DisplayName("bar"), NOW).build(),
+				new PasswordHashAndSalt("foobarbazbing".getBytes(), "aa".getBytes()));
+		final String id1 = REMOTE1.getRemoteID().getID();
+
+		failExecute(s -> s.unlink(new UserName("foo"), null),
+				new IllegalArgumentException("Missing argument: id"));
+		failExecute(s -> s.unlink(new UserName("foo"), "   \t  "),
+				new IllegalArgumentException("Missing argument: id"));
+		failExecute(s -> s.unlink(new UserName("foo3"), id1), new NoSuchUserException("foo3"));
+		failExecute(s -> s.unlink(new UserName("local"), id1),
+				new UnLinkFailedException("Local users have no identities"));
+		failExecute(s -> s.unlink(new UserName("foo"), id1),
+				new UnLinkFailedException("The user has only one associated identity"));
+		failExecute(s -> s.unlink(new UserName("foo2"), id1),
+				new NoSuchIdentityException("The user is not linked to identity " + id1));
+	}
+
+	@Test
+	public void roles() throws Exception {
+		final Map<Role, Long> expected = new HashMap<>();
+		for (final Role r: Role.values()) {
+			expected.put(r, 0L);
+		}
+		assertThat("incorrect counts", storage.getRoleCounts(), is(expected));
+
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.updateRoles(new UserName("foo"),
+				set(Role.DEV_TOKEN, Role.CREATE_ADMIN, Role.ADMIN), set(Role.SERV_TOKEN));
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getRoles(),
+				is(set(Role.ADMIN, Role.CREATE_ADMIN, Role.DEV_TOKEN)));
+		storage.updateRoles(new UserName("foo"), set(Role.SERV_TOKEN),
+				set(Role.DEV_TOKEN, Role.CREATE_ADMIN));
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getRoles(),
+				is(set(Role.ADMIN, Role.SERV_TOKEN)));
+
+		storage.updateRoles(new UserName("foo2"), set(Role.ADMIN), Collections.emptySet());
+		// disabled users are counted
+		storage.disableAccount(new UserName("foo2"), new UserName("foo"), "baz");
+		expected.put(Role.ADMIN, 2L);
+		expected.put(Role.SERV_TOKEN, 1L);
+		assertThat("incorrect counts", storage.getRoleCounts(), is(expected));
+	}
+
+	@Test
+	public void rolesFail() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		final UserName foo = new UserName("foo");
+		final Set<Role> none = Collections.emptySet();
+
+		failExecute(s -> s.updateRoles(null, set(Role.ADMIN), none),
+				new NullPointerException("userName"));
+		failExecute(s -> s.updateRoles(foo, null, none), new NullPointerException("addRoles"));
+		failExecute(s -> s.updateRoles(foo, none, null),
+				new NullPointerException("removeRoles"));
+		failExecute(s -> s.updateRoles(foo, set(Role.ADMIN, null), none),
+				new NullPointerException("Null role in addRoles"));
+		failExecute(s -> s.updateRoles(foo, none, set(Role.ADMIN, null)),
+				new NullPointerException("Null role in removeRoles"));
+		failExecute(s -> s.updateRoles(foo, set(Role.ROOT), none),
+				new IllegalArgumentException("Cannot change root role"));
+		failExecute(s -> s.updateRoles(foo, none, set(Role.ROOT)),
+				new IllegalArgumentException("Cannot change root role"));
+		failExecute(s -> s.updateRoles(new UserName("foo1"), set(Role.ADMIN), none),
+				new NoSuchUserException("foo1"));
+	}
+
+	@Test
+	public void customRoles() throws Exception {
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(Collections.emptyMap()));
+		storage.setCustomRole(new CustomRole("foo", "bar"));
+		storage.setCustomRole(new CustomRole("foo1", "bar1"));
+		storage.setCustomRole(new CustomRole("foo2", "bar2"));
+		// setting an existing role updates the description
+		storage.setCustomRole(new CustomRole("foo2", "bar3"));
+		assertThat("incorrect roles", storage.getCustomRoles(), is(set(
+				new CustomRole("foo", "bar"), new CustomRole("foo1", "bar1"),
+				new CustomRole("foo2", "bar3"))));
+
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.updateCustomRoles(new UserName("foo"), set("foo", "foo1", "foo2"),
+				Collections.emptySet());
+		storage.updateCustomRoles(new UserName("foo"), Collections.emptySet(), set("foo2"));
+		storage.updateCustomRoles(new UserName("foo2"), set("foo"), Collections.emptySet());
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getCustomRoles(),
+				is(set("foo", "foo1")));
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(ImmutableMap.of("foo", 2L, "foo1", 1L, "foo2", 0L)));
+
+		storage.deleteCustomRole("foo1");
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(ImmutableMap.of("foo", 2L, "foo2", 0L)));
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getCustomRoles(),
+				is(set("foo")));
+	}
+
+	@Test
+	public void customRolesFail() throws Exception {
+		storage.setCustomRole(new CustomRole("foo", "bar"));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		final UserName foo = new UserName("foo");
+		final Set<String> none = Collections.emptySet();
+
+		failExecute(s -> s.setCustomRole(null), new NullPointerException("role"));
+		failExecute(s -> s.deleteCustomRole(null),
+				new MissingParameterException("custom role id"));
+		failExecute(s -> s.deleteCustomRole("   \n \t   "),
+				new MissingParameterException("custom role id"));
+		failExecute(s -> s.deleteCustomRole("foo1"), new NoSuchRoleException("foo1"));
+		failExecute(s -> s.updateCustomRoles(null, set("foo"), none),
+				new NullPointerException("userName"));
+		failExecute(s -> s.updateCustomRoles(foo, null, none),
+				new NullPointerException("addRoles"));
+		failExecute(s -> s.updateCustomRoles(foo, none, null),
+				new NullPointerException("removeRoles"));
+		failExecute(s -> s.updateCustomRoles(foo, set("foo", null), none),
+				new NullPointerException("Null role in addRoles"));
+		failExecute(s -> s.updateCustomRoles(foo, none, set("foo", null)),
+				new NullPointerException("Null role in removeRoles"));
+		failExecute(s -> s.updateCustomRoles(foo, set("foo", "foo1"), none),
+				new NoSuchRoleException("foo1"));
+		failExecute(s -> s.updateCustomRoles(foo, none, set("foo", "foo2")),
+				new NoSuchRoleException("foo2"));
+		failExecute(s -> s.updateCustomRoles(new UserName("foo1"), set("foo"), none),
+				new NoSuchUserException("foo1"));
+	}
+
+	@Test
+	public void config() throws Exception {
+		final AuthConfigSet<TestExternalConfig<State>> empty = storage.getConfig(
+				new TestExternalConfigMapper());
+		assertThat("incorrect config", empty.getCfg(), is(new AuthConfig(false, null, null)));
+
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withLoginAllowed(true)
+				.withProviderUpdate("prov1", new ProviderUpdate(false, true, false))
+				.withProviderUpdate("prov2", new ProviderUpdate(true, false, true))
+				.withTokenLifeTime(TokenLifetimeType.DEV, 200000L)
+				.withTokenLifeTime(TokenLifetimeType.LOGIN, 300000L)
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.set("foo")))
+				.build(), false);
+
+		// without overwrite only new keys are set
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withLoginAllowed(false)
+				.withProviderUpdate("prov1", new ProviderUpdate(true, true, true))
+				.withProviderUpdate("prov3", new ProviderUpdate(true, true, true))
+				.withTokenLifeTime(TokenLifetimeType.DEV, 400000L)
+				.withTokenLifeTime(TokenLifetimeType.SERV, 800000)
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.set("foo1")))
+				.build(), false);
+
+		AuthConfigSet<TestExternalConfig<State>> res = storage.getConfig(
+				new TestExternalConfigMapper());
+		assertThat("incorrect config", res.getCfg(), is(new AuthConfig(true,
+				ImmutableMap.of(
+						"prov1", new ProviderConfig(false, true, false),
+						"prov2", new ProviderConfig(true, false, true),
+						"prov3", new ProviderConfig(true, true, true)),
+				ImmutableMap.of(
+						TokenLifetimeType.DEV, 200000L,
+						TokenLifetimeType.LOGIN, 300000L,
+						TokenLifetimeType.SERV, 800000L))));
+		assertThat("incorrect external config", res.getExtcfg().aThing,
+				is(ConfigItem.state("foo")));
+
+		// with overwrite absent values are left alone
+		final Optional<Boolean> ab = Optional.absent();
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withProviderUpdate("prov1", new ProviderUpdate(Optional.of(true), ab, ab))
+				.withProviderUpdate("prov2", new ProviderUpdate(ab, ab, ab))
+				.withTokenLifeTime(TokenLifetimeType.DEV, 400000L)
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.noAction()))
+				.build(), true);
+
+		res = storage.getConfig(new TestExternalConfigMapper());
+		assertThat("incorrect config", res.getCfg(), is(new AuthConfig(true,
+				ImmutableMap.of(
+						"prov1", new ProviderConfig(true, true, false),
+						"prov2", new ProviderConfig(true, false, true),
+						"prov3", new ProviderConfig(true, true, true)),
+				ImmutableMap.of(
+						TokenLifetimeType.DEV, 400000L,
+						TokenLifetimeType.LOGIN, 300000L,
+						TokenLifetimeType.SERV, 800000L))));
+		assertThat("incorrect external config", res.getExtcfg().aThing,
+				is(ConfigItem.state("foo")));
+	}
+
+	@Test
+	public void configRemoveExternal() throws Exception {
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.set("foo")))
+				.withLoginAllowed(true).build(), false);
+
+		// removal requires overwrite
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.remove()))
+				.build(), false);
+		assertThat("incorrect external config", storage.getConfig(
+				new TestExternalConfigMapper()).getExtcfg().aThing, is(ConfigItem.state("foo")));
+
+		storage.updateConfig(AuthConfigUpdate.getBuilder()
+				.withExternalConfig(new TestExternalConfig<>(ConfigItem.remove()))
+				.build(), true);
+		final AuthConfigSet<TestExternalConfig<State>> res = storage.getConfig(
+				new TestExternalConfigMapper());
+		assertThat("incorrect config", res.getCfg(), is(new AuthConfig(true, null, null)));
+		assertThat("incorrect external config", res.getExtcfg().aThing,
+				is((ConfigItem<String, State>) null));
+	}
+
+	@Test
+	public void configFail() throws Exception {
+		failExecute(s -> s.updateConfig((AuthConfigUpdate<ExternalConfig>) null, false),
+				new NullPointerException("cfgSet"));
+		failExecute(s -> s.getConfig(null), new NullPointerException("mapper"));
+	}
+
+	@Test
+	public void lastLoginAndPolicyIDs() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+
+		storage.setLastLogin(new UserName("foo"), Instant.ofEpochMilli(6000));
+		assertThat("incorrect login date", storage.getUser(new UserName("foo")).getLastLogin(),
+				is(Optional.of(Instant.ofEpochMilli(6000))));
+		assertThat("incorrect login date", storage.getUser(new UserName("foo2"))
+				.getLastLogin(), is(Optional.absent()));
+
+		when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+		storage.addPolicyIDs(new UserName("foo"), set(new PolicyID("foo"), new PolicyID("bar")));
+		storage.addPolicyIDs(new UserName("foo2"), set(new PolicyID("foo")));
+		// the first agreement time is kept
+		when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(20000));
+		storage.addPolicyIDs(new UserName("foo"), set(new PolicyID("bar"), new PolicyID("baz")));
+		assertThat("incorrect policyIDs", storage.getUser(new UserName("foo")).getPolicyIDs(),
+				is(ImmutableMap.of(new PolicyID("bar"), Instant.ofEpochMilli(10000),
+						new PolicyID("foo"), Instant.ofEpochMilli(10000),
+						new PolicyID("baz"), Instant.ofEpochMilli(20000))));
+
+		storage.removePolicyID(new PolicyID("foo"));
+		assertThat("incorrect policyIDs", storage.getUser(new UserName("foo")).getPolicyIDs(),
+				is(ImmutableMap.of(new PolicyID("bar"), Instant.ofEpochMilli(10000),
+						new PolicyID("baz"), Instant.ofEpochMilli(20000))));
+		assertThat("incorrect policyIDs", storage.getUser(new UserName("foo2"))
+				.getPolicyIDs(), is(Collections.emptyMap()));
+	}
+
+	@Test
+	public void lastLoginAndPolicyIDsFail() throws Exception {
+		final UserName foo = new UserName("foo");
+		final Instant i = Instant.ofEpochMilli(6000);
+
+		failExecute(s -> s.setLastLogin(null, i), new NullPointerException("userName"));
+		failExecute(s -> s.setLastLogin(foo, null), new NullPointerException("lastLogin"));
+		failExecute(s -> s.setLastLogin(foo, i), new NoSuchUserException("foo"));
+		failExecute(s -> s.addPolicyIDs(null, Collections.emptySet()),
+				new NullPointerException("userName"));
+		failExecute(s -> s.addPolicyIDs(foo, null), new NullPointerException("policyIDs"));
+		failExecute(s -> s.addPolicyIDs(foo, set(new PolicyID("foo"), null)),
+				new NullPointerException("null item in policyIDs"));
+		failExecute(s -> s.addPolicyIDs(foo, set(new PolicyID("foo"))),
+				new NoSuchUserException("foo"));
+		failExecute(s -> s.removePolicyID(null), new NullPointerException("policyID"));
+	}
+
+	@Test
+	public void disableAndEnable() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		assertThat("incorrect disabled state", storage.getUser(new UserName("foo"))
+				.getDisabledState(), is(new UserDisabledState()));
+
+		when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(3000));
+		storage.disableAccount(new UserName("foo"), new UserName("baz"), "foo is a jerkface");
+		final UserDisabledState uds = storage.getUser(new UserName("foo")).getDisabledState();
+		assertThat("incorrect disabled reason", uds.getDisabledReason(),
+				is(Optional.of("foo is a jerkface")));
+		assertThat("incorrect disabled admin", uds.getByAdmin(),
+				is(Optional.of(new UserName("baz"))));
+		assertThat("incorrect disabled time", uds.getTime(),
+				is(Optional.of(Instant.ofEpochMilli(3000))));
+
+		when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(6000));
+		storage.enableAccount(new UserName("foo"), new UserName("bung"));
+		final UserDisabledState uds2 = storage.getUser(new UserName("foo")).getDisabledState();
+		assertThat("incorrect disabled reason", uds2.getDisabledReason(),
+				is(Optional.absent()));
+		assertThat("incorrect disabled admin", uds2.getByAdmin(),
+				is(Optional.of(new UserName("bung"))));
+		assertThat("incorrect disabled time", uds2.getTime(),
+				is(Optional.of(Instant.ofEpochMilli(6000))));
+	}
+
+	@Test
+	public void disableAndEnableFail() throws Exception {
+		final UserName foo = new UserName("foo");
+		final UserName admin = new UserName("admin");
+
+		failExecute(s -> s.disableAccount(null, admin, "foo"),
+				new NullPointerException("userName"));
+		failExecute(s -> s.disableAccount(foo, null, "foo"), new NullPointerException("admin"));
+		failExecute(s -> s.disableAccount(foo, admin, null),
+				new IllegalArgumentException("reason cannot be null or empty"));
+		failExecute(s -> s.disableAccount(foo, admin, "   \t \n   "),
+				new IllegalArgumentException("reason cannot be null or empty"));
+		failExecute(s -> s.disableAccount(foo, admin, "foo"), new NoSuchUserException("foo"));
+		failExecute(s -> s.enableAccount(null, admin), new NullPointerException("userName"));
+		failExecute(s -> s.enableAccount(foo, null), new NullPointerException("admin"));
+		failExecute(s -> s.enableAccount(foo, admin), new NoSuchUserException("foo"));
+	}
+
+	@Test
+	public void searchPaged() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u1"), new DisplayName("Douglas J Adams"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"), NOW, REMOTE2)
+				.build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u3"), new DisplayName("al douglas"), NOW, REMOTE3).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u4"), new DisplayName("Albert HevensyDouglas"), NOW, REMOTE4)
+				.build());
+
+		final Map<UserName, DisplayName> page1 = storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").withLimit(2).build(), 2);
+		assertThat("incorrect order", new LinkedList<>(page1.keySet()),
+				is(Arrays.asList(new UserName("u1"), new UserName("u2"))));
+		assertThat("incorrect users found", page1, is(ImmutableMap.of(
+				new UserName("u1"), new DisplayName("Douglas J Adams"),
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"))));
+
+		final Map<UserName, DisplayName> page2 = storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").withLimit(2)
+						.withCursor(UserSearchSpec.toCursor(new UserName("u2"))).build(), 2);
+		assertThat("incorrect users found", page2, is(ImmutableMap.of(
+				new UserName("u3"), new DisplayName("al douglas"))));
+
+		final Map<UserName, DisplayName> all = storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("al").withSearchOnDisplayName(true)
+						.withCursor(UserSearchSpec.toCursor(new UserName("u1"))).build(), -1);
+		assertThat("incorrect order", new LinkedList<>(all.keySet()),
+				is(Arrays.asList(new UserName("u3"), new UserName("u4"))));
+	}
+
+	@Test
+	public void searchRegex() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("baz"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("whoo"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("wugga"), new DisplayName("wonk"), NOW, REMOTE3).build());
+
+		final Builder builder = UserSearchSpec.getBuilder();
+		final Method m = Builder.class.getDeclaredMethod("withSearchRegex", String.class);
+		m.setAccessible(true);
+		m.invoke(builder, "^.+oo$");
+		builder.withSearchOnUserName(true);
+		assertThat("incorrect users found", storage.getUserDisplayNames(builder.build(), -1),
+				is(ImmutableMap.of(new UserName("foo"), new DisplayName("baz"),
+						new UserName("whoo"), new DisplayName("bar"))));
+
+		// regex characters in a prefix are not treated as a regex
+		assertThat("incorrect users found", storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("^.+oo$").build(), -1),
+				is(Collections.emptyMap()));
+	}
+
+	@Test
+	public void searchRoles() throws Exception {
+		storage.setCustomRole(new CustomRole("cr1", "desc"));
+		storage.setCustomRole(new CustomRole("cr2", "desc"));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar1"), NOW, REMOTE1)
+				.withRole(Role.ADMIN).withRole(Role.DEV_TOKEN)
+				.withCustomRole("cr1").withCustomRole("cr2").build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar2"), NOW, REMOTE2)
+				.withRole(Role.ADMIN).withCustomRole("cr1").build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo3"), new DisplayName("bar3"), NOW, REMOTE3)
+				.withRole(Role.ADMIN).withRole(Role.DEV_TOKEN)
+				.withCustomRole("cr1").withCustomRole("cr2").build());
+		storage.disableAccount(new UserName("foo3"), new UserName("admin"), "reason");
+
+		final Map<UserName, DisplayName> foo = ImmutableMap.of(
+				new UserName("foo"), new DisplayName("bar1"));
+		final Map<UserName, DisplayName> both = ImmutableMap.of(
+				new UserName("foo"), new DisplayName("bar1"),
+				new UserName("foo2"), new DisplayName("bar2"));
+
+		// all the roles must match
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnRole(Role.ADMIN).build(), -1), is(both));
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnRole(Role.ADMIN).withSearchOnRole(Role.DEV_TOKEN)
+				.build(), -1), is(foo));
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnCustomRole("cr1").build(), -1), is(both));
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnCustomRole("cr1").withSearchOnCustomRole("cr2")
+				.build(), -1), is(foo));
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnCustomRole("cr3").build(), -1),
+				is(Collections.emptyMap()));
+
+		final Map<UserName, DisplayName> withDisabled = new HashMap<>(foo);
+		withDisabled.put(new UserName("foo3"), new DisplayName("bar3"));
+		assertThat("incorrect users found", storage.getUserDisplayNames(UserSearchSpec
+				.getBuilder().withSearchOnRole(Role.DEV_TOKEN).withSearchOnCustomRole("cr2")
+				.withIncludeDisabled(true).build(), -1), is(withDisabled));
+	}
+
+	@Test
+	public void snapshot() throws Exception {
+		final Path dir = Files.createTempDirectory(TestCommon.getTempDir(), "memstorage");
+		final Path file = dir.resolve("snapshot.json");
+		final MemoryStorage s = new MemoryStorage(file, 0);
+		s.setCustomRole(new CustomRole("cr", "desc"));
+		s.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1)
+				.withCustomRole("cr").build());
+		s.createLocalUser(LocalUser.getLocalUserBuilder(
+				new UserName("local"), new DisplayName("bar"), NOW).withForceReset(true).build(),
+				new PasswordHashAndSalt("foobarbazbing".getBytes(), "aa".getBytes()));
+		final StoredToken t = getToken(UUID.randomUUID(), "foo", Instant.now().plusSeconds(60));
+		s.storeToken(t, HASH);
+		s.close();
+
+		final MemoryStorage s2 = new MemoryStorage(file, 0);
+		assertThat("incorrect user", s2.getUser(new UserName("foo")),
+				is(s.getUser(new UserName("foo"))));
+		assertThat("incorrect user", s2.getLocalUser(new UserName("local")),
+				is(s.getLocalUser(new UserName("local"))));
+		assertThat("incorrect roles", s2.getCustomRoles(), is(s.getCustomRoles()));
+		assertThat("incorrect token",
+				s2.getToken(new IncomingToken("sometoken").getHashedToken()), is(t));
+		assertThat("incorrect user", s2.getUser(REMOTE1).get().getUserName(),
+				is(new UserName("foo")));
+		s2.close();
+
+		Files.write(file, "{\"version\": 2}".getBytes());
+		try {
+			new MemoryStorage(file, 0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new StorageInitException(
+					"Incompatible snapshot. Server is v1, snapshot is v2"));
+		}
+		if (TestCommon.isDeleteTempFiles()) {
+			Files.delete(file);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		try {
+			new MemoryStorage(null, 0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("snapshotFile"));
+		}
+	}
+}
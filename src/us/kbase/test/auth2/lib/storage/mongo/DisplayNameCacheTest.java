@@ -0,0 +1,193 @@
+package us.kbase.test.auth2.lib.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static us.kbase.test.auth2.TestCommon.set;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.storage.mongo.DisplayNameCache;
+import us.kbase.test.auth2.TestCommon;
+
+public class DisplayNameCacheTest {
+	
+	private static class TestLoader implements DisplayNameCache.Loader {
+		
+		private final Map<UserName, DisplayName> users = new HashMap<>();
+		private final List<Set<UserName>> requests = new LinkedList<>();
+
+		@Override
+		public Map<UserName, DisplayName> load(final Set<UserName> userNames) {
+			requests.add(userNames);
+			final Map<UserName, DisplayName> ret = new HashMap<>();
+			for (final UserName u: userNames) {
+				if (users.containsKey(u)) {
+					ret.put(u, users.get(u));
+				}
+			}
+			return ret;
+		}
+	}
+	
+	private static TestLoader getLoader() throws Exception {
+		final TestLoader l = new TestLoader();
+		l.users.put(new UserName("u1"), new DisplayName("d1"));
+		l.users.put(new UserName("u2"), new DisplayName("d2"));
+		return l;
+	}
+	
+	@Test
+	public void getOnlyMisses() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		final TestLoader l = getLoader();
+		
+		assertThat("incorrect names", c.get(set(new UserName("u1")), l),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("d1"))));
+		assertThat("incorrect names", c.get(
+				set(new UserName("u1"), new UserName("u2"), new UserName("u3")), l),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("d1"),
+						new UserName("u2"), new DisplayName("d2"))));
+		// u3 is negatively cached
+		assertThat("incorrect names", c.get(
+				set(new UserName("u1"), new UserName("u2"), new UserName("u3")), l),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("d1"),
+						new UserName("u2"), new DisplayName("d2"))));
+		
+		assertThat("incorrect requests", l.requests, is(new LinkedList<>(Arrays.asList(
+				set(new UserName("u1")), set(new UserName("u2"), new UserName("u3"))))));
+		assertThat("incorrect size", c.size(), is(3L));
+		assertThat("incorrect hits", c.getHitCount(), is(4L));
+		assertThat("incorrect misses", c.getMissCount(), is(3L));
+		assertThat("incorrect hit rate", c.getHitRate(), is(4.0 / 7));
+		assertThat("incorrect summary", c.getStatsSummary().startsWith(
+				"Display name cache size: 3, hits: 4, misses: 3, hit rate: "), is(true));
+	}
+	
+	@Test
+	public void invalidate() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		final TestLoader l = getLoader();
+		
+		c.get(set(new UserName("u1"), new UserName("u3")), l);
+		l.users.put(new UserName("u1"), new DisplayName("d1new"));
+		l.users.put(new UserName("u3"), new DisplayName("d3"));
+		assertThat("incorrect names", c.get(set(new UserName("u1"), new UserName("u3")), l),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("d1"))));
+		
+		c.invalidate(new UserName("u1"));
+		c.invalidate(new UserName("u3"));
+		assertThat("incorrect names", c.get(set(new UserName("u1"), new UserName("u3")), l),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("d1new"),
+						new UserName("u3"), new DisplayName("d3"))));
+		assertThat("incorrect request count", l.requests.size(), is(2));
+	}
+	
+	@Test
+	public void invalidateDuringLoad() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		final TestLoader l = getLoader();
+		
+		c.get(set(new UserName("u1")), names -> {
+			final Map<UserName, DisplayName> ret = l.load(names);
+			c.invalidate(new UserName("u1"));
+			return ret;
+		});
+		assertThat("incorrect size", c.size(), is(0L));
+	}
+	
+	@Test
+	public void expire() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 100);
+		final TestLoader l = getLoader();
+		c.get(set(new UserName("u1")), l);
+		c.get(set(new UserName("u1")), l);
+		assertThat("incorrect request count", l.requests.size(), is(1));
+		Thread.sleep(200);
+		c.get(set(new UserName("u1")), l);
+		assertThat("incorrect request count", l.requests.size(), is(2));
+	}
+	
+	@Test
+	public void maximumSize() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(1, 60000);
+		final TestLoader l = getLoader();
+		c.get(set(new UserName("u1"), new UserName("u2"), new UserName("u3")), l);
+		assertThat("incorrect size", c.size(), is(1L));
+	}
+	
+	@Test
+	public void empty() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		final TestLoader l = getLoader();
+		assertThat("incorrect names", c.get(Collections.emptySet(), l),
+				is(Collections.emptyMap()));
+		assertThat("incorrect request count", l.requests.size(), is(0));
+	}
+	
+	@Test
+	public void loadFail() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		try {
+			c.get(set(new UserName("u1")), names -> {
+				throw new AuthStorageException("whee");
+			});
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new AuthStorageException("whee"));
+		}
+		assertThat("incorrect size", c.size(), is(0L));
+	}
+	
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(0, 1, new IllegalArgumentException("maximumSize must be at least 1"));
+		failConstruct(1, 0, new IllegalArgumentException("expireAfterMS must be at least 1"));
+	}
+	
+	private void failConstruct(final long size, final long expire, final Exception e) {
+		try {
+			new DisplayNameCache(size, expire);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+	
+	@Test
+	public void getAndInvalidateFail() throws Exception {
+		final DisplayNameCache c = new DisplayNameCache(10, 60000);
+		try {
+			c.get(null, getLoader());
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("userNames"));
+		}
+		try {
+			c.get(Collections.emptySet(), null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("loader"));
+		}
+		try {
+			c.invalidate(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("userName"));
+		}
+	}
+}
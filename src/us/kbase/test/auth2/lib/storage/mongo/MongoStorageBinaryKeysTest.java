@@ -0,0 +1,153 @@
+package us.kbase.test.auth2.lib.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import static us.kbase.test.auth2.TestCommon.set;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.TemporaryIdentities;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.identity.RemoteIdentity;
+import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
+import us.kbase.auth2.lib.identity.RemoteIdentityID;
+import us.kbase.auth2.lib.storage.mongo.BinaryKeys;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
+import us.kbase.auth2.lib.token.IncomingToken;
+import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.token.TemporaryToken;
+import us.kbase.auth2.lib.token.TokenType;
+import us.kbase.auth2.lib.user.NewUser;
+
+public class MongoStorageBinaryKeysTest extends MongoStorageTester {
+
+	private static final Instant NOW = Instant.now();
+	
+	// the hash of "sometoken"
+	private static final String HASH = "nJKFR6Xc4vzCeI3jT+FjlC9k5Q/qVw0zd0gi1erL8ew=";
+	
+	private static final RemoteIdentity REMOTE1 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar1"),
+			new RemoteIdentityDetails("user1", "full1", "email1"));
+	
+	private static final RemoteIdentity REMOTE2 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar2"),
+			new RemoteIdentityDetails("user2", "full2", "email2"));
+	
+	private static StoredToken getToken(final UUID id) {
+		return StoredToken.getBuilder(TokenType.LOGIN, id, new UserName("foo"))
+				.withLifeTime(NOW, NOW.plusSeconds(20)).build();
+	}
+	
+	private static Document getTokenDoc(final UUID id) {
+		return db.getCollection("tokens").find(
+				new Document("id", BinaryKeys.fromUUID(id))).first();
+	}
+	
+	private static Object getIdentityID() {
+		@SuppressWarnings("unchecked")
+		final List<Document> idents = (List<Document>) db.getCollection("users")
+				.find(new Document("user", "foo")).first().get("idents");
+		return idents.get(0).get("id");
+	}
+	
+	private void storeData() throws Exception {
+		storage.storeToken(getToken(UUID.randomUUID()), HASH);
+		storage.storeIdentitiesTemporarily(new TemporaryToken(
+				UUID.randomUUID(), "foobar", NOW, 10000).getHashedToken(), set(REMOTE2));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+	}
+	
+	private void checkData() throws Exception {
+		assertThat("incorrect token", storage.getToken(
+				new IncomingToken("sometoken").getHashedToken()).getUserName(),
+				is(new UserName("foo")));
+		final TemporaryIdentities ti = storage.getTemporaryIdentities(
+				new IncomingToken("foobar").getHashedToken());
+		assertThat("incorrect temp identities", ti.getIdentities(), is(set(REMOTE2)));
+		assertThat("incorrect user", storage.getUser(REMOTE1).get().getUserName(),
+				is(new UserName("foo")));
+	}
+	
+	@Test
+	public void migrate() throws Exception {
+		final UUID id = UUID.randomUUID();
+		storeData();
+		// not a base64 hash, so the hash is left as is
+		storage.storeToken(getToken(id), "hashyhash");
+		assertThat("incorrect id", db.getCollection("tokens").find(
+				new Document("id", id.toString())).first().get("id"), is(id.toString()));
+		assertThat("incorrect ident id", getIdentityID(), instanceOf(String.class));
+		
+		assertThat("incorrect count", storage.migrateToBinaryKeys(), is(4L));
+		
+		final Document t = getTokenDoc(id);
+		assertThat("incorrect hash", t.get("token"), is("hashyhash"));
+		assertThat("incorrect id", BinaryKeys.toUUID(t.get("id")), is(id));
+		assertThat("incorrect ident id", getIdentityID(), instanceOf(Binary.class));
+		assertThat("incorrect temp hash", db.getCollection("temptokens").find().first()
+				.get("token"), instanceOf(Binary.class));
+		assertThat("incorrect config", db.getCollection("config").find().first()
+				.getBoolean("binarykeys"), is(true));
+		checkData();
+		
+		assertThat("incorrect count", storage.migrateToBinaryKeys(), is(0L));
+	}
+	
+	@Test
+	public void writeAfterMigration() throws Exception {
+		storage.migrateToBinaryKeys();
+		storeData();
+		checkData();
+		assertThat("incorrect ident id", getIdentityID(), instanceOf(Binary.class));
+		
+		// new instances read the setting from the database
+		final MongoStorage ms = buildStorage(MongoStorage.getBuilder(db));
+		final UUID id = UUID.randomUUID();
+		ms.storeToken(getToken(id), "fEgEaYc4wr6XWhXAkHQQTbBNvqDs7dxtlt0pbfhrNPM=");
+		final Document t = getTokenDoc(id);
+		assertThat("incorrect hash", t.get("token"), instanceOf(Binary.class));
+		
+		ms.link(new UserName("foo"), REMOTE2);
+		ms.unlink(new UserName("foo"), REMOTE1.getRemoteID().getID());
+		assertThat("incorrect identities", ms.getUser(new UserName("foo")).getIdentities(),
+				is(set(REMOTE2)));
+		assertThat("incorrect ident id", getIdentityID(), instanceOf(Binary.class));
+	}
+	
+	@Test
+	public void mixedIdentityIDs() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.migrateToBinaryKeys();
+		// simulate an identity linked by a server that hasn't been restarted since the migration
+		db.getCollection("users").updateOne(new Document("user", "foo"),
+				new Document("$set", new Document("idents.0.id", REMOTE1.getRemoteID().getID())));
+		storage.link(new UserName("foo"), REMOTE2);
+		storage.unlink(new UserName("foo"), REMOTE1.getRemoteID().getID());
+		assertThat("incorrect identities", storage.getUser(new UserName("foo")).getIdentities(),
+				is(set(REMOTE2)));
+	}
+	
+	@Test
+	public void uuidRoundTrip() throws Exception {
+		final UUID id = UUID.randomUUID();
+		assertThat("incorrect uuid", BinaryKeys.toUUID(BinaryKeys.fromUUID(id)), is(id));
+		assertThat("incorrect uuid", BinaryKeys.toUUID(id.toString()), is(id));
+		assertThat("incorrect length", BinaryKeys.fromUUID(id).length(), is(16));
+		assertThat("incorrect length", ((Binary) BinaryKeys.compactTokenHash(HASH)).length(),
+				is(32));
+		assertThat("incorrect id", BinaryKeys.compactIdentityID("nothex"), is("nothex"));
+	}
+}
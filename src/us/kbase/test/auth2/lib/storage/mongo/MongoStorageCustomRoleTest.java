@@ -3,16 +3,20 @@ package us.kbase.test.auth2.lib.storage.mongo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
 
 import static us.kbase.test.auth2.TestCommon.set;
 
 import java.time.Instant;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import org.bson.Document;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import us.kbase.auth2.lib.CustomRole;
 import us.kbase.auth2.lib.DisplayName;
 import us.kbase.auth2.lib.UserName;
@@ -24,6 +28,7 @@ import us.kbase.auth2.lib.identity.RemoteIdentity;
 import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
 import us.kbase.auth2.lib.identity.RemoteIdentityID;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
 import us.kbase.auth2.lib.user.NewUser;
 import us.kbase.test.auth2.TestCommon;
 
@@ -35,6 +40,10 @@ public class MongoStorageCustomRoleTest extends MongoStorageTester {
 			new RemoteIdentityID("prov", "bar1"),
 			new RemoteIdentityDetails("user1", "full1", "email1"));
 	
+	private static final RemoteIdentity REMOTE2 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar2"),
+			new RemoteIdentityDetails("user2", "full2", "email2"));
+	
 	@Test
 	public void createAndGetCustomRoles() throws Exception {
 		storage.setCustomRole(new CustomRole("foo", "bar"));
@@ -54,6 +63,7 @@ public class MongoStorageCustomRoleTest extends MongoStorageTester {
 	
 	@Test
 	public void deleteCustomRole() throws Exception {
+		when(mockClock.instant()).thenReturn(NOW);
 		storage.setCustomRole(new CustomRole("foo", "bar"));
 		storage.setCustomRole(new CustomRole("foo1", "bar1"));
 		storage.deleteCustomRole("foo");
@@ -61,6 +71,30 @@ public class MongoStorageCustomRoleTest extends MongoStorageTester {
 				is(set(new CustomRole("foo1", "bar1"))));
 	}
 	
+	@Test
+	public void customRoleCounts() throws Exception {
+		when(mockClock.instant()).thenReturn(NOW);
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(Collections.emptyMap()));
+		storage.setCustomRole(new CustomRole("foo", "bar"));
+		storage.setCustomRole(new CustomRole("foo1", "bar1"));
+		storage.setCustomRole(new CustomRole("foo2", "bar2"));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.updateCustomRoles(new UserName("foo"), set("foo", "foo1"),
+				Collections.emptySet());
+		storage.updateCustomRoles(new UserName("foo2"), set("foo"), Collections.emptySet());
+		
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(ImmutableMap.of("foo", 2L, "foo1", 1L, "foo2", 0L)));
+		
+		storage.deleteCustomRole("foo1");
+		assertThat("incorrect counts", storage.getCustomRoleCounts(),
+				is(ImmutableMap.of("foo", 2L, "foo2", 0L)));
+	}
+	
 	@Test
 	public void createRoleFail() throws Exception {
 		try {
@@ -236,6 +270,77 @@ public class MongoStorageCustomRoleTest extends MongoStorageTester {
 				is(set("bar")));
 	}
 	
+	@Test
+	public void readsDoNotRemoveDeletedRoles() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE).build());
+		storage.setCustomRole(new CustomRole("foo", "bleah"));
+		storage.setCustomRole(new CustomRole("bar", "bleah"));
+		storage.updateCustomRoles(new UserName("foo"), set("foo", "bar"), Collections.emptySet());
+		
+		//out of band deletion, so the collector doesn't know about the role
+		db.getCollection("cust_roles").deleteOne(new Document("id", "foo"));
+		
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getCustomRoles(),
+				is(set("bar")));
+		assertThat("incorrect role count", getCustomRoleIDCount("foo"), is(2));
+	}
+	
+	@Test
+	public void collectDeletedRoles() throws Exception {
+		when(mockClock.instant()).thenReturn(NOW);
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.setCustomRole(new CustomRole("foo", "bleah"));
+		storage.setCustomRole(new CustomRole("bar", "bleah"));
+		storage.updateCustomRoles(new UserName("foo"), set("foo", "bar"), Collections.emptySet());
+		storage.updateCustomRoles(new UserName("foo2"), set("foo"), Collections.emptySet());
+		
+		storage.deleteCustomRole("foo");
+		assertThat("incorrect role count", getCustomRoleIDCount("foo"), is(2));
+		assertThat("incorrect deleted roles",
+				db.getCollection("cust_roles_deleted").count(), is(1L));
+		
+		assertThat("incorrect update count", storage.collectDeletedCustomRoles(), is(2L));
+		
+		assertThat("incorrect role count", getCustomRoleIDCount("foo"), is(1));
+		assertThat("incorrect role count", getCustomRoleIDCount("foo2"), is(0));
+		assertThat("incorrect roles", storage.getUser(new UserName("foo")).getCustomRoles(),
+				is(set("bar")));
+		assertThat("deleted roles not removed",
+				db.getCollection("cust_roles_deleted").count(), is(0L));
+		assertThat("incorrect update count", storage.collectDeletedCustomRoles(), is(0L));
+	}
+	
+	@Test
+	public void collectorRemovesDeletedRoles() throws Exception {
+		when(mockClock.instant()).thenReturn(NOW);
+		final MongoStorage s = buildStorage(MongoStorage.getBuilder(db)
+				.withCustomRoleCollectionMS(60000));
+		s.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE).build());
+		s.setCustomRole(new CustomRole("foo", "bleah"));
+		s.setCustomRole(new CustomRole("bar", "bleah"));
+		s.updateCustomRoles(new UserName("foo"), set("foo", "bar"), Collections.emptySet());
+		
+		// the collector runs immediately after a deletion
+		s.deleteCustomRole("foo");
+		final long start = System.currentTimeMillis();
+		while (getCustomRoleIDCount("foo") != 1) {
+			if (System.currentTimeMillis() - start > 10000) {
+				fail("deleted role not removed from user");
+			}
+			Thread.sleep(50);
+		}
+	}
+	
+	private int getCustomRoleIDCount(final String user) {
+		return ((List<?>) db.getCollection("users").find(new Document("user", user))
+				.first().get("custrls")).size();
+	}
+	
 	@Test
 	public void updateFailNulls() throws Exception {
 		final UserName un = new UserName("foo");
@@ -8,23 +8,33 @@ import static org.mockito.Mockito.when;
 import static us.kbase.test.auth2.TestCommon.set;
 
 import java.lang.reflect.Method;
+import java.time.Clock;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 
+import org.bson.Document;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import us.kbase.auth2.lib.CustomRole;
 import us.kbase.auth2.lib.DisplayName;
 import us.kbase.auth2.lib.Role;
 import us.kbase.auth2.lib.UserName;
 import us.kbase.auth2.lib.UserSearchSpec;
 import us.kbase.auth2.lib.UserSearchSpec.Builder;
+import us.kbase.auth2.lib.UserUpdate;
 import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
 import us.kbase.auth2.lib.identity.RemoteIdentityID;
 import us.kbase.auth2.lib.identity.RemoteIdentity;
+import us.kbase.auth2.lib.storage.mongo.DisplayNameCache;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
+import us.kbase.auth2.lib.storage.mongo.SchemaMigrator;
 import us.kbase.auth2.lib.user.NewUser;
 import us.kbase.test.auth2.TestCommon;
 
@@ -100,6 +110,59 @@ public class MongoStorageGetDisplayNamesTest extends MongoStorageTester{
 				is(expected));
 	}
 	
+	@Test
+	public void getNamesFromListWithCache() throws Exception {
+		final MongoStorage cached = buildStorage(MongoStorage.getBuilder(db)
+				.withDisplayNameCache(100, 60000));
+		final DisplayNameCache cache = cached.getDisplayNameCache().get();
+		
+		cached.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		cached.createUser(NewUser.getBuilder(
+				new UserName("whee"), new DisplayName("whoo"), NOW, REMOTE2).build());
+		
+		final Set<UserName> names = set(
+				new UserName("foo"), new UserName("whee"), new UserName("wugga"));
+		assertThat("incorrect users found", cached.getUserDisplayNames(names),
+				is(ImmutableMap.of(new UserName("foo"), new DisplayName("bar"),
+						new UserName("whee"), new DisplayName("whoo"))));
+		assertThat("incorrect users found", cached.getUserDisplayNames(names),
+				is(ImmutableMap.of(new UserName("foo"), new DisplayName("bar"),
+						new UserName("whee"), new DisplayName("whoo"))));
+		assertThat("incorrect hits", cache.getHitCount(), is(3L));
+		assertThat("incorrect misses", cache.getMissCount(), is(3L));
+		
+		// missing user is created, user is disabled, display name is changed
+		when(mockClock.instant()).thenReturn(Instant.now());
+		cached.createUser(NewUser.getBuilder(
+				new UserName("wugga"), new DisplayName("wonk"), NOW, REMOTE3).build());
+		cached.disableAccount(new UserName("whee"), new UserName("admin"), "they suck");
+		cached.updateUser(new UserName("foo"), UserUpdate.getBuilder()
+				.withDisplayName(new DisplayName("baz")).build());
+		
+		assertThat("incorrect users found", cached.getUserDisplayNames(names),
+				is(ImmutableMap.of(new UserName("foo"), new DisplayName("baz"),
+						new UserName("wugga"), new DisplayName("wonk"))));
+		assertThat("incorrect misses", cache.getMissCount(), is(6L));
+		
+		cached.enableAccount(new UserName("whee"), new UserName("admin"));
+		assertThat("incorrect users found", cached.getUserDisplayNames(names),
+				is(ImmutableMap.of(new UserName("foo"), new DisplayName("baz"),
+						new UserName("whee"), new DisplayName("whoo"),
+						new UserName("wugga"), new DisplayName("wonk"))));
+		assertThat("incorrect hits", cache.getHitCount(), is(5L));
+		assertThat("incorrect misses", cache.getMissCount(), is(7L));
+		
+		// changes by other instances aren't seen until the entry expires
+		storage.updateUser(new UserName("wugga"), UserUpdate.getBuilder()
+				.withDisplayName(new DisplayName("wonky")).build());
+		assertThat("incorrect users found", cached.getUserDisplayNames(
+				set(new UserName("wugga"))),
+				is(ImmutableMap.of(new UserName("wugga"), new DisplayName("wonk"))));
+		
+		assertThat("incorrect cache", storage.getDisplayNameCache().isPresent(), is(false));
+	}
+	
 	@Test
 	public void getNamesListFailNull() throws Exception {
 		failGetNamesFromList(null, new NullPointerException("users"));
@@ -700,6 +763,177 @@ public class MongoStorageGetDisplayNamesTest extends MongoStorageTester{
 				is(expected));
 	}
 
+	@Test
+	public void canonicalSearchLongPrefix() throws Exception {
+		createUsersForCanonicalSearch();
+		
+		final Map<UserName, DisplayName> expected = ImmutableMap.of(
+				new UserName("u4"), new DisplayName("Albert HevensyDouglas"));
+		
+		// the first prefix is short enough to be stored, the second is not
+		for (final String prefix: Arrays.asList("HevensyDou", "HevensyDoug", "hevensydouglas")) {
+			assertThat("incorrect users found", storage.getUserDisplayNames(
+					UserSearchSpec.getBuilder().withSearchPrefix(prefix)
+							.withSearchOnDisplayName(true).build(), -1),
+					is(expected));
+		}
+		assertThat("incorrect users found", storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("hevensydouglasx")
+						.withSearchOnDisplayName(true).build(), -1),
+				is(Collections.emptyMap()));
+	}
+	
+	@Test
+	public void canonicalSearchAfterUpdate() throws Exception {
+		createUsersForCanonicalSearch();
+		storage.updateUser(new UserName("u1"), UserUpdate.getBuilder()
+				.withDisplayName(new DisplayName("Zaphod Beeblebrox")).build());
+		
+		assertThat("incorrect users found", storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("adam")
+						.withSearchOnDisplayName(true).build(), -1),
+				is(Collections.emptyMap()));
+		assertThat("incorrect users found", storage.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("beeb")
+						.withSearchOnDisplayName(true).build(), -1),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("Zaphod Beeblebrox"))));
+	}
+	
+	@Test
+	public void canonicalSearchAddPrefixesByMigration() throws Exception {
+		createUsersForCanonicalSearch();
+		// simulate users created before the prefix field existed
+		db.getCollection("users").updateMany(new Document(), new Document("$unset",
+				new Document("dispprefix", "")));
+		final Builder b = UserSearchSpec.getBuilder().withSearchPrefix("dou")
+				.withSearchOnDisplayName(true);
+		final Map<UserName, DisplayName> expected = new HashMap<>();
+		expected.put(new UserName("u1"), new DisplayName("Douglas J Adams"));
+		expected.put(new UserName("u2"), new DisplayName("Herbert Dougie Howser"));
+		expected.put(new UserName("u3"), new DisplayName("al douglas"));
+		
+		// the canonical display name is searched until the migration is complete
+		assertThat("incorrect state", storage.getSchemaMigrator()
+				.getState("derived-user-fields"), is(SchemaMigrator.State.RUNNING));
+		assertThat("incorrect users found", storage.getUserDisplayNames(b.build(), -1),
+				is(expected));
+		
+		// the migration is started on startup and run in the background
+		storage.runMigrations();
+		
+		assertThat("incorrect state", storage.getSchemaMigrator()
+				.getState("derived-user-fields"), is(SchemaMigrator.State.COMPLETE));
+		assertThat("incorrect users found", storage.getUserDisplayNames(b.build(), -1),
+				is(expected));
+		
+		// the stored prefixes are searched once the migration is complete
+		db.getCollection("users").updateOne(new Document("user", "u3"),
+				new Document("$unset", new Document("dispprefix", "")));
+		expected.remove(new UserName("u3"));
+		assertThat("incorrect users found", storage.getUserDisplayNames(b.build(), -1),
+				is(expected));
+	}
+	
+	@Test
+	public void searchWithIndex() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u1"), new DisplayName("Douglas J Adams"), NOW, REMOTE1).build());
+		
+		final MongoStorage indexed = buildStorage(MongoStorage.getBuilder(db)
+				.withUserSearchIndexReloadMS(200));
+		
+		indexed.createUser(NewUser.getBuilder(
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"), NOW, REMOTE2)
+				.build());
+		indexed.createUser(NewUser.getBuilder(
+				new UserName("dougal"), new DisplayName("al douglas"), NOW, REMOTE3).build());
+		
+		final Map<UserName, DisplayName> expected = new HashMap<>();
+		expected.put(new UserName("u1"), new DisplayName("Douglas J Adams"));
+		expected.put(new UserName("u2"), new DisplayName("Herbert Dougie Howser"));
+		expected.put(new UserName("dougal"), new DisplayName("al douglas"));
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("DOUG").build(), -1),
+				is(expected));
+		
+		final Map<UserName, DisplayName> expected2 = new HashMap<>();
+		expected2.put(new UserName("dougal"), new DisplayName("al douglas"));
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug")
+						.withSearchOnUserName(true).build(), -1),
+				is(expected2));
+		
+		// user name ordered limit
+		expected.remove(new UserName("u2"));
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").build(), 2),
+				is(expected));
+		
+		when(mockClock.instant()).thenReturn(Instant.now());
+		indexed.disableAccount(new UserName("dougal"), new UserName("foo"), "foo");
+		indexed.updateUser(new UserName("u2"), UserUpdate.getBuilder()
+				.withDisplayName(new DisplayName("Herbert Howser")).build());
+		
+		final Map<UserName, DisplayName> expected3 = new HashMap<>();
+		expected3.put(new UserName("u1"), new DisplayName("Douglas J Adams"));
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").build(), -1),
+				is(expected3));
+		expected3.put(new UserName("dougal"), new DisplayName("al douglas"));
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug")
+						.withIncludeDisabled(true).build(), -1),
+				is(expected3));
+		
+		// changes made by other instances are picked up on reload
+		storage.createUser(NewUser.getBuilder(
+				new UserName("u4"), new DisplayName("Albert HevensyDouglas"), NOW, REMOTE4)
+				.build());
+		Thread.sleep(500);
+		assertThat("incorrect users found", indexed.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("hev").build(), -1),
+				is(ImmutableMap.of(new UserName("u4"), new DisplayName("Albert HevensyDouglas"))));
+		indexed.close();
+	}
+	
+	@Test
+	public void searchPaged() throws Exception {
+		createUsersForCanonicalSearch();
+		searchPaged(storage);
+	}
+	
+	@Test
+	public void searchPagedWithIndex() throws Exception {
+		createUsersForCanonicalSearch();
+		final MongoStorage indexed = buildStorage(MongoStorage.getBuilder(db)
+				.withUserSearchIndexReloadMS(60000));
+		searchPaged(indexed);
+		indexed.close();
+	}
+	
+	private void searchPaged(final MongoStorage s) throws Exception {
+		final Map<UserName, DisplayName> page1 = s.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").withLimit(2).build(), 2);
+		assertThat("incorrect order", new LinkedList<>(page1.keySet()),
+				is(Arrays.asList(new UserName("u1"), new UserName("u2"))));
+		assertThat("incorrect users found", page1, is(ImmutableMap.of(
+				new UserName("u1"), new DisplayName("Douglas J Adams"),
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"))));
+		
+		final Map<UserName, DisplayName> page2 = s.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("doug").withLimit(2)
+						.withCursor(UserSearchSpec.toCursor(new UserName("u2"))).build(), 2);
+		assertThat("incorrect users found", page2, is(ImmutableMap.of(
+				new UserName("u3"), new DisplayName("al douglas"))));
+		
+		// display name search ordering is ignored for paged searches
+		final Map<UserName, DisplayName> all = s.getUserDisplayNames(
+				UserSearchSpec.getBuilder().withSearchPrefix("al").withSearchOnDisplayName(true)
+						.withCursor(UserSearchSpec.toCursor(new UserName("u1"))).build(), -1);
+		assertThat("incorrect order", new LinkedList<>(all.keySet()),
+				is(Arrays.asList(new UserName("u3"), new UserName("u4"))));
+	}
+	
 	private void createUsersForCanonicalSearch() throws Exception {
 		storage.createUser(NewUser.getBuilder(
 				new UserName("u1"), new DisplayName("Douglas J Adams"), NOW, REMOTE1).build());
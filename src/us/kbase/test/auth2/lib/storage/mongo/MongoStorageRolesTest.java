@@ -8,8 +8,11 @@ import static us.kbase.test.auth2.TestCommon.set;
 
 import java.time.Instant;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
+import org.bson.Document;
 import org.junit.Test;
 
 import us.kbase.auth2.lib.DisplayName;
@@ -30,6 +33,10 @@ public class MongoStorageRolesTest extends MongoStorageTester {
 			new RemoteIdentityID("prov", "bar1"),
 			new RemoteIdentityDetails("user1", "full1", "email1"));
 	
+	private static final RemoteIdentity REMOTE2 = new RemoteIdentity(
+			new RemoteIdentityID("prov", "bar2"),
+			new RemoteIdentityDetails("user2", "full2", "email2"));
+	
 	@Test
 	public void addAndRemoveRoles() throws Exception {
 		storage.createUser(NewUser.getBuilder(
@@ -46,6 +53,34 @@ public class MongoStorageRolesTest extends MongoStorageTester {
 				is(set(Role.ADMIN, Role.SERV_TOKEN)));
 	}
 	
+	@Test
+	public void roleCounts() throws Exception {
+		final Map<Role, Long> expected = new HashMap<>();
+		for (final Role r: Role.values()) {
+			expected.put(r, 0L);
+		}
+		assertThat("incorrect counts", storage.getRoleCounts(), is(expected));
+		
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo2"), new DisplayName("bar"), NOW, REMOTE2).build());
+		storage.updateRoles(new UserName("foo"), set(Role.DEV_TOKEN, Role.ADMIN),
+				Collections.emptySet());
+		storage.updateRoles(new UserName("foo2"), set(Role.DEV_TOKEN), Collections.emptySet());
+		// disabled users are counted
+		storage.disableAccount(new UserName("foo2"), new UserName("foo"), "baz");
+		
+		expected.put(Role.DEV_TOKEN, 2L);
+		expected.put(Role.ADMIN, 1L);
+		assertThat("incorrect counts", storage.getRoleCounts(), is(expected));
+		
+		// unknown role IDs are not counted
+		db.getCollection("users").updateOne(new Document("user", "foo"),
+				new Document("$addToSet", new Document("roles", "fakerole")));
+		assertThat("incorrect counts", storage.getRoleCounts(), is(expected));
+	}
+	
 	@Test
 	public void addRoles() throws Exception {
 		storage.createUser(NewUser.getBuilder(
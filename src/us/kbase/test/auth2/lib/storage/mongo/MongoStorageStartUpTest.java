@@ -50,6 +50,7 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 		assertThat("correct config key & value", (String)d.get("schema"), is("schema"));
 		assertThat("not in update", (Boolean)d.get("inupdate"), is(false));
 		assertThat("schema v1", (Integer)d.get("schemaver"), is(1));
+		assertThat("string keys", (Boolean)d.get("binarykeys"), is(false));
 		
 		//check startup works with the config object in place
 		final MongoStorage ms = new MongoStorage(db);
@@ -113,6 +114,24 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 				"schema. Aborting startup."));
 	}
 	
+	@Test
+	public void startUpDropsObsoleteTokenIndex() throws Exception {
+		final MongoDatabase db = mc.getDatabase("startUpDropsObsoleteTokenIndex");
+		// the index was created by earlier versions of the server
+		db.getCollection("tokens").createIndex(new Document("user", 1));
+
+		buildStorage(MongoStorage.getBuilder(db));
+
+		final Set<String> names = new HashSet<>();
+		db.getCollection("tokens").listIndexes().forEach(
+				(Consumer<Document>) i -> names.add(i.getString("name")));
+		assertThat("incorrect indexes", names,
+				is(set("_id_", "token_1", "id_1", "expires_1", "user_1_expires_1")));
+
+		// startup works when the index is already gone
+		buildStorage(MongoStorage.getBuilder(db));
+	}
+
 	private void failMongoStart(final MongoDatabase db, final Exception exp)
 			throws Exception {
 		try {
@@ -138,8 +157,11 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 				"config_ext",
 				"config_prov",
 				"cust_roles",
+				"cust_roles_deleted",
 				"temptokens",
+				"token_keys",
 				"tokens",
+				"tokens_revoked",
 				"users");
 		if (mongoDBVer.lessThan(Version.forIntegers(3, 2))) {
 			expected.add("system.indexes");
@@ -235,6 +257,23 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 				)));
 	}
 	
+	@Test
+	public void indexesCustRolesDeleted() {
+		final Set<Document> indexes = new HashSet<>();
+		db.getCollection("cust_roles_deleted").listIndexes()
+				.forEach((Consumer<Document>) indexes::add);
+		assertThat("incorrect indexes", indexes, is(set(
+				new Document("v", indexVer)
+						.append("key", new Document("deleted", 1))
+						.append("name", "deleted_1")
+						.append("ns", "test_mongostorage.cust_roles_deleted"),
+				new Document("v", indexVer)
+						.append("key", new Document("_id", 1))
+						.append("name", "_id_")
+						.append("ns", "test_mongostorage.cust_roles_deleted")
+				)));
+	}
+	
 	@Test
 	public void indexesTempTokens() {
 		final Set<Document> indexes = new HashSet<>();
@@ -282,8 +321,8 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 						.append("name", "_id_")
 						.append("ns", "test_mongostorage.tokens"),
 				new Document("v", indexVer)
-						.append("key", new Document("user", 1))
-						.append("name", "user_1")
+						.append("key", new Document("user", 1).append("expires", 1))
+						.append("name", "user_1_expires_1")
 						.append("ns", "test_mongostorage.tokens"),
 				new Document("v", indexVer)
 						.append("unique", true)
@@ -293,6 +332,50 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 				)));
 	}
 	
+	@Test
+	public void indexesTokensRevoked() {
+		final Set<Document> indexes = new HashSet<>();
+		db.getCollection("tokens_revoked").listIndexes()
+				.forEach((Consumer<Document>) indexes::add);
+		assertThat("incorrect indexes", indexes, is(set(
+				new Document("v", indexVer)
+						.append("unique", true)
+						.append("key", new Document("id", 1))
+						.append("name", "id_1")
+						.append("ns", "test_mongostorage.tokens_revoked"),
+				new Document("v", indexVer)
+						.append("key", new Document("revoked", 1))
+						.append("name", "revoked_1")
+						.append("ns", "test_mongostorage.tokens_revoked"),
+				new Document("v", indexVer)
+						.append("key", new Document("expires", 1))
+						.append("name", "expires_1")
+						.append("ns", "test_mongostorage.tokens_revoked")
+						.append("expireAfterSeconds", 0L),
+				new Document("v", indexVer)
+						.append("key", new Document("_id", 1))
+						.append("name", "_id_")
+						.append("ns", "test_mongostorage.tokens_revoked")
+				)));
+	}
+	
+	@Test
+	public void indexesTokenKeys() {
+		final Set<Document> indexes = new HashSet<>();
+		db.getCollection("token_keys").listIndexes().forEach((Consumer<Document>) indexes::add);
+		assertThat("incorrect indexes", indexes, is(set(
+				new Document("v", indexVer)
+						.append("unique", true)
+						.append("key", new Document("kid", 1))
+						.append("name", "kid_1")
+						.append("ns", "test_mongostorage.token_keys"),
+				new Document("v", indexVer)
+						.append("key", new Document("_id", 1))
+						.append("name", "_id_")
+						.append("ns", "test_mongostorage.token_keys")
+				)));
+	}
+	
 	@Test
 	public void indexesUsers() {
 		final Set<Document> indexes = new HashSet<>();
@@ -307,6 +390,10 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 						.append("key", new Document("dispcan", 1))
 						.append("name", "dispcan_1")
 						.append("ns", "test_mongostorage.users"),
+				new Document("v", indexVer)
+						.append("key", new Document("dispprefix", 1))
+						.append("name", "dispprefix_1")
+						.append("ns", "test_mongostorage.users"),
 				new Document("v", indexVer)
 						.append("key", new Document("_id", 1))
 						.append("name", "_id_")
@@ -326,6 +413,10 @@ public class MongoStorageStartUpTest extends MongoStorageTester {
 						.append("unique", true)
 						.append("key", new Document("user", 1))
 						.append("name", "user_1")
+						.append("ns", "test_mongostorage.users"),
+				new Document("v", indexVer)
+						.append("key", new Document("userstem", 1).append("usersuf", 1))
+						.append("name", "userstem_1_usersuf_1")
 						.append("ns", "test_mongostorage.users")
 				)));
 	}
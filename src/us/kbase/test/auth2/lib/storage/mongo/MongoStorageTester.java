@@ -5,8 +5,11 @@ import static org.mockito.Mockito.mock;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.time.Clock;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.bson.Document;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -28,6 +31,8 @@ public class MongoStorageTester {
 	static Clock mockClock;
 	static Version mongoDBVer;
 	static int indexVer;
+	// storage instances built by the current test, closed after the test
+	private static final List<MongoStorage> STORAGES = new LinkedList<>();
 	
 	@BeforeClass
 	public static void beforeClass() throws Exception {
@@ -66,9 +71,24 @@ public class MongoStorageTester {
 	public void clearDB() throws Exception {
 		TestCommon.destroyDB(db);
 		mockClock = mock(Clock.class);
+		storage = buildStorage(MongoStorage.getBuilder(db));
+	}
+	
+	@After
+	public void closeStorage() throws Exception {
+		for (final MongoStorage s: STORAGES) {
+			s.close();
+		}
+		STORAGES.clear();
+	}
+	
+	// builds the storage with the mock clock. The storage is closed after the test
+	static MongoStorage buildStorage(final MongoStorage.Builder builder) throws Exception {
 		final Constructor<MongoStorage> con = MongoStorage.class.getDeclaredConstructor(
-				MongoDatabase.class, Clock.class);
+				MongoStorage.Builder.class, Clock.class);
 		con.setAccessible(true);
-		storage = con.newInstance(db, mockClock);
+		final MongoStorage s = con.newInstance(builder, mockClock);
+		STORAGES.add(s);
+		return s;
 	}
 }
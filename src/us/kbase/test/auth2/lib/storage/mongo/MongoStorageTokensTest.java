@@ -3,6 +3,7 @@ package us.kbase.test.auth2.lib.storage.mongo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
 
 import static us.kbase.test.auth2.TestCommon.set;
 
@@ -14,13 +15,20 @@ import java.util.UUID;
 import org.bson.Document;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import us.kbase.auth2.lib.TokenCreationContext;
 import us.kbase.auth2.lib.UserName;
 import us.kbase.auth2.lib.exceptions.NoSuchTokenException;
 import us.kbase.auth2.lib.token.IncomingHashedToken;
 import us.kbase.auth2.lib.token.IncomingToken;
 import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
+import us.kbase.auth2.lib.token.SigningKeyEncryptor;
+import us.kbase.auth2.lib.token.TemporaryToken;
 import us.kbase.auth2.lib.token.TokenName;
+import us.kbase.auth2.lib.token.TokenSigningKey;
 import us.kbase.auth2.lib.token.TokenType;
 import us.kbase.test.auth2.TestCommon;
 
@@ -230,9 +238,16 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 				TokenType.LOGIN, id3, new UserName("bar"))
 				.withLifeTime(now, 30000).build();
 		
+		// expired, but not yet deleted
+		final StoredToken ht4 = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now.minusSeconds(10), 5000).build();
+		
 		storage.storeToken(ht, "1");
 		storage.storeToken(ht2, "2");
 		storage.storeToken(ht3, "3");
+		storage.storeToken(ht4, "4");
+		when(mockClock.instant()).thenReturn(now);
 		
 		final StoredToken expected1 = StoredToken.getBuilder(
 				TokenType.LOGIN, id1, new UserName("bar"))
@@ -248,6 +263,34 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 				is(set(expected3, expected1)));
 	}
 	
+	@Test
+	public void sweepExpiredTokens() throws Exception {
+		final Instant now = Instant.now();
+		final StoredToken live = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now, 10000).build();
+		storage.storeToken(live, "live");
+		for (int i = 0; i < 1500; i++) {
+			storage.storeToken(StoredToken.getBuilder(
+					TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+					.withLifeTime(now.minusSeconds(10), 1000).build(), "expired" + i);
+		}
+		storage.storeIdentitiesTemporarily(new TemporaryToken(
+				UUID.randomUUID(), "temp1", now.minusSeconds(10), 1000).getHashedToken(),
+				Collections.emptySet());
+		storage.storeIdentitiesTemporarily(new TemporaryToken(
+				UUID.randomUUID(), "temp2", now, 10000).getHashedToken(),
+				Collections.emptySet());
+		when(mockClock.instant()).thenReturn(now);
+		
+		// the TTL monitor may delete some of the tokens first, so the count can't be checked
+		storage.sweepExpiredTokens();
+		assertThat("incorrect tokens", db.getCollection("tokens").count(), is(1L));
+		assertThat("incorrect temp tokens", db.getCollection("temptokens").count(), is(1L));
+		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")), is(set(live)));
+		assertThat("incorrect delete count", storage.sweepExpiredTokens(), is(0L));
+	}
+	
 	@Test
 	public void getTokensFail() throws Exception {
 		try {
@@ -273,6 +316,7 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 		
 		storage.storeToken(ht, "1");
 		storage.storeToken(ht2, "2");
+		when(mockClock.instant()).thenReturn(now.plusSeconds(5));
 		storage.deleteToken(new UserName("bar"), ht.getId());
 		
 		final StoredToken expected = StoredToken.getBuilder(
@@ -280,6 +324,8 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 				.withLifeTime(now, 10000).withTokenName(new TokenName("foo")).build();
 		
 		assertThat("incorrect tokens", storage.getTokens(new UserName("bar")), is(set(expected)));
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now),
+				is(ImmutableMap.of(ht.getId(), ht.getExpirationDate())));
 	}
 	
 	@Test
@@ -348,9 +394,13 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 				TokenType.LOGIN, id, new UserName("bar2"))
 				.withLifeTime(now, 5000).withTokenName(new TokenName("foo")).build();
 		
+		when(mockClock.instant()).thenReturn(now);
 		storage.deleteTokens(new UserName("bar"));
 		assertThat("tokens remaining", storage.getTokens(new UserName("bar")),
 				is(Collections.emptySet()));
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now),
+				is(ImmutableMap.of(ht.getId(), ht.getExpirationDate(),
+						ht3.getId(), ht3.getExpirationDate())));
 		
 		assertThat("incorrect tokens", storage.getTokens(new UserName("bar2")), is(set(expected)));
 	}
@@ -385,10 +435,168 @@ public class MongoStorageTokensTest extends MongoStorageTester {
 		storage.storeToken(ht2, "2");
 		storage.storeToken(ht3, "3");
 		
+		when(mockClock.instant()).thenReturn(now);
 		storage.deleteTokens();
 		assertThat("tokens remaining", storage.getTokens(new UserName("bar")),
 				is(Collections.emptySet()));
 		assertThat("tokens remaining", storage.getTokens(new UserName("bar2")),
 				is(Collections.emptySet()));
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now).keySet(),
+				is(set(ht.getId(), ht2.getId(), ht3.getId())));
+	}
+	
+	@Test
+	public void deleteTokensMultipleBatches() throws Exception {
+		final Instant now = Instant.now();
+		for (int i = 0; i < 1001; i++) {
+			storage.storeToken(StoredToken.getBuilder(
+					TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+					.withLifeTime(now, 100000).build(), "" + i);
+		}
+		
+		when(mockClock.instant()).thenReturn(now);
+		storage.deleteTokens(new UserName("bar"));
+		assertThat("tokens remaining", storage.getTokens(new UserName("bar")),
+				is(Collections.emptySet()));
+		assertThat("incorrect revoked token count", storage.getRevokedTokens(now).size(),
+				is(1001));
+	}
+	
+	@Test
+	public void deleteTokensWithoutRevokedTokenRecords() throws Exception {
+		final MongoStorage s = buildStorage(MongoStorage.getBuilder(db)
+				.withRevokedTokenRecords(false));
+		final Instant now = Instant.now();
+		
+		final StoredToken ht = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now, 100000).build();
+		final StoredToken ht2 = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now, 100000).build();
+		final StoredToken ht3 = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar2"))
+				.withLifeTime(now, 100000).build();
+		s.storeToken(ht, "1");
+		s.storeToken(ht2, "2");
+		s.storeToken(ht3, "3");
+		
+		when(mockClock.instant()).thenReturn(now);
+		s.deleteToken(new UserName("bar"), ht.getId());
+		assertThat("incorrect tokens", s.getTokens(new UserName("bar")), is(set(ht2)));
+		s.deleteTokens(new UserName("bar"));
+		assertThat("tokens remaining", s.getTokens(new UserName("bar")),
+				is(Collections.emptySet()));
+		s.deleteTokens();
+		assertThat("tokens remaining", s.getTokens(new UserName("bar2")),
+				is(Collections.emptySet()));
+		assertThat("incorrect revoked tokens", s.getRevokedTokens(now),
+				is(Collections.emptyMap()));
+		assertThat("incorrect revoked tokens", db.getCollection("tokens_revoked").count(),
+				is(0L));
+	}
+	
+	@Test
+	public void getRevokedTokensSince() throws Exception {
+		final Instant now = Instant.ofEpochMilli(Instant.now().toEpochMilli());
+		final StoredToken ht = StoredToken.getBuilder(
+				TokenType.LOGIN, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now, 100000).build();
+		final StoredToken ht2 = StoredToken.getBuilder(
+				TokenType.DEV, UUID.randomUUID(), new UserName("bar"))
+				.withLifeTime(now, 200000).build();
+		storage.storeToken(ht, "1");
+		storage.storeToken(ht2, "2");
+		
+		when(mockClock.instant()).thenReturn(now.plusSeconds(1), now.plusSeconds(3));
+		storage.deleteToken(new UserName("bar"), ht.getId());
+		storage.deleteToken(new UserName("bar"), ht2.getId());
+		
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now.plusSeconds(2)),
+				is(ImmutableMap.of(ht2.getId(), now.plusMillis(200000))));
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now.plusSeconds(1)),
+				is(ImmutableMap.of(ht.getId(), now.plusMillis(100000),
+						ht2.getId(), now.plusMillis(200000))));
+		assertThat("incorrect revoked tokens", storage.getRevokedTokens(now.plusSeconds(4)),
+				is(Collections.emptyMap()));
+	}
+	
+	@Test
+	public void getRevokedTokensFail() throws Exception {
+		try {
+			storage.getRevokedTokens(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("revokedSince"));
+		}
+	}
+	
+	private MongoStorage getSigningKeyStorage(final String secret) throws Exception {
+		return buildStorage(MongoStorage.getBuilder(db)
+				.withSigningKeyEncryptor(new SigningKeyEncryptor(secret)));
+	}
+	
+	@Test
+	public void storeAndGetSigningKeys() throws Exception {
+		final MongoStorage s = getSigningKeyStorage("secret");
+		final Instant now = Instant.ofEpochMilli(10000);
+		final TokenSigningKey k1 = TokenSigningKey.generate("k1", now);
+		final TokenSigningKey k2 = TokenSigningKey.generate("k2", now.plusSeconds(1));
+		assertThat("incorrect keys", s.getTokenSigningKeys(), is(Collections.emptySet()));
+		s.storeTokenSigningKey(k1);
+		s.storeTokenSigningKey(k2);
+		assertThat("incorrect keys", s.getTokenSigningKeys(), is(set(k1, k2)));
+		
+		final Document d = db.getCollection("token_keys").find(new Document("kid", "k1"))
+				.first();
+		assertThat("incorrect public key", d.getString("pub"), is(k1.getEncodedPublicKey()));
+		assertThat("private key stored in plain text",
+				d.getString("priv").equals(k1.getEncodedPrivateKey()), is(false));
+	}
+	
+	@Test
+	public void storeSigningKeyFail() throws Exception {
+		final MongoStorage s = getSigningKeyStorage("secret");
+		final TokenSigningKey k1 = TokenSigningKey.generate("k1", Instant.ofEpochMilli(10000));
+		s.storeTokenSigningKey(k1);
+		failStoreSigningKey(s, null, new NullPointerException("key"));
+		failStoreSigningKey(s, TokenSigningKey.generate("k1", Instant.ofEpochMilli(20000)),
+				new IllegalArgumentException(
+						"Token signing key k1 already exists in the database"));
+		failStoreSigningKey(storage, k1, new IllegalStateException(
+				"No signing key encryptor is configured, so token signing keys cannot be " +
+				"stored or retrieved"));
+	}
+	
+	private void failStoreSigningKey(
+			final MongoStorage s,
+			final TokenSigningKey key,
+			final Exception expected) {
+		try {
+			s.storeTokenSigningKey(key);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void getSigningKeysFail() throws Exception {
+		getSigningKeyStorage("secret").storeTokenSigningKey(
+				TokenSigningKey.generate("k1", Instant.ofEpochMilli(10000)));
+		failGetSigningKeys(storage, new IllegalStateException(
+				"No signing key encryptor is configured, so token signing keys cannot be " +
+				"stored or retrieved"));
+		failGetSigningKeys(getSigningKeyStorage("secret2"), new AuthStorageException(
+				"Illegal value stored in db: Unable to decrypt private key for key ID k1"));
+	}
+	
+	private void failGetSigningKeys(final MongoStorage s, final Exception expected) {
+		try {
+			s.getTokenSigningKeys();
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
 	}
 }
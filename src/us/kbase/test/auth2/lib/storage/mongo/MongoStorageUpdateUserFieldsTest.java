@@ -7,6 +7,7 @@ import static org.mockito.Mockito.when;
 
 import static us.kbase.test.auth2.TestCommon.set;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
@@ -26,6 +27,7 @@ import us.kbase.auth2.lib.exceptions.NoSuchUserException;
 import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
 import us.kbase.auth2.lib.identity.RemoteIdentityID;
 import us.kbase.auth2.lib.identity.RemoteIdentity;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.auth2.lib.user.NewUser;
 import us.kbase.test.auth2.TestCommon;
@@ -133,6 +135,37 @@ public class MongoStorageUpdateUserFieldsTest extends MongoStorageTester {
 				is(Optional.of(d)));
 	}
 	
+	@Test
+	public void lastLoginWriteBehind() throws Exception {
+		final MongoStorage deferred = buildStorage(MongoStorage.getBuilder(db)
+				.withLastLoginWriteBehindMS(100000));
+		
+		final Instant created = Instant.ofEpochMilli(10000);
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user1"), new DisplayName("bar1"), created, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user2"), new DisplayName("bar2"), created, REMOTE2)
+				.withLastLogin(Instant.ofEpochMilli(90000)).build());
+		
+		deferred.setLastLogin(new UserName("user1"), Instant.ofEpochMilli(30000));
+		deferred.setLastLogin(new UserName("user1"), Instant.ofEpochMilli(50000));
+		deferred.setLastLogin(new UserName("user1"), Instant.ofEpochMilli(40000));
+		// older than the stored date
+		deferred.setLastLogin(new UserName("user2"), Instant.ofEpochMilli(80000));
+		// no such user, ignored
+		deferred.setLastLogin(new UserName("user3"), Instant.ofEpochMilli(80000));
+		
+		assertThat("incorrect login date", storage.getUser(new UserName("user1")).getLastLogin(),
+				is(Optional.absent()));
+		
+		deferred.close();
+		
+		assertThat("incorrect login date", storage.getUser(new UserName("user1")).getLastLogin(),
+				is(Optional.of(Instant.ofEpochMilli(50000))));
+		assertThat("incorrect login date", storage.getUser(new UserName("user2")).getLastLogin(),
+				is(Optional.of(Instant.ofEpochMilli(90000))));
+	}
+	
 	@Test
 	public void lastLoginFailNulls() throws Exception {
 		failLastLogin(null, Instant.now(), new NullPointerException("userName"));
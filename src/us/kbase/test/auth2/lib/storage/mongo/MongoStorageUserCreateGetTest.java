@@ -8,8 +8,13 @@ import static us.kbase.test.auth2.TestCommon.set;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
+import org.bson.Document;
 import org.junit.Test;
 
 import com.google.common.base.Optional;
@@ -32,6 +37,8 @@ import us.kbase.auth2.lib.identity.RemoteIdentityDetails;
 import us.kbase.auth2.lib.identity.RemoteIdentityID;
 import us.kbase.auth2.lib.identity.RemoteIdentity;
 import us.kbase.auth2.lib.storage.exceptions.AuthStorageException;
+import us.kbase.auth2.lib.storage.mongo.MongoStorage;
+import us.kbase.auth2.lib.storage.mongo.SchemaMigrator;
 import us.kbase.auth2.lib.user.AuthUser;
 import us.kbase.auth2.lib.user.LocalUser;
 import us.kbase.auth2.lib.user.NewUser;
@@ -573,4 +580,193 @@ public class MongoStorageUserCreateGetTest extends MongoStorageTester {
 		assertThat("incorrect email", au.getEmail(), is(new EmailAddress("e@g1.com")));
 		// ok, thats enough
 	}
+	
+	@Test
+	public void getUsersByRemoteIds() throws Exception {
+		final RemoteIdentity ri3 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar3"),
+				new RemoteIdentityDetails("user3", "full3", "email3"));
+		final RemoteIdentity ri4 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar4"),
+				new RemoteIdentityDetails("user4", "full4", "email4"));
+		storage.setCustomRole(new CustomRole("crfoo", "baz"));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user1"), new DisplayName("bar1"), NOW, REMOTE1)
+				.withCustomRole("crfoo")
+				.build());
+		storage.link(new UserName("user1"), REMOTE2);
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user3"), new DisplayName("bar3"), NOW, ri3)
+				.build());
+		
+		final Map<RemoteIdentity, AuthUser> got = storage.getUsers(set(REMOTE1, REMOTE2, ri3, ri4));
+		
+		assertThat("incorrect identities", got.keySet(), is(set(REMOTE1, REMOTE2, ri3)));
+		final AuthUser u1 = got.get(REMOTE1);
+		assertThat("incorrect user", got.get(REMOTE2), is(u1));
+		assertThat("incorrect username", u1.getUserName(), is(new UserName("user1")));
+		assertThat("incorrect identities", u1.getIdentities(), is(set(REMOTE1, REMOTE2)));
+		assertThat("incorrect custom roles", u1.getCustomRoles(), is(set("crfoo")));
+		final AuthUser u3 = got.get(ri3);
+		assertThat("incorrect username", u3.getUserName(), is(new UserName("user3")));
+		assertThat("incorrect identities", u3.getIdentities(), is(set(ri3)));
+		assertThat("incorrect custom roles", u3.getCustomRoles(), is(Collections.emptySet()));
+	}
+	
+	@Test
+	public void getUsersNoRemoteIds() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user1"), new DisplayName("bar1"), NOW, REMOTE1)
+				.build());
+		assertThat("incorrect users", storage.getUsers(Collections.emptySet()),
+				is(Collections.emptyMap()));
+		assertThat("incorrect users", storage.getUsers(set(REMOTE2)),
+				is(Collections.emptyMap()));
+	}
+	
+	@Test
+	public void getUsersAndUpdateRemoteIds() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("user1"), new DisplayName("bar1"), NOW, REMOTE1)
+				.build());
+		storage.link(new UserName("user1"), REMOTE2);
+		
+		final RemoteIdentity ri1 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar1"),
+				new RemoteIdentityDetails("user5", "full5", "email5"));
+		final RemoteIdentity ri2 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar2"),
+				new RemoteIdentityDetails("user6", "full6", "email6"));
+		
+		final Map<RemoteIdentity, AuthUser> got = storage.getUsers(set(ri1, ri2));
+		assertThat("incorrect identities", got.get(ri1).getIdentities(), is(set(ri1, ri2)));
+		assertThat("incorrect identities", got.get(ri2).getIdentities(), is(set(ri1, ri2)));
+		
+		assertThat("incorrect stored identities",
+				storage.getUser(new UserName("user1")).getIdentities(), is(set(ri1, ri2)));
+	}
+	
+	@Test
+	public void getUsersAndDeferUpdateRemoteIds() throws Exception {
+		final MongoStorage deferred = buildStorage(MongoStorage.getBuilder(db)
+				.withDeferredIdentityUpdates(true));
+		
+		deferred.createUser(NewUser.getBuilder(
+				new UserName("user1"), new DisplayName("bar1"), NOW, REMOTE1)
+				.build());
+		deferred.link(new UserName("user1"), REMOTE2);
+		
+		final RemoteIdentity ri1 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar1"),
+				new RemoteIdentityDetails("user5", "full5", "email5"));
+		final RemoteIdentity ri2 = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar2"),
+				new RemoteIdentityDetails("user6", "full6", "email6"));
+		final RemoteIdentity ri2b = new RemoteIdentity(
+				new RemoteIdentityID("prov", "bar2"),
+				new RemoteIdentityDetails("user7", "full7", "email7"));
+		
+		assertThat("incorrect identities", deferred.getUser(ri1).get().getIdentities(),
+				is(set(ri1, REMOTE2)));
+		assertThat("incorrect identities", deferred.getUser(ri2).get().getIdentities(),
+				is(set(REMOTE1, ri2)));
+		assertThat("incorrect identities", deferred.getUser(ri2b).get().getIdentities(),
+				is(set(REMOTE1, ri2b)));
+		
+		deferred.close();
+		
+		assertThat("incorrect stored identities",
+				storage.getUser(new UserName("user1")).getIdentities(), is(set(ri1, ri2b)));
+	}
+	
+	@Test
+	public void getUsersFail() throws Exception {
+		failGetUsers(null, new NullPointerException("remoteIDs"));
+		failGetUsers(new HashSet<>(Arrays.asList(REMOTE1, null)),
+				new NullPointerException("Null remote identity in remoteIDs"));
+	}
+	
+	private void failGetUsers(final Set<RemoteIdentity> remoteIDs, final Exception e) {
+		try {
+			storage.getUsers(remoteIDs);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+	
+	@Test
+	public void userExistsAndMaximumSuffix() throws Exception {
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.absent()));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.absent()));
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo9"), new DisplayName("bar"), NOW, REMOTE2).build());
+		createLocalUser("foo012");
+		// not a suffix of the stem foo
+		createLocalUser("foo1x100");
+		// too large to store
+		createLocalUser("foo1234567890123456789");
+		
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.of(12L)));
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo1x"),
+				is(Optional.of(100L)));
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("fo"),
+				is(Optional.absent()));
+		
+		assertThat("incorrect exists", storage.userExists(new UserName("foo")), is(true));
+		assertThat("incorrect exists", storage.userExists(new UserName("foo12")), is(false));
+		assertThat("incorrect exists", storage.userExists(new UserName("foo012")), is(true));
+	}
+	
+	private void createLocalUser(final String name) throws Exception {
+		storage.createLocalUser(LocalUser.getLocalUserBuilder(
+				new UserName(name), new DisplayName("bar"), NOW).build(),
+				new PasswordHashAndSalt("foobarbaz3".getBytes(StandardCharsets.UTF_8),
+						"wugga".getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@Test
+	public void addUserNameSuffixesByMigration() throws Exception {
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo"), new DisplayName("bar"), NOW, REMOTE1).build());
+		storage.createUser(NewUser.getBuilder(
+				new UserName("foo7"), new DisplayName("bar"), NOW, REMOTE2).build());
+		// simulate users created before the stem and suffix fields existed
+		db.getCollection("users").updateMany(new Document(), new Document("$unset",
+				new Document("userstem", "").append("usersuf", "")));
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.absent()));
+		
+		// the migration is started on startup and run in the background
+		assertThat("incorrect update count", storage.runMigrations(), is(2L));
+		
+		assertThat("incorrect suffix", storage.getMaximumUserNameSuffix("foo"),
+				is(Optional.of(7L)));
+		assertThat("incorrect state", storage.getSchemaMigrator().getState(
+				"derived-user-fields"), is(SchemaMigrator.State.COMPLETE));
+	}
+	
+	@Test
+	public void userExistsAndMaximumSuffixFail() throws Exception {
+		try {
+			storage.userExists(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("userName"));
+		}
+		for (final String stem: new String[] {null, "   \t  "}) {
+			try {
+				storage.getMaximumUserNameSuffix(stem);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got,
+						new IllegalArgumentException("Missing argument: stem"));
+			}
+		}
+	}
 }
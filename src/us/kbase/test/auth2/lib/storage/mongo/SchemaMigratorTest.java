@@ -0,0 +1,216 @@
+package us.kbase.test.auth2.lib.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import com.mongodb.client.model.UpdateOneModel;
+
+import us.kbase.auth2.lib.storage.mongo.SchemaMigration;
+import us.kbase.auth2.lib.storage.mongo.SchemaMigrator;
+import us.kbase.auth2.lib.storage.mongo.SchemaMigrator.State;
+import us.kbase.test.auth2.TestCommon;
+
+public class SchemaMigratorTest extends MongoStorageTester {
+
+	private static final Document CONFIG_QUERY = new Document("schema", "schema");
+	private static final long NOW = 1500000000000L;
+
+	// sets v to "new" for documents with v = "old"
+	private static class TestMigration implements SchemaMigration {
+
+		private final String name;
+
+		private TestMigration(final String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getCollection() {
+			return "migrate";
+		}
+
+		@Override
+		public Document getQuery() {
+			return new Document("v", "old");
+		}
+
+		@Override
+		public Document getProjection() {
+			return new Document("v", 1);
+		}
+
+		@Override
+		public List<UpdateOneModel<Document>> migrate(final Document document) {
+			if (!"old".equals(document.get("v"))) {
+				return Collections.emptyList();
+			}
+			return Arrays.asList(new UpdateOneModel<Document>(
+					new Document("_id", document.get("_id")).append("v", "old"),
+					new Document("$set", new Document("v", "new"))));
+		}
+	}
+
+	private SchemaMigrator getMigrator(final int batchSize) throws Exception {
+		when(mockClock.millis()).thenReturn(NOW);
+		return new SchemaMigrator(db, "config", CONFIG_QUERY,
+				Arrays.asList(new TestMigration("test")), batchSize, 0, mockClock);
+	}
+
+	private void insertDocs(final int count) {
+		for (int i = 0; i < count; i++) {
+			db.getCollection("migrate").insertOne(new Document("_id", i).append("v", "old"));
+		}
+	}
+
+	private long countNew() {
+		return db.getCollection("migrate").count(new Document("v", "new"));
+	}
+
+	private Document getProgress() {
+		return db.getCollection("config").find(CONFIG_QUERY).first()
+				.get("migrations", Document.class).get("test", Document.class);
+	}
+
+	@Test
+	public void notStarted() throws Exception {
+		insertDocs(3);
+		final SchemaMigrator m = getMigrator(2);
+		assertThat("incorrect state", m.getState("test"), is(State.NOT_STARTED));
+		assertThat("incorrect count", m.run(), is(0L));
+		assertThat("incorrect count", countNew(), is(0L));
+
+		// upgrades on read only happen once a migration is started
+		m.upgradeOnRead("migrate", new Document("_id", 1).append("v", "old"));
+		m.close();
+		assertThat("incorrect count", countNew(), is(0L));
+	}
+
+	@Test
+	public void run() throws Exception {
+		insertDocs(5);
+		final SchemaMigrator m = getMigrator(2);
+		m.start("test");
+		assertThat("incorrect state", m.getState("test"), is(State.RUNNING));
+		assertThat("incorrect count", m.run(), is(5L));
+		assertThat("incorrect state", m.getState("test"), is(State.COMPLETE));
+		assertThat("incorrect count", countNew(), is(5L));
+
+		final Document p = getProgress();
+		assertThat("incorrect state", p.getString("state"), is("complete"));
+		assertThat("incorrect count", p.getLong("count"), is(5L));
+		assertThat("incorrect last id", p.getInteger("lastid"), is(4));
+		assertThat("incorrect owner", p.get("owner"), nullValue());
+		assertThat("incorrect start", p.getDate("started"), is(new Date(NOW)));
+		assertThat("incorrect update", p.getDate("updated"), is(new Date(NOW)));
+
+		// a complete migration isn't run again until restarted
+		db.getCollection("migrate").insertOne(new Document("_id", 5).append("v", "old"));
+		assertThat("incorrect count", m.run(), is(0L));
+		m.start("test");
+		assertThat("incorrect count", m.run(), is(1L));
+		m.close();
+	}
+
+	@Test
+	public void resume() throws Exception {
+		insertDocs(5);
+		final SchemaMigrator m = getMigrator(2);
+		m.start("test");
+		// simulate an instance that processed the first two documents and then shut down
+		db.getCollection("config").updateOne(CONFIG_QUERY, new Document("$set",
+				new Document("migrations.test.lastid", 1)
+						.append("migrations.test.owner", "someinstance")
+						.append("migrations.test.leaseexp", new Date(0))));
+		assertThat("incorrect count", m.run(), is(3L));
+		assertThat("incorrect count", db.getCollection("migrate").count(
+				new Document("v", "old")), is(2L));
+		m.close();
+	}
+
+	@Test
+	public void claimedByOtherInstance() throws Exception {
+		insertDocs(3);
+		final SchemaMigrator m = getMigrator(2);
+		m.start("test");
+		db.getCollection("config").updateOne(CONFIG_QUERY, new Document("$set",
+				new Document("migrations.test.owner", "someinstance")
+						.append("migrations.test.leaseexp",
+								new Date(NOW + 1))));
+		assertThat("incorrect count", m.run(), is(0L));
+		assertThat("incorrect state", m.getState("test"), is(State.RUNNING));
+
+		// another instance notices the running migration
+		final SchemaMigrator m2 = getMigrator(2);
+		assertThat("incorrect state", m2.getState("test"), is(State.RUNNING));
+		m.close();
+		m2.close();
+	}
+
+	@Test
+	public void upgradeOnRead() throws Exception {
+		insertDocs(3);
+		final SchemaMigrator m = getMigrator(2);
+		m.start("test");
+		m.upgradeOnRead("migrate", new Document("_id", 1).append("v", "old"));
+		m.upgradeOnRead("migrate", new Document("_id", 2).append("v", "new"));
+		m.upgradeOnRead("other", new Document("_id", 0).append("v", "old"));
+		m.close(); // flushes the upgrades
+		assertThat("incorrect count", countNew(), is(1L));
+		assertThat("incorrect doc", db.getCollection("migrate").find(
+				new Document("_id", 1)).first().getString("v"), is("new"));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(Arrays.asList(new TestMigration("a.b")),
+				new IllegalArgumentException("Illegal migration name: a.b"));
+		failConstruct(Arrays.asList(new TestMigration("a"), new TestMigration("a")),
+				new IllegalArgumentException("Duplicate migration name: a"));
+		failConstruct(Arrays.asList(new TestMigration("a"), null),
+				new NullPointerException("Null migration in migrations"));
+		try {
+			new SchemaMigrator(db, "config", CONFIG_QUERY, Collections.emptyList(), 1, 0, null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
+	}
+
+	private void failConstruct(final List<SchemaMigration> migrations, final Exception expected) {
+		try {
+			new SchemaMigrator(db, "config", CONFIG_QUERY, migrations, 1, 0, mockClock);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void getStateFail() throws Exception {
+		final SchemaMigrator m = getMigrator(1);
+		try {
+			m.getState("foo");
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new IllegalArgumentException("No such migration: foo"));
+		}
+		m.close();
+	}
+}
@@ -0,0 +1,108 @@
+package us.kbase.test.auth2.lib.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.storage.mongo.UserPrefixIndex;
+import us.kbase.test.auth2.TestCommon;
+
+public class UserPrefixIndexTest {
+
+	private static UserPrefixIndex getIndex() throws Exception {
+		final UserPrefixIndex i = new UserPrefixIndex();
+		i.put(new UserName("u1"), new DisplayName("Douglas J Adams"), false);
+		i.put(new UserName("u2"), new DisplayName("Herbert Dougie Howser"), false);
+		i.put(new UserName("u3"), new DisplayName("al douglas"), true);
+		i.put(new UserName("dougal"), new DisplayName("-Albert- Hevensy"), false);
+		return i;
+	}
+
+	@Test
+	public void searchUserName() throws Exception {
+		final UserPrefixIndex i = getIndex();
+		assertThat("incorrect size", i.size(), is(4));
+		assertThat("incorrect search", i.search("Dou", true, false, true),
+				is(ImmutableMap.of(new UserName("dougal"), new DisplayName("-Albert- Hevensy"))));
+		assertThat("incorrect search", i.search("u", true, false, false), is(ImmutableMap.of(
+				new UserName("u1"), new DisplayName("Douglas J Adams"),
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"))));
+		assertThat("incorrect search", i.search("x", true, true, true),
+				is(Collections.emptyMap()));
+	}
+
+	@Test
+	public void searchDisplayName() throws Exception {
+		final UserPrefixIndex i = getIndex();
+		assertThat("incorrect search", i.search("DOUG", false, true, false), is(ImmutableMap.of(
+				new UserName("u1"), new DisplayName("Douglas J Adams"),
+				new UserName("u2"), new DisplayName("Herbert Dougie Howser"))));
+		assertThat("incorrect search", i.search("al", false, true, true), is(ImmutableMap.of(
+				new UserName("dougal"), new DisplayName("-Albert- Hevensy"),
+				new UserName("u3"), new DisplayName("al douglas"))));
+		// prefix must match the start of a token
+		assertThat("incorrect search", i.search("ouglas", false, true, true),
+				is(Collections.emptyMap()));
+	}
+
+	@Test
+	public void searchBothSorted() throws Exception {
+		final UserPrefixIndex i = getIndex();
+		final Map<UserName, DisplayName> res = i.search("doug", true, true, true);
+		assertThat("incorrect order", new LinkedList<>(res.keySet()), is(Arrays.asList(
+				new UserName("dougal"), new UserName("u1"), new UserName("u2"),
+				new UserName("u3"))));
+		assertThat("incorrect order", new LinkedList<>(i.search("", true, false, true).keySet()),
+				is(Arrays.asList(new UserName("dougal"), new UserName("u1"), new UserName("u2"),
+						new UserName("u3"))));
+	}
+
+	@Test
+	public void replace() throws Exception {
+		final UserPrefixIndex i = getIndex();
+		i.put(new UserName("u1"), new DisplayName("Doug Adams"), false);
+		i.put(new UserName("u3"), new DisplayName("al douglas"), false);
+
+		assertThat("incorrect size", i.size(), is(4));
+		assertThat("incorrect search", i.search("dougl", false, true, false),
+				is(ImmutableMap.of(new UserName("u3"), new DisplayName("al douglas"))));
+		assertThat("incorrect search", i.search("j", false, true, true),
+				is(Collections.emptyMap()));
+		assertThat("incorrect search", i.search("adams", false, true, true),
+				is(ImmutableMap.of(new UserName("u1"), new DisplayName("Doug Adams"))));
+	}
+
+	@Test
+	public void putAndSearchFail() throws Exception {
+		final UserPrefixIndex i = new UserPrefixIndex();
+		try {
+			i.put(null, new DisplayName("d"), false);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("userName"));
+		}
+		try {
+			i.put(new UserName("u"), null, false);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("displayName"));
+		}
+		try {
+			i.search(null, true, true, true);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("prefix"));
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package us.kbase.test.auth2.lib.storage.mongo;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.storage.mongo.WriteBehindQueue;
+import us.kbase.auth2.lib.storage.mongo.WriteBehindQueue.BatchWriter;
+import us.kbase.test.auth2.TestCommon;
+
+public class WriteBehindQueueTest {
+
+	private static class CollectingWriter implements BatchWriter<String, Integer> {
+
+		private final List<Map<String, Integer>> batches = new LinkedList<>();
+		private boolean fail = false;
+
+		@Override
+		public synchronized void write(final Map<String, Integer> batch) throws Exception {
+			if (fail) {
+				throw new Exception("whoops");
+			}
+			batches.add(batch);
+		}
+
+		public synchronized List<Map<String, Integer>> getBatches() {
+			return new LinkedList<>(batches);
+		}
+	}
+
+	@Test
+	public void coalesceAndFlush() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, 100, 100000);
+		q.add("a", 1);
+		q.add("b", 2);
+		q.add("a", 3);
+		assertThat("incorrect size", q.size(), is(2));
+		assertThat("incorrect batches", w.getBatches(), is(Collections.emptyList()));
+
+		q.flush();
+		assertThat("incorrect size", q.size(), is(0));
+		assertThat("incorrect batches", w.getBatches(),
+				is(list(ImmutableMap.of("a", 3, "b", 2))));
+		q.close();
+	}
+
+	@Test
+	public void merge() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, Math::max, 100, 100000);
+		q.add("a", 3);
+		q.add("a", 1);
+		q.add("b", 2);
+		q.add("b", 4);
+		q.flush();
+		assertThat("incorrect batches", w.getBatches(),
+				is(list(ImmutableMap.of("a", 3, "b", 4))));
+		q.close();
+	}
+
+	@Test
+	public void batches() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, 2, 100000);
+		q.add("a", 1);
+		q.add("b", 2);
+		q.add("c", 3);
+		q.close();
+
+		final List<Map<String, Integer>> batches = w.getBatches();
+		int count = 0;
+		for (final Map<String, Integer> b: batches) {
+			assertThat("batch too big", b.size() <= 2, is(true));
+			count += b.size();
+		}
+		assertThat("incorrect write count", count, is(3));
+	}
+
+	@Test
+	public void periodicFlush() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, 100, 50);
+		q.add("a", 1);
+		Thread.sleep(300);
+		assertThat("incorrect batches", w.getBatches(), is(list(ImmutableMap.of("a", 1))));
+		q.close();
+	}
+
+	@Test
+	public void closeDrainsAndWritesDirectlyAfter() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, 100, 100000);
+		q.add("a", 1);
+		q.close();
+		assertThat("incorrect batches", w.getBatches(), is(list(ImmutableMap.of("a", 1))));
+
+		q.add("b", 2);
+		assertThat("incorrect batches", w.getBatches(), is(list(
+				ImmutableMap.of("a", 1), ImmutableMap.of("b", 2))));
+	}
+
+	@Test
+	public void failedWriteIsRetried() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", w, Math::max, 100, 100000);
+		q.add("a", 3);
+		q.add("b", 2);
+		w.fail = true;
+		q.flush();
+		assertThat("incorrect size", q.size(), is(2));
+		assertThat("incorrect batches", w.getBatches(), is(Collections.emptyList()));
+
+		q.add("a", 1);
+		w.fail = false;
+		q.close();
+		assertThat("incorrect batches", w.getBatches(),
+				is(list(ImmutableMap.of("a", 3, "b", 2))));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final CollectingWriter w = new CollectingWriter();
+		failConstruct(null, w, 1, 1, new IllegalArgumentException("Missing argument: name"));
+		failConstruct("  \t ", w, 1, 1,
+				new IllegalArgumentException("Missing argument: name"));
+		failConstruct("n", null, 1, 1, new NullPointerException("writer"));
+		failConstruct("n", w, 0, 1,
+				new IllegalArgumentException("batchSize must be at least 1"));
+		failConstruct("n", w, 1, 0,
+				new IllegalArgumentException("flushIntervalMS must be at least 1"));
+	}
+
+	private void failConstruct(
+			final String name,
+			final BatchWriter<String, Integer> writer,
+			final int batchSize,
+			final long interval,
+			final Exception e) {
+		try {
+			new WriteBehindQueue<>(name, writer, batchSize, interval);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+
+	@Test
+	public void addFail() throws Exception {
+		final WriteBehindQueue<String, Integer> q = new WriteBehindQueue<>(
+				"test", new CollectingWriter(), 100, 100000);
+		failAdd(q, null, 1, new NullPointerException("key"));
+		failAdd(q, "a", null, new NullPointerException("value"));
+		q.close();
+	}
+
+	private void failAdd(
+			final WriteBehindQueue<String, Integer> q,
+			final String key,
+			final Integer value,
+			final Exception e) {
+		try {
+			q.add(key, value);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, e);
+		}
+	}
+
+	@SafeVarargs
+	private static List<Map<String, Integer>> list(final Map<String, Integer>... maps) {
+		final List<Map<String, Integer>> ret = new LinkedList<>();
+		for (final Map<String, Integer> m: maps) {
+			ret.add(m);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,243 @@
+package us.kbase.test.auth2.lib.token;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.exceptions.InvalidTokenException;
+import us.kbase.auth2.lib.token.SignedTokens;
+import us.kbase.auth2.lib.token.SigningKeyEncryptor;
+import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.token.TokenName;
+import us.kbase.auth2.lib.token.TokenSigningKey;
+import us.kbase.auth2.lib.token.TokenType;
+import us.kbase.test.auth2.TestCommon;
+
+public class SignedTokensTest {
+
+	private static final Instant CREATED = Instant.ofEpochSecond(1500000000);
+	private static final TokenSigningKey KEY1 = TokenSigningKey.generate("key1", CREATED);
+	private static final TokenSigningKey KEY2 = TokenSigningKey.generate("key2", CREATED);
+
+	private static StoredToken getToken(final TokenName name) throws Exception {
+		return StoredToken.getBuilder(TokenType.DEV,
+					UUID.fromString("a3b2f6d1-36b0-4d0e-8b5e-4f5ad0a67e1f"), new UserName("foo"))
+				.withLifeTime(CREATED, CREATED.plusSeconds(3600))
+				.withNullableTokenName(name)
+				.build();
+	}
+
+	@Test
+	public void signingKeyEncoding() throws Exception {
+		final TokenSigningKey k = TokenSigningKey.fromEncoded("key1", CREATED,
+				KEY1.getEncodedPublicKey(), KEY1.getEncodedPrivateKey());
+		assertThat("incorrect key", k, is(KEY1));
+		assertThat("incorrect hash", k.hashCode(), is(KEY1.hashCode()));
+		assertThat("incorrect id", k.getKeyID(), is("key1"));
+		assertThat("incorrect created", k.getCreationDate(), is(CREATED));
+		assertThat("incorrect key", k.equals(KEY2), is(false));
+	}
+
+	@Test
+	public void signingKeyFail() throws Exception {
+		failSigningKey(null, CREATED, "foo", "foo", new IllegalArgumentException(
+				"Missing argument: keyID"));
+		failSigningKey("k", null, "foo", "foo", new NullPointerException("created"));
+		failSigningKey("k", CREATED, "  \t ", "foo", new IllegalArgumentException(
+				"Missing argument: encodedPublicKey"));
+		failSigningKey("k", CREATED, "foo", null, new IllegalArgumentException(
+				"Missing argument: encodedPrivateKey"));
+		failSigningKey("k", CREATED, Base64.getEncoder().encodeToString(new byte[10]),
+				KEY1.getEncodedPrivateKey(), new IllegalArgumentException(
+						"Invalid key for key ID k"));
+	}
+
+	private void failSigningKey(
+			final String id,
+			final Instant created,
+			final String pub,
+			final String priv,
+			final Exception expected) {
+		try {
+			TokenSigningKey.fromEncoded(id, created, pub, priv);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void encryptPrivateKey() throws Exception {
+		final SigningKeyEncryptor e = new SigningKeyEncryptor("my secret");
+		final String enc = e.encryptPrivateKey(KEY1);
+		assertThat("private key not encrypted", enc.equals(KEY1.getEncodedPrivateKey()),
+				is(false));
+		assertThat("encryption not randomized", enc.equals(e.encryptPrivateKey(KEY1)),
+				is(false));
+		assertThat("incorrect private key", e.decryptPrivateKey("key1", enc),
+				is(KEY1.getEncodedPrivateKey()));
+		assertThat("incorrect private key", new SigningKeyEncryptor("my secret")
+				.decryptPrivateKey("key1", enc), is(KEY1.getEncodedPrivateKey()));
+	}
+
+	@Test
+	public void encryptPrivateKeyFail() throws Exception {
+		final SigningKeyEncryptor e = new SigningKeyEncryptor("my secret");
+		final String enc = e.encryptPrivateKey(KEY1);
+		try {
+			new SigningKeyEncryptor("   ");
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"Missing argument: secret"));
+		}
+		try {
+			e.encryptPrivateKey(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("signingKey"));
+		}
+		failDecrypt(e, null, enc, new IllegalArgumentException("Missing argument: keyID"));
+		failDecrypt(e, "key1", "  ", new IllegalArgumentException(
+				"Missing argument: encryptedPrivateKey"));
+		failDecrypt(new SigningKeyEncryptor("my secret2"), "key1", enc,
+				new IllegalArgumentException("Unable to decrypt private key for key ID key1"));
+		failDecrypt(e, "key2", enc, new IllegalArgumentException(
+				"Unable to decrypt private key for key ID key2"));
+		failDecrypt(e, "key1", Base64.getEncoder().encodeToString(new byte[12]),
+				new IllegalArgumentException(
+						"Encrypted private key for key ID key1 is too short"));
+	}
+
+	private void failDecrypt(
+			final SigningKeyEncryptor e,
+			final String keyID,
+			final String encrypted,
+			final Exception expected) {
+		try {
+			e.decryptPrivateKey(keyID, encrypted);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+
+	@Test
+	public void signAndVerify() throws Exception {
+		final StoredToken t = getToken(null);
+		final String signed = SignedTokens.sign(t, KEY1);
+		assertThat("incorrect signed check", SignedTokens.isSigned(signed), is(true));
+		assertThat("incorrect key id", SignedTokens.getKeyID(signed), is("key1"));
+		assertThat("incorrect token", SignedTokens.verify(
+				signed, KEY1.getPublicKey(), CREATED.plusSeconds(3600)), is(t));
+	}
+
+	@Test
+	public void signAndVerifyWithName() throws Exception {
+		final StoredToken t = getToken(new TokenName("my token"));
+		final String signed = SignedTokens.sign(t, KEY2);
+		assertThat("incorrect key id", SignedTokens.getKeyID(signed), is("key2"));
+		assertThat("incorrect token", SignedTokens.verify(
+				signed, KEY2.getPublicKey(), CREATED), is(t));
+	}
+
+	@Test
+	public void signAndVerifyAssertion() throws Exception {
+		// assertions keep millisecond precision
+		final StoredToken t = StoredToken.getBuilder(TokenType.LOGIN,
+					UUID.fromString("a3b2f6d1-36b0-4d0e-8b5e-4f5ad0a67e1f"), new UserName("foo"))
+				.withLifeTime(CREATED.plusMillis(123), CREATED.plusMillis(3600456))
+				.withTokenName(new TokenName("my token"))
+				.build();
+		final String signed = SignedTokens.signAssertion(t, KEY1, CREATED.plusSeconds(60));
+		assertThat("incorrect key id", SignedTokens.getKeyID(signed), is("key1"));
+		assertThat("incorrect token", SignedTokens.verifyAssertion(
+				signed, KEY1.getPublicKey(), CREATED.plusMillis(3600456)), is(t));
+		
+		try {
+			SignedTokens.verifyAssertion(
+					signed, KEY1.getPublicKey(), CREATED.plusMillis(3600457));
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new InvalidTokenException("Token is expired"));
+		}
+	}
+	
+	@Test
+	public void verifyFailWrongType() throws Exception {
+		final StoredToken t = getToken(null);
+		failVerify(SignedTokens.signAssertion(t, KEY1, CREATED), KEY1, CREATED,
+				new InvalidTokenException("Unexpected signed token type"));
+		try {
+			SignedTokens.verifyAssertion(SignedTokens.sign(t, KEY1), KEY1.getPublicKey(), CREATED);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new InvalidTokenException("Unexpected signed token type"));
+		}
+	}
+	
+	@Test
+	public void isSigned() throws Exception {
+		assertThat("incorrect signed check", SignedTokens.isSigned(
+				"ABCDEFGHIJKLMNOPQRSTUVWXYZ234567"), is(false));
+	}
+
+	@Test
+	public void verifyFailExpired() throws Exception {
+		final String signed = SignedTokens.sign(getToken(null), KEY1);
+		failVerify(signed, KEY1, CREATED.plusSeconds(3601),
+				new InvalidTokenException("Token is expired"));
+	}
+
+	@Test
+	public void verifyFailWrongKey() throws Exception {
+		final String signed = SignedTokens.sign(getToken(null), KEY1);
+		failVerify(signed, KEY2, CREATED, new InvalidTokenException("Bad token signature"));
+	}
+
+	@Test
+	public void verifyFailTampered() throws Exception {
+		final String signed = SignedTokens.sign(getToken(null), KEY1);
+		final String[] parts = signed.split("\\.");
+		final String claims = new String(Base64.getUrlDecoder().decode(parts[1]))
+				.replace("\"foo\"", "\"bar\"");
+		final String tampered = parts[0] + "." + Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(claims.getBytes()) + "." + parts[2];
+		failVerify(tampered, KEY1, CREATED, new InvalidTokenException("Bad token signature"));
+	}
+
+	@Test
+	public void verifyFailMalformed() throws Exception {
+		failVerify("foo.bar", KEY1, CREATED, new InvalidTokenException("Not a signed token"));
+		failVerify("foo.b@r.baz", KEY1, CREATED,
+				new InvalidTokenException("Illegal signed token encoding"));
+		try {
+			SignedTokens.getKeyID("e30.e30.e30"); // {}.{}.{}
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new InvalidTokenException("Signed token has no key ID"));
+		}
+	}
+
+	private void failVerify(
+			final String token,
+			final TokenSigningKey key,
+			final Instant now,
+			final Exception expected) {
+		try {
+			SignedTokens.verify(token, key.getPublicKey(), now);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
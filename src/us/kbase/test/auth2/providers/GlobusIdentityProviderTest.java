@@ -151,6 +151,12 @@ public class GlobusIdentityProviderTest {
 				Collections.emptyMap()),
 				new IllegalArgumentException(
 						"Configuration class name doesn't match factory class name: foo"));
+		for (final String ttl: new String[] {"-1", "foo", "1.5"}) {
+			failCreate(getTestIDConfig(ImmutableMap.of("secondary-identity-cache-ttl-ms", ttl)),
+					new IllegalArgumentException(
+							"Configuration value secondary-identity-cache-ttl-ms for Globus " +
+							"identity provider must be a non-negative integer: " + ttl));
+		}
 	}
 	
 	private void failCreate(final IdentityProviderConfig cfg, final Exception exception) {
@@ -601,6 +607,8 @@ public class GlobusIdentityProviderTest {
 		expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "id2"),
 				new RemoteIdentityDetails("user2", null, "email2")));
 		assertThat("incorrect ident set", rids, is(expected));
+		assertThat("incorrect request count", ((GlobusIdentityProvider) idp).getClient()
+				.getRequestCount(), is(3L));
 	}
 	
 	@Test
@@ -639,6 +647,93 @@ public class GlobusIdentityProviderTest {
 		assertThat("incorrect ident set", rids, is(expected));
 	}
 
+	@Test
+	public void getIdentityWithCachedSecondaries() throws Exception {
+		final IdentityProviderConfig testIDConfig = getTestIDConfig(
+				ImmutableMap.of("secondary-identity-cache-ttl-ms", "60000"));
+		final IdentityProvider idp = new GlobusIdentityProvider(testIDConfig);
+		final String bauth = getBasicAuth(testIDConfig);
+
+		setUpCallAuthToken("authcode", "footoken", "https://loginredir.com", bauth);
+		setUpCallPrimaryID("footoken", bauth, APP_JSON, 200, MAPPER.writeValueAsString(
+				map("aud", Arrays.asList(testIDConfig.getClientID()),
+					"sub", "anID",
+					"username", "aUsername",
+					"name", "fullname",
+					"email", "anEmail",
+					"identities_set", Arrays.asList("id1", "anID", "id2"))));
+		final List<Map<String, Object>> idents = new LinkedList<>();
+		idents.add(map("id", "id1", "username", "user1", "name", "name1", "email", null));
+		idents.add(map("id", "id2", "username", "user2", "name", null, "email", "email2"));
+		setupCallSecondaryID("footoken", "^id2,id1|id1,id2$", APP_JSON, 200,
+				MAPPER.writeValueAsString(ImmutableMap.of("identities", idents)));
+		idp.getIdentities("authcode", false);
+
+		// only the uncached identity should be requested
+		setUpCallAuthToken("authcode2", "footoken2", "https://loginredir.com", bauth);
+		setUpCallPrimaryID("footoken2", bauth, APP_JSON, 200, MAPPER.writeValueAsString(
+				map("aud", Arrays.asList(testIDConfig.getClientID()),
+					"sub", "anID",
+					"username", "aUsername",
+					"name", "fullname",
+					"email", "anEmail",
+					"identities_set", Arrays.asList("id1", "anID", "id2", "id3"))));
+		setupCallSecondaryID("footoken2", "^id3$", APP_JSON, 200,
+				MAPPER.writeValueAsString(ImmutableMap.of("identities", Arrays.asList(
+						map("id", "id3", "username", "user3", "name", "name3",
+								"email", "email3")))));
+
+		final Set<RemoteIdentity> rids = idp.getIdentities("authcode2", false);
+		final Set<RemoteIdentity> expected = new HashSet<>();
+		expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "anID"),
+				new RemoteIdentityDetails("aUsername", "fullname", "anEmail")));
+		expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "id1"),
+				new RemoteIdentityDetails("user1", "name1", null)));
+		expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "id2"),
+				new RemoteIdentityDetails("user2", null, "email2")));
+		expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "id3"),
+				new RemoteIdentityDetails("user3", "name3", "email3")));
+		assertThat("incorrect ident set", rids, is(expected));
+	}
+	
+	@Test
+	public void getIdentityWithSecondaryCacheDisabled() throws Exception {
+		getIdentityWithSecondaryCacheDisabled(getTestIDConfig());
+		getIdentityWithSecondaryCacheDisabled(getTestIDConfig(
+				ImmutableMap.of("secondary-identity-cache-ttl-ms", "0")));
+	}
+	
+	private void getIdentityWithSecondaryCacheDisabled(final IdentityProviderConfig testIDConfig)
+			throws Exception {
+		mockClientAndServer.reset();
+		final IdentityProvider idp = new GlobusIdentityProvider(testIDConfig);
+		final String bauth = getBasicAuth(testIDConfig);
+
+		for (final String suffix: Arrays.asList("1", "2")) {
+			setUpCallAuthToken("authcode" + suffix, "footoken" + suffix,
+					"https://loginredir.com", bauth);
+			setUpCallPrimaryID("footoken" + suffix, bauth, APP_JSON, 200,
+					MAPPER.writeValueAsString(
+							map("aud", Arrays.asList(testIDConfig.getClientID()),
+								"sub", "anID",
+								"username", "aUsername",
+								"name", "fullname",
+								"email", "anEmail",
+								"identities_set", Arrays.asList("id1", "anID"))));
+			setupCallSecondaryID("footoken" + suffix, "^id1$", APP_JSON, 200,
+					MAPPER.writeValueAsString(ImmutableMap.of("identities", Arrays.asList(
+							map("id", "id1", "username", "user" + suffix, "name", null,
+									"email", null)))));
+			final Set<RemoteIdentity> rids = idp.getIdentities("authcode" + suffix, false);
+			final Set<RemoteIdentity> expected = new HashSet<>();
+			expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "anID"),
+					new RemoteIdentityDetails("aUsername", "fullname", "anEmail")));
+			expected.add(new RemoteIdentity(new RemoteIdentityID(GLOBUS, "id1"),
+					new RemoteIdentityDetails("user" + suffix, null, null)));
+			assertThat("incorrect ident set", rids, is(expected));
+		}
+	}
+
 	private void setupCallSecondaryID(
 			final String token,
 			final String idRegex,
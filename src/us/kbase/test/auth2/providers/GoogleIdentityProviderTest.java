@@ -7,8 +7,16 @@ import static org.junit.Assert.fail;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +35,7 @@ import org.mockserver.model.Parameter;
 import org.mockserver.model.ParameterBody;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
 
 import us.kbase.auth2.lib.exceptions.IdentityRetrievalException;
 import us.kbase.auth2.lib.identity.IdentityProvider;
@@ -148,6 +157,13 @@ public class GoogleIdentityProviderTest {
 				Collections.emptyMap()),
 				new IllegalArgumentException(
 						"Configuration class name doesn't match factory class name: foo"));
+		for (final String r: new String[] {"0", "-1", "foo", "1.5"}) {
+			failCreate(getTestIDConfig(ImmutableMap.of(
+					"verify-id-token", "true", "jwks-refresh-ms", r)),
+					new IllegalArgumentException(
+							"Configuration value jwks-refresh-ms for Google identity provider " +
+							"must be a positive integer: " + r));
+		}
 	}
 	
 	private void failCreate(final IdentityProviderConfig cfg, final Exception exception) {
@@ -184,6 +200,11 @@ public class GoogleIdentityProviderTest {
 	private IdentityProviderConfig getTestIDConfig()
 			throws IdentityProviderConfigurationException, MalformedURLException,
 			URISyntaxException {
+		return getTestIDConfig(Collections.emptyMap());
+	}
+	
+	private IdentityProviderConfig getTestIDConfig(final Map<String, String> customConfig)
+			throws IdentityProviderConfigurationException, MalformedURLException {
 		return new IdentityProviderConfig(
 				GoogleIdentityProviderFactory.class.getName(),
 				new URL("https://glogin.com"),
@@ -192,7 +213,7 @@ public class GoogleIdentityProviderTest {
 				"gbar",
 				new URL("https://gloginredir.com"),
 				new URL("https://glinkredir.com"),
-				Collections.emptyMap());
+				customConfig);
 	}
 	
 	@Test
@@ -404,6 +425,156 @@ public class GoogleIdentityProviderTest {
 		assertThat("incorrect ident set", rids, is(expected));
 	}
 	
+	private static final KeyPair KEYS;
+	private static final KeyPair OTHER_KEYS;
+	static {
+		try {
+			final KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+			gen.initialize(2048);
+			KEYS = gen.generateKeyPair();
+			OTHER_KEYS = gen.generateKeyPair();
+		} catch (Exception e) {
+			throw new RuntimeException("Fix yer tests newb", e);
+		}
+	}
+	
+	private static String b64(final byte[] b) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+	}
+	
+	private static String b64(final Object json) throws Exception {
+		return b64(MAPPER.writeValueAsBytes(json));
+	}
+	
+	private String idToken(
+			final String kid,
+			final PrivateKey key,
+			final Map<String, Object> claims)
+			throws Exception {
+		final String signed = b64(ImmutableMap.of("alg", "RS256", "kid", kid)) + "." +
+				b64(claims);
+		final Signature sig = Signature.getInstance("SHA256withRSA");
+		sig.initSign(key);
+		sig.update(signed.getBytes(StandardCharsets.US_ASCII));
+		return signed + "." + b64(sig.sign());
+	}
+	
+	private Map<String, Object> claims(final String clientID) {
+		return map("iss", "https://accounts.google.com",
+				"aud", clientID,
+				"exp", Instant.now().getEpochSecond() + 3600,
+				"sub", "id9",
+				"email", "email9",
+				"name", "name9");
+	}
+	
+	private void setUpCallJWKS() throws Exception {
+		final RSAPublicKey pub = (RSAPublicKey) KEYS.getPublic();
+		mockClientAndServer.when(
+					new HttpRequest()
+						.withMethod("GET")
+						.withPath("/oauth2/v3/certs"),
+					Times.exactly(1)
+				).respond(
+					new HttpResponse()
+						.withStatusCode(200)
+						.withHeader(new Header(CONTENT_TYPE, APP_JSON))
+						.withBody(MAPPER.writeValueAsString(ImmutableMap.of("keys", Arrays.asList(
+								map("kty", "EC", "kid", "ec1"),
+								map("kty", "RSA", "alg", "RS256", "use", "sig", "kid", "key1",
+										"n", b64(pub.getModulus().toByteArray()),
+										"e", b64(pub.getPublicExponent().toByteArray())))))));
+	}
+	
+	private void setUpCallIDToken(
+			final IdentityProviderConfig idconfig,
+			final String authCode,
+			final String idToken)
+			throws Exception {
+		setUpCallAuthToken(authCode, "https://gloginredir.com", idconfig.getClientID(),
+				idconfig.getClientSecret(), APP_JSON, 200, MAPPER.writeValueAsString(
+						map("access_token", "footoken", "id_token", idToken)));
+	}
+	
+	@Test
+	public void getIdentityWithIDToken() throws Exception {
+		final IdentityProviderConfig idconfig = getTestIDConfig(
+				ImmutableMap.of("verify-id-token", "true"));
+		final IdentityProvider idp = new GoogleIdentityProvider(idconfig);
+		assertThat("incorrect login url", idp.getLoginURL("foo3", false),
+				is(new URL("https://glogin.com/o/oauth2/v2/auth?" +
+						"scope=openid+https%3A%2F%2Fwww.googleapis.com%2Fauth%2Fplus.me+" +
+						"profile+email&state=foo3&redirect_uri=https%3A%2F%2Fgloginredir.com" +
+						"&response_type=code&client_id=gfoo&prompt=select_account")));
+		
+		setUpCallJWKS();
+		final Set<RemoteIdentity> expected = new HashSet<>();
+		expected.add(new RemoteIdentity(new RemoteIdentityID(GOOGLE, "id9"),
+				new RemoteIdentityDetails("email9", "name9", "email9")));
+		
+		setUpCallIDToken(idconfig, "authcode1",
+				idToken("key1", KEYS.getPrivate(), claims("gfoo")));
+		assertThat("incorrect ident set", idp.getIdentities("authcode1", false), is(expected));
+		
+		// the key set is cached, so no further calls to the JWKS endpoint are needed
+		final Map<String, Object> claims = claims("gfoo");
+		claims.put("iss", "accounts.google.com");
+		claims.put("aud", Arrays.asList("someoneelse", "gfoo"));
+		setUpCallIDToken(idconfig, "authcode2", idToken("key1", KEYS.getPrivate(), claims));
+		assertThat("incorrect ident set", idp.getIdentities("authcode2", false), is(expected));
+	}
+	
+	@Test
+	public void getIdentityWithIDTokenFail() throws Exception {
+		final IdentityProviderConfig idconfig = getTestIDConfig(
+				ImmutableMap.of("verify-id-token", "true"));
+		final IdentityProvider idp = new GoogleIdentityProvider(idconfig);
+		setUpCallJWKS();
+		
+		setUpCallAuthToken("authcode", "https://gloginredir.com", idconfig.getClientID(),
+				idconfig.getClientSecret(), APP_JSON, 200, MAPPER.writeValueAsString(
+						map("access_token", "footoken")));
+		failGetIdentities(idp, "authcode", false, new IdentityRetrievalException(
+				"No ID token was returned by Google"));
+		
+		failIDToken(idp, idconfig, "foo.bar", "not a signed JWT");
+		failIDToken(idp, idconfig, idToken("key1", OTHER_KEYS.getPrivate(), claims("gfoo")),
+				"bad signature");
+		failIDToken(idp, idconfig, idToken("key1", KEYS.getPrivate(), claims("gbar")),
+				"token was not issued to this client");
+		
+		final Map<String, Object> wrongIssuer = claims("gfoo");
+		wrongIssuer.put("iss", "evil.com");
+		failIDToken(idp, idconfig, idToken("key1", KEYS.getPrivate(), wrongIssuer),
+				"unexpected issuer evil.com");
+		
+		final Map<String, Object> expired = claims("gfoo");
+		expired.put("exp", Instant.now().getEpochSecond() - 3600);
+		failIDToken(idp, idconfig, idToken("key1", KEYS.getPrivate(), expired),
+				"token is expired");
+		
+		// the key set was just fetched so it's not refetched for an unknown key
+		failIDToken(idp, idconfig, idToken("key2", OTHER_KEYS.getPrivate(), claims("gfoo")),
+				"unknown signing key key2");
+		
+		final Map<String, Object> noEmail = claims("gfoo");
+		noEmail.remove("email");
+		setUpCallIDToken(idconfig, "authcode", idToken("key1", KEYS.getPrivate(), noEmail));
+		failGetIdentities(idp, "authcode", false, new IdentityRetrievalException(
+				"No username included in response from Google"));
+	}
+	
+	private void failIDToken(
+			final IdentityProvider idp,
+			final IdentityProviderConfig idconfig,
+			final String idToken,
+			final String reason)
+			throws Exception {
+		setUpCallIDToken(idconfig, "authcode", idToken);
+		failGetIdentities(idp, "authcode", false, new IdentityRetrievalException(
+				"Invalid ID token from Google service: " + reason));
+	}
+	
 	private void setUpCallAuthToken(
 			final String authCode,
 			final String authtoken,
@@ -0,0 +1,274 @@
+package us.kbase.test.auth2.providers;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Delay;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.exceptions.IdentityRetrievalException;
+import us.kbase.auth2.providers.IdentityProviderClient;
+import us.kbase.test.auth2.TestCommon;
+
+public class IdentityProviderClientTest {
+
+	private static ClientAndServer mockClientAndServer;
+
+	@BeforeClass
+	public static void setUpClass() {
+		((ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory
+				.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(ch.qos.logback.classic.Level.OFF);
+		((ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory
+				.getLogger("org.mockserver"))
+				.setLevel(ch.qos.logback.classic.Level.OFF);
+		mockClientAndServer = ClientAndServer.startClientAndServer(TestCommon.findFreePort());
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		if (mockClientAndServer != null) {
+			mockClientAndServer.stop();
+		}
+	}
+
+	@After
+	public void tearDownTest() {
+		mockClientAndServer.reset();
+	}
+
+	private String url() {
+		return "http://localhost:" + mockClientAndServer.getPort() + "/foo";
+	}
+
+	private void setUpResponse(final int delayMS) {
+		mockClientAndServer.when(
+					new HttpRequest()
+						.withMethod("GET")
+						.withPath("/foo")
+				).respond(
+					new HttpResponse()
+						.withStatusCode(200)
+						.withBody("bar")
+						.withDelay(new Delay(TimeUnit.MILLISECONDS, delayMS))
+				);
+	}
+
+	private String get(final IdentityProviderClient cli, final String url)
+			throws IdentityRetrievalException {
+		return cli.execute(c -> c.target(url).request(MediaType.TEXT_PLAIN_TYPE).get(),
+				r -> r.getStatus() + " " + r.readEntity(String.class));
+	}
+
+	@Test
+	public void request() throws Exception {
+		setUpResponse(0);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", Collections.emptyMap());
+
+		assertThat("incorrect response", get(cli, url()), is("200 bar"));
+		assertThat("incorrect response", get(cli, url()), is("200 bar"));
+
+		assertThat("incorrect requests", cli.getRequestCount(), is(2L));
+		assertThat("incorrect failures", cli.getFailureCount(), is(0L));
+		assertThat("incorrect rejected", cli.getRejectedCount(), is(0L));
+		assertThat("incorrect max latency", cli.getMaxLatencyMS() >= 0, is(true));
+		assertThat("incorrect mean latency", cli.getMeanLatencyMS() <= cli.getMaxLatencyMS(),
+				is(true));
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(false));
+	}
+
+	@Test
+	public void latencyIncludesProcessing() throws Exception {
+		setUpResponse(0);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", ImmutableMap.of(IdentityProviderClient.METRICS_LOG_INTERVAL, "1"));
+
+		final String res = cli.execute(
+				c -> c.target(url()).request(MediaType.TEXT_PLAIN_TYPE).get(),
+				r -> {
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return r.readEntity(String.class);
+				});
+
+		assertThat("incorrect response", res, is("bar"));
+		assertThat("incorrect requests", cli.getRequestCount(), is(1L));
+		assertThat("incorrect max latency", cli.getMaxLatencyMS() >= 300, is(true));
+		assertThat("incorrect summary", cli.getMetricsSummary().startsWith(
+				"prov service requests: 1, failures: 0, rejected: 0, mean latency: "),
+				is(true));
+	}
+
+	@Test
+	public void processorError() throws Exception {
+		setUpResponse(0);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", ImmutableMap.of(IdentityProviderClient.CIRCUIT_FAILURES, "1"));
+
+		try {
+			cli.execute(c -> c.target(url()).request(MediaType.TEXT_PLAIN_TYPE).get(),
+					r -> {
+						throw new IdentityRetrievalException("bad response");
+					});
+			fail("expected exception");
+		} catch (IdentityRetrievalException e) {
+			assertThat("incorrect exception", e.getMessage(),
+					is("10020 Identity retrieval failed: bad response"));
+		}
+		// the provider responded, so the circuit stays closed
+		assertThat("incorrect requests", cli.getRequestCount(), is(1L));
+		assertThat("incorrect failures", cli.getFailureCount(), is(0L));
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(false));
+	}
+
+	@Test
+	public void readTimeout() throws Exception {
+		setUpResponse(2000);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", ImmutableMap.of(IdentityProviderClient.READ_TIMEOUT, "200"));
+
+		try {
+			get(cli, url());
+			fail("expected exception");
+		} catch (IdentityRetrievalException e) {
+			assertThat("incorrect exception", e.getMessage().startsWith(
+					"Unable to contact prov service: "), is(true));
+		}
+		assertThat("incorrect requests", cli.getRequestCount(), is(1L));
+		assertThat("incorrect failures", cli.getFailureCount(), is(1L));
+		assertThat("incorrect max latency", cli.getMaxLatencyMS() < 2000, is(true));
+	}
+
+	@Test
+	public void circuitBreaker() throws Exception {
+		setUpResponse(0);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", ImmutableMap.of(
+						IdentityProviderClient.CIRCUIT_FAILURES, "2",
+						IdentityProviderClient.CIRCUIT_RESET, "500"));
+		// nothing listening on this port
+		final String badurl = "http://localhost:" + TestCommon.findFreePort() + "/foo";
+
+		failGet(cli, badurl, true);
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(false));
+		failGet(cli, badurl, true);
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(true));
+
+		// good url, but the circuit is open
+		failGet(cli, url(), false);
+		assertThat("incorrect requests", cli.getRequestCount(), is(2L));
+		assertThat("incorrect failures", cli.getFailureCount(), is(2L));
+		assertThat("incorrect rejected", cli.getRejectedCount(), is(1L));
+
+		Thread.sleep(600);
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(false));
+		// trial request fails, circuit reopens
+		failGet(cli, badurl, true);
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(true));
+
+		Thread.sleep(600);
+		// trial request succeeds, circuit closes
+		assertThat("incorrect response", get(cli, url()), is("200 bar"));
+		assertThat("incorrect circuit", cli.isCircuitOpen(), is(false));
+		assertThat("incorrect response", get(cli, url()), is("200 bar"));
+		assertThat("incorrect requests", cli.getRequestCount(), is(5L));
+		assertThat("incorrect failures", cli.getFailureCount(), is(3L));
+		assertThat("incorrect rejected", cli.getRejectedCount(), is(1L));
+	}
+
+	private void failGet(
+			final IdentityProviderClient cli,
+			final String url,
+			final boolean contacted) {
+		try {
+			get(cli, url);
+			fail("expected exception");
+		} catch (IdentityRetrievalException e) {
+			if (contacted) {
+				assertThat("incorrect exception", e.getMessage().startsWith(
+						"Unable to contact prov service: "), is(true));
+			} else {
+				TestCommon.assertExceptionCorrect(e, new IdentityRetrievalException(
+						"Requests to prov service are suspended after repeated failures to " +
+						"contact the service."));
+			}
+		}
+	}
+
+	@Test
+	public void concurrentLimit() throws Exception {
+		setUpResponse(1000);
+		final IdentityProviderClient cli = new IdentityProviderClient(
+				"prov", ImmutableMap.of(IdentityProviderClient.MAX_CONCURRENT, "1"));
+
+		final Thread t = new Thread(() -> {
+			try {
+				get(cli, url());
+			} catch (IdentityRetrievalException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		t.start();
+		Thread.sleep(300);
+		try {
+			get(cli, url());
+			fail("expected exception");
+		} catch (IdentityRetrievalException e) {
+			TestCommon.assertExceptionCorrect(e, new IdentityRetrievalException(
+					"Too many concurrent requests to prov service."));
+		}
+		t.join();
+		assertThat("incorrect requests", cli.getRequestCount(), is(1L));
+		assertThat("incorrect rejected", cli.getRejectedCount(), is(1L));
+		assertThat("incorrect response", get(cli, url()), is("200 bar"));
+	}
+
+	@Test
+	public void constructFail() throws Exception {
+		final Map<String, String> e = Collections.emptyMap();
+		failConstruct(null, e, new IllegalArgumentException("Missing argument: providerName"));
+		failConstruct("  \t ", e,
+				new IllegalArgumentException("Missing argument: providerName"));
+		failConstruct("p", null, new NullPointerException("customConfig"));
+		for (final String key: new String[] {IdentityProviderClient.CONNECT_TIMEOUT,
+				IdentityProviderClient.READ_TIMEOUT, IdentityProviderClient.MAX_CONCURRENT,
+				IdentityProviderClient.CIRCUIT_FAILURES, IdentityProviderClient.CIRCUIT_RESET}) {
+			for (final String val: new String[] {"0", "-1", "foo", "1.5"}) {
+				failConstruct("p", ImmutableMap.of(key, val), new IllegalArgumentException(
+						"Configuration value " + key + " for p identity provider must be a " +
+						"positive integer: " + val));
+			}
+		}
+	}
+
+	private void failConstruct(
+			final String name,
+			final Map<String, String> cfg,
+			final Exception expected) {
+		try {
+			new IdentityProviderClient(name, cfg);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+}
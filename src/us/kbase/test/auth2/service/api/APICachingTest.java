@@ -0,0 +1,160 @@
+package us.kbase.test.auth2.service.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import us.kbase.auth2.lib.DisplayName;
+import us.kbase.auth2.lib.UserName;
+import us.kbase.auth2.lib.exceptions.AuthException;
+import us.kbase.auth2.lib.exceptions.ErrorType;
+import us.kbase.auth2.lib.token.StoredToken;
+import us.kbase.auth2.lib.token.TokenType;
+import us.kbase.auth2.service.api.APICaching;
+import us.kbase.auth2.service.api.APIConstants;
+import us.kbase.test.auth2.TestCommon;
+
+public class APICachingTest {
+
+	private static final Instant NOW = Instant.ofEpochMilli(1500000000000L);
+
+	private static StoredToken getToken(final Instant expires) throws Exception {
+		return StoredToken.getBuilder(TokenType.LOGIN, UUID.randomUUID(), new UserName("foo"))
+				.withLifeTime(NOW.minusSeconds(3600), expires).build();
+	}
+
+	@Test
+	public void maxAgeCacheTime() throws Exception {
+		assertThat("incorrect max age", APICaching.getMaxAge(
+				300000, getToken(NOW.plusSeconds(3600)), NOW), is(300));
+	}
+
+	@Test
+	public void maxAgeTokenExpires() throws Exception {
+		assertThat("incorrect max age", APICaching.getMaxAge(
+				300000, getToken(NOW.plusMillis(120500)), NOW), is(120));
+	}
+
+	@Test
+	public void maxAgeTokenExpired() throws Exception {
+		assertThat("incorrect max age", APICaching.getMaxAge(
+				300000, getToken(NOW.minusSeconds(1)), NOW), is(0));
+	}
+
+	@Test
+	public void eTag() throws Exception {
+		final EntityTag e1 = APICaching.getETag(ImmutableMap.of("foo", 1, "bar", "baz"));
+		final EntityTag e2 = APICaching.getETag(ImmutableMap.of("foo", 1, "bar", "baz"));
+		final EntityTag e3 = APICaching.getETag(ImmutableMap.of("foo", 2, "bar", "baz"));
+
+		assertThat("incorrect etag", e1, is(e2));
+		assertThat("incorrect etag", e1, not(e3));
+		assertThat("incorrect weak", e1.isWeak(), is(false));
+		assertThat("incorrect etag length", e1.getValue().length(), is(64));
+	}
+
+	@Test
+	public void eTagList() throws Exception {
+		assertThat("incorrect etag", APICaching.getETag(Arrays.asList("foo", true)),
+				not(APICaching.getETag(Arrays.asList("foo", false))));
+	}
+
+	@Test
+	public void usersETag() throws Exception {
+		final Map<UserName, DisplayName> users = new LinkedHashMap<>();
+		users.put(new UserName("foo"), new DisplayName("bar baz"));
+		users.put(new UserName("bat"), new DisplayName("whee"));
+		final Map<UserName, DisplayName> same = new LinkedHashMap<>(users);
+		final Map<UserName, DisplayName> diff = new LinkedHashMap<>();
+		// the separators prevent names running together
+		diff.put(new UserName("foo"), new DisplayName("bar"));
+		diff.put(new UserName("baz"), new DisplayName("bat whee"));
+
+		assertThat("incorrect etag", APICaching.getUsersETag(users),
+				is(APICaching.getUsersETag(same)));
+		assertThat("incorrect etag", APICaching.getUsersETag(users),
+				not(APICaching.getUsersETag(diff)));
+		assertThat("incorrect etag", APICaching.getUsersETag(new LinkedHashMap<>()),
+				not(APICaching.getUsersETag(users)));
+	}
+
+	@Test
+	public void buildModified() throws Exception {
+		final Request req = mock(Request.class);
+		final EntityTag etag = new EntityTag("abcdef");
+
+		when(req.evaluatePreconditions(etag)).thenReturn(null);
+
+		final Response r = APICaching.build(req, etag, 42, () -> Response.ok("foo"));
+
+		assertThat("incorrect status", r.getStatus(), is(200));
+		assertThat("incorrect entity", r.getEntity(), is("foo"));
+		assertThat("incorrect etag", r.getEntityTag(), is(etag));
+		assertCacheHeaders(r, 42);
+	}
+
+	@Test
+	public void buildNotModified() throws Exception {
+		final Request req = mock(Request.class);
+		final EntityTag etag = new EntityTag("abcdef");
+
+		// what the container returns when If-None-Match matches the tag
+		when(req.evaluatePreconditions(etag)).thenReturn(Response.notModified(etag));
+
+		final Response r = APICaching.build(req, etag, 0, () -> {
+			throw new IllegalStateException("response should not be built");
+		});
+
+		assertThat("incorrect status", r.getStatus(), is(304));
+		assertThat("incorrect entity", r.hasEntity(), is(false));
+		assertThat("incorrect etag", r.getEntityTag(), is(etag));
+		assertCacheHeaders(r, 0);
+	}
+
+	@Test
+	public void buildFailSupplier() throws Exception {
+		final Request req = mock(Request.class);
+		final EntityTag etag = new EntityTag("abcdef");
+
+		when(req.evaluatePreconditions(etag)).thenReturn(null);
+
+		try {
+			APICaching.build(req, etag, 42, () -> {
+				throw new AuthException(ErrorType.UNSUPPORTED_OP, "foo");
+			});
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got,
+					new AuthException(ErrorType.UNSUPPORTED_OP, "foo"));
+		}
+	}
+
+	private void assertCacheHeaders(final Response r, final int maxAge) {
+		final CacheControl cc = (CacheControl) r.getMetadata().getFirst(
+				HttpHeaders.CACHE_CONTROL);
+		assertThat("incorrect private", cc.isPrivate(), is(true));
+		assertThat("incorrect no transform", cc.isNoTransform(), is(false));
+		assertThat("incorrect max age", cc.getMaxAge(), is(maxAge));
+		assertThat("incorrect vary", r.getHeaderString(HttpHeaders.VARY),
+				is(APIConstants.HEADER_TOKEN));
+	}
+}